@@ -112,12 +112,24 @@ function download(filename, text)
     document.body.removeChild(element);
 }
 
+//Files bigger than this are sent to the validator in chunks, so a failed upload can resume where it stopped.
+var CHUNKED_UPLOAD_BYTES = 4 * 1024 * 1024;
+var UPLOAD_CHUNK_BYTES = 1024 * 1024;
+var UPLOAD_PARALLEL_CHUNKS = 4;
+var UPLOAD_RETRIES = 3;
+
 function readSingleFile(fileElement) 
 {
     //Read the file from the hidden file element, put it's text in the input field.
     //This is how users submit a file using the browse button.
     var f = fileElement.files[0]; 
-    if (f)
+    if (f && f.size > CHUNKED_UPLOAD_BYTES)
+    {
+        //Large files are too big for the text field and a single POST.
+        document.getElementById("inputText").value = f.name + " (" + f.size + " bytes) is uploaded in chunks.";
+        uploadFile(f);
+    }
+    else if (f)
     {
         var r = new FileReader();
         r.onload = function(e) 
@@ -140,6 +152,184 @@ function readSingleFile(fileElement)
     
 }
 
+function uploadFile(file)
+{
+    //Upload a large file in chunks, a few at a time.  The upload id is remembered, so choosing the same file again
+    //after a failure only sends the chunks the server doesn't have.
+    var uploads = window.location.href + "validator/uploads/";
+    var key = "miring-upload:" + file.name + ":" + file.size + ":" + file.lastModified;
+    var savedId = window.localStorage ? localStorage.getItem(key) : null;
+
+    if (savedId)
+    {
+        $.getJSON(uploads + savedId)
+            .done(function(upload)
+            {
+                sendChunks(upload, upload.received);
+            })
+            .fail(function()
+            {
+                //The upload expired, so start again.
+                localStorage.removeItem(key);
+                uploadFile(file);
+            });
+    }
+    else
+    {
+        $.post(uploads, {"size":file.size, "chunk-size":UPLOAD_CHUNK_BYTES}, null, "json")
+            .done(function(upload)
+            {
+                if (window.localStorage)
+                {
+                    localStorage.setItem(key, upload.id);
+                }
+                sendChunks(upload, []);
+            })
+            .fail(uploadFailed);
+    }
+
+    function sendChunks(upload, received)
+    {
+        var pending = [];
+        for (var chunk = 0; chunk < upload.chunks; chunk++)
+        {
+            if (received.indexOf(chunk) < 0)
+            {
+                pending.push(chunk);
+            }
+        }
+        var done = upload.chunks - pending.length;
+        var running = 0;
+        var failed = false;
+        showUploadProgress(done, upload.chunks);
+
+        function next()
+        {
+            if (failed)
+            {
+                return;
+            }
+            if (pending.length == 0)
+            {
+                if (running == 0)
+                {
+                    completeUpload(upload);
+                }
+                return;
+            }
+            var chunk = pending.shift();
+            running++;
+            sendChunk(upload, chunk, UPLOAD_RETRIES, function(ok)
+            {
+                running--;
+                if (!ok)
+                {
+                    failed = true;
+                    uploadFailed();
+                    return;
+                }
+                done++;
+                showUploadProgress(done, upload.chunks);
+                next();
+            });
+        }
+
+        for (var i = 0; i < UPLOAD_PARALLEL_CHUNKS; i++)
+        {
+            next();
+        }
+    }
+
+    function sendChunk(upload, chunk, retries, doneCallback)
+    {
+        var blob = file.slice(chunk * upload["chunk-size"], Math.min(file.size, (chunk + 1) * upload["chunk-size"]));
+        var reader = new FileReader();
+        reader.onload = function(e)
+        {
+            var bytes = e.target.result;
+            checksum(bytes, function(sha256)
+            {
+                $.ajax({url:uploads + upload.id + "/chunks/" + chunk, type:"PUT", data:bytes, processData:false,
+                        contentType:"application/octet-stream", headers:sha256 ? {"X-Chunk-SHA256":sha256} : {}})
+                    .done(function()
+                    {
+                        doneCallback(true);
+                    })
+                    .fail(function()
+                    {
+                        if (retries > 0)
+                        {
+                            sendChunk(upload, chunk, retries - 1, doneCallback);
+                        }
+                        else
+                        {
+                            doneCallback(false);
+                        }
+                    });
+            });
+        }
+        reader.readAsArrayBuffer(blob);
+    }
+
+    function completeUpload(upload)
+    {
+        $.post(uploads + upload.id + "/complete", {}, null, "text")
+            .done(function(resultXml)
+            {
+                if (window.localStorage)
+                {
+                    localStorage.removeItem(key);
+                }
+                showUploadProgress(0, 0);
+                showResults(resultXml);
+            })
+            .fail(uploadFailed);
+    }
+
+    function uploadFailed()
+    {
+        alert("The upload of " + file.name + " failed.  Choose the same file again to resume it.");
+    }
+}
+
+function checksum(bytes, doneCallback)
+{
+    //The SHA-256 of a chunk, in hex, or null if this browser can't compute it.
+    var subtle = window.crypto && window.crypto.subtle;
+    if (!subtle)
+    {
+        doneCallback(null);
+        return;
+    }
+    subtle.digest("SHA-256", bytes).then(function(digest)
+    {
+        var hex = "";
+        var digestBytes = new Uint8Array(digest);
+        for (var i = 0; i < digestBytes.length; i++)
+        {
+            hex += (digestBytes[i] < 16 ? "0" : "") + digestBytes[i].toString(16);
+        }
+        doneCallback(hex);
+    }, function()
+    {
+        doneCallback(null);
+    });
+}
+
+function showUploadProgress(done, total)
+{
+    var progress = document.getElementById("uploadProgress");
+    if (total == 0)
+    {
+        progress.style.display = 'none';
+        return;
+    }
+    progress.style.display = 'block';
+    var percent = Math.floor(100 * done / total) + "%";
+    document.getElementById("uploadProgressBar").style.width = percent;
+    document.getElementById("uploadProgressBar").innerHTML = percent;
+}
+
 function loadSample()
 {
     //load some sample HML and validate it.
@@ -173,55 +363,7 @@ function callValidatorService()
             //alert("This is called if there was a successful request.  Storing the response in the right text box.");
             var resultXml = new XMLSerializer().serializeToString(response);
             resultXml = decodeURIComponent(resultXml);
-            document.getElementById("resultsText").value = resultXml;
-            
-            if(isMiringCompliant(resultXml)=="warnings")
-            {
-                document.getElementById("yellowCheck").style.display='block'
-                         document.getElementById("greenCheck").style.display = 'none';
-                         document.getElementById("redX").style.display = 'none';
-                         document.getElementById("reject").style.display='none';
-            }
-            else if(isMiringCompliant(resultXml)=="true")
-            {
-                //alert("MIRING Compliant.");
-                document.getElementById("greenCheck").style.display = 'block';
-                document.getElementById("redX").style.display = 'none';
-                         document.getElementById("reject").style.display='none';
-                         document.getElementById("yellowCheck").style.display='none'
-            }
-            else
-            {
-                //alert("Not MIRING Compliant.");
-                document.getElementById("greenCheck").style.display = 'none';
-                document.getElementById("redX").style.display = 'block';
-                         document.getElementById("reject").style.display='none';
-                         document.getElementById("yellowCheck").style.display='none'
-            }
-            if(isHMLCompliant(resultXml)=="reject")
-            {
-                         document.getElementById("reject").style.display='block';
-                         document.getElementById("greenCheck").style.display = 'none';
-                         document.getElementById("redX").style.display = 'none';
-                         document.getElementById("HMLcheck").style.display='none';
-                         document.getElementById("HMLX").style.display='none';
-           
-            }
-            else if (isHMLCompliant(resultXml)=="false")
-            {
-                //Not HML Compliant
-                document.getElementById("HMLcheck").style.display='none';
-                document.getElementById("HMLX").style.display='block';
-                         document.getElementById("reject").style.display='none';
-            }
-                         else{
-                         //HML Compliant
-                         document.getElementById("HMLcheck").style.display='block';
-                         document.getElementById("HMLX").style.display='none';
-                         document.getElementById("reject").style.display='none';
-
-                         }
-            
+            showResults(resultXml);
         })
         .done(function() 
         {
@@ -242,6 +384,59 @@ function callValidatorService()
     
 }
 
+function showResults(resultXml)
+{
+    //Put the report in the results field, and show whether the HML is compliant.
+    document.getElementById("resultsText").value = resultXml;
+    
+    if(isMiringCompliant(resultXml)=="warnings")
+    {
+        document.getElementById("yellowCheck").style.display='block'
+                 document.getElementById("greenCheck").style.display = 'none';
+                 document.getElementById("redX").style.display = 'none';
+                 document.getElementById("reject").style.display='none';
+    }
+    else if(isMiringCompliant(resultXml)=="true")
+    {
+        //alert("MIRING Compliant.");
+        document.getElementById("greenCheck").style.display = 'block';
+        document.getElementById("redX").style.display = 'none';
+                 document.getElementById("reject").style.display='none';
+                 document.getElementById("yellowCheck").style.display='none'
+    }
+    else
+    {
+        //alert("Not MIRING Compliant.");
+        document.getElementById("greenCheck").style.display = 'none';
+        document.getElementById("redX").style.display = 'block';
+                 document.getElementById("reject").style.display='none';
+                 document.getElementById("yellowCheck").style.display='none'
+    }
+    if(isHMLCompliant(resultXml)=="reject")
+    {
+                 document.getElementById("reject").style.display='block';
+                 document.getElementById("greenCheck").style.display = 'none';
+                 document.getElementById("redX").style.display = 'none';
+                 document.getElementById("HMLcheck").style.display='none';
+                 document.getElementById("HMLX").style.display='none';
+   
+    }
+    else if (isHMLCompliant(resultXml)=="false")
+    {
+        //Not HML Compliant
+        document.getElementById("HMLcheck").style.display='none';
+        document.getElementById("HMLX").style.display='block';
+                 document.getElementById("reject").style.display='none';
+    }
+                 else{
+                 //HML Compliant
+                 document.getElementById("HMLcheck").style.display='block';
+                 document.getElementById("HMLX").style.display='none';
+                 document.getElementById("reject").style.display='none';
+
+                 }
+}
+
 function clearText()
 {
     document.getElementById("resultsText").value = "";
@@ -16,10 +16,10 @@ public class CORSFilter implements ContainerResponseFilter {
 
         response.getHttpHeaders().add("Access-Control-Allow-Origin", "*");
         response.getHttpHeaders().add("Access-Control-Allow-Headers",
-                "origin, content-type, accept, authorization");
+                "origin, content-type, accept, authorization, x-chunk-sha256");
         response.getHttpHeaders().add("Access-Control-Allow-Credentials", "true");
         response.getHttpHeaders().add("Access-Control-Allow-Methods",
-                "POST, OPTIONS, HEAD");
+                "GET, POST, PUT, DELETE, OPTIONS, HEAD");
 
         return response;
     }
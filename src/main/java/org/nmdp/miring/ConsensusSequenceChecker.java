@@ -0,0 +1,317 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+
+/**
+ * ConsensusSequenceChecker validates the sequence nodes underneath consensus-sequence-block nodes, while a SAX parser streams past them.
+ *
+ * This replaces schematron rule 4.2.3.e.  The schematron version built several copies of every sequence
+ * ( replace(normalize-space(.),' ','') ), which is expensive for multi-kilobase sequences.
+ * Here we just count the non-whitespace characters as they arrive in characters() callbacks, and check each one against
+ * the IUPAC nucleotide alphabet using a lookup table.  The sequence text is never buffered.
+ *
+ * It also replaces schematron rules 5.3.b and 5.3.c, the variant ids, which compared each variant with the siblings on either side
+ * and searched all of them for id 0, costing O(n^2) for a block of n variants.  Here each variant's id is parsed once, and a bitset
+ * of the ids seen so far finds the duplicates.  When the block ends its variants are reported in one pass, now that n is known.
+ * A variant is reported if the schematron would have reported it, and also if its id is a duplicate or isn't an integer from 0 to n-1,
+ * which catches the gaps and duplicates the neighbour comparisons missed.
+*/
+public class ConsensusSequenceChecker
+{
+    public static final String HML_NAMESPACE = "http://schemas.nmdp.org/spec/hml/1.0.1";
+    public static final String LENGTH_ERROR_TEXT = "For every consensus-sequence-block node, the child sequence node must have a length of (end - start).";
+    public static final String ALPHABET_ERROR_TEXT = "A sequence node underneath a consensus-sequence-block contains characters that are not IUPAC nucleotide codes.";
+    public static final String VARIANT_ID_ERROR_TEXT = "The variant nodes under a single consensus-sequence-block must have id attributes that are integers ranging from 0:n-1, where n is the number of variants.";
+
+    //Lookup tables, indexed by character.  Anything outside the table is not a nucleotide.
+    private static final boolean[] IUPAC_NUCLEOTIDES = new boolean[128];
+    private static final boolean[] XML_WHITESPACE = new boolean[128];
+    static
+    {
+        String nucleotides = "ACGTURYSWKMBDHVN";
+        for(int i = 0; i < nucleotides.length(); i++)
+        {
+            IUPAC_NUCLEOTIDES[nucleotides.charAt(i)] = true;
+            IUPAC_NUCLEOTIDES[Character.toLowerCase(nucleotides.charAt(i))] = true;
+        }
+        //normalize-space() only considers these four characters to be whitespace.
+        XML_WHITESPACE[' '] = true;
+        XML_WHITESPACE['\t'] = true;
+        XML_WHITESPACE['\r'] = true;
+        XML_WHITESPACE['\n'] = true;
+    }
+
+    //The rule set whose rule template the results are made from.
+    private final RuleSet ruleSet;
+
+    //Depth of the current element, the current consensus-sequence-block, and the current sequence.  -1 means we aren't in one.
+    private int depth = 0;
+    private int blockDepth = -1;
+    private int sequenceDepth = -1;
+
+    private String blockStart;
+    private String blockEnd;
+    private long nucleotideCount;
+    private boolean invalidCharacterFound;
+
+    //The variants of the current block, in document order.  Ids which aren't numbers are NaN, like number(@id).
+    private double[] variantIds = new double[16];
+    private final List<SimpleXmlModel> variantNodes = new ArrayList<SimpleXmlModel>();
+    private int variantCount;
+    //Variant i is the next sibling of variant i - 1.
+    private final BitSet adjacentVariants = new BitSet();
+    //The integer ids seen so far, and the variants whose id was seen before.
+    private final BitSet seenIds = new BitSet();
+    private final BitSet duplicateIds = new BitSet();
+    private boolean zeroIdFound;
+    //Whether the block's last child element, and the child element that is open, are variants.
+    private boolean previousChildIsVariant;
+    private boolean childIsVariant;
+
+    /**
+     * Constructor for a checker which makes its results from the current RuleSet.
+     */
+    public ConsensusSequenceChecker()
+    {
+        this(RuleSet.getCurrent());
+    }
+
+    /**
+     * @param ruleSet the rule set of the validation, whose rule template the results are made from
+     */
+    ConsensusSequenceChecker(RuleSet ruleSet)
+    {
+        this.ruleSet = ruleSet;
+    }
+
+    /**
+     * Call this from the SAX handler's startElement().
+     *
+     * @param uri the namespace uri of the element
+     * @param localName the local name of the element
+     * @param attributes the element's attributes
+     */
+    public void startElement(String uri, String localName, Attributes attributes)
+    {
+        depth++;
+        if(!HML_NAMESPACE.equals(uri))
+        {
+            return;
+        }
+        if(localName.equals("consensus-sequence-block"))
+        {
+            blockDepth = depth;
+            blockStart = attributes.getValue("start");
+            blockEnd = attributes.getValue("end");
+            previousChildIsVariant = false;
+        }
+        else if(blockDepth != -1 && depth == blockDepth + 1)
+        {
+            childIsVariant = localName.equals("variant");
+            if(childIsVariant)
+            {
+                startVariant(attributes.getValue("id"));
+            }
+            else if(localName.equals("sequence"))
+            {
+                sequenceDepth = depth;
+                nucleotideCount = 0;
+                invalidCharacterFound = false;
+            }
+        }
+    }
+
+    private void startVariant(String id)
+    {
+        if(variantCount == variantIds.length)
+        {
+            variantIds = Arrays.copyOf(variantIds, variantCount * 2);
+        }
+        double number = parseNumber(id);
+        variantIds[variantCount] = number;
+        if(previousChildIsVariant)
+        {
+            adjacentVariants.set(variantCount);
+        }
+        if(number >= 0 && number < Integer.MAX_VALUE && number == Math.rint(number))
+        {
+            int integerId = (int)number;
+            if(seenIds.get(integerId))
+            {
+                duplicateIds.set(variantCount);
+            }
+            seenIds.set(integerId);
+        }
+        //../hml:variant[@id = '0'] compares the text.
+        zeroIdFound |= "0".equals(id);
+        variantCount++;
+    }
+
+    /**
+     * Call this from the SAX handler's characters().  Only counts characters when we are inside a consensus-sequence-block/sequence node.
+     *
+     * @param ch the characters from the parser
+     * @param start the start position in the array
+     * @param length the number of characters to read from the array
+     */
+    public void characters(char[] ch, int start, int length)
+    {
+        if(sequenceDepth == -1)
+        {
+            return;
+        }
+        int end = start + length;
+        for(int i = start; i < end; i++)
+        {
+            char c = ch[i];
+            if(c < 128)
+            {
+                if(XML_WHITESPACE[c])
+                {
+                    continue;
+                }
+                if(!IUPAC_NUCLEOTIDES[c])
+                {
+                    invalidCharacterFound = true;
+                }
+            }
+            else
+            {
+                invalidCharacterFound = true;
+            }
+            nucleotideCount++;
+        }
+    }
+
+    /**
+     * Call this from the SAX handler's endElement(), before the handler moves up to the parent node.
+     *
+     * @param currentNode the SimpleXmlModel of the element that is ending.  Its xpath is only generated if there is a problem.
+     * @return a list of ValidationResult objects for the sequence node.  Empty unless a sequence node just ended with a problem.
+     */
+    public List<ValidationResult> endElement(SimpleXmlModel currentNode)
+    {
+        List<ValidationResult> results = new ArrayList<ValidationResult>();
+        if(blockDepth != -1 && depth == blockDepth + 1)
+        {
+            if(childIsVariant)
+            {
+                variantNodes.add(currentNode);
+            }
+            previousChildIsVariant = childIsVariant;
+            childIsVariant = false;
+        }
+        if(depth == sequenceDepth)
+        {
+            //..[@end - @start = $seqLength]  Missing or non-numeric attributes never match.
+            double expectedLength = parseCoordinate(blockEnd) - parseCoordinate(blockStart);
+            if(expectedLength != nucleotideCount)
+            {
+                results.add(SchematronValidator.generateValidationError(ruleSet, LENGTH_ERROR_TEXT, currentNode.getXPath()));
+            }
+            if(invalidCharacterFound)
+            {
+                results.add(SchematronValidator.generateValidationError(ruleSet, ALPHABET_ERROR_TEXT, currentNode.getXPath()));
+            }
+            sequenceDepth = -1;
+        }
+        else if(depth == blockDepth)
+        {
+            checkVariantIds(results);
+            blockDepth = -1;
+            blockStart = null;
+            blockEnd = null;
+        }
+        depth--;
+        return results;
+    }
+
+    /**
+     * Report the variants of the block which ended, and start the next block with none.
+     */
+    private void checkVariantIds(List<ValidationResult> results)
+    {
+        for(int i = 0; i < variantCount; i++)
+        {
+            double id = variantIds[i];
+            //The schematron's tests.  NaN never equals a neighbour's id, and a neighbour that isn't a number is never compared.
+            boolean previousMismatch = adjacentVariants.get(i) && !Double.isNaN(variantIds[i - 1]) && variantIds[i - 1] != id - 1;
+            boolean nextMismatch = adjacentVariants.get(i + 1) && !Double.isNaN(variantIds[i + 1]) && variantIds[i + 1] != id + 1;
+            //Gaps and duplicates.  Every id which isn't a new integer from 0 to n-1 leaves a gap.
+            boolean outOfRange = !(id >= 0 && id < variantCount && id == Math.rint(id)) || duplicateIds.get(i);
+            if(Double.isNaN(id) || previousMismatch || nextMismatch || !zeroIdFound || outOfRange)
+            {
+                results.add(SchematronValidator.generateValidationError(ruleSet, VARIANT_ID_ERROR_TEXT, variantNodes.get(i).getXPath()));
+            }
+        }
+        variantNodes.clear();
+        variantCount = 0;
+        adjacentVariants.clear();
+        seenIds.clear();
+        duplicateIds.clear();
+        zeroIdFound = false;
+    }
+
+    /**
+     * Parse a number like number() does.  Java's suffixes and hex numbers aren't numbers there.
+     */
+    private static double parseNumber(String text)
+    {
+        if(text == null)
+        {
+            return Double.NaN;
+        }
+        String trimmed = text.trim();
+        if(trimmed.length() == 0 || "dDfFxXpP".indexOf(trimmed.charAt(trimmed.length() - 1)) != -1 || trimmed.indexOf('x') != -1 || trimmed.indexOf('X') != -1)
+        {
+            return Double.NaN;
+        }
+        try
+        {
+            return Double.parseDouble(trimmed);
+        }
+        catch(NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+
+    private static double parseCoordinate(String coordinate)
+    {
+        try
+        {
+            return Double.parseDouble(coordinate.trim());
+        }
+        catch(Exception e)
+        {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.ClassNamesResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * EmbeddedServer runs the MIRING Validator service without a servlet container, in the JDK's http server.
+ * It serves the same resources as the war (ValidateMiring, with the CORS headers, and the readiness check) at the same paths,
+ * so http://localhost:8080/MiringValidator/validator/ValidateMiring works either way.  The web pages are not served.
+ *
+ * The server starts listening straight away, and the readiness check (validator/ready) returns 503 until everything is preloaded.
+ * Then it logs how long the startup took.
+ *
+ * The settings are system properties:
+ *   miring.server.host     the address to listen on.  Default 0.0.0.0.
+ *   miring.server.port     the port to listen on.  Default 8080.
+ *   miring.server.path     the path of the service.  Default /MiringValidator/validator/.
+ *   miring.server.threads  the request threads, when virtual threads aren't available.  Default 2 per processor.
+ *   miring.virtualThreads  false to handle requests on platform threads, even on Java 21.  See VirtualThreads.
+*/
+public class EmbeddedServer
+{
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedServer.class);
+
+    /**
+     * @return the resources and filters of the service, the same as web.xml configures for the servlet container
+     */
+    static ResourceConfig newResourceConfig()
+    {
+        ResourceConfig config = new ClassNamesResourceConfig(MiringValidatorService.class, MiringReadinessService.class, UploadService.class);
+        config.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_RESPONSE_FILTERS, CORSFilter.class.getName());
+        return config;
+    }
+
+    /**
+     * Start serving the service.  It isn't ready until Preloader.preload() has been called.
+     *
+     * @param host the address to listen on
+     * @param port the port to listen on
+     * @param path the path of the service, starting and ending with /
+     * @param threads the number of request threads, if virtual threads aren't available
+     * @return the running HttpServer.  Stop it with stop(server).
+     * @throws IOException if the server can't listen on the port
+     */
+    public static HttpServer start(String host, int port, String path, int threads) throws IOException
+    {
+        HttpServer server = HttpServerFactory.create("http://" + host + ":" + port + path, newResourceConfig());
+        server.setExecutor(VirtualThreads.newExecutor("miring-request", threads));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Stop a server from start(), waiting up to a second for requests in progress.
+     *
+     * @param server the server
+     */
+    public static void stop(HttpServer server)
+    {
+        server.stop(1);
+        ((ExecutorService)server.getExecutor()).shutdown();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String host = System.getProperty("miring.server.host", "0.0.0.0");
+        int port = Integer.getInteger("miring.server.port", 8080);
+        String path = System.getProperty("miring.server.path", "/MiringValidator/validator/");
+        int threads = Integer.getInteger("miring.server.threads", 2 * Runtime.getRuntime().availableProcessors());
+
+        final HttpServer server = start(host, port, path, threads);
+        logger.info("MIRING Validator " + MiringValidator.getValidatorVersion() + " listening on http://" + host + ":" + port + path);
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                EmbeddedServer.stop(server);
+            }
+        });
+        RuleSetWatcher.start();
+        Preloader.preload();
+        logger.info("Ready after " + Preloader.getStartupMillis() + " ms, of which " + Preloader.getPreloadMillis() + " ms were preloading");
+    }
+}
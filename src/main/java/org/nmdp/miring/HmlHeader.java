@@ -0,0 +1,189 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.HashMap;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * HmlHeader holds the information from the top of an HML document: the version, the HML namespace prefix,
+ * the hmlid, and the property nodes underneath the root.
+ *
+ * These used to be found with a separate DOM parse of the whole document for each value.
+ * Now it is a single SAX pass which stops at the first sample node, so it doesn't matter how big the samples are.
+*/
+public class HmlHeader
+{
+    static Logger logger = LoggerFactory.getLogger(HmlHeader.class);
+    static final String HML_101_NAMESPACE = "http://schemas.nmdp.org/spec/hml/1.0.1";
+
+    boolean parsed = false;
+    String version;
+    String hmlNamespace;
+    String hmlIdRoot;
+    String hmlIdExtension;
+    HashMap<String,String> properties = new HashMap<String,String>();
+    boolean propertiesValid = true;
+
+    /**
+     * Read the header of an HML document.  If the document can't be parsed, the values we found before the problem are kept.
+     *
+     * @param input the HML document
+     * @return an HmlHeader containing the header values
+     */
+    public static HmlHeader read(HmlInput input)
+    {
+        HmlHeader header = new HmlHeader();
+        try
+        {
+            XmlFactories.parse(input.newInputSource(), header.new HeaderHandler());
+        }
+        catch(HeaderCompleteException e)
+        {
+            //We found the first sample, the header is done.
+        }
+        catch(Exception e)
+        {
+            logger.debug("Unable to read the whole HML header: " + e.toString());
+        }
+        return header;
+    }
+
+    /**
+     * Get the HML version, from the version attribute on the root node.
+     * If the document couldn't be parsed at all, we assume 1.0.1.
+     *
+     * @return the version, or null if the root node has no version attribute
+     */
+    public String getVersion()
+    {
+        return parsed ? version : "1.0.1";
+    }
+
+    /**
+     * Get the prefix used for the HML 1.0.1 namespace.  This is null if HML 1.0.1 is the default namespace, or is not declared on the root.
+     *
+     * @return the namespace prefix
+     */
+    public String getHmlNamespace()
+    {
+        return hmlNamespace;
+    }
+
+    public String getHmlIdRoot()
+    {
+        return hmlIdRoot;
+    }
+
+    public String getHmlIdExtension()
+    {
+        return hmlIdExtension;
+    }
+
+    /**
+     * Get the property nodes immediately underneath the root HML node.
+     *
+     * @return a map of the property names and values, or null if there are none.
+     */
+    public HashMap<String,String> getProperties()
+    {
+        return (!propertiesValid || properties.size() == 0) ? null : properties;
+    }
+
+    /**
+     * Thrown to stop the parse when the header is complete.
+    */
+    private static class HeaderCompleteException extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private class HeaderHandler extends DefaultHandler
+    {
+        int depth = 0;
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException
+        {
+            //Only the declarations on the root node count.
+            if(depth == 0 && HML_101_NAMESPACE.equals(uri) && prefix.length() > 0 && hmlNamespace == null)
+            {
+                hmlNamespace = prefix;
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+        {
+            depth++;
+            if(depth == 1)
+            {
+                parsed = true;
+                version = attributes.getValue("version");
+                if(HML_101_NAMESPACE.equals(uri) && !qName.contains(":"))
+                {
+                    //HML 1.0.1 is the default namespace.
+                    hmlNamespace = null;
+                }
+            }
+            else if(depth == 2)
+            {
+                if(localName.equals("sample"))
+                {
+                    throw new HeaderCompleteException();
+                }
+                else if(localName.equals("hmlid"))
+                {
+                    hmlIdRoot = attributes.getValue("root");
+                    hmlIdExtension = attributes.getValue("extension");
+                }
+                else if(qName.contains("property"))
+                {
+                    String name = attributes.getValue("name");
+                    String value = attributes.getValue("value");
+                    if(name == null || value == null)
+                    {
+                        logger.error("A property node underneath the root is missing a name or value attribute.");
+                        propertiesValid = false;
+                    }
+                    else
+                    {
+                        properties.put(name, value);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException
+        {
+            depth--;
+        }
+    }
+}
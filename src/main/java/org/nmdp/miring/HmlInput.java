@@ -0,0 +1,306 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.Locator2;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * HmlInput is the xml text that we are validating.  The validator makes several passes over the document
+ * (hml schema, tier 1, tier 2), and each pass asks this object for a fresh InputSource.
+ *
+ * The text can be held as a String (the original API), or as bytes in a ByteBuffer.
+ * Files are memory-mapped, so every pass re-reads the mapped region and the document is never copied onto the heap.
+ * The parsers detect the encoding of byte input from the xml declaration, just like they would for a file.
+*/
+public class HmlInput
+{
+    private final String xml;
+    private final ByteBuffer bytes;
+
+    private HmlInput(String xml, ByteBuffer bytes)
+    {
+        this.xml = xml;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Wrap xml text which is already in a String.
+     *
+     * @param xml a String containing the xml text
+     * @return an HmlInput for the text
+     */
+    public static HmlInput fromString(String xml)
+    {
+        return new HmlInput(xml, null);
+    }
+
+    /**
+     * Memory-map an xml file.  The file is mapped read-only, and should not be modified while validating.
+     * A file is mapped as one buffer, so it can be at most Integer.MAX_VALUE bytes (just under 2 GB).
+     *
+     * @param hmlFile the path of the xml file
+     * @return an HmlInput backed by the mapped file
+     * @throws IOException if the file can't be opened or mapped, or it is 2 GB or more
+     */
+    public static HmlInput fromPath(Path hmlFile) throws IOException
+    {
+        FileChannel channel = FileChannel.open(hmlFile, StandardOpenOption.READ);
+        try
+        {
+            if(channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Unable to map " + hmlFile + ", it is " + channel.size() + " bytes and the limit is " + Integer.MAX_VALUE + " bytes.");
+            }
+            //The mapping stays valid after the channel is closed.
+            return new HmlInput(null, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read an xml stream into memory.  The stream is read once, as bytes, and is not closed.
+     *
+     * @param xmlStream a stream containing the xml
+     * @return an HmlInput backed by the bytes read from the stream
+     * @throws IOException if the stream can't be read
+     */
+    public static HmlInput fromStream(InputStream xmlStream) throws IOException
+    {
+        byte[] buffer = new byte[65536];
+        int length = 0;
+        int read;
+        while((read = xmlStream.read(buffer, length, buffer.length - length)) != -1)
+        {
+            length += read;
+            if(length == buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return new HmlInput(null, ByteBuffer.wrap(buffer, 0, length).slice());
+    }
+
+    /**
+     * Wrap xml bytes in a ByteBuffer.  The bytes between the buffer's position and limit are the document.
+     * The buffer's position and limit are not changed by validation.
+     *
+     * @param xmlBytes a buffer containing the xml
+     * @return an HmlInput backed by the buffer
+     */
+    public static HmlInput fromBuffer(ByteBuffer xmlBytes)
+    {
+        return new HmlInput(null, xmlBytes.slice());
+    }
+
+    /**
+     * @return true if there is no xml text at all.
+     */
+    public boolean isEmpty()
+    {
+        return (bytes == null) ? (xml == null || xml.length() == 0) : !bytes.hasRemaining();
+    }
+
+    /**
+     * @return the length of the xml text, in chars for String input and in bytes for byte input
+     */
+    long length()
+    {
+        return (bytes == null) ? ((xml == null) ? 0 : xml.length()) : bytes.remaining();
+    }
+
+    /**
+     * Get a new InputSource for a parser, positioned at the start of the document.
+     *
+     * @return an InputSource for the xml text
+     */
+    public InputSource newInputSource()
+    {
+        return (bytes == null) ? new InputSource(new StringReader(xml)) : new InputSource(newInputStream());
+    }
+
+    /**
+     * Get a new InputStream, positioned at the start of the document.
+     * String input is encoded as UTF-8.
+     *
+     * @return an InputStream for the xml text
+     */
+    public InputStream newInputStream()
+    {
+        return (bytes == null) ? new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)) : new ByteBufferInputStream(bytes.duplicate());
+    }
+
+    /**
+     * @return the xml text, or null if this input is bytes
+     */
+    String getXml()
+    {
+        return xml;
+    }
+
+    /**
+     * @return a duplicate of the xml bytes, or null if this input is a String
+     */
+    ByteBuffer getBytes()
+    {
+        return (bytes == null) ? null : bytes.duplicate();
+    }
+
+    /**
+     * Get the xml text as a String.  For byte input this decodes a copy of the whole document, so validation never calls it.
+     *
+     * @return a String containing the xml text
+     */
+    public String asString()
+    {
+        if(bytes == null)
+        {
+            return xml;
+        }
+        return getEncoding().decode(bytes.duplicate()).toString();
+    }
+
+    /**
+     * Find the encoding of byte input the way the parsers do, from its byte order mark or its xml declaration.
+     * Only the top of the document is parsed.
+     *
+     * @return the encoding, or UTF-8 for String input, or if the parser doesn't say
+     */
+    Charset getEncoding()
+    {
+        if(bytes == null)
+        {
+            return StandardCharsets.UTF_8;
+        }
+        EncodingHandler handler = new EncodingHandler();
+        try
+        {
+            XmlFactories.parse(newInputSource(), handler);
+        }
+        catch(Exception e)
+        {
+            //Stopped at the first element, or not xml.
+        }
+        try
+        {
+            return (handler.encoding == null) ? StandardCharsets.UTF_8 : Charset.forName(handler.encoding);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * Reads the encoding the parser found, and stops the parse at the first element.
+    */
+    private static class EncodingHandler extends DefaultHandler
+    {
+        private Locator locator;
+        String encoding;
+
+        @Override
+        public void setDocumentLocator(Locator locator)
+        {
+            this.locator = locator;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+        {
+            if(locator instanceof Locator2)
+            {
+                encoding = ((Locator2)locator).getEncoding();
+            }
+            throw new SAXException("Found the encoding.");
+        }
+    }
+
+    /**
+     * An InputStream reading from a ByteBuffer.  Each stream gets its own duplicate of the buffer, so streams don't share a position.
+    */
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(len == 0)
+            {
+                return 0;
+            }
+            if(!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int count = (int)Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HmlSampleIndex finds the sample nodes underneath the hml node, by scanning the raw text of an HML document.
+ *
+ * This is not an xml parse.  The scan only follows tags, comments, CDATA sections and processing instructions, which is enough
+ * to find where each sample starts and ends, which line it starts on, and which reference-sequence ids it defines and refers to.
+ * Byte input is scanned as bytes, so its encoding must write markup as ASCII (UTF-8, ASCII or ISO-8859).
+ *
+ * scan returns null for anything the index can't describe safely: a DOCTYPE, UTF-16, truncated text, a sample node
+ * that isn't a child of the hml node, or a consensus-sequence-block that refers to a reference-sequence in another sample.
+*/
+final class HmlSampleIndex
+{
+    static Logger logger = LoggerFactory.getLogger(HmlSampleIndex.class);
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+    /**
+     * Where a sample node is in the document text.  Offsets are chars for String input, and bytes for byte input.
+    */
+    static final class SampleSpan
+    {
+        //The start tag begins at start, and the end tag finishes at end.
+        int start;
+        int end;
+        //The line and column of the start tag.
+        int line;
+        int column;
+        //The shape of the sample's text: how many line breaks it has, and how many characters are on its last line.
+        int lineBreaks;
+        int trailingColumns;
+        final Set<String> referenceSequenceIds = new HashSet<String>();
+        final Set<String> referenceSequenceReferences = new HashSet<String>();
+    }
+
+    private final String xml;
+    private final ByteBuffer bytes;
+    private final int length;
+    //Byte input only.  UTF-8 continuation bytes don't count as columns.
+    private boolean utf8 = true;
+
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0;
+
+    private final List<SampleSpan> samples = new ArrayList<SampleSpan>();
+    private final Set<String> referenceSequenceIds = new HashSet<String>();
+
+    private HmlSampleIndex(HmlInput input)
+    {
+        this.xml = input.getXml();
+        this.bytes = input.getBytes();
+        this.length = (xml != null) ? xml.length() : bytes.remaining();
+    }
+
+    /**
+     * Scan an HML document for its samples.
+     *
+     * @param input the xml text
+     * @return the index of the samples, or null if the document can't be indexed
+     */
+    static HmlSampleIndex scan(HmlInput input)
+    {
+        if(input == null || input.isEmpty())
+        {
+            return null;
+        }
+        HmlSampleIndex index = new HmlSampleIndex(input);
+        try
+        {
+            if(index.scanDocument())
+            {
+                return index;
+            }
+        }
+        catch(IndexOutOfBoundsException e)
+        {
+            //The document ended in the middle of a tag or comment.
+        }
+        logger.debug("The samples of this document can't be indexed.");
+        return null;
+    }
+
+    /**
+     * @return the number of sample nodes underneath the hml node
+     */
+    int getSampleCount()
+    {
+        return samples.size();
+    }
+
+    /**
+     * @param sampleIndex the index of a sample, starting at 0
+     * @return the line that the sample's start tag is on
+     */
+    int getLine(int sampleIndex)
+    {
+        return samples.get(sampleIndex).line;
+    }
+
+    /**
+     * Fingerprint every sample.  A fingerprint covers the sample's text and the column it starts at, and everything in the document
+     * outside of the samples, so it only matches a sample that would get the same validation results, apart from its line and position.
+     *
+     * @param context anything else the results depend on, like the rule selection
+     * @return the fingerprint of each sample, in document order
+     */
+    String[] getFingerprints(String context)
+    {
+        //Whitespace between samples only moves them, so it isn't part of the fingerprint.  Adding or removing a sample doesn't change the others.
+        MessageDigest headerDigest = newDigest();
+        int copied = 0;
+        for(int i = 0; i < samples.size(); i++)
+        {
+            SampleSpan sample = samples.get(i);
+            if(i == 0 || !isWhitespace(copied, sample.start))
+            {
+                update(headerDigest, copied, sample.start);
+            }
+            copied = sample.end;
+        }
+        update(headerDigest, copied, length);
+        headerDigest.update(context.getBytes(StandardCharsets.UTF_8));
+        byte[] headerHash = headerDigest.digest();
+
+        String[] fingerprints = new String[samples.size()];
+        for(int i = 0; i < samples.size(); i++)
+        {
+            SampleSpan sample = samples.get(i);
+            MessageDigest sampleDigest = newDigest();
+            sampleDigest.update(headerHash);
+            sampleDigest.update((sample.column + ":").getBytes(StandardCharsets.UTF_8));
+            update(sampleDigest, sample.start, sample.end);
+            fingerprints[i] = toHex(sampleDigest.digest());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Make a copy of the document where some samples are replaced by blank lines.
+     * 
+     * Every line and column outside of the blanked samples stays the same, so validating the copy gives the same results for
+     * the other samples, apart from their sample index.  The first sample should never be blanked: schema errors in the header
+     * are reported at the first sample, so they would move.
+     *
+     * @param blanked true for each sample to blank
+     * @return the copy of the document
+     */
+    HmlInput newBlankedInput(boolean[] blanked)
+    {
+        if(xml != null)
+        {
+            StringBuilder blankedXml = new StringBuilder(length);
+            int copied = 0;
+            for(int i = 0; i < samples.size(); i++)
+            {
+                SampleSpan sample = samples.get(i);
+                if(blanked[i])
+                {
+                    blankedXml.append(xml, copied, sample.start).append(getBlankText(sample));
+                    copied = sample.end;
+                }
+            }
+            blankedXml.append(xml, copied, length);
+            return HmlInput.fromString(blankedXml.toString());
+        }
+
+        ByteArrayOutputStream blankedBytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int copied = 0;
+        for(int i = 0; i < samples.size(); i++)
+        {
+            SampleSpan sample = samples.get(i);
+            if(blanked[i])
+            {
+                copy(blankedBytes, buffer, copied, sample.start);
+                byte[] blankText = getBlankText(sample).getBytes(StandardCharsets.US_ASCII);
+                blankedBytes.write(blankText, 0, blankText.length);
+                copied = sample.end;
+            }
+        }
+        copy(blankedBytes, buffer, copied, length);
+        return HmlInput.fromBuffer(ByteBuffer.wrap(blankedBytes.toByteArray()));
+    }
+
+    /**
+     * Make a copy of the document with only one of its samples, in the place of the first sample.
+     *
+     * The header and the end of the document stay the same, so validating the copy gives the same results for the sample,
+     * apart from its sample index, and its lines, which move by getLine(sampleIndex) - getLine(0).
+     *
+     * @param sampleIndex the index of the sample to keep, starting at 0
+     * @return the copy of the document
+     */
+    HmlInput newSampleInput(int sampleIndex)
+    {
+        SampleSpan first = samples.get(0);
+        SampleSpan sample = samples.get(sampleIndex);
+        SampleSpan last = samples.get(samples.size() - 1);
+        if(xml != null)
+        {
+            return HmlInput.fromString(new StringBuilder(first.start + sample.end - sample.start + length - last.end)
+                .append(xml, 0, first.start).append(xml, sample.start, sample.end).append(xml, last.end, length).toString());
+        }
+
+        ByteArrayOutputStream sampleBytes = new ByteArrayOutputStream(first.start + sample.end - sample.start + length - last.end);
+        byte[] buffer = new byte[8192];
+        copy(sampleBytes, buffer, 0, first.start);
+        copy(sampleBytes, buffer, sample.start, sample.end);
+        copy(sampleBytes, buffer, last.end, length);
+        return HmlInput.fromBuffer(ByteBuffer.wrap(sampleBytes.toByteArray()));
+    }
+
+    private static String getBlankText(SampleSpan sample)
+    {
+        StringBuilder blankText = new StringBuilder(sample.lineBreaks + sample.trailingColumns);
+        for(int i = 0; i < sample.lineBreaks; i++)
+        {
+            blankText.append('\n');
+        }
+        for(int i = 0; i < sample.trailingColumns; i++)
+        {
+            blankText.append(' ');
+        }
+        return blankText.toString();
+    }
+
+    private boolean scanDocument()
+    {
+        if(!checkEncoding())
+        {
+            return false;
+        }
+        int depth = 0;
+        SampleSpan sample = null;
+        while(pos < length)
+        {
+            if(at(pos) != '<')
+            {
+                advance();
+            }
+            else if(startsWith("<!--"))
+            {
+                skipPast("-->");
+            }
+            else if(startsWith("<![CDATA["))
+            {
+                skipPast("]]>");
+            }
+            else if(startsWith("<?"))
+            {
+                skipPast("?>");
+            }
+            else if(startsWith("<!"))
+            {
+                //A DOCTYPE can declare entities, which could change any part of the document.
+                return false;
+            }
+            else if(startsWith("</"))
+            {
+                skipPast(">");
+                depth--;
+                if(depth == 1 && sample != null)
+                {
+                    endSample(sample);
+                    sample = null;
+                }
+            }
+            else
+            {
+                int tagStart = pos;
+                int tagLine = line;
+                int tagColumn = countColumns(lineStart, pos) + 1;
+                advance();
+                int nameStart = pos;
+                while(!isWhitespace(at(pos)) && at(pos) != '>' && at(pos) != '/')
+                {
+                    advance();
+                }
+                int nameEnd = pos;
+                boolean isSample = localNameEquals(nameStart, nameEnd, "sample");
+                boolean isReferenceSequence = localNameEquals(nameStart, nameEnd, "reference-sequence");
+                boolean isConsensusSequenceBlock = localNameEquals(nameStart, nameEnd, "consensus-sequence-block");
+
+                //Attributes.  Only reference-sequence ids, and the references to them, are kept.
+                String referenceSequenceId = null;
+                String referenceSequenceReference = null;
+                boolean empty = false;
+                while(true)
+                {
+                    skipWhitespace();
+                    if(at(pos) == '>')
+                    {
+                        advance();
+                        break;
+                    }
+                    if(at(pos) == '/')
+                    {
+                        advance();
+                        if(at(pos) != '>')
+                        {
+                            return false;
+                        }
+                        advance();
+                        empty = true;
+                        break;
+                    }
+                    int attributeStart = pos;
+                    while(at(pos) != '=' && !isWhitespace(at(pos)))
+                    {
+                        if(at(pos) == '>' || at(pos) == '/')
+                        {
+                            return false;
+                        }
+                        advance();
+                    }
+                    int attributeEnd = pos;
+                    skipWhitespace();
+                    if(at(pos) != '=')
+                    {
+                        return false;
+                    }
+                    advance();
+                    skipWhitespace();
+                    int quote = at(pos);
+                    if(quote != '"' && quote != '\'')
+                    {
+                        return false;
+                    }
+                    advance();
+                    int valueStart = pos;
+                    while(at(pos) != quote)
+                    {
+                        advance();
+                    }
+                    int valueEnd = pos;
+                    advance();
+                    if(isReferenceSequence && nameEquals(attributeStart, attributeEnd, "id"))
+                    {
+                        referenceSequenceId = getText(valueStart, valueEnd);
+                    }
+                    if(isConsensusSequenceBlock && nameEquals(attributeStart, attributeEnd, "reference-sequence-id"))
+                    {
+                        referenceSequenceReference = getText(valueStart, valueEnd);
+                    }
+                }
+
+                if(isSample)
+                {
+                    //Validation lists every node called sample, so a sample anywhere else would change the sample positions.
+                    if(depth != 1 || sample != null)
+                    {
+                        return false;
+                    }
+                    sample = new SampleSpan();
+                    sample.start = tagStart;
+                    sample.line = tagLine;
+                    sample.column = tagColumn;
+                    if(empty)
+                    {
+                        endSample(sample);
+                        sample = null;
+                    }
+                }
+                //Reference sequence ids are document-unique ids, so a sample is only independent of the others
+                //if its consensus-sequence-blocks refer to its own reference sequences.
+                if(isReferenceSequence)
+                {
+                    if(sample == null || referenceSequenceId == null || !referenceSequenceIds.add(referenceSequenceId))
+                    {
+                        return false;
+                    }
+                    sample.referenceSequenceIds.add(referenceSequenceId);
+                }
+                if(isConsensusSequenceBlock)
+                {
+                    if(sample == null || referenceSequenceReference == null)
+                    {
+                        return false;
+                    }
+                    sample.referenceSequenceReferences.add(referenceSequenceReference);
+                }
+                if(!empty)
+                {
+                    depth++;
+                }
+            }
+        }
+        if(depth != 0 || sample != null || samples.isEmpty())
+        {
+            return false;
+        }
+        for(SampleSpan indexedSample : samples)
+        {
+            if(!indexedSample.referenceSequenceIds.containsAll(indexedSample.referenceSequenceReferences))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finish a sample, at the end of its end tag.
+     */
+    private void endSample(SampleSpan sample)
+    {
+        sample.end = pos;
+        sample.lineBreaks = line - sample.line;
+        sample.trailingColumns = countColumns((sample.lineBreaks == 0) ? sample.start : lineStart, pos);
+        samples.add(sample);
+    }
+
+    /**
+     * Check that byte input can be scanned as bytes, and skip a byte order mark.
+     */
+    private boolean checkEncoding()
+    {
+        if(xml != null)
+        {
+            if(at(0) == '\uFEFF')
+            {
+                pos = 1;
+                lineStart = 1;
+            }
+            return true;
+        }
+        if(length >= 2 && (at(0) == 0xFE || at(0) == 0xFF || at(0) == 0 || at(1) == 0))
+        {
+            //UTF-16 or UTF-32
+            return false;
+        }
+        if(length >= 3 && at(0) == 0xEF && at(1) == 0xBB && at(2) == 0xBF)
+        {
+            pos = 3;
+            lineStart = 3;
+        }
+        String encoding = null;
+        if(startsWith("<?xml"))
+        {
+            Matcher encodingMatcher = ENCODING_PATTERN.matcher(getText(pos, Math.min(length, pos + 200)));
+            int declarationEnd = getText(pos, Math.min(length, pos + 200)).indexOf("?>");
+            if(encodingMatcher.find() && (declarationEnd == -1 || encodingMatcher.start() < declarationEnd))
+            {
+                encoding = encodingMatcher.group(1).toUpperCase();
+            }
+        }
+        utf8 = (encoding == null || encoding.equals("UTF-8") || encoding.equals("UTF8"));
+        return utf8 || encoding.equals("US-ASCII") || encoding.equals("ASCII") || encoding.startsWith("ISO-8859-") || encoding.startsWith("WINDOWS-125");
+    }
+
+    private int at(int index)
+    {
+        return (xml != null) ? xml.charAt(index) : (bytes.get(index) & 0xFF);
+    }
+
+    /**
+     * Move past one character, counting lines the way the parser does.  \r\n is a single line break.
+     */
+    private void advance()
+    {
+        int c = at(pos++);
+        if(c == '\n' || (c == '\r' && (pos >= length || at(pos) != '\n')))
+        {
+            line++;
+            lineStart = pos;
+        }
+    }
+
+    private boolean startsWith(String text)
+    {
+        if(pos + text.length() > length)
+        {
+            return false;
+        }
+        for(int i = 0; i < text.length(); i++)
+        {
+            if(at(pos + i) != text.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipPast(String text)
+    {
+        while(!startsWith(text))
+        {
+            advance();
+        }
+        for(int i = 0; i < text.length(); i++)
+        {
+            advance();
+        }
+    }
+
+    private void skipWhitespace()
+    {
+        while(isWhitespace(at(pos)))
+        {
+            advance();
+        }
+    }
+
+    private boolean isWhitespace(int start, int end)
+    {
+        for(int i = start; i < end; i++)
+        {
+            if(!isWhitespace(at(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(int c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private boolean nameEquals(int start, int end, String name)
+    {
+        if(end - start != name.length())
+        {
+            return false;
+        }
+        for(int i = 0; i < name.length(); i++)
+        {
+            if(at(start + i) != name.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean localNameEquals(int start, int end, String localName)
+    {
+        int localStart = start;
+        for(int i = start; i < end; i++)
+        {
+            if(at(i) == ':')
+            {
+                localStart = i + 1;
+            }
+        }
+        return nameEquals(localStart, end, localName);
+    }
+
+    private int countColumns(int start, int end)
+    {
+        if(xml != null || !utf8)
+        {
+            return end - start;
+        }
+        int columns = 0;
+        for(int i = start; i < end; i++)
+        {
+            if((at(i) & 0xC0) != 0x80)
+            {
+                columns++;
+            }
+        }
+        return columns;
+    }
+
+    private String getText(int start, int end)
+    {
+        if(xml != null)
+        {
+            return xml.substring(start, end);
+        }
+        byte[] text = new byte[end - start];
+        ByteBuffer region = bytes.duplicate();
+        region.position(start);
+        region.get(text);
+        return new String(text, utf8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+    }
+
+    private void update(MessageDigest digest, int start, int end)
+    {
+        if(xml != null)
+        {
+            digest.update(xml.substring(start, end).getBytes(StandardCharsets.UTF_8));
+        }
+        else
+        {
+            ByteBuffer region = bytes.duplicate();
+            region.position(start);
+            region.limit(end);
+            digest.update(region);
+        }
+    }
+
+    private void copy(ByteArrayOutputStream output, byte[] buffer, int start, int end)
+    {
+        ByteBuffer region = bytes.duplicate();
+        region.position(start);
+        region.limit(end);
+        while(region.hasRemaining())
+        {
+            int count = Math.min(buffer.length, region.remaining());
+            region.get(buffer, 0, count);
+            output.write(buffer, 0, count);
+        }
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            //Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash)
+    {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for(byte b : hash)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
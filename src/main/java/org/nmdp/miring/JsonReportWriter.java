@@ -0,0 +1,253 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.nmdp.miring.ValidationResult.Severity;
+
+/**
+ * JsonReportWriter writes a JSON form of the MIRING Results Report, straight from a ValidationOutcome.
+ *
+ * The JSON is streamed to a Writer as it is generated, so no report document is built in memory.
+ * The keys match the element and attribute names on the XML report, so it looks like this:
+ *
+ * {"timestamp":"...", "rule-set":"...", "hml-compliant":"true", "miring-compliant":"warnings", "hmlid":{"root":"...","extension":"..."},
+ *  "samples":{"sample-count":1, ..., "sample":[{"id":"...","miring-compliant":true,"hml-compliant":true}]},
+ *  "property":[{"name":"...","value":"..."}], "evaluated-rules":{"tier":["hml","tier1","tier2"],"miring-rule-id":["1.1.a", ...]},
+ *  "validation-warnings":[{"miring-rule-id":"...","severity":"warning","sample-id":"...","description":"...","solution":"...","xpath":["..."]}]}
+ *
+ * A profiled validation's report ends with the RuleProfile, most expensive first:
+ *
+ * "rule-profile":[{"tier":"tier2","kind":"assert","pattern":"...","context":"hml:variant","test":"...","miring-rule-id":"5.3.a",
+ *  "nodes":12,"evaluations":12,"fired":1,"time-ms":0.42}]
+*/
+public class JsonReportWriter
+{
+    //The result groups, in the same order as the XML report.
+    private static final Severity[] GROUP_SEVERITIES = {Severity.FATAL, Severity.MIRING, Severity.WARNING, Severity.INFO, Severity.HMLFATAL, Severity.HML, Severity.HMLWARNING};
+    private static final String[] GROUP_NAMES = {"fatal-validation-errors", "miring-validation-errors", "validation-warnings", "validation-info",
+        "fatal-hml-schema-validation-errors", "hml-schema-validation-errors", "hml-schema-validation-warnings"};
+    private static final String[] GROUP_SEVERITY_TEXT = {"fatal", "miring", "warning", "info", "fatal", "hml", "warning"};
+
+    /**
+     * Write the JSON report for a ValidationOutcome.  The writer is flushed, but not closed.
+     *
+     * @param outcome the outcome of a validation
+     * @param writer the Writer to stream the JSON to
+     * @throws IOException if the writer fails
+     */
+    public static void write(ValidationOutcome outcome, Writer writer) throws IOException
+    {
+        write(outcome, null, writer);
+    }
+
+    /**
+     * Write the JSON report for a ValidationOutcome, with the profile of the validation.  The writer is flushed, but not closed.
+     *
+     * @param outcome the outcome of a validation
+     * @param profile the profile of the validation, or null if it wasn't profiled
+     * @param writer the Writer to stream the JSON to
+     * @throws IOException if the writer fails
+     */
+    public static void write(ValidationOutcome outcome, RuleProfile profile, Writer writer) throws IOException
+    {
+        try
+        {
+            JSONWriter json = new JSONWriter(writer);
+            json.object();
+            json.key("timestamp").value(new SimpleDateFormat(ReportGenerator.DATE_FORMAT).format(new Date()));
+            if(outcome.getRuleSetVersion() != null)
+            {
+                json.key("rule-set").value(outcome.getRuleSetVersion());
+            }
+            json.key("hml-compliant").value(outcome.getHmlCompliance().getReportValue());
+            json.key("miring-compliant").value(outcome.getMiringCompliance().getReportValue());
+
+            json.key("hmlid").object();
+            if(outcome.getHmlIdRoot() != null && outcome.getHmlIdRoot().length() > 0)
+            {
+                json.key("root").value(outcome.getHmlIdRoot());
+            }
+            if(outcome.getHmlIdExtension() != null && outcome.getHmlIdExtension().length() > 0)
+            {
+                json.key("extension").value(outcome.getHmlIdExtension());
+            }
+            json.endObject();
+
+            writeSamples(outcome, json);
+
+            if(outcome.getProperties().size() > 0)
+            {
+                json.key("property").array();
+                for(Map.Entry<String,String> property : outcome.getProperties().entrySet())
+                {
+                    json.object().key("name").value(property.getKey()).key("value").value(property.getValue()).endObject();
+                }
+                json.endArray();
+            }
+
+            if(outcome.getEvaluatedRules() != null)
+            {
+                json.key("evaluated-rules").object();
+                json.key("tier").array();
+                for(RuleSelection.Tier tier : outcome.getEvaluatedRules().getTiers())
+                {
+                    json.value(tier.getName());
+                }
+                json.endArray();
+                json.key("miring-rule-id").array();
+                for(String ruleId : outcome.getEvaluatedRules().getEvaluatedRuleIds(outcome.getRuleSet()))
+                {
+                    json.value(ruleId);
+                }
+                json.endArray();
+                json.endObject();
+            }
+
+            for(int i = 0; i < GROUP_SEVERITIES.length; i++)
+            {
+                writeResultGroup(outcome, GROUP_SEVERITIES[i], GROUP_NAMES[i], GROUP_SEVERITY_TEXT[i], json);
+            }
+            if(profile != null)
+            {
+                writeProfile(profile, json);
+            }
+            json.endObject();
+            writer.flush();
+        }
+        catch(JSONException e)
+        {
+            //JSONWriter wraps the Writer's IOExceptions.
+            throw new IOException("Unable to write the JSON report", e);
+        }
+    }
+
+    private static void writeSamples(ValidationOutcome outcome, JSONWriter json) throws JSONException
+    {
+        if(outcome.getSamples().size() == 0)
+        {
+            return;
+        }
+        //Counted the same way as the XML report.
+        int numberBadSamples = 0;
+        int numberGoodSamples = 0;
+        for(ValidationOutcome.SampleStatus sample : outcome.getSamples())
+        {
+            numberBadSamples += (sample.isMiringCompliant() ? 0 : 1) + (sample.isHmlCompliant() ? 0 : 1);
+            numberGoodSamples += (sample.isMiringCompliant() ? 1 : 0) + (sample.isHmlCompliant() ? 1 : 0);
+        }
+
+        json.key("samples").object();
+        json.key("sample-count").value(outcome.getSamples().size());
+        json.key("noncompliant-sample-count").value(numberBadSamples);
+        json.key("compliant-sample-count").value(numberGoodSamples);
+        json.key("sample").array();
+        for(ValidationOutcome.SampleStatus sample : outcome.getSamples())
+        {
+            json.object();
+            json.key("id").value(sample.getId());
+            if(sample.getCenterCode() != null && !sample.getCenterCode().isEmpty())
+            {
+                json.key("center-code").value(sample.getCenterCode());
+            }
+            json.key("miring-compliant").value(sample.isMiringCompliant());
+            json.key("hml-compliant").value(sample.isHmlCompliant());
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void writeProfile(RuleProfile profile, JSONWriter json) throws JSONException
+    {
+        json.key("rule-profile").array();
+        for(RuleProfile.Entry entry : profile.getEntries())
+        {
+            json.object();
+            json.key("tier").value(entry.getTier().getName());
+            json.key("kind").value(entry.getKind().getName());
+            writeOptional("pattern", entry.getPattern(), json);
+            writeOptional("context", entry.getContext(), json);
+            writeOptional("test", entry.getTest(), json);
+            writeOptional("miring-rule-id", entry.getMiringRuleId(), json);
+            json.key("nodes").value(entry.getNodes());
+            json.key("evaluations").value(entry.getEvaluations());
+            json.key("fired").value(entry.getFired());
+            json.key("time-ms").value(entry.getNanos() / 1000000.0);
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private static void writeOptional(String key, String value, JSONWriter json) throws JSONException
+    {
+        if(value != null)
+        {
+            json.key(key).value(value);
+        }
+    }
+
+    private static void writeResultGroup(ValidationOutcome outcome, Severity severity, String groupName, String severityText, JSONWriter json) throws JSONException
+    {
+        boolean groupStarted = false;
+        for(ValidationResult result : outcome.getResults(severity))
+        {
+            if(!groupStarted)
+            {
+                json.key(groupName).array();
+                groupStarted = true;
+            }
+            json.object();
+            //hml results don't have a rule id on the XML report either.
+            if(groupName.indexOf("hml") == -1)
+            {
+                json.key("miring-rule-id").value(result.getMiringRule());
+            }
+            json.key("severity").value(severityText);
+            if(result.getSampleID() != null && result.getSampleID().length() > 0)
+            {
+                json.key("sample-id").value(result.getSampleID());
+            }
+            json.key("description").value(result.getErrorText());
+            json.key("solution").value(result.getSolutionText());
+            json.key("xpath").array();
+            for(String xPath : result.getXPaths())
+            {
+                json.value(xPath);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        if(groupStarted)
+        {
+            json.endArray();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * This class provides a readiness check for the MIRING Validator service, for load balancers and orchestrators.
+ * A GET returns 200 once the schemas and rules are preloaded, and 503 until then.  The body is JSON, like
+ * {"ready":true, "version":"1.0", "rule-set":"3f2a9c41d07e", "preload-ms":2100, "startup-ms":2600}.
+ * startup-ms is the time from JVM start until the service was ready.  rule-set is the version of the RuleSet new validations use.
+ *
+ * In a servlet container, the first check starts the preloading.  The embedded server preloads as it starts.
+*/
+@Path("/ready")
+public class MiringReadinessService
+{
+    @GET
+    @Produces("application/json")
+    public Response ready() throws JSONException
+    {
+        if(!Preloader.isReady())
+        {
+            Preloader.startInBackground();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(new JSONObject().put("ready", false).toString()).build();
+        }
+        JSONObject status = new JSONObject();
+        status.put("ready", true);
+        status.put("version", MiringValidator.getValidatorVersion());
+        status.put("rule-set", RuleSet.getCurrent().getVersion());
+        status.put("preload-ms", Preloader.getPreloadMillis());
+        status.put("startup-ms", Preloader.getStartupMillis());
+        return Response.ok(status.toString()).build();
+    }
+}
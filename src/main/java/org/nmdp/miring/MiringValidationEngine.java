@@ -0,0 +1,855 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nmdp.miring.RuleSelection.Tier;
+import org.nmdp.miring.ValidationResult.Severity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MiringValidationEngine validates HML against the MIRING checklist, and returns the outcome as objects.
+ *
+ * An engine is reusable and thread safe.  Make one, and share it between every thread that validates documents.
+ * Compiled schemas and rule templates are shared between validations, everything else belongs to a single validation.
+ * Each validation uses the RuleSet that is current when it starts, and its outcome records that rule set's version.
+ * Call ValidationOutcome.toXml() if you want the MIRING Results Report.
+ *
+ * By default the stages (HML schema, Tier 1 schema, Tier 2 schematron) run one after another on the calling thread.
+ * An engine made with an executor starts every stage at once, so a validation takes about as long as its slowest stage.
+ * The gating is the same either way: results from a later stage are dropped when an earlier stage finds a fatal problem,
+ * and in the concurrent mode the later stages are cancelled as soon as that happens.
+ *
+ * An engine made with a SampleResultCache remembers the results of each sample.  When a document is validated again,
+ * only the samples that changed are validated, and the remembered results of the other samples are merged into the outcome.
+ *
+ * validateSample validates a single sample of a document, for editors which revalidate the sample that was changed.
+ *
+ * validateBatch validates several documents at the same time.  A virtual thread (see VirtualThreads) only waits for its stages
+ * on the stage executor, it never runs them itself, so the parsing stays on the executor's bounded threads.
+*/
+public class MiringValidationEngine
+{
+    static Logger logger = LoggerFactory.getLogger(MiringValidationEngine.class);
+    static final String SCHEMATRON_SCHEMA = "/org/nmdp/miring/schematron/MiringAll.sch";
+    //The first start tag of a document, which isn't a declaration, comment or processing instruction.
+    private static final Pattern ROOT_ELEMENT_PATTERN = Pattern.compile("<([A-Za-z_][\\w.:-]*)");
+    //The sources of the results in a ValidationResultSink.  Results that sort the same are reported in this order.
+    private static final int TIER1_RESULTS = 0;
+    private static final int TIER2_RESULTS = 1;
+    private static final int STREAMED_TIER2_RESULTS = 2;
+    private static final int HML_RESULTS = 3;
+
+    //Runs the stages of a validation at the same time.  Null if stages run one after another.
+    private final ExecutorService stageExecutor;
+    //Remembers the results of each sample, for documents which are validated again.  Null if samples are always validated.
+    private final SampleResultCache sampleCache;
+
+    /**
+     * Constructor for an engine which runs the stages of a validation one after another, on the calling thread.
+     */
+    public MiringValidationEngine()
+    {
+        this(null, null);
+    }
+
+    /**
+     * Constructor for an engine which runs the stages of a validation at the same time.
+     * 
+     * The executor is not shut down by the engine.  It can be shared with other work, because the calling thread runs
+     * any stage that hasn't been started by the executor yet.  Three threads per concurrent validation is enough.
+     *
+     * @param stageExecutor the executor to run the stages on, or null to run them one after another
+     */
+    public MiringValidationEngine(ExecutorService stageExecutor)
+    {
+        this(stageExecutor, null);
+    }
+
+    /**
+     * Constructor for an engine which reuses the results of samples that haven't changed since they were last validated.
+     *
+     * @param stageExecutor the executor to run the stages on, or null to run them one after another
+     * @param sampleCache the cache of sample results, which can be shared between engines.  Null to always validate every sample.
+     */
+    public MiringValidationEngine(ExecutorService stageExecutor, SampleResultCache sampleCache)
+    {
+        this.stageExecutor = stageExecutor;
+        this.sampleCache = sampleCache;
+    }
+
+    /**
+     * Create an executor for validation stages, made of daemon threads so it never keeps the JVM alive.
+     *
+     * @param threads the number of threads
+     * @return a new fixed size ExecutorService
+     */
+    public static ExecutorService newStageExecutor(int threads)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "miring-stage-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Validate xml text against the MIRING checklist.  This method performs validation for both Tiers 1 and 2.
+     *
+     * @param xml a String containing the xml text
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(String xml)
+    {
+        return validate(HmlInput.fromString(xml));
+    }
+
+    /**
+     * Validate an xml file against the MIRING checklist.  The file is memory-mapped, so it can be at most Integer.MAX_VALUE bytes.
+     *
+     * @param hmlFile the path of the xml file
+     * @return the ValidationOutcome
+     * @throws IOException if the file can't be opened or mapped, or it is 2 GB or more
+     */
+    public ValidationOutcome validate(Path hmlFile) throws IOException
+    {
+        return validate(HmlInput.fromPath(hmlFile));
+    }
+
+    /**
+     * Validate an xml stream against the MIRING checklist.  The stream is not closed.
+     *
+     * @param xmlStream a stream containing the xml
+     * @return the ValidationOutcome
+     * @throws IOException if the stream can't be read
+     */
+    public ValidationOutcome validate(InputStream xmlStream) throws IOException
+    {
+        return validate(HmlInput.fromStream(xmlStream));
+    }
+
+    /**
+     * Validate xml bytes against the MIRING checklist.  The bytes between the buffer's position and limit are the document.
+     *
+     * @param xmlBytes a buffer containing the xml
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(ByteBuffer xmlBytes)
+    {
+        return validate(HmlInput.fromBuffer(xmlBytes));
+    }
+
+    /**
+     * Validate an xml document against the MIRING checklist.  This method performs validation for both Tiers 1 and 2.
+     *
+     * @param input the xml to validate
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(HmlInput input)
+    {
+        return validate(input, RuleSelection.ALL);
+    }
+
+    /**
+     * Validate xml text against the selected tiers and rules of the MIRING checklist.
+     *
+     * @param xml a String containing the xml text
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(String xml, RuleSelection selection)
+    {
+        return validate(HmlInput.fromString(xml), selection);
+    }
+
+    /**
+     * Validate an xml document against the selected tiers and rules of the MIRING checklist.
+     *
+     * Stages that aren't selected are skipped, and only the selected tier 2 rules are compiled and evaluated.
+     * The tier 1 pass still runs when only tier 2 is selected, because tier 2 depends on it, but only its fatal results are reported.
+     * The outcome's evaluated rules say which tiers and rules were actually evaluated.
+     *
+     * @param input the xml to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(HmlInput input, RuleSelection selection)
+    {
+        return validate(input, selection, null);
+    }
+
+    /**
+     * Validate an xml document against the selected tiers and rules of the MIRING checklist, and record the cost of each
+     * tier 1 mapping and tier 2 rule in a RuleProfile.
+     *
+     * Profiled validations always validate every sample, so the profile covers the whole document.
+     * The results are the same as an unprofiled validation.
+     *
+     * @param input the xml to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @param profile the profile to add to, or null not to profile
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(HmlInput input, RuleSelection selection, RuleProfile profile)
+    {
+        return validate(input, selection, profile, null);
+    }
+
+    /**
+     * Validate an xml document against the selected tiers and rules of the MIRING checklist, and record the time and
+     * allocation of each stage.
+     *
+     * @param input the xml to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @param profile the profile to add to, or null not to profile
+     * @param timings the StageTimings to record in, or null not to time the stages
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(HmlInput input, RuleSelection selection, RuleProfile profile, StageTimings timings)
+    {
+        return validate(input, selection, profile, timings, null);
+    }
+
+    /**
+     * Validate an xml document against the selected tiers and rules of the MIRING checklist, and count its progress
+     * for another thread to watch.
+     *
+     * @param input the xml to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @param profile the profile to add to, or null not to profile
+     * @param timings the StageTimings to record in, or null not to time the stages
+     * @param progress the ValidationProgress to count on, or null not to count
+     * @return the ValidationOutcome
+     */
+    public ValidationOutcome validate(HmlInput input, RuleSelection selection, RuleProfile profile, StageTimings timings, ValidationProgress progress)
+    {
+        RuleSet ruleSet = RuleSet.acquireCurrent();
+        try
+        {
+            return validate(input, selection, profile, timings, progress, ruleSet);
+        }
+        finally
+        {
+            ruleSet.release();
+        }
+    }
+
+    /**
+     * Validate an xml document against the rules of a RuleSet, rather than the current one.  The outcome records the rule set.
+     *
+     * @param input the xml to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @param profile the profile to add to, or null not to profile
+     * @param timings the StageTimings to record in, or null not to time the stages
+     * @param progress the ValidationProgress to count on, or null not to count
+     * @param ruleSet the rule set to validate with
+     * @return the ValidationOutcome
+     */
+    ValidationOutcome validate(HmlInput input, RuleSelection selection, RuleProfile profile, StageTimings timings, ValidationProgress progress, RuleSet ruleSet)
+    {
+        long startNanos = System.nanoTime();
+        long startBytes = (timings == null) ? 0 : StageTimings.currentThreadAllocatedBytes();
+        try
+        {
+            return validateStages(input, selection, profile, timings, progress, ruleSet).withRuleSet(ruleSet);
+        }
+        finally
+        {
+            recordStage(timings, "total", startNanos, startBytes);
+            if(progress != null)
+            {
+                progress.finish();
+            }
+        }
+    }
+
+    /**
+     * Validate one sample of a document, like an editor does after each change to it.
+     *
+     * The sample is validated in a small document made of the header, the sample and the end of the hml node, so the other
+     * samples aren't parsed.  Only the results about the sample are kept, with any fatal results, which stop the validation.
+     * Results about the rest of the document, like a missing hmlid, are left out.  The xpaths of the results are moved to
+     * the sample's place in the document, and the line numbers in their text are moved to its line.
+     *
+     * @param header the text of the document before its first sample, from the xml declaration to the indent of the first sample
+     * @param sample the text of the sample node
+     * @param sampleIndex the index of the sample in the document, starting at 1
+     * @param sampleLine the line the sample starts on in the document, or 0 to number the lines from the header
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @return the ValidationOutcome of the sample
+     */
+    public ValidationOutcome validateSample(String header, String sample, int sampleIndex, int sampleLine, RuleSelection selection)
+    {
+        if(header == null || header.length() == 0 || sample == null || sample.length() == 0)
+        {
+            logger.error("Header or sample is null or length 0.");
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("The header or sample is null or length 0.",Severity.FATAL),new ValidationResult("The header or sample is null or length 0.", Severity.HMLFATAL)}, null, null,null,null,0);
+        }
+        Matcher rootMatcher = ROOT_ELEMENT_PATTERN.matcher(header);
+        String rootName = rootMatcher.find() ? rootMatcher.group(1) : "hml";
+        int headerLines = 1;
+        for(int i = header.indexOf('\n'); i >= 0; i = header.indexOf('\n', i + 1))
+        {
+            headerLines++;
+        }
+        HmlInput document = HmlInput.fromString(header + sample + "\n</" + rootName + ">\n");
+        return validateSampleDocument(document, sampleIndex, (sampleLine > 0) ? sampleLine - headerLines : 0, selection);
+    }
+
+    /**
+     * Validate one sample of a document, without parsing the other samples.  See validateSample(String, String, int, int, RuleSelection).
+     *
+     * @param input the whole document
+     * @param sampleIndex the index of the sample in the document, starting at 1
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @return the ValidationOutcome of the sample
+     */
+    public ValidationOutcome validateSample(HmlInput input, int sampleIndex, RuleSelection selection)
+    {
+        return validateSample(HmlSampleIndex.scan(input), sampleIndex, selection);
+    }
+
+    /**
+     * Validate one sample of a document which has already been indexed, like an upload which is validated a sample at a time.
+     *
+     * @param index the samples of the document, or null if the document couldn't be indexed
+     * @param sampleIndex the index of the sample in the document, starting at 1
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @return the ValidationOutcome of the sample
+     */
+    ValidationOutcome validateSample(HmlSampleIndex index, int sampleIndex, RuleSelection selection)
+    {
+        if(index == null || sampleIndex < 1 || sampleIndex > index.getSampleCount())
+        {
+            String error = "Sample " + sampleIndex + " can't be found in the document.";
+            logger.error(error);
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult(error,Severity.FATAL),new ValidationResult(error, Severity.HMLFATAL)}, null, null,null,null,0);
+        }
+        //The sample takes the place of the first sample, so it starts on the first sample's line.
+        return validateSampleDocument(index.newSampleInput(sampleIndex - 1), sampleIndex, index.getLine(sampleIndex - 1) - index.getLine(0), selection);
+    }
+
+    private ValidationOutcome validateSampleDocument(HmlInput document, int sampleIndex, int lineOffset, RuleSelection selection)
+    {
+        ValidationOutcome outcome = validate(document, selection);
+        List<ValidationResult> sampleResults = new ArrayList<ValidationResult>();
+        for(ValidationResult result : outcome.getResults())
+        {
+            if(isSampleResult(result))
+            {
+                ValidationResult copy = SampleResultCache.copyResult(result, 1, sampleIndex, lineOffset);
+                copy.setSampleID(result.getSampleID());
+                sampleResults.add(copy);
+            }
+        }
+        List<Sample> samples = new ArrayList<Sample>();
+        for(ValidationOutcome.SampleStatus sample : outcome.getSamples())
+        {
+            samples.add(new Sample(sample.getId(), sample.getCenterCode()));
+        }
+        return new ValidationOutcome(sampleResults.toArray(new ValidationResult[sampleResults.size()]), outcome.getHmlIdRoot(), outcome.getHmlIdExtension(),
+            outcome.getProperties(), samples.toArray(new Sample[samples.size()]), 0, outcome.getEvaluatedRules()).withRuleSet(outcome.getRuleSet());
+    }
+
+    /**
+     * @return true if a result of a one sample document is about the sample, or stopped the validation
+     */
+    private static boolean isSampleResult(ValidationResult result)
+    {
+        for(XPath xPath : result.xPaths)
+        {
+            if(xPath != null && xPath.getSampleIndex() == 1)
+            {
+                return true;
+            }
+        }
+        Severity severity = result.getSeverity();
+        return severity == Severity.FATAL || severity == Severity.HMLFATAL || severity == Severity.REJECT;
+    }
+
+    /**
+     * Validate several xml documents at the same time.  Each document is validated on a thread from the document executor,
+     * which waits for the document's stages.  Use VirtualThreads.newExecutor for a document executor that doesn't need
+     * a platform thread per document.
+     *
+     * @param inputs the xml documents to validate
+     * @param selection the tiers, MIRING elements and rules to evaluate
+     * @param documentExecutor the executor to validate each document on, or null to validate them one after another on this thread
+     * @return the ValidationOutcome of each document, in the same order
+     */
+    public List<ValidationOutcome> validateBatch(List<HmlInput> inputs, final RuleSelection selection, ExecutorService documentExecutor)
+    {
+        List<FutureTask<ValidationOutcome>> documents = new ArrayList<FutureTask<ValidationOutcome>>();
+        for(final HmlInput input : inputs)
+        {
+            documents.add(new FutureTask<ValidationOutcome>(new Callable<ValidationOutcome>()
+            {
+                public ValidationOutcome call()
+                {
+                    return validate(input, selection);
+                }
+            }));
+        }
+        for(FutureTask<ValidationOutcome> document : documents)
+        {
+            if(documentExecutor == null)
+            {
+                document.run();
+            }
+            else
+            {
+                documentExecutor.execute(document);
+            }
+        }
+
+        List<ValidationOutcome> outcomes = new ArrayList<ValidationOutcome>();
+        for(FutureTask<ValidationOutcome> document : documents)
+        {
+            try
+            {
+                outcomes.add(document.get());
+            }
+            catch(InterruptedException e)
+            {
+                logger.error("Interrupted during batch validation.");
+                Thread.currentThread().interrupt();
+                for(FutureTask<ValidationOutcome> unfinished : documents)
+                {
+                    unfinished.cancel(true);
+                }
+                outcomes.add(new ValidationOutcome(new ValidationResult[]{new ValidationResult("Validation was interrupted.",Severity.FATAL),new ValidationResult("Validation was interrupted.",Severity.HMLFATAL)}, null, null,null,null,0));
+            }
+            catch(Exception e)
+            {
+                //Cancelled by an interrupt, or failed outside of the stages.
+                logger.error("Exception in a batch validation", e);
+                outcomes.add(new ValidationOutcome(new ValidationResult[]{new ValidationResult("Failed Validation: " + e,Severity.FATAL),new ValidationResult("Failed Validation: " + e,Severity.HMLFATAL)}, null, null,null,null,0));
+            }
+        }
+        return outcomes;
+    }
+
+    private ValidationOutcome validateStages(final HmlInput input, final RuleSelection selection, final RuleProfile profile, final StageTimings timings,
+        final ValidationProgress progress, final RuleSet ruleSet)
+    {
+        if(input==null || input.isEmpty())
+        {
+            logger.error("XML is null or length 0.");
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("XML is null or length 0.",Severity.FATAL), new ValidationResult("XML is null or length 0.", Severity.HMLFATAL)}, null, null,null,null,0);
+        }
+
+        //A pass over the top of the document for the version, hmlid and properties.
+        long headerStartNanos = System.nanoTime();
+        long headerStartBytes = (timings == null) ? 0 : StageTimings.currentThreadAllocatedBytes();
+        startProgress(progress, ValidationProgress.HEADER);
+        //Documents which are too long are rejected before they are parsed.  The stages' parses check the other limits.
+        ValidationResult rejection = XmlLimits.checkLength(input);
+        if(rejection != null)
+        {
+            recordStage(timings, "header", headerStartNanos, headerStartBytes);
+            finishProgress(progress, ValidationProgress.HEADER, null);
+            return new ValidationOutcome(new ValidationResult[]{rejection}, null, null,null,null,0);
+        }
+        final HmlHeader header = HmlHeader.read(input);
+        recordStage(timings, "header", headerStartNanos, headerStartBytes);
+        finishProgress(progress, ValidationProgress.HEADER, null);
+        HashMap<String,String> properties = header.getProperties();
+        String hmlIdRoot = header.getHmlIdRoot();
+        String hmlIdExt = header.getHmlIdExtension();
+        String version = header.getVersion();
+        logger.debug("Version Number = " + version);
+        if(version==null)
+        {
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("No Version Number Detected Please have a version number under then HML node",Severity.FATAL),new ValidationResult("No Version Number Detected Please have a version number under then HML node",Severity.HMLFATAL)}, null, null,null,null,0);
+        }
+
+        //Samples which were validated before are blanked, and their remembered results are merged back into each stage's results.
+        final SampleResultCache.Revalidation revalidation = (sampleCache == null || profile != null) ? null : sampleCache.newRevalidation(input, selection, ruleSet);
+        final HmlInput stageInput = (revalidation == null) ? input : revalidation.getInput();
+        if(progress != null)
+        {
+            if(revalidation != null)
+            {
+                progress.setSampleCount(revalidation.getSampleCount(), revalidation.getReusedSampleCount());
+            }
+            else
+            {
+                //The sample index is a scan of the raw text, so counting the samples doesn't wait for a parse.
+                HmlSampleIndex index = HmlSampleIndex.scan(input);
+                if(index != null)
+                {
+                    progress.setSampleCount(index.getSampleCount(), 0);
+                }
+            }
+        }
+
+        //Every stage reads the same immutable input, so they can run at the same time.
+        //A stage is a FutureTask, so it can run on the stage executor or on this thread.
+        //Each stage cancels the later stages if it finds a problem that stops validation.
+        //A stage that finds the document past a limit stops, and the other stages stop at their next element.
+        final XmlLimits limits = new XmlLimits();
+        final SchemaValidator hmlValidator = new SchemaValidator(getHmlSchema(version), ruleSet);
+        final SchemaValidator tier1Validator = new SchemaValidator(getMiringSchema(version), ruleSet);
+        hmlValidator.setLimits(limits);
+        tier1Validator.setLimits(limits);
+        tier1Validator.setRuleProfile(profile);
+        hmlValidator.setProgress(progress, ValidationProgress.HML);
+        tier1Validator.setProgress(progress, ValidationProgress.TIER1);
+        final FutureTask<ValidationResult[]> tier2Stage = !selection.includesTier(Tier.TIER2) ? null : new FutureTask<ValidationResult[]>(new Callable<ValidationResult[]>()
+        {
+            public ValidationResult[] call()
+            {
+                logger.debug("Attempting Tier 2 validation");
+                long startNanos = System.nanoTime();
+                long startBytes = (timings == null) ? 0 : StageTimings.currentThreadAllocatedBytes();
+                startProgress(progress, ValidationProgress.TIER2);
+                ValidationResult[] tier2Results = null;
+                try
+                {
+                    tier2Results = mergeSampleResults(revalidation, SampleResultCache.Stage.TIER2,
+                        SchematronValidator.validate(stageInput, new String[] {SCHEMATRON_SCHEMA}, selection, stageExecutor, profile, ruleSet, limits));
+                    return tier2Results;
+                }
+                finally
+                {
+                    recordStage(timings, "tier2", startNanos, startBytes);
+                    finishProgress(progress, ValidationProgress.TIER2, tier2Results);
+                }
+            }
+        });
+        final FutureTask<ValidationResult[]> tier1Stage = (!selection.includesTier(Tier.TIER1) && !selection.includesTier(Tier.TIER2)) ? null : new FutureTask<ValidationResult[]>(new Callable<ValidationResult[]>()
+        {
+            public ValidationResult[] call()
+            {
+                logger.debug("Attempting Tier 1 Validation");
+                long startNanos = System.nanoTime();
+                long startBytes = (timings == null) ? 0 : StageTimings.currentThreadAllocatedBytes();
+                startProgress(progress, ValidationProgress.TIER1);
+                ValidationResult[] tier1Results = mergeSampleResults(revalidation, SampleResultCache.Stage.TIER1, tier1Validator.validate(stageInput, header));
+                recordStage(timings, "tier1", startNanos, startBytes);
+                finishProgress(progress, ValidationProgress.TIER1, tier1Results);
+                //If tier 1 has fatal errors, we should not continue to tier 2.
+                if(Utilities.hasFatalErrors(tier1Results) || limits.getRejection() != null)
+                {
+                    cancelStage(tier2Stage);
+                }
+                return tier1Results;
+            }
+        });
+        final FutureTask<ValidationResult[]> hmlStage = !selection.includesTier(Tier.HML) ? null : new FutureTask<ValidationResult[]>(new Callable<ValidationResult[]>()
+        {
+            public ValidationResult[] call()
+            {
+                logger.debug("Attempting HML Validation");
+                long startNanos = System.nanoTime();
+                long startBytes = (timings == null) ? 0 : StageTimings.currentThreadAllocatedBytes();
+                startProgress(progress, ValidationProgress.HML);
+                ValidationResult[] hmlResults = mergeSampleResults(revalidation, SampleResultCache.Stage.HML, hmlValidator.validate(stageInput, header));
+                recordStage(timings, "hml", startNanos, startBytes);
+                finishProgress(progress, ValidationProgress.HML, hmlResults);
+                //If there are any fatal issues with HML do not continue
+                if(Utilities.hasHMLFatalErrors(hmlResults) || Utilities.hasRejects(hmlResults) || limits.getRejection() != null)
+                {
+                    cancelStage(tier1Stage);
+                    cancelStage(tier2Stage);
+                }
+                return hmlResults;
+            }
+        });
+        //A virtual thread leaves the stages to the executor, it only waits for them.
+        final boolean runStagesHere = (stageExecutor == null) || !VirtualThreads.isVirtual(Thread.currentThread());
+        if(stageExecutor != null)
+        {
+            startStage(hmlStage);
+            startStage(tier1Stage);
+            startStage(tier2Stage);
+        }
+
+        try
+        {
+            ValidationResult[] hmlValidationErrors = new ValidationResult[0];
+            Sample[] sampleIDs = null;
+            if(hmlStage != null)
+            {
+                hmlValidationErrors = getStageResults(hmlStage, runStagesHere);
+                if(limits.getRejection() != null)
+                {
+                    return newRejectedOutcome(limits, hmlStage, tier1Stage, tier2Stage);
+                }
+                if(Utilities.hasHMLFatalErrors(hmlValidationErrors) || Utilities.hasRejects(hmlValidationErrors))
+                {
+                    logger.error("Did not perform Tier 1 validation, fatal errors in HML or malformed HML");
+                    return new ValidationOutcome(hmlValidationErrors, hmlIdRoot, hmlIdExt, properties, null, 0,
+                        selection.withoutTier(Tier.TIER1).withoutTier(Tier.TIER2));
+                }
+                sampleIDs = mergeSamples(revalidation, hmlValidator.getSamples());
+            }
+            if(tier1Stage == null)
+            {
+                storeSampleResults(revalidation, sampleIDs, hmlStage, hmlValidationErrors, null, null, null);
+                return new ValidationOutcome(hmlValidationErrors, hmlIdRoot, hmlIdExt, properties, sampleIDs, 0, selection);
+            }
+
+            //The results that go on the report are put in order by the sink, rather than sorted again each time stages are combined.
+            ValidationResultSink sink = new ValidationResultSink();
+
+            //Tier 1
+            //The tier 1 pass runs when only tier 2 is selected, because tier 2 needs its samples and streamed results.
+            ValidationResult[] tier1Results = getStageResults(tier1Stage, runStagesHere);
+            if(limits.getRejection() != null)
+            {
+                return newRejectedOutcome(limits, hmlStage, tier1Stage, tier2Stage);
+            }
+            ValidationResult[] tier1ValidationErrors = selectResults(tier1Results, selection, selection.includesTier(Tier.TIER1));
+            sampleIDs = mergeSamples(revalidation, tier1Validator.getSamples());
+
+            //Tier 2
+            if(tier2Stage == null || Utilities.hasFatalErrors(tier1Results))
+            {
+                if(tier2Stage != null)
+                {
+                    logger.error("Did not perform tier 2 validation, fatal errors in tier 1.");
+                }
+                storeSampleResults(revalidation, sampleIDs, hmlStage, hmlValidationErrors, tier1Results, null, null);
+                sink.addAll(TIER1_RESULTS, tier1ValidationErrors);
+                sink.addAll(HML_RESULTS, hmlValidationErrors);
+                return new ValidationOutcome(sink, hmlIdRoot, hmlIdExt, properties, sampleIDs, (tier1ValidationErrors.length+1),
+                    selection.withoutTier(Tier.TIER2));
+            }
+            sink.addAll(TIER1_RESULTS, tier1ValidationErrors);
+
+            ValidationResult[] tier2Results = getStageResults(tier2Stage, runStagesHere);
+            if(limits.getRejection() != null)
+            {
+                return newRejectedOutcome(limits, hmlStage, tier1Stage, tier2Stage);
+            }
+            ValidationResult[] streamedTier2Results = mergeSampleResults(revalidation, SampleResultCache.Stage.STREAMED_TIER2, tier1Validator.getStreamedTier2Results());
+            storeSampleResults(revalidation, sampleIDs, hmlStage, hmlValidationErrors, tier1Results, streamedTier2Results, tier2Results);
+            int tier1Count = sink.size();
+            sink.addAll(TIER2_RESULTS, selectResults(tier2Results, selection, true));
+            if(streamedTier2Results != null)
+            {
+                sink.addAll(STREAMED_TIER2_RESULTS, selectResults(streamedTier2Results, selection, true));
+            }
+            int tier2Count = sink.size() - tier1Count;
+            sink.addAll(HML_RESULTS, hmlValidationErrors);
+
+            //Tier 3 is outside scope for now.
+            return new ValidationOutcome(sink, hmlIdRoot, hmlIdExt, properties, sampleIDs, (tier1Count + tier2Count),
+                selection);
+        }
+        catch(InterruptedException e)
+        {
+            logger.error("Interrupted during validation.");
+            Thread.currentThread().interrupt();
+            cancelStage(hmlStage);
+            cancelStage(tier1Stage);
+            cancelStage(tier2Stage);
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("Validation was interrupted.",Severity.FATAL),new ValidationResult("Validation was interrupted.",Severity.HMLFATAL)}, hmlIdRoot, hmlIdExt, properties, null, 0);
+        }
+    }
+
+    /**
+     * The outcome of a document which one of the stages found past a limit.  Only the rejection is reported,
+     * since the stages stopped part way through.
+     */
+    private static ValidationOutcome newRejectedOutcome(XmlLimits limits, FutureTask<ValidationResult[]> hmlStage, FutureTask<ValidationResult[]> tier1Stage,
+        FutureTask<ValidationResult[]> tier2Stage)
+    {
+        cancelStage(hmlStage);
+        cancelStage(tier1Stage);
+        cancelStage(tier2Stage);
+        return new ValidationOutcome(new ValidationResult[]{limits.getRejection()}, null, null,null,null,0);
+    }
+
+    private static ValidationResult[] mergeSampleResults(SampleResultCache.Revalidation revalidation, SampleResultCache.Stage stage, ValidationResult[] results)
+    {
+        return (revalidation == null) ? results : revalidation.merge(stage, results);
+    }
+
+    /**
+     * Remember the results of each sample.  This is called before the results go into a ValidationOutcome, which changes them.
+     */
+    private static Sample[] mergeSamples(SampleResultCache.Revalidation revalidation, Sample[] samples)
+    {
+        return (revalidation == null) ? samples : revalidation.mergeSamples(samples);
+    }
+
+    private static void storeSampleResults(SampleResultCache.Revalidation revalidation, Sample[] samples, FutureTask<ValidationResult[]> hmlStage, ValidationResult[] hmlResults,
+        ValidationResult[] tier1Results, ValidationResult[] streamedTier2Results, ValidationResult[] tier2Results)
+    {
+        if(revalidation != null)
+        {
+            ValidationResult[][] stageResults = new ValidationResult[SampleResultCache.Stage.values().length][];
+            stageResults[SampleResultCache.Stage.HML.ordinal()] = (hmlStage == null) ? null : hmlResults;
+            stageResults[SampleResultCache.Stage.TIER1.ordinal()] = tier1Results;
+            stageResults[SampleResultCache.Stage.STREAMED_TIER2.ordinal()] = streamedTier2Results;
+            stageResults[SampleResultCache.Stage.TIER2.ordinal()] = tier2Results;
+            revalidation.store(stageResults, samples);
+        }
+    }
+
+    private static void recordStage(StageTimings timings, String name, long startNanos, long startBytes)
+    {
+        if(timings != null)
+        {
+            timings.record(name, startNanos, startBytes);
+        }
+    }
+
+    private static void startProgress(ValidationProgress progress, int stage)
+    {
+        if(progress != null)
+        {
+            progress.stageStarted(stage);
+        }
+    }
+
+    private static void finishProgress(ValidationProgress progress, int stage, ValidationResult[] results)
+    {
+        if(progress != null)
+        {
+            if(results != null)
+            {
+                progress.setResults(stage, results);
+            }
+            progress.stageFinished(stage);
+        }
+    }
+
+    private void startStage(FutureTask<ValidationResult[]> stage)
+    {
+        if(stage != null)
+        {
+            stageExecutor.execute(stage);
+        }
+    }
+
+    /**
+     * Cancel a stage, if it hasn't finished.  A running stage is interrupted, and stops at the next element it parses.
+     */
+    private static void cancelStage(FutureTask<ValidationResult[]> stage)
+    {
+        if(stage != null && stage.cancel(true))
+        {
+            logger.debug("Cancelled a validation stage.");
+        }
+    }
+
+    /**
+     * Wait for the results of a stage.  A stage that hasn't started yet runs on the calling thread,
+     * so validation never waits for a busy executor, and without an executor every stage runs here.
+     *
+     * @param stage the stage
+     * @param runHere false to wait for the executor to run the stage
+     * @return the results of the stage
+     * @throws InterruptedException if the calling thread is interrupted while it waits
+     */
+    private static ValidationResult[] getStageResults(FutureTask<ValidationResult[]> stage, boolean runHere) throws InterruptedException
+    {
+        //run() does nothing if the stage has already started somewhere else.
+        if(runHere)
+        {
+            stage.run();
+        }
+        try
+        {
+            return stage.get();
+        }
+        catch(ExecutionException e)
+        {
+            logger.error("Exception in a validation stage", e.getCause());
+            return new ValidationResult[]{new ValidationResult("Failed Validation Stage: " + e.getCause(),Severity.FATAL)};
+        }
+    }
+
+    /**
+     * Keep the results for the selected rules.  Fatal results and results without a MIRING rule are always kept, they explain why validation stopped.
+     *
+     * @param results the results of a stage
+     * @param selection the MIRING elements and rules to keep
+     * @param tierSelected false if the stage only ran because a later tier depends on it.  Then only the fatal results are kept.
+     * @return the selected results
+     */
+    private static ValidationResult[] selectResults(ValidationResult[] results, RuleSelection selection, boolean tierSelected)
+    {
+        if(tierSelected && selection.includesAllRules())
+        {
+            return results;
+        }
+        List<ValidationResult> selectedResults = new ArrayList<ValidationResult>();
+        for(ValidationResult result : results)
+        {
+            boolean fatal = result.getSeverity() == Severity.FATAL || result.getSeverity() == Severity.HMLFATAL;
+            if(fatal || (tierSelected && (result.getMiringRule() == null || selection.includesRule(result.getMiringRule()))))
+            {
+                selectedResults.add(result);
+            }
+        }
+        return selectedResults.toArray(new ValidationResult[selectedResults.size()]);
+    }
+
+    /**
+     * @param version the HML version
+     * @return the name of the HML schema resource of that version
+     */
+    public static String getHmlSchema(String version)
+    {
+        return "/org/nmdp/miring/schema/hml-" + version + ".xsd";
+    }
+
+    /**
+     * Based on version choose correct miring schema (They are the same except for the name space)
+     *
+     * @param version the HML version
+     * @return the name of the tier 1 schema resource
+     */
+    public static String getMiringSchema(String version)
+    {
+        return (version.equals("1.0.1"))? "/org/nmdp/miring/schema/MiringTier1.xsd":"/org/nmdp/miring/schema/MiringTier1-1.0.xsd";
+    }
+}
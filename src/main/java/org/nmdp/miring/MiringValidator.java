@@ -25,7 +25,10 @@ package org.nmdp.miring;
 import java.util.HashMap;
 import java.util.*;
 import java.util.Map.*;
-import java.io.StringReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 
 import org.nmdp.miring.ValidationResult.Severity;
 
@@ -52,12 +55,12 @@ import org.xml.sax.helpers.DefaultHandler;
 public class MiringValidator
 {
     Logger logger = LoggerFactory.getLogger(MiringValidator.class);
-    String xml;
+    //The engine is thread safe, so every MiringValidator shares one.
+    static final MiringValidationEngine engine = new MiringValidationEngine();
+    HmlInput input;
+    HmlHeader header;
     String report;
-    ValidationResult[] tier1ValidationErrors;
-    ValidationResult[] tier2ValidationErrors;
-    ValidationResult[] hmlValidationErrors;
-    Sample[] sampleIDs;
+    ValidationOutcome outcome;
     public static Document xmlDom;
     
     /**
@@ -67,7 +70,50 @@ public class MiringValidator
      */
     public MiringValidator(String xml)
     {
-        this.xml = xml;
+        this(HmlInput.fromString(xml));
+    }
+
+    /**
+     * Constructor for a MiringValidator object, for an xml file.
+     * The file is memory-mapped, and each validation pass reads from the mapping.  It can be at most Integer.MAX_VALUE bytes.
+     *
+     * @param hmlFile the path of the xml file
+     * @throws IOException if the file can't be opened or mapped, or it is 2 GB or more
+     */
+    public MiringValidator(Path hmlFile) throws IOException
+    {
+        this(HmlInput.fromPath(hmlFile));
+    }
+
+    /**
+     * Constructor for a MiringValidator object, for an xml stream.  The stream is read into memory as bytes, and not closed.
+     *
+     * @param xmlStream a stream containing the xml
+     * @throws IOException if the stream can't be read
+     */
+    public MiringValidator(InputStream xmlStream) throws IOException
+    {
+        this(HmlInput.fromStream(xmlStream));
+    }
+
+    /**
+     * Constructor for a MiringValidator object, for xml bytes in a buffer.  The bytes between the buffer's position and limit are the document.
+     *
+     * @param xmlBytes a buffer containing the xml
+     */
+    public MiringValidator(ByteBuffer xmlBytes)
+    {
+        this(HmlInput.fromBuffer(xmlBytes));
+    }
+
+    /**
+     * Constructor for a MiringValidator object
+     *
+     * @param input the xml to validate
+     */
+    public MiringValidator(HmlInput input)
+    {
+        this.input = input;
         this.report = null;
     }
     
@@ -78,85 +124,47 @@ public class MiringValidator
      */
     public String validate()
     {
-        if(xml==null || xml.length() == 0)
-        {
-            logger.error("XML is null or length 0.");
-            return ReportGenerator.generateReport(new ValidationResult[]{new ValidationResult("XML is null or length 0.",Severity.FATAL), new ValidationResult("XML is null or length 0.", Severity.HMLFATAL)}, null, null,null,null,0);
-        }
-        
-        HashMap<String,String> properties = Utilities.getPropertiesFromRootHml(xml);
-        logger.debug("Attempting HML Validation");
-        String version = getVersion();
-        System.out.println("Version Number = "+version);
-        if(version==null)
-        {
-            report = ReportGenerator.generateReport(new ValidationResult[]{new ValidationResult("No Version Number Detected Please have a version number under then HML node",Severity.FATAL),new ValidationResult("No Version Number Detected Please have a version number under then HML node",Severity.HMLFATAL)}, null, null,null,null,0);
-        }
-        else
-        {
-        //Make method called version control
-        hmlValidationErrors = SchemaValidator.validate(xml,"/org/nmdp/miring/schema/hml-"+version+".xsd");
-        //If there are any fatal issues with HML do not continue
-        if(!Utilities.hasHMLFatalErrors(hmlValidationErrors)&&!Utilities.hasRejects(hmlValidationErrors))
+        outcome = engine.validate(input);
+        report = outcome.toXml();
+        return report;
+    }
+
+    /**
+     * Get the version of the validator, which the build writes into version.properties.
+     *
+     * @return the version, or "unknown" if it can't be read
+     */
+    public static String getValidatorVersion()
+    {
+        Properties versionProperties = new Properties();
+        try(InputStream versionStream = MiringValidator.class.getResourceAsStream("/org/nmdp/miring/version.properties"))
         {
-        	//Tier 1
-            logger.debug("Attempting Tier 1 Validation");
-            tier1ValidationErrors = SchemaValidator.validate(xml, getMiring(version));
-            sampleIDs = SchemaValidator.samples.toArray(new Sample[SchemaValidator.samples.size()]);
-            //Tier 2
-            //If tier 1 has fatal errors, we should not continue to tier 2.
-            if(!Utilities.hasFatalErrors(tier1ValidationErrors))
-            {
-                logger.debug("Attempting Tier 2 validation");
-                
-                tier2ValidationErrors = SchematronValidator.validate(xml, new String[] {"/org/nmdp/miring/schematron/MiringAll.sch"});
-                //Make a report.
-                String hmlIdRoot = Utilities.getHMLIDRoot(xml);
-                String hmlIdExt = Utilities.getHMLIDExtension(xml);
-                report = ReportGenerator.generateReport(Utilities.combineArrays(tier1ValidationErrors, tier2ValidationErrors, hmlValidationErrors), hmlIdRoot, hmlIdExt, properties, sampleIDs,(tier1ValidationErrors.length + tier2ValidationErrors.length));
-
-                
-                //Tier 3 is outside scope for now.  Okay.
-                /*if(!Utilities.hasFatalErrors(tier2ValidationErrors)))
-                {
-                //tier3();
-                }*/
-            }
-            else
+            if(versionStream != null)
             {
-                logger.error("Did not perform tier 2 validation, fatal errors in tier 1.");
-                tier2ValidationErrors=new ValidationResult[0];
-                
-                //Make a report.
-                String hmlIdRoot = Utilities.getHMLIDRoot(xml);
-                String hmlIdExt = Utilities.getHMLIDExtension(xml);
-                report = ReportGenerator.generateReport(Utilities.combineArrays(tier1ValidationErrors,tier2ValidationErrors,  hmlValidationErrors), hmlIdRoot, hmlIdExt, properties, sampleIDs,(tier1ValidationErrors.length+1));
+                versionProperties.load(versionStream);
             }
-
         }
-        else
+        catch(IOException e)
         {
-            //Make a report.
-            String hmlIdRoot = Utilities.getHMLIDRoot(xml);
-            String hmlIdExt = Utilities.getHMLIDExtension(xml);
-            report = ReportGenerator.generateReport(hmlValidationErrors, hmlIdRoot, hmlIdExt, properties, sampleIDs,0);
-
-            logger.error("Did not perform Tier 1 validation, fatal errors in HML or malformed HML");
-        }
+            LoggerFactory.getLogger(MiringValidator.class).error("Unable to read the validator version", e);
         }
-        
-        
-        return report;
+        return versionProperties.getProperty("version", "unknown");
     }
 
+    /**
+     * Get the xml text.  If this validator was made from a file, stream or buffer, this decodes a copy of the whole document.
+     *
+     * @return a String containing the xml text
+     */
     public String getXml()
     {
-        return xml;
+        return (input == null) ? null : input.asString();
     }
 
     public void setXml(String xml)
     {
-        this.xml = xml;
+        this.input = HmlInput.fromString(xml);
+        this.header = null;
     }
 
     
@@ -164,40 +172,28 @@ public class MiringValidator
     {
         return report;
     }
+
+    /**
+     * @return the ValidationOutcome from the last call to validate(), or null if validate() hasn't been called.
+     */
+    public ValidationOutcome getOutcome()
+    {
+        return outcome;
+    }
     /* Gets the version of HML used to validate
      */
     public String getVersion()
     {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder;
-        Document xmlDOM=null;
-        try {
-            builder = factory.newDocumentBuilder();
-             xmlDOM = builder.parse(new InputSource(new StringReader(xml)));
-            
-        }
-        //I am returning 1.0.1 due to server error if it returns a null.
-        catch (Exception e) {
-            System.out.println("Error in handle Grabbing ");
-            return "1.0.1";
-        }
-        NodeList xmlAttributes = xmlDOM.getElementsByTagName("*");
-        NamedNodeMap xmlAttribute = xmlAttributes.item(0).getAttributes();
-        for(int i = 0; i<xmlAttribute.getLength();i++){
-            if(xmlAttribute.item(i).getNodeName().equals("version"))
-            {
-                return xmlAttribute.item(i).getNodeValue();
-            }
+        if(header == null)
+        {
+            header = HmlHeader.read(input);
         }
-        return null;
-        
-        
-        
+        return header.getVersion();
     }
     /* Based on version choose correct miring schema (They are the same except for the name space)
      */
     public String getMiring(String version)
     {
-        return (version.equals("1.0.1"))? "/org/nmdp/miring/schema/MiringTier1.xsd":"/org/nmdp/miring/schema/MiringTier1-1.0.xsd";
+        return MiringValidationEngine.getMiringSchema(version);
     }
 }
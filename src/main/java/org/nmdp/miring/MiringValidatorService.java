@@ -26,30 +26,288 @@ import org.nmdp.miring.ValidationResult.Severity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.StreamingOutput;
 
 /** 
  * This class provides a REST service to access the MIRING Validator.  
- * It expects a POST request with a single form parameter called xml.
+ * It expects a POST request with a form parameter called xml.
+ * The optional form parameters tiers, elements and rules select part of the validation, as comma separated lists
+ * (tiers="hml,tier1,tier2", elements="4,5", rules="5.2.b").  By default everything is validated.  See RuleSelection.
+ * The report is XML, unless the request's Accept header asks for application/json.
+ * The compact XML report is returned for the Accept type application/vnd.miring.compact+xml, or the form parameter format=compact.
+ * POSTing the same form to /ValidateMiring/profile returns the JSON report with a "rule-profile", which says how many nodes
+ * each tier 1 mapping and tier 2 rule context, assert and report matched, how often it was evaluated and fired, and how long it took.
+ * POSTing several xml parameters to /ValidateMiring/batch validates them at the same time, and returns a JSON array of their reports.
+ * POSTing the header of a document (the text before its first sample) and one sample, with its index and line, to /ValidateMiring/sample
+ * validates just that sample, for editors that revalidate a sample after every change.
+ * POSTing the same form to /ValidateMiring/events streams the progress of the validation as server-sent events, then the report.
 */
 
 @Path("/ValidateMiring")
 public class MiringValidatorService
 {
     Logger logger = LoggerFactory.getLogger(MiringValidatorService.class);
+    //Requests are interactive, so the stages of each validation run at the same time.
+    //Clients often resubmit a document after fixing a few samples, so the results of unchanged samples are reused.
+    //The system property miring.sampleCache.size sets how many samples are remembered.  0 turns this off.
+    static final int STAGE_THREADS = Math.max(3, Runtime.getRuntime().availableProcessors());
+    static final int SAMPLE_CACHE_SIZE = Integer.getInteger("miring.sampleCache.size", 20000);
+    static final MiringValidationEngine engine = new MiringValidationEngine(
+        MiringValidationEngine.newStageExecutor(STAGE_THREADS), newSampleResultCache(SAMPLE_CACHE_SIZE));
+    //The documents of a batch wait for their stages on virtual threads, or on as many platform threads as the stages have.
+    static final ExecutorService documentExecutor = VirtualThreads.newExecutor("miring-document", STAGE_THREADS);
+    //Slow requests are saved for replaying, when miring.capture.dir is set.  See SlowRequestCapture.
+    static final SlowRequestCapture capture = SlowRequestCapture.fromSystemProperties(STAGE_THREADS, SAMPLE_CACHE_SIZE);
+
+    private static SampleResultCache newSampleResultCache(int maxSamples)
+    {
+        return (maxSamples > 0) ? new SampleResultCache(maxSamples) : null;
+    }
     
     /**
      * This method provides a RESTFUL service for validating a MIRING compliant HML file
+     * 
+     * This is the default representation.  Clients that accept anything (or nothing in particular) get XML.
      *
      * @param xml this method accepts a Form Parameter "xml" containing the xml text
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @param format "compact" for the compact report, which lists each rule's description and solution once
      * @return a String containing MIRING Results Report in XML format.
      */
     @POST
-    @Produces("application/xml")
-    public String validateMiring(@FormParam("xml") String xml)
+    @Produces("application/xml;qs=1")
+    public String validateMiring(@FormParam("xml") String xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules,
+        @FormParam("format") String format)
+    {
+        ValidationOutcome outcome = validate(xml, tiers, elements, rules);
+        return ReportGenerator.COMPACT_FORMAT.equals(format) ? outcome.toCompactXml() : outcome.toXml();
+    }
+
+    /**
+     * This method provides a RESTFUL service for validating a MIRING compliant HML file, for clients that ask for the compact report.
+     *
+     * @param xml this method accepts a Form Parameter "xml" containing the xml text
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return a String containing the compact MIRING Results Report.
+     */
+    @POST
+    @Produces("application/vnd.miring.compact+xml;qs=0.8")
+    public String validateMiringCompact(@FormParam("xml") String xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules)
+    {
+        return validate(xml, tiers, elements, rules).toCompactXml();
+    }
+
+    /**
+     * This method provides a RESTFUL service for validating a MIRING compliant HML file, for clients that ask for JSON.
+     * The JSON report is streamed straight from the validation results.
+     *
+     * @param xml this method accepts a Form Parameter "xml" containing the xml text
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return the MIRING Results Report in JSON format.
+     */
+    @POST
+    @Produces("application/json;qs=0.9")
+    public StreamingOutput validateMiringJson(@FormParam("xml") String xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules)
+    {
+        final ValidationOutcome outcome = validate(xml, tiers, elements, rules);
+        return new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output) throws IOException
+            {
+                JsonReportWriter.write(outcome, new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * This method validates one sample of an HML file, for editors which revalidate a sample after every change.
+     * Only the sample is parsed, and only the results about it are reported, with its xpaths in the whole document.
+     * See MiringValidationEngine.validateSample.
+     *
+     * @param header the text of the document before its first sample
+     * @param sample the text of the sample node
+     * @param sampleIndex the index of the sample in the document, starting at 1
+     * @param sampleLine the line the sample starts on in the document, or 0 if it isn't known
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @param format "compact" for the compact report
+     * @return a String containing the MIRING Results Report of the sample in XML format.
+     */
+    @POST
+    @Path("sample")
+    @Produces("application/xml;qs=1")
+    public String validateSample(@FormParam("header") String header, @FormParam("sample") String sample, @FormParam("index") @DefaultValue("1") int sampleIndex,
+        @FormParam("line") @DefaultValue("0") int sampleLine, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules,
+        @FormParam("format") String format)
+    {
+        ValidationOutcome outcome = validateSample(header, sample, sampleIndex, sampleLine, tiers, elements, rules);
+        return ReportGenerator.COMPACT_FORMAT.equals(format) ? outcome.toCompactXml() : outcome.toXml();
+    }
+
+    /**
+     * This method validates one sample of an HML file, for clients that ask for JSON.  See validateSample.
+     *
+     * @param header the text of the document before its first sample
+     * @param sample the text of the sample node
+     * @param sampleIndex the index of the sample in the document, starting at 1
+     * @param sampleLine the line the sample starts on in the document, or 0 if it isn't known
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return the MIRING Results Report of the sample in JSON format.
+     */
+    @POST
+    @Path("sample")
+    @Produces("application/json;qs=0.9")
+    public StreamingOutput validateSampleJson(@FormParam("header") String header, @FormParam("sample") String sample, @FormParam("index") @DefaultValue("1") int sampleIndex,
+        @FormParam("line") @DefaultValue("0") int sampleLine, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules)
+    {
+        final ValidationOutcome outcome = validateSample(header, sample, sampleIndex, sampleLine, tiers, elements, rules);
+        return new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output) throws IOException
+            {
+                JsonReportWriter.write(outcome, new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * This method validates a MIRING compliant HML file, and profiles the validation.  It is a diagnostic for finding 
+     * expensive rules, and is slower than a plain validation.
+     *
+     * @param xml this method accepts a Form Parameter "xml" containing the xml text
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return the MIRING Results Report in JSON format, with the rule profile.
+     */
+    @POST
+    @Path("profile")
+    @Produces("application/json")
+    public StreamingOutput profileMiring(@FormParam("xml") String xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules)
+    {
+        final RuleProfile profile = new RuleProfile();
+        final ValidationOutcome outcome = validate(xml, tiers, elements, rules, profile);
+        return new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output) throws IOException
+            {
+                JsonReportWriter.write(outcome, profile, new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    /**
+     * This method validates a MIRING compliant HML file, and streams its progress as server-sent events,
+     * ending with an event that carries the report.  See ProgressEventStream.
+     *
+     * @param xml this method accepts a Form Parameter "xml" containing the xml text
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @param format the format of the report: the XML report by default, "compact" or "json"
+     * @return the event stream
+     */
+    @POST
+    @Path("events")
+    @Produces("text/event-stream")
+    public StreamingOutput validateMiringEvents(@FormParam("xml") String xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules,
+        @FormParam("format") String format)
+    {
+        logger.debug("Received Miring Validation web service call with progress events.");
+        return new ProgressEventStream(this, (xml == null) ? null : HmlInput.fromString(xml), tiers, elements, rules, format, null);
+    }
+
+    /**
+     * This method validates several MIRING compliant HML files at the same time, with the same selection.
+     *
+     * @param xml this method accepts any number of Form Parameters "xml", each containing the xml text of a document
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return a JSON array of the MIRING Results Reports, in the same order as the documents.
+     */
+    @POST
+    @Path("batch")
+    @Produces("application/json")
+    public StreamingOutput validateMiringBatch(@FormParam("xml") List<String> xml, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules)
+    {
+        logger.debug("Received Miring Validation batch of " + xml.size() + " documents.");
+        final List<ValidationOutcome> outcomes = new ArrayList<ValidationOutcome>();
+        RuleSelection selection = null;
+        try
+        {
+            selection = RuleSelection.parse(tiers, elements, rules);
+        }
+        catch(IllegalArgumentException e)
+        {
+            logger.error("Invalid rule selection: " + e.getMessage());
+            for(int i = 0; i < xml.size(); i++)
+            {
+                outcomes.add(new ValidationOutcome(new ValidationResult[]{new ValidationResult("Invalid rule selection. " + e.getMessage(),Severity.FATAL),new ValidationResult("Invalid rule selection. " + e.getMessage(),Severity.HMLFATAL)}, null, null,null,null,0));
+            }
+        }
+        if(selection != null)
+        {
+            List<HmlInput> inputs = new ArrayList<HmlInput>();
+            for(String document : xml)
+            {
+                inputs.add(HmlInput.fromString(document));
+            }
+            outcomes.addAll(engine.validateBatch(inputs, selection, documentExecutor));
+        }
+        return new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream output) throws IOException
+            {
+                Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+                writer.write("[");
+                for(int i = 0; i < outcomes.size(); i++)
+                {
+                    if(i > 0)
+                    {
+                        writer.write(",");
+                    }
+                    JsonReportWriter.write(outcomes.get(i), writer);
+                }
+                writer.write("]");
+                writer.flush();
+            }
+        };
+    }
+
+    private ValidationOutcome validate(String xml, String tiers, String elements, String rules)
+    {
+        return validate(xml, tiers, elements, rules, null);
+    }
+
+    private ValidationOutcome validate(String xml, String tiers, String elements, String rules, RuleProfile profile)
     {
         //System.out.println("Web Service Call Received.  ");
         //System.out.println("XML length=" + xml==null?"NULL":(xml.length() + " : " + xml.substring(0,20) + " ... " + xml.substring(xml.length()-20, xml.length())));
@@ -60,21 +318,90 @@ public class MiringValidatorService
         if(xml == null)
         {
             logger.error("XML is Null.");
-            return ReportGenerator.generateReport(new ValidationResult[]{new ValidationResult("XML is null.",Severity.FATAL),new ValidationResult("XML is null.",Severity.HMLFATAL)}, null, null,null,null,0);
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("XML is null.",Severity.FATAL),new ValidationResult("XML is null.",Severity.HMLFATAL)}, null, null,null,null,0);
         }
         else if(xml.length() == 0)
         {
             logger.error("XML is Empty.");
-            return ReportGenerator.generateReport(new ValidationResult[]{new ValidationResult("XML is length 0.",Severity.FATAL),new ValidationResult("XML is length 0.",Severity.HMLFATAL)}, null, null,null,null,0);
+            return new ValidationOutcome(new ValidationResult[]{new ValidationResult("XML is length 0.",Severity.FATAL),new ValidationResult("XML is length 0.",Severity.HMLFATAL)}, null, null,null,null,0);
         }
         else
         {
             logger.debug("XML Length = " + xml.length());
+            return validate(HmlInput.fromString(xml), tiers, elements, rules, profile, null);
+        }
+    }
 
-            MiringValidator myValidator = new MiringValidator(xml);
-            myValidator.validate();
+    /**
+     * Validate a document which isn't empty, like a completed upload.
+     *
+     * @param input the document
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @param profile the profile to collect, or null
+     * @param progress the progress to count on, or null
+     * @return the outcome of the validation
+     */
+    ValidationOutcome validate(HmlInput input, String tiers, String elements, String rules, RuleProfile profile, ValidationProgress progress)
+    {
+        RuleSelection selection;
+        try
+        {
+            selection = RuleSelection.parse(tiers, elements, rules);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return invalidSelection(e);
+        }
+        //Profiled requests are slow on purpose, so they aren't captured.
+        StageTimings timings = (capture == null || profile != null) ? null : new StageTimings();
+        ValidationOutcome outcome = engine.validate(input, selection, profile, timings, progress);
+        if(timings != null)
+        {
+            capture.captureIfSlow(input, tiers, elements, rules, outcome, timings);
+        }
+        return outcome;
+    }
 
-            return myValidator.getReport();
+    private ValidationOutcome validateSample(String header, String sample, int sampleIndex, int sampleLine, String tiers, String elements, String rules)
+    {
+        logger.debug("Received Miring sample validation web service call.");
+        try
+        {
+            return engine.validateSample(header, sample, sampleIndex, sampleLine, RuleSelection.parse(tiers, elements, rules));
         }
+        catch(IllegalArgumentException e)
+        {
+            return invalidSelection(e);
+        }
+    }
+
+    /**
+     * Validate one sample of a document which has already been indexed, like an upload.
+     *
+     * @param index the samples of the document, or null if it couldn't be indexed
+     * @param sampleIndex the index of the sample, starting at 1
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @return the outcome of the validation of the sample
+     */
+    ValidationOutcome validateSample(HmlSampleIndex index, int sampleIndex, String tiers, String elements, String rules)
+    {
+        try
+        {
+            return engine.validateSample(index, sampleIndex, RuleSelection.parse(tiers, elements, rules));
+        }
+        catch(IllegalArgumentException e)
+        {
+            return invalidSelection(e);
+        }
+    }
+
+    private ValidationOutcome invalidSelection(IllegalArgumentException e)
+    {
+        logger.error("Invalid rule selection: " + e.getMessage());
+        return new ValidationOutcome(new ValidationResult[]{new ValidationResult("Invalid rule selection. " + e.getMessage(),Severity.FATAL),new ValidationResult("Invalid rule selection. " + e.getMessage(),Severity.HMLFATAL)}, null, null,null,null,0);
     }
 }
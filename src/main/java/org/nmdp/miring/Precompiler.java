@@ -0,0 +1,501 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Precompiler compiles the schematron schema and the rule templates at build time, so that a new JVM doesn't have to.
+ *
+ * The build runs main with the classes directory, after the tests (see the pom), so the war and the embedded server include:
+ *   org/nmdp/miring/schematron/precompiled/MiringAll-n.xsl   the XSLT of each pattern group of MiringAll.sch,
+ *                                                            for every rule and the default pattern groups.
+ *   org/nmdp/miring/schematron/precompiled/MiringAll.properties   the number of groups, the selection, and a digest of the schematron sources.
+ *   org/nmdp/miring/ruletemplates/precompiled/*.txt          each rule template, one rule per line.
+ *
+ * Saxon HE can't save a compiled stylesheet, so the XSLT is still compiled when it is loaded.  That skips unpacking Probatron and
+ * running the ISO schematron stylesheets, which is most of the time.
+ *
+ * The precompiled files are only used when their digest matches the sources of the rule set being compiled (see RuleSet).
+ * If they are missing or stale, or for any other selection of rules, everything is compiled from source as before.
+*/
+public final class Precompiler
+{
+    private static final Logger logger = LoggerFactory.getLogger(Precompiler.class);
+
+    static final String SCHEMATRON_DIRECTORY = "/org/nmdp/miring/schematron/precompiled/";
+    static final String RULE_TEMPLATE_DIRECTORY = "/org/nmdp/miring/ruletemplates/precompiled/";
+    static final String[] SCHEMATRON_SCHEMAS = {MiringValidationEngine.SCHEMATRON_SCHEMA};
+    //The template resource and rule element of each rule template.
+    static final String[][] RULE_TEMPLATES = {
+        {SchematronValidator.SCHEMATRON_RULE_TEMPLATE, "rule"},
+        {SchemaValidator.MISSING_NODE_TEMPLATE, "rule"},
+        {SchemaValidator.MISSING_NODE_TEMPLATE, "hml-rule"},
+        {SchemaValidator.MISSING_ATTRIBUTE_TEMPLATE, "rule"},
+        {SchemaValidator.MISSING_ATTRIBUTE_TEMPLATE, "hml-rule"}};
+    //The start of the digest of resources which don't exist, followed by the name of the first one.
+    static final String MISSING_DIGEST = "missing ";
+
+    private Precompiler()
+    {
+    }
+
+    /**
+     * @param args the classes directory to write the precompiled files to
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length != 1)
+        {
+            System.err.println("Usage: Precompiler <classes directory>");
+            System.exit(1);
+        }
+        precompile(new File(args[0]));
+    }
+
+    /**
+     * Write every precompiled schema and rule template.
+     *
+     * @param outputDirectory the root of the classpath to write to
+     * @throws Exception if a schema or template can't be compiled or written
+     */
+    static void precompile(File outputDirectory) throws Exception
+    {
+        for(String schemaFileName : SCHEMATRON_SCHEMAS)
+        {
+            writeSchematron(outputDirectory, schemaFileName);
+        }
+        for(String[] template : RULE_TEMPLATES)
+        {
+            writeRuleTemplate(outputDirectory, template[0], template[1]);
+        }
+    }
+
+    /**
+     * Write the pattern group stylesheets of a schematron schema, for every rule and the default pattern groups.
+     */
+    static void writeSchematron(File outputDirectory, String schemaFileName) throws Exception
+    {
+        long start = System.nanoTime();
+        String name = getBaseName(schemaFileName);
+        File directory = new File(outputDirectory, SCHEMATRON_DIRECTORY);
+        directory.mkdirs();
+
+        RuleSet ruleSet = RuleSet.getBundled();
+        List<Node> stylesheets = SchematronValidator.generatePatternGroupStylesheets(ruleSet, schemaFileName, RuleSelection.ALL, "");
+        for(int i = 0; i < stylesheets.size(); i++)
+        {
+            OutputStream out = new FileOutputStream(new File(directory, name + "-" + i + ".xsl"));
+            Transformer transformer = XmlFactories.acquireTransformer();
+            try
+            {
+                transformer.transform(new DOMSource(stylesheets.get(i)), new StreamResult(out));
+            }
+            finally
+            {
+                XmlFactories.releaseTransformer(transformer);
+                out.close();
+            }
+        }
+
+        List<String> sources = getSchematronSources(ruleSet, schemaFileName);
+        Properties index = new Properties();
+        index.setProperty("selection", RuleSelection.ALL.getRuleKey());
+        index.setProperty("pattern-groups", "");
+        index.setProperty("groups", Integer.toString(stylesheets.size()));
+        index.setProperty("sources", join(sources));
+        index.setProperty("digest", digest(ruleSet, sources));
+        OutputStream out = new FileOutputStream(new File(directory, name + ".properties"));
+        try
+        {
+            index.store(out, "Precompiled " + schemaFileName + ", see Precompiler");
+        }
+        finally
+        {
+            out.close();
+        }
+        logger.info("Precompiled " + schemaFileName + " into " + stylesheets.size() + " stylesheets in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Load the precompiled pattern groups of a schematron schema.
+     *
+     * @param ruleSet the rule set to load the schema from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to compile
+     * @param patternGroups the pattern groups setting
+     * @param transformerFactory the factory to compile the stylesheets with
+     * @return the compiled pattern groups, or null if they weren't precompiled for this selection, or are stale.
+     */
+    static List<Templates> loadSchematron(RuleSet ruleSet, String schemaFileName, RuleSelection selection, String patternGroups, TransformerFactory transformerFactory)
+    {
+        URL indexURL = ruleSet.getResource(SCHEMATRON_DIRECTORY + getBaseName(schemaFileName) + ".properties");
+        if(indexURL == null)
+        {
+            logger.debug("No precompiled schematron for " + schemaFileName);
+            return null;
+        }
+        return loadSchematron(ruleSet, indexURL, schemaFileName, selection, patternGroups, transformerFactory);
+    }
+
+    static List<Templates> loadSchematron(URL indexURL, String schemaFileName, RuleSelection selection, String patternGroups, TransformerFactory transformerFactory)
+    {
+        return loadSchematron(RuleSet.getBundled(), indexURL, schemaFileName, selection, patternGroups, transformerFactory);
+    }
+
+    static List<Templates> loadSchematron(RuleSet ruleSet, URL indexURL, String schemaFileName, RuleSelection selection, String patternGroups, TransformerFactory transformerFactory)
+    {
+        try
+        {
+            Properties index = new Properties();
+            InputStream in = indexURL.openStream();
+            try
+            {
+                index.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+            if(!selection.getRuleKey().equals(index.getProperty("selection")) || !patternGroups.equals(index.getProperty("pattern-groups")))
+            {
+                return null;
+            }
+            if(!isCurrent(ruleSet, index))
+            {
+                logger.warn("The precompiled schematron for " + schemaFileName + " is stale, compiling it from source");
+                return null;
+            }
+
+            //The stylesheets get the schema's URL, as they do when they are compiled from source.
+            String schemaSystemId = ruleSet.getResource(schemaFileName).toString();
+            int groups = Integer.parseInt(index.getProperty("groups"));
+            List<Templates> compiledGroups = new ArrayList<Templates>();
+            for(int i = 0; i < groups; i++)
+            {
+                URL stylesheetURL = new URL(indexURL, getBaseName(schemaFileName) + "-" + i + ".xsl");
+                InputStream stylesheet = stylesheetURL.openStream();
+                try
+                {
+                    compiledGroups.add(transformerFactory.newTemplates(new StreamSource(stylesheet, schemaSystemId)));
+                }
+                finally
+                {
+                    stylesheet.close();
+                }
+            }
+            logger.debug("Loaded precompiled schematron for " + schemaFileName + " from " + indexURL);
+            return Collections.unmodifiableList(compiledGroups);
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to load the precompiled schematron for " + schemaFileName + ", compiling it from source", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the digest in a precompiled index matches its sources on the classpath.
+     */
+    static boolean isCurrent(Properties index) throws Exception
+    {
+        return isCurrent(RuleSet.getBundled(), index);
+    }
+
+    /**
+     * @return true if the digest in a precompiled index matches its sources in a rule set.
+     */
+    static boolean isCurrent(RuleSet ruleSet, Properties index) throws Exception
+    {
+        String sources = index.getProperty("sources");
+        String digest = index.getProperty("digest");
+        if(sources == null || digest == null)
+        {
+            return false;
+        }
+        List<String> sourceNames = new ArrayList<String>();
+        for(String source : sources.split(","))
+        {
+            sourceNames.add(source);
+        }
+        return digest.equals(digest(ruleSet, sourceNames));
+    }
+
+    /**
+     * @return the resource names of a schematron schema and the patterns it includes, in a rule set.
+     */
+    static List<String> getSchematronSources(RuleSet ruleSet, String schemaFileName) throws Exception
+    {
+        List<String> sources = new ArrayList<String>();
+        sources.add(schemaFileName);
+        String directory = schemaFileName.substring(0, schemaFileName.lastIndexOf('/') + 1);
+        URL schemaURL = ruleSet.getResource(schemaFileName);
+        if(schemaURL == null)
+        {
+            return sources;
+        }
+        DocumentBuilder builder = XmlFactories.acquireDocumentBuilder(true);
+        try
+        {
+            NodeList includes = builder.parse(schemaURL.toString())
+                .getElementsByTagNameNS(SchematronValidator.SCHEMATRON_NAMESPACE, "include");
+            for(int i = 0; i < includes.getLength(); i++)
+            {
+                sources.add(directory + ((Element)includes.item(i)).getAttribute("href"));
+            }
+        }
+        finally
+        {
+            XmlFactories.releaseDocumentBuilder(builder);
+        }
+        return sources;
+    }
+
+    /**
+     * Write a rule template, one rule per line.  The first line is the digest of the template.
+     * Each rule is its attributes as name=value, separated by tabs.
+     */
+    static void writeRuleTemplate(File outputDirectory, String templateResourceName, String ruleElementName) throws Exception
+    {
+        File directory = new File(outputDirectory, RULE_TEMPLATE_DIRECTORY);
+        directory.mkdirs();
+        RuleSet ruleSet = RuleSet.getBundled();
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(directory, getRuleTemplateFileName(templateResourceName, ruleElementName))), StandardCharsets.UTF_8);
+        try
+        {
+            out.write(digest(ruleSet, Collections.singletonList(templateResourceName)) + "\n");
+            for(RuleTemplate rule : RuleTemplate.readRules(ruleSet, templateResourceName, ruleElementName))
+            {
+                StringBuilder line = new StringBuilder();
+                for(Map.Entry<String,String> attribute : rule.getAttributes().entrySet())
+                {
+                    if(line.length() > 0)
+                    {
+                        line.append('\t');
+                    }
+                    line.append(attribute.getKey()).append('=').append(escape(attribute.getValue()));
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a precompiled rule template.
+     *
+     * @param ruleSet the rule set to load the template from
+     * @param templateResourceName the name of the template resource
+     * @param ruleElementName the name of the rule elements
+     * @return the rules, in document order, or null if the template wasn't precompiled or is stale.
+     */
+    static List<RuleTemplate> loadRuleTemplate(RuleSet ruleSet, String templateResourceName, String ruleElementName)
+    {
+        URL indexURL = ruleSet.getResource(RULE_TEMPLATE_DIRECTORY + getRuleTemplateFileName(templateResourceName, ruleElementName));
+        if(indexURL == null)
+        {
+            return null;
+        }
+        return loadRuleTemplate(ruleSet, indexURL, templateResourceName);
+    }
+
+    static List<RuleTemplate> loadRuleTemplate(URL indexURL, String templateResourceName)
+    {
+        return loadRuleTemplate(RuleSet.getBundled(), indexURL, templateResourceName);
+    }
+
+    static List<RuleTemplate> loadRuleTemplate(RuleSet ruleSet, URL indexURL, String templateResourceName)
+    {
+        try
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(indexURL.openStream(), StandardCharsets.UTF_8));
+            try
+            {
+                if(!digest(ruleSet, Collections.singletonList(templateResourceName)).equals(reader.readLine()))
+                {
+                    logger.warn("The precompiled rule template " + indexURL + " is stale, reading " + templateResourceName);
+                    return null;
+                }
+                List<RuleTemplate> rules = new ArrayList<RuleTemplate>();
+                String line;
+                while((line = reader.readLine()) != null)
+                {
+                    Map<String,String> attributes = new HashMap<String,String>();
+                    for(String attribute : line.split("\t"))
+                    {
+                        int equals = attribute.indexOf('=');
+                        attributes.put(attribute.substring(0, equals), unescape(attribute.substring(equals + 1)));
+                    }
+                    rules.add(new RuleTemplate(attributes));
+                }
+                return Collections.unmodifiableList(rules);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to load the precompiled rule template " + indexURL + ", reading " + templateResourceName, e);
+            return null;
+        }
+    }
+
+    static String getRuleTemplateFileName(String templateResourceName, String ruleElementName)
+    {
+        return getBaseName(templateResourceName) + "." + ruleElementName + ".txt";
+    }
+
+    /**
+     * @return the file name of a resource without its directory and extension, like MiringAll for /org/nmdp/miring/schematron/MiringAll.sch
+     */
+    private static String getBaseName(String resourceName)
+    {
+        String name = resourceName.substring(resourceName.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return (dot > 0) ? name.substring(0, dot) : name;
+    }
+
+    private static String join(List<String> values)
+    {
+        StringBuilder joined = new StringBuilder();
+        for(String value : values)
+        {
+            if(joined.length() > 0)
+            {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * @return the SHA-256 of the resources of a rule set, in hex.  If a resource doesn't exist, MISSING_DIGEST and its name.
+     * @throws Exception if a resource can't be read
+     */
+    static String digest(RuleSet ruleSet, List<String> resourceNames) throws Exception
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            //Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[8192];
+        for(String resourceName : resourceNames)
+        {
+            URL resource = ruleSet.getResource(resourceName);
+            if(resource == null)
+            {
+                return MISSING_DIGEST + resourceName;
+            }
+            InputStream in = resource.openStream();
+            try
+            {
+                int count;
+                while((count = in.read(buffer)) != -1)
+                {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte b : digest.digest())
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value)
+    {
+        if(value.indexOf('\\') < 0)
+        {
+            return value;
+        }
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c == '\\' && i + 1 < value.length())
+            {
+                char next = value.charAt(++i);
+                unescaped.append((next == 't') ? '\t' : (next == 'n') ? '\n' : (next == 'r') ? '\r' : next);
+            }
+            else
+            {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}
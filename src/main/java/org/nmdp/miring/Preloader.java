@@ -0,0 +1,136 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Preloader compiles everything a validation needs before the first request arrives:
+ * the HML and tier 1 schemas of every HML version, the rule templates, and the tier 2 schematron for the whole checklist.
+ * Then it validates a small document, so the parsers and report writers are loaded too.
+ * Everything is compiled from the current RuleSet.
+ *
+ * The embedded server preloads before it says it is ready.  In a servlet container the first readiness check starts it.
+ * The time from JVM start to ready is measured, so it can be reported by the readiness check.
+*/
+final class Preloader
+{
+    private static final Logger logger = LoggerFactory.getLogger(Preloader.class);
+    //The HML versions which have a schema.
+    static final String[] HML_VERSIONS = {"1.0.1", "1.0.2", "1.0.3"};
+    static final String WARMUP_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<hml xmlns=\"http://schemas.nmdp.org/spec/hml/1.0.1\" project-name=\"LAB\" version=\"1.0.1\">\n"
+        + "  <hmlid root=\"2.34.48.32\" extension=\"preload\"/>\n"
+        + "  <reporting-center reporting-center-id=\"1\" reporting-center-context=\"NMDP\"/>\n"
+        + "  <sample id=\"1\" center-code=\"1\"><typing gene-family=\"HLA\" date=\"2015-01-01\">"
+        + "<allele-assignment date=\"2015-01-01\" allele-db=\"IMGT/HLA\" allele-version=\"3.18.0\"><glstring>HLA-A*01:01:01:01</glstring></allele-assignment>"
+        + "<sbt-ngs test-id=\"GTR000000000.1\" test-id-source=\"NCBI-GTR\"><raw-reads uri=\"http://localhost/reads\" availability=\"private\" format=\"fastq\" paired=\"0\" pooled=\"0\" adapter-trimmed=\"0\" quality-trimmed=\"0\"/></sbt-ngs>"
+        + "</typing></sample>\n"
+        + "</hml>\n";
+
+    private static volatile boolean ready = false;
+    private static volatile long preloadMillis = -1;
+    private static volatile long startupMillis = -1;
+    private static Thread backgroundPreload = null;
+
+    private Preloader()
+    {
+    }
+
+    /**
+     * Preload everything, on this thread.  Only the first call does anything, later calls wait for it to finish.
+     */
+    static synchronized void preload()
+    {
+        if(ready)
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            RuleSet.getCurrent().compile();
+            ValidationOutcome outcome = new MiringValidationEngine().validate(WARMUP_XML);
+            outcome.toXml();
+            JsonReportWriter.write(outcome, new StringWriter());
+        }
+        catch(Exception e)
+        {
+            //Anything that didn't load is loaded by the first request that needs it.
+            logger.error("Unable to preload everything", e);
+        }
+        preloadMillis = (System.nanoTime() - start) / 1000000;
+        startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        ready = true;
+        logger.info("Preloaded in " + preloadMillis + " ms, ready " + startupMillis + " ms after the JVM started");
+    }
+
+    /**
+     * Start preloading on a background thread, if it hasn't started already.
+     */
+    static synchronized void startInBackground()
+    {
+        if(ready || backgroundPreload != null)
+        {
+            return;
+        }
+        backgroundPreload = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                preload();
+            }
+        }, "miring-preload");
+        backgroundPreload.setDaemon(true);
+        backgroundPreload.start();
+    }
+
+    /**
+     * @return true once everything has been preloaded
+     */
+    static boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * @return how long preloading took, or -1 if it hasn't finished
+     */
+    static long getPreloadMillis()
+    {
+        return preloadMillis;
+    }
+
+    /**
+     * @return the time from JVM start until preloading finished, or -1 if it hasn't finished
+     */
+    static long getStartupMillis()
+    {
+        return startupMillis;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.nmdp.miring.ValidationResult.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ProgressEventStream runs a validation, and streams its progress to the client as server-sent events (text/event-stream),
+ * so a client waiting on a large document can see that it is getting somewhere.
+ *
+ * A "progress" event is sent whenever the ValidationProgress has changed, checked every 250 ms.  It looks like this:
+ *
+ * {"stages":{"header":"finished","hml":"finished","tier1":"running","tier2":"running"},
+ *  "samples":{"processed":120,"total":400},"results":{"fatal":0,"miring":3,"warning":12,...}}
+ *
+ * The total is -1 if the samples couldn't be counted.  The last event is a "report" event with the whole report, in the
+ * format that was asked for: the XML report, "compact" or "json".  A comment is sent when nothing has changed for 15 seconds,
+ * so proxies don't close the connection.  If the client goes away, the validation is cancelled.
+*/
+final class ProgressEventStream implements StreamingOutput
+{
+    private static final Logger logger = LoggerFactory.getLogger(ProgressEventStream.class);
+    static final long POLL_MILLIS = 250;
+    static final long KEEP_ALIVE_MILLIS = 15000;
+
+    private final MiringValidatorService service;
+    private final HmlInput input;
+    private final String tiers;
+    private final String elements;
+    private final String rules;
+    private final String format;
+    private final Runnable onFinish;
+
+    /**
+     * @param service the service that validates the document
+     * @param input the document, or null if there isn't one
+     * @param tiers an optional comma separated list of the tiers to validate
+     * @param elements an optional comma separated list of the MIRING elements to validate
+     * @param rules an optional comma separated list of the MIRING rules to validate
+     * @param format the format of the report event: null for XML, "compact" or "json"
+     * @param onFinish run when the validation is over, like deleting an upload, or null
+     */
+    ProgressEventStream(MiringValidatorService service, HmlInput input, String tiers, String elements, String rules, String format, Runnable onFinish)
+    {
+        this.service = service;
+        this.input = input;
+        this.tiers = tiers;
+        this.elements = elements;
+        this.rules = rules;
+        this.format = format;
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * Get the validation task.  onFinish runs once, when the validation is over, or when the task is cancelled before it started,
+     * like when the client goes away while it is still queued on the document executor.
+     *
+     * @param progress the progress to count the validation on
+     * @return the task, which hasn't started
+     */
+    FutureTask<ValidationOutcome> newValidation(final ValidationProgress progress)
+    {
+        final AtomicBoolean started = new AtomicBoolean();
+        final AtomicBoolean finished = new AtomicBoolean();
+        return new FutureTask<ValidationOutcome>(new Callable<ValidationOutcome>()
+        {
+            public ValidationOutcome call()
+            {
+                started.set(true);
+                try
+                {
+                    return service.validate(input, tiers, elements, rules, null, progress);
+                }
+                finally
+                {
+                    finish(finished);
+                }
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                //A task cancelled while it was running finishes in call().
+                if(!started.get())
+                {
+                    finish(finished);
+                }
+            }
+        };
+    }
+
+    private void finish(AtomicBoolean finished)
+    {
+        if(onFinish != null && finished.compareAndSet(false, true))
+        {
+            onFinish.run();
+        }
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException
+    {
+        final ValidationProgress progress = new ValidationProgress();
+        FutureTask<ValidationOutcome> validation = newValidation(progress);
+        try
+        {
+            MiringValidatorService.documentExecutor.execute(validation);
+        }
+        catch(RejectedExecutionException e)
+        {
+            //Cancelling the task that never ran still finishes it.
+            validation.cancel(false);
+            throw e;
+        }
+
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        try
+        {
+            String lastProgress = null;
+            long lastWrite = System.currentTimeMillis();
+            ValidationOutcome outcome = null;
+            while(outcome == null)
+            {
+                try
+                {
+                    outcome = validation.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch(TimeoutException e)
+                {
+                    //Still running.
+                }
+                String progressJson = toJson(progress);
+                if(!progressJson.equals(lastProgress))
+                {
+                    writeEvent(writer, "progress", progressJson);
+                    lastProgress = progressJson;
+                    lastWrite = System.currentTimeMillis();
+                }
+                else if(System.currentTimeMillis() - lastWrite > KEEP_ALIVE_MILLIS)
+                {
+                    writer.write(": still validating\n\n");
+                    writer.flush();
+                    lastWrite = System.currentTimeMillis();
+                }
+            }
+            writeEvent(writer, "report", toReport(outcome));
+        }
+        catch(ExecutionException e)
+        {
+            logger.error("Exception during a validation with progress events.", e.getCause());
+            writeEvent(writer, "error", "Validation failed: " + e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            validation.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+        catch(IOException e)
+        {
+            //The client went away, so nobody wants the report.
+            logger.debug("Progress event client disconnected, cancelling the validation.");
+            validation.cancel(true);
+            throw e;
+        }
+    }
+
+    private String toReport(ValidationOutcome outcome) throws IOException
+    {
+        if("json".equals(format))
+        {
+            StringWriter json = new StringWriter();
+            JsonReportWriter.write(outcome, json);
+            return json.toString();
+        }
+        return ReportGenerator.COMPACT_FORMAT.equals(format) ? outcome.toCompactXml() : outcome.toXml();
+    }
+
+    /**
+     * @param progress the progress of a validation
+     * @return the data of a progress event
+     */
+    static String toJson(ValidationProgress progress)
+    {
+        StringWriter text = new StringWriter();
+        try
+        {
+            JSONWriter json = new JSONWriter(text);
+            json.object();
+            json.key("stages").object();
+            for(String stage : ValidationProgress.STAGES)
+            {
+                json.key(stage).value(progress.getState(stage).name().toLowerCase(Locale.ROOT));
+            }
+            json.endObject();
+            json.key("samples").object();
+            json.key("processed").value(progress.getSamplesProcessed());
+            json.key("total").value(progress.getSampleCount());
+            json.endObject();
+            json.key("results").object();
+            for(Severity severity : Severity.values())
+            {
+                json.key(severity.name().toLowerCase(Locale.ROOT)).value(progress.getResultCount(severity));
+            }
+            json.endObject();
+            json.endObject();
+        }
+        catch(JSONException e)
+        {
+            //The keys are fixed, so this doesn't happen.
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Write one event.  Each line of the data gets its own data field, as the event stream format requires.
+     */
+    static void writeEvent(Writer writer, String event, String data) throws IOException
+    {
+        writer.write("event: ");
+        writer.write(event);
+        writer.write('\n');
+        int start = 0;
+        while(start <= data.length())
+        {
+            int end = data.indexOf('\n', start);
+            if(end < 0)
+            {
+                end = data.length();
+            }
+            writer.write("data: ");
+            writer.write(data, start, ((end > start && data.charAt(end - 1) == '\r') ? end - 1 : end) - start);
+            writer.write('\n');
+            start = end + 1;
+        }
+        writer.write('\n');
+        writer.flush();
+    }
+}
@@ -21,19 +21,16 @@
 
 */
 package org.nmdp.miring;
+import java.io.StringReader;
 import java.util.Arrays;
-import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.nmdp.miring.ValidationResult.Severity;
@@ -43,16 +40,73 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
 
 /** 
  * This class is used to generate an XML results report, based on the results of a MIRING Validation.
+ *
+ * The compact report (see miringreport-compact.xsd) has the same elements, except that each distinct rule, severity, description
+ * and solution is listed once in a rule-catalog.  The results only refer to their catalog rule, with their sample-id and xpaths.
+ * A broken document with thousands of samples repeats the same few descriptions and solutions for every sample,
+ * which makes most of the classic report.  expandCompactReport turns a compact report back into the classic one.
 */
 public class ReportGenerator
 {
     static Logger logger = LoggerFactory.getLogger(ReportGenerator.class);
     
-    public static DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-    public static int hmls;
+    //SimpleDateFormat is not thread safe, so each report makes its own.
+    static final String DATE_FORMAT = "MM/dd/yyyy HH:mm:ss";
+    static final String SCHEMA_LOCATION = "http://schemas.nmdp.org/spec/miringreport/1.0/miringreport.xsd";
+    static final String COMPACT_SCHEMA_LOCATION = "http://schemas.nmdp.org/spec/miringreport/1.0/miringreport-compact.xsd";
+    static final String COMPACT_FORMAT = "compact";
+
+    /**
+     * The rule-catalog of a compact report.  Results with the same kind, rule, severity, description and solution share a catalog rule.
+    */
+    private static final class RuleCatalog
+    {
+        final Element catalogElement;
+        final Map<String,String> ruleIds = new HashMap<String,String>();
+
+        RuleCatalog(Document doc)
+        {
+            catalogElement = doc.createElement("rule-catalog");
+        }
+
+        /**
+         * @return the id of the catalog rule for the result, adding the rule if it's new
+         */
+        String getRuleId(Document doc, String resultName, String miringRuleId, String severity, ValidationResult validationResult)
+        {
+            String errorText = validationResult.getErrorText();
+            String solutionText = validationResult.getSolutionText();
+            String key = resultName + "\u0000" + miringRuleId + "\u0000" + severity + "\u0000" + errorText + "\u0000" + solutionText;
+            String ruleId = ruleIds.get(key);
+            if(ruleId == null)
+            {
+                ruleId = "r" + (ruleIds.size() + 1);
+                ruleIds.put(key, ruleId);
+
+                Element ruleElement = doc.createElement("rule");
+                ruleElement.setAttribute("id", ruleId);
+                ruleElement.setAttribute("result", resultName);
+                if(miringRuleId != null)
+                {
+                    ruleElement.setAttribute("miring-rule-id", miringRuleId);
+                }
+                ruleElement.setAttribute("severity", severity);
+                Element descriptionElement = doc.createElement("description");
+                descriptionElement.appendChild(doc.createTextNode(errorText));
+                ruleElement.appendChild(descriptionElement);
+                Element solutionElement = doc.createElement("solution");
+                solutionElement.appendChild(doc.createTextNode(solutionText));
+                ruleElement.appendChild(solutionElement);
+                catalogElement.appendChild(ruleElement);
+            }
+            return ruleId;
+        }
+    }
     
     /**
      * Generate a Miring Results Report
@@ -62,42 +116,86 @@ public class ReportGenerator
      * @param extension the extension attribute on an HMLID node on the source XML.  If it exists, you should include it in the report
      * @param properties a HashMap<String,String> of property values to include on the results report
      * @param sampleIDs an array of Sample objects to list on the report.
+     * @param hmlstart the index of the first hml schema result in validationResults.
      * @return a String containing MIRING Results Report
      */
     public static String generateReport(ValidationResult[] validationResults, String root, String extension, HashMap<String,String> properties, Sample[] sampleIDs, int hmlstart)
     {
-        validationResults = assignSampleIDs(validationResults,sampleIDs);
-        validationResults = combineSimilarResults(validationResults);
-        hmls=hmlstart;
+        return generateReport(new ValidationOutcome(validationResults, root, extension, properties, sampleIDs, hmlstart));
+    }
+
+    /**
+     * Generate a Miring Results Report from a ValidationOutcome.  The outcome is not modified.
+     *
+     * @param outcome the outcome of a validation
+     * @return a String containing MIRING Results Report
+     */
+    public static String generateReport(ValidationOutcome outcome)
+    {
+        return generateReport(outcome, false);
+    }
+
+    /**
+     * Generate a compact Miring Results Report from a ValidationOutcome, which lists each rule's description and solution once.
+     *
+     * @param outcome the outcome of a validation
+     * @return a String containing the compact MIRING Results Report
+     */
+    public static String generateCompactReport(ValidationOutcome outcome)
+    {
+        return generateReport(outcome, true);
+    }
+
+    private static String generateReport(ValidationOutcome outcome, boolean compact)
+    {
         try 
         {
-            DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-
             //DOCUMENT
-            Document doc = docBuilder.newDocument();
+            Document doc = XmlFactories.newDocument();
             
             //MIRINGREPORT ROOT
             Element rootElement = doc.createElement("miring-report");
-            String currentDate = (dateFormat.format(new Date()));
+            String currentDate = (new SimpleDateFormat(DATE_FORMAT).format(new Date()));
             rootElement.setAttribute("timestamp", currentDate);
+            if(compact)
+            {
+                rootElement.setAttribute("format", COMPACT_FORMAT);
+            }
+            if(outcome.getRuleSetVersion() != null)
+            {
+                rootElement.setAttribute("rule-set", outcome.getRuleSetVersion());
+            }
             doc.appendChild(rootElement);
             
             //NAMESPACES
             rootElement.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-            rootElement.setAttribute("xsi:noNamespaceSchemaLocation", "http://schemas.nmdp.org/spec/miringreport/1.0/miringreport.xsd");
+            rootElement.setAttribute("xsi:noNamespaceSchemaLocation", compact ? COMPACT_SCHEMA_LOCATION : SCHEMA_LOCATION);
+            
+            addHMLCompliantElement(outcome.getHmlCompliance(), doc);
             
-            addHMLCompliantElement(validationResults,doc);
+            addMiringCompliantElement(outcome.getMiringCompliance(), doc);
             
-            addMiringCompliantElement(validationResults, doc);
+            addHmlidElement(outcome.getHmlIdRoot(), outcome.getHmlIdExtension(), doc);
             
-            addHmlidElement(root, extension, doc);
+            addSampleElements(outcome.getSamples(), doc);
             
-            addSampleElements(validationResults, sampleIDs, doc);
+            addPropertyElements(outcome.getProperties(), doc);
             
-            addPropertyElements(properties, doc);
+            addEvaluatedRulesElement(outcome.getEvaluatedRules(), outcome.getRuleSet(), doc);
             
-            addValidationResultElements(validationResults, doc);
+            //The catalog goes before the results, and is filled in as they are added.
+            RuleCatalog catalog = compact ? new RuleCatalog(doc) : null;
+            if(catalog != null)
+            {
+                rootElement.appendChild(catalog.catalogElement);
+            }
+            
+            addValidationResultElements(outcome, doc, catalog);
+            
+            if(catalog != null && !catalog.catalogElement.hasChildNodes())
+            {
+                rootElement.removeChild(catalog.catalogElement);
+            }
 
             return(Utilities.getStringFromDoc(doc));
         }
@@ -118,44 +216,26 @@ public class ReportGenerator
     /**
      * Add a hml-compliant element to the document.
      *
-     * @param validationResults an array of the validationError objects from this validation.
+     * @param compliance the hml compliance of this validation.
      * @param doc a Document to add the element to
      */
-    private static void addHMLCompliantElement(ValidationResult[] validationResults, Document doc)
+    private static void addHMLCompliantElement(ValidationOutcome.Compliance compliance, Document doc)
     {
-
-        ValidationResult[] hmlErrors=validationResults;
     	Element compliantElement = doc.createElement("hml-compliant");
-    	compliantElement.setTextContent(
-    	(hmlErrors == null)? "false"
-    	:(hmlErrors.length==0)?"true"
-        :(Utilities.hasRejects(hmlErrors))?"reject"
-    	:(Utilities.isHMLCompliant(hmlErrors))?"true" 
-    	:"false"
-        );
+    	compliantElement.setTextContent(compliance.getReportValue());
         doc.getDocumentElement().appendChild(compliantElement);
     } 
     
     /**
      * Add a miring-compliant element to the document.
      *
-     * @param validationResults an array of the validationError objects from this validation.
+     * @param compliance the miring compliance of this validation.
      * @param doc a Document to add the element to
      */
-    private static void addMiringCompliantElement(ValidationResult[] validationResults, Document doc)
+    private static void addMiringCompliantElement(ValidationOutcome.Compliance compliance, Document doc)
     {
         Element compliantElement = doc.createElement("miring-compliant");
-        compliantElement.setTextContent(
-            (validationResults == null)?"false"
-            :(validationResults.length==0)?"true"
-            :(Utilities.hasRejects(validationResults))?"reject"
-            :(Utilities.hasHMLFatalErrors(validationResults))?"false"
-            :(Utilities.isMiringCompliant(validationResults))?"true"
-            :(Utilities.hasMiringErrors(validationResults))?"false"
-            :(Utilities.hasWarnings(validationResults))?"warnings"
-            :"false"
-        );
-
+        compliantElement.setTextContent(compliance.getReportValue());
         doc.getDocumentElement().appendChild(compliantElement);
     }
 
@@ -183,60 +263,78 @@ public class ReportGenerator
     /**
      * Add property elements to the document.
      *
-     * @param properties a HashMap containing key-value pairs of properties to include on the report
+     * @param properties a Map containing key-value pairs of properties to include on the report
      * @param doc a Document to add the elements to
      */
-    private static void addPropertyElements(HashMap<String, String> properties, Document doc)
+    private static void addPropertyElements(Map<String, String> properties, Document doc)
     {
-        if(properties != null)
+        for(Map.Entry<String,String> pair : properties.entrySet())
         {
-            Iterator it = properties.entrySet().iterator();
-            while (it.hasNext()) 
-            {
-                Map.Entry pair = (Map.Entry)it.next();
-                String name = pair.getKey().toString();
-                String value = pair.getValue().toString();
+            Element property = doc.createElement("property");
 
-                it.remove();
-                Element property = doc.createElement("property");
+            property.setAttribute("name", pair.getKey());
+            property.setAttribute("value", pair.getValue());
+            
+            doc.getDocumentElement().appendChild(property);
+        }
+    }
 
-                property.setAttribute("name", name);
-                property.setAttribute("value",value);
-                
-                doc.getDocumentElement().appendChild(property);
-            }
+    /**
+     * Add an evaluated-rules element to the document, listing the tiers and MIRING rules which were evaluated.
+     *
+     * @param evaluatedRules the tiers and rules which were evaluated.  If this is null, no element is added.
+     * @param ruleSet the rule set which evaluated them, or null if it isn't known
+     * @param doc a Document to add the element to
+     */
+    private static void addEvaluatedRulesElement(RuleSelection evaluatedRules, RuleSet ruleSet, Document doc)
+    {
+        if(evaluatedRules == null)
+        {
+            return;
+        }
+        Element evaluatedRulesElement = doc.createElement("evaluated-rules");
+        for(RuleSelection.Tier tier : evaluatedRules.getTiers())
+        {
+            Element tierElement = doc.createElement("tier");
+            tierElement.setTextContent(tier.getName());
+            evaluatedRulesElement.appendChild(tierElement);
+        }
+        for(String ruleId : evaluatedRules.getEvaluatedRuleIds(ruleSet))
+        {
+            Element ruleElement = doc.createElement("miring-rule-id");
+            ruleElement.setTextContent(ruleId);
+            evaluatedRulesElement.appendChild(ruleElement);
         }
+        doc.getDocumentElement().appendChild(evaluatedRulesElement);
     }
 
     /**
      * Add Sample elements to the document.
      *
-     * @param validationResults an array of ValidationResults to assign samples to
-     * @param sampleIDs an array of Sample objects to include on the report
+     * @param samples the compliance of each sample, to include on the report
      * @param doc a Document to add the elements to
      */
-    private static void addSampleElements(ValidationResult[] validationResults, Sample[] sampleIDs, Document doc)
+    private static void addSampleElements(List<ValidationOutcome.SampleStatus> samples, Document doc)
     {
-        if(sampleIDs != null && sampleIDs.length > 0)
+        if(samples.size() > 0)
         {
-            int numberSampleIDs = sampleIDs.length;
+            int numberSampleIDs = samples.size();
             int numberBadSamples = 0;
             int numberGoodSamples = 0;
             Element samplesElement = doc.createElement("samples");
 
-            for(int i = 0; i < sampleIDs.length; i++)
+            for(ValidationOutcome.SampleStatus sample : samples)
             {
                 Element currentSampleElement = doc.createElement("sample");
-                String sampleID = sampleIDs[i].id;
-                String centerCode = sampleIDs[i].centerCode;
+                String centerCode = sample.getCenterCode();
                 
-                currentSampleElement.setAttribute("id",sampleID);
+                currentSampleElement.setAttribute("id",sample.getId());
                 if(!(centerCode==null) && !(centerCode.isEmpty()))
                 {
                     currentSampleElement.setAttribute("center-code",centerCode);
                 }
                 //Make one for HML? Probably
-                if(doesSampleHaveMiringErrors(sampleID, validationResults))
+                if(!sample.isMiringCompliant())
                 {
                     currentSampleElement.setAttribute("miring-compliant", "false");
                     numberBadSamples++;
@@ -246,7 +344,7 @@ public class ReportGenerator
                     currentSampleElement.setAttribute("miring-compliant", "true");
                     numberGoodSamples++;
                 }
-                if(doesSampleHaveHMLErrors(sampleID, validationResults))
+                if(!sample.isHmlCompliant())
                 {
                 	currentSampleElement.setAttribute("hml-compliant", "false");
                 	numberBadSamples++;//Do we need seperate variable and new setAttributes for hml? I feel like its a waste.
@@ -271,25 +369,26 @@ public class ReportGenerator
     /**
      * Add ValidationResult elements to the document.
      *
-     * @param validationResults an array of ValidationResult objects to include on the report
+     * @param outcome the outcome whose results to include on the report
      * @param doc a Document to add the elements to
+     * @param catalog the rule-catalog of a compact report, or null for the classic report
      */
-    private static void addValidationResultElements(ValidationResult[] validationResults, Document doc)
+    private static void addValidationResultElements(ValidationOutcome outcome, Document doc, RuleCatalog catalog)
     {
-        ValidationResult[] fatalErrors = getResultsBySeverity(validationResults,Severity.FATAL);
-        ValidationResult[] miringErrors = getResultsBySeverity(validationResults,Severity.MIRING);
-        ValidationResult[] warnings = getResultsBySeverity(validationResults,Severity.WARNING);
-        ValidationResult[] info = getResultsBySeverity(validationResults,Severity.INFO);
-        ValidationResult[] hmlErrors = getResultsBySeverity(validationResults,Severity.HML);
-        ValidationResult[] hmlFatal = getResultsBySeverity(validationResults,Severity.HMLFATAL);
-        ValidationResult[] hmlWarnings = getResultsBySeverity(validationResults,Severity.HMLWARNING);
+        ValidationResult[] fatalErrors = getResultsBySeverity(outcome,Severity.FATAL);
+        ValidationResult[] miringErrors = getResultsBySeverity(outcome,Severity.MIRING);
+        ValidationResult[] warnings = getResultsBySeverity(outcome,Severity.WARNING);
+        ValidationResult[] info = getResultsBySeverity(outcome,Severity.INFO);
+        ValidationResult[] hmlErrors = getResultsBySeverity(outcome,Severity.HML);
+        ValidationResult[] hmlFatal = getResultsBySeverity(outcome,Severity.HMLFATAL);
+        ValidationResult[] hmlWarnings = getResultsBySeverity(outcome,Severity.HMLWARNING);
 
         if(fatalErrors != null && fatalErrors.length > 0)
         {
             Element fatalErrorsElement = doc.createElement("fatal-validation-errors");
             for(int i = 0; i < fatalErrors.length; i++)
             {
-                fatalErrorsElement.appendChild(generateMiringResultElement(doc, fatalErrors[i]));
+                fatalErrorsElement.appendChild(generateMiringResultElement(doc, fatalErrors[i], catalog));
             }
             doc.getDocumentElement().appendChild(fatalErrorsElement);
         }
@@ -298,7 +397,7 @@ public class ReportGenerator
             Element miringErrorsElement = doc.createElement("miring-validation-errors");
             for(int i = 0; i < miringErrors.length; i++)
             {
-                miringErrorsElement.appendChild(generateMiringResultElement(doc, miringErrors[i]));
+                miringErrorsElement.appendChild(generateMiringResultElement(doc, miringErrors[i], catalog));
             }
             doc.getDocumentElement().appendChild(miringErrorsElement);
         }
@@ -307,7 +406,7 @@ public class ReportGenerator
             Element warningsElement = doc.createElement("validation-warnings");
             for(int i = 0; i < warnings.length; i++)
             {
-                warningsElement.appendChild(generateMiringResultElement(doc, warnings[i]));
+                warningsElement.appendChild(generateMiringResultElement(doc, warnings[i], catalog));
             }
             doc.getDocumentElement().appendChild(warningsElement);
         }
@@ -316,7 +415,7 @@ public class ReportGenerator
             Element infoElement = doc.createElement("validation-info");
             for(int i = 0; i < info.length; i++)
             {
-                infoElement.appendChild(generateMiringResultElement(doc, info[i]));
+                infoElement.appendChild(generateMiringResultElement(doc, info[i], catalog));
             }
             doc.getDocumentElement().appendChild(infoElement);
         }
@@ -326,7 +425,7 @@ public class ReportGenerator
             
             for(int i = 0; i < hmlFatal.length; i++)
             {
-                hmlFatalElement.appendChild(generateHMLResultElement(doc, hmlFatal[i]));
+                hmlFatalElement.appendChild(generateHMLResultElement(doc, hmlFatal[i], catalog));
             }
             doc.getDocumentElement().appendChild(hmlFatalElement);
         }
@@ -336,7 +435,7 @@ public class ReportGenerator
             
             for(int i = 0; i < hmlErrors.length; i++)
             {
-                hmlErrorsElement.appendChild(generateHMLResultElement(doc, hmlErrors[i]));
+                hmlErrorsElement.appendChild(generateHMLResultElement(doc, hmlErrors[i], catalog));
             }
             doc.getDocumentElement().appendChild(hmlErrorsElement);
         }
@@ -346,7 +445,7 @@ public class ReportGenerator
             
             for(int i = 0; i < hmlErrors.length; i++)
             {
-                hmlWarningsElement.appendChild(generateHMLResultElement(doc, hmlWarnings[i]));
+                hmlWarningsElement.appendChild(generateHMLResultElement(doc, hmlWarnings[i], catalog));
             }
             doc.getDocumentElement().appendChild(hmlWarningsElement);
         }
@@ -358,7 +457,7 @@ public class ReportGenerator
      * @param sampleID the sample's ID
      * @param validationResults an array of ValidationResult objects to compare against the sampleID
      */
-    private static boolean doesSampleHaveMiringErrors(String sampleID, ValidationResult[] validationResults)
+    static boolean doesSampleHaveMiringErrors(String sampleID, ValidationResult[] validationResults)
     {
         if(validationResults != null && validationResults.length > 0)
         {
@@ -380,11 +479,18 @@ public class ReportGenerator
         }
         return false;
     }
-    private static boolean doesSampleHaveHMLErrors(String sampleID, ValidationResult[] validationResults)
+    /**
+     * Check if a sampleID has any assigned validationResult objects with severity of either HMLFATAL or HML
+     *
+     * @param sampleID the sample's ID
+     * @param validationResults an array of ValidationResult objects to compare against the sampleID
+     * @param hmlstart the index of the first hml schema result in validationResults
+     */
+    static boolean doesSampleHaveHMLErrors(String sampleID, ValidationResult[] validationResults, int hmlstart)
     {
         if(validationResults != null && validationResults.length > 0)
         {
-            for(int i = hmls; i < validationResults.length; i++)
+            for(int i = hmlstart; i < validationResults.length; i++)
             {
                 ValidationResult tempResult = validationResults[i];
                 String currentSampleID = tempResult.getSampleID();
@@ -409,7 +515,7 @@ public class ReportGenerator
      * @param validationResults an array of ValidationResult objects to assign sampleIDs to
      * @param sampleIDs an array of sampleIDs found in the HML
      */
-    private static ValidationResult[] assignSampleIDs(ValidationResult[] validationResults, Sample[] sampleIDs)
+    static ValidationResult[] assignSampleIDs(ValidationResult[] validationResults, Sample[] sampleIDs)
     {
         try
         {
@@ -423,13 +529,14 @@ public class ReportGenerator
                 for(int i = 0; i < validationResults.length; i++)
                 {
                     ValidationResult currentError = validationResults[i];
-                    List<String> xPaths = currentError.getXPaths();
+                    List<XPath> xPaths = currentError.xPaths;
          
                     if(xPaths.size()!=0)
                     {
                         //Only getting the very first xPath here.  What if there are more xPaths?  I dunno?
-                        String xPath = xPaths.get(0);
-                        String sampleID = Utilities.getSampleID(xPath,sampleIDs);
+                        //The XPath knows its sample index already, so it isn't read back out of the string.
+                        XPath xPath = xPaths.get(0);
+                        String sampleID = (xPath == null) ? null : xPath.getSampleID(sampleIDs);
                         if(sampleID != null && sampleID.length() > 0)
                         {
                             currentError.setSampleID(sampleID);
@@ -446,24 +553,17 @@ public class ReportGenerator
     }
 
     /**
-     * Get ValidationResults of a specific severity.
+     * Get ValidationResults of a specific severity.  The outcome has already grouped them, so this doesn't scan every result.
      *
-     * @param validationResults an array of ValidationResult objects to pull from
+     * @param outcome the outcome to pull from
      * @param severity a ValidationResult.Severity.  One of "FATAL" "MIRING" "INFO" "WARNING" "HML" "HMLFATAL 
      * "REJECT" "HMLWARNING".
      */
-    private static ValidationResult[] getResultsBySeverity(ValidationResult[] validationResults, Severity severity)
+    private static ValidationResult[] getResultsBySeverity(ValidationOutcome outcome, Severity severity)
     {
-        if(validationResults != null && validationResults.length > 0)
+        if(outcome.getResults().size() > 0)
         {
-            List<ValidationResult> results = new ArrayList<ValidationResult>();
-            for(int i = 0; i < validationResults.length; i++)
-            {
-                if(validationResults[i].severity.equals(severity))
-                {
-                    results.add(validationResults[i]);
-                }
-            }
+            List<ValidationResult> results = outcome.getResults(severity);
             return results.toArray(new ValidationResult[results.size()]);
         }
         else
@@ -474,28 +574,35 @@ public class ReportGenerator
 
     /**
      * Combine similar results.  They are considered similar if they have the same error text.  The results are combined, with multiple xpaths.
+     * The results are looked up by their rule and error text, instead of being compared with every combined result.
+     * Templated results are looked up by their template and parameters, so their text is not put together.
      *
      * @param validationResults an array of ValidationResult objects to combine
      */
-    private static ValidationResult[] combineSimilarResults(ValidationResult[] validationResults)
+    static ValidationResult[] combineSimilarResults(ValidationResult[] validationResults)
     {
         List<ValidationResult> newResultList = new ArrayList<ValidationResult>();
+        Map<ValidationResult.TextKey,List<ValidationResult>> newResultsByText = new HashMap<ValidationResult.TextKey,List<ValidationResult>>();
         try{
         for(int i = 0; i < validationResults.length; i++)
         {
             ValidationResult oldResult = validationResults[i];
-            //Scan existing list for an error that is a close match.
+            ValidationResult.TextKey key = oldResult.getTextKey();
+            List<ValidationResult> similarResults = newResultsByText.get(key);
+            if(similarResults == null)
+            {
+                similarResults = new ArrayList<ValidationResult>();
+                newResultsByText.put(key, similarResults);
+            }
+            //Scan the results with the same rule and text for an error that is a close match.
             boolean foundMatch = false;
-            for (ValidationResult newResult: newResultList)
+            for (ValidationResult newResult: similarResults)
             {
-                if(oldResult.miringRule.equals(newResult.miringRule)
-                   && oldResult.errorText.equals(newResult.errorText)
-                    && oldResult.sampleID.equals(newResult.sampleID)
-                   )
+                if(oldResult.sampleID.equals(newResult.sampleID))
                 {
                     foundMatch = true;
                     //Add all the xpaths to the existing new error.
-                    for (String xPath:oldResult.xPaths)
+                    for (XPath xPath:oldResult.xPaths)
                     {
                         if(!newResult.xPaths.contains(xPath))
                         {
@@ -509,6 +616,7 @@ public class ReportGenerator
             if(!foundMatch)
             {
                 newResultList.add(oldResult);
+                similarResults.add(oldResult);
             }
         }
         
@@ -532,9 +640,20 @@ public class ReportGenerator
      *
      * @param doc the original document to add to
      * @param validationResult an object containing the result information
+     * @param catalog the rule-catalog of a compact report, or null for the classic report
      */
-    private static Element generateMiringResultElement(Document doc, ValidationResult validationResult)
+    private static Element generateMiringResultElement(Document doc, ValidationResult validationResult, RuleCatalog catalog)
     {
+        String severity = validationResult.getSeverity()==Severity.FATAL?"fatal":
+            validationResult.getSeverity()==Severity.MIRING?"miring":
+            validationResult.getSeverity()==Severity.WARNING?"warning":
+            validationResult.getSeverity()==Severity.INFO?"info":
+                "?";
+        if(catalog != null)
+        {
+            return generateCompactResultElement(doc, validationResult, catalog.getRuleId(doc, "miring-result", validationResult.getMiringRule(), severity, validationResult));
+        }
+
         //Change a validation error into an XML Node to put in our report.
         Element invMiringElement = doc.createElement("miring-result");
         
@@ -545,11 +664,7 @@ public class ReportGenerator
         
         //severity
         Attr fatalAttr = doc.createAttribute("severity");
-        fatalAttr.setValue(validationResult.getSeverity()==Severity.FATAL?"fatal":
-            validationResult.getSeverity()==Severity.MIRING?"miring":
-            validationResult.getSeverity()==Severity.WARNING?"warning":
-            validationResult.getSeverity()==Severity.INFO?"info":
-                "?");
+        fatalAttr.setValue(severity);
         invMiringElement.setAttributeNode(fatalAttr);
         
         //sampleID
@@ -584,19 +699,25 @@ public class ReportGenerator
         
         return invMiringElement;
     }
-    private static Element generateHMLResultElement(Document doc, ValidationResult validationResult)
+    private static Element generateHMLResultElement(Document doc, ValidationResult validationResult, RuleCatalog catalog)
     {
+        String severity = validationResult.getSeverity()==Severity.HMLFATAL?"fatal":
+            validationResult.getSeverity()==Severity.HML?"hml":
+            validationResult.getSeverity()==Severity.HMLWARNING?"warning"://make hml-warning
+            validationResult.getSeverity()==Severity.INFO?"info":
+                "?";
+        if(catalog != null)
+        {
+            return generateCompactResultElement(doc, validationResult, catalog.getRuleId(doc, "hml-result", null, severity, validationResult));
+        }
+
         //Change a validation error into an XML Node to put in our report.
         Element invHMLElement = doc.createElement("hml-result");
         
         
         //severity
         Attr fatalAttr = doc.createAttribute("severity");
-        fatalAttr.setValue(validationResult.getSeverity()==Severity.HMLFATAL?"fatal":
-            validationResult.getSeverity()==Severity.HML?"hml":
-            validationResult.getSeverity()==Severity.HMLWARNING?"warning"://make hml-warning
-            validationResult.getSeverity()==Severity.INFO?"info":
-                "?");
+        fatalAttr.setValue(severity);
         invHMLElement.setAttributeNode(fatalAttr);
         
         //sampleID
@@ -631,4 +752,147 @@ public class ReportGenerator
         
         return invHMLElement;
     }
+
+    /**
+     * Generate a single result element of a compact report, which refers to its rule in the rule-catalog.
+     *
+     * @param doc the original document to add to
+     * @param validationResult an object containing the result information
+     * @param ruleId the id of the result's catalog rule
+     */
+    private static Element generateCompactResultElement(Document doc, ValidationResult validationResult, String ruleId)
+    {
+        Element resultElement = doc.createElement("result");
+        resultElement.setAttribute("rule", ruleId);
+        if(validationResult.getSampleID() != null && validationResult.getSampleID().length() > 0)
+        {
+            resultElement.setAttribute("sample-id", validationResult.getSampleID());
+        }
+        for(XPath xPath : validationResult.xPaths)
+        {
+            Element xPathElement = doc.createElement("xpath");
+            xPathElement.appendChild(doc.createTextNode(String.valueOf(xPath)));
+            resultElement.appendChild(xPathElement);
+        }
+        return resultElement;
+    }
+
+    /**
+     * Expand a compact Miring Results Report into the classic report, with the description and solution on every result.
+     *
+     * @param compactReport a compact report, from generateCompactReport
+     * @return the classic report, or null if the compact report can't be read
+     */
+    public static String expandCompactReport(String compactReport)
+    {
+        try
+        {
+            Document compactDoc = XmlFactories.parseDocument(new InputSource(new StringReader(compactReport)), false);
+            Element compactRoot = compactDoc.getDocumentElement();
+            removeWhitespace(compactRoot);
+
+            Document doc = XmlFactories.newDocument();
+            Element rootElement = doc.createElement("miring-report");
+            rootElement.setAttribute("timestamp", compactRoot.getAttribute("timestamp"));
+            if(compactRoot.hasAttribute("rule-set"))
+            {
+                rootElement.setAttribute("rule-set", compactRoot.getAttribute("rule-set"));
+            }
+            doc.appendChild(rootElement);
+            rootElement.setAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
+            rootElement.setAttribute("xsi:noNamespaceSchemaLocation", SCHEMA_LOCATION);
+
+            Map<String,Element> rules = new HashMap<String,Element>();
+            for(Node child = compactRoot.getFirstChild(); child != null; child = child.getNextSibling())
+            {
+                if(child.getNodeType() != Node.ELEMENT_NODE)
+                {
+                    continue;
+                }
+                if(child.getNodeName().equals("rule-catalog"))
+                {
+                    for(Node rule = child.getFirstChild(); rule != null; rule = rule.getNextSibling())
+                    {
+                        if(rule.getNodeType() == Node.ELEMENT_NODE)
+                        {
+                            rules.put(((Element)rule).getAttribute("id"), (Element)rule);
+                        }
+                    }
+                }
+                else if(child.getFirstChild() != null && child.getFirstChild().getNodeName().equals("result"))
+                {
+                    Element groupElement = doc.createElement(child.getNodeName());
+                    for(Node result = child.getFirstChild(); result != null; result = result.getNextSibling())
+                    {
+                        groupElement.appendChild(expandResultElement(doc, (Element)result, rules));
+                    }
+                    rootElement.appendChild(groupElement);
+                }
+                else
+                {
+                    rootElement.appendChild(doc.importNode(child, true));
+                }
+            }
+            return Utilities.getStringFromDoc(doc);
+        }
+        catch(Exception e)
+        {
+            logger.error("Exception while expanding a compact report", e);
+        }
+        return null;
+    }
+
+    /**
+     * Make the classic miring-result or hml-result element of a compact result.
+     */
+    private static Element expandResultElement(Document doc, Element compactResult, Map<String,Element> rules) throws Exception
+    {
+        Element rule = rules.get(compactResult.getAttribute("rule"));
+        if(rule == null)
+        {
+            throw new Exception("The rule-catalog has no rule " + compactResult.getAttribute("rule"));
+        }
+        Element resultElement = doc.createElement(rule.getAttribute("result"));
+        if(rule.hasAttribute("miring-rule-id"))
+        {
+            resultElement.setAttribute("miring-rule-id", rule.getAttribute("miring-rule-id"));
+        }
+        resultElement.setAttribute("severity", rule.getAttribute("severity"));
+        if(compactResult.hasAttribute("sample-id"))
+        {
+            resultElement.setAttribute("sample-id", compactResult.getAttribute("sample-id"));
+        }
+        //The description and solution, then the result's xpaths.
+        for(Node child = rule.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            resultElement.appendChild(doc.importNode(child, true));
+        }
+        for(Node child = compactResult.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            resultElement.appendChild(doc.importNode(child, true));
+        }
+        return resultElement;
+    }
+
+    /**
+     * Remove the indentation of a parsed report, so it isn't indented twice when it's written again.
+     */
+    private static void removeWhitespace(Node node)
+    {
+        Node child = node.getFirstChild();
+        while(child != null)
+        {
+            Node next = child.getNextSibling();
+            if(child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().isEmpty()
+                && (child.getPreviousSibling() != null || next != null))
+            {
+                node.removeChild(child);
+            }
+            else
+            {
+                removeWhitespace(child);
+            }
+            child = next;
+        }
+    }
 }
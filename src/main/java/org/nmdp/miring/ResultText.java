@@ -0,0 +1,237 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ResultText is the text of one kind of ValidationResult, with numbered parameters, like
+ * "{0}{1} There is a missing {2} node underneath the {3} node."
+ *
+ * A result keeps the shared ResultText and a small array of its parameters, and the text is only put together when it is read,
+ * which is usually when the report is written.  A badly broken document can have tens of thousands of similar results,
+ * and they used to hold a long error and solution string each.
+ *
+ * The parameters are usually repeated too (node names, the parser's message), so they can be shared with a Pool.
+ * Braces that aren't a parameter number are kept as they are.  Apostrophes are not special, unlike MessageFormat.
+*/
+final class ResultText
+{
+    //The text before each parameter, and after the last one.  literals has one more element than parameters.
+    private final String[] literals;
+    private final int[] parameters;
+    private final int length;
+
+    private ResultText(String[] literals, int[] parameters)
+    {
+        this.literals = literals;
+        this.parameters = parameters;
+        int literalLength = 0;
+        for(String literal : literals)
+        {
+            literalLength += literal.length();
+        }
+        this.length = literalLength;
+    }
+
+    /**
+     * @param pattern the text, with parameters like {0}
+     * @return the ResultText for the pattern.  Keep it in a constant, it is meant to be shared.
+     */
+    static ResultText compile(String pattern)
+    {
+        List<String> literals = new ArrayList<String>();
+        List<Integer> parameters = new ArrayList<Integer>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while(i < pattern.length())
+        {
+            int close = (pattern.charAt(i) == '{') ? pattern.indexOf('}', i) : -1;
+            if(close > i + 1 && isNumber(pattern, i + 1, close))
+            {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                parameters.add(Integer.parseInt(pattern.substring(i + 1, close)));
+                i = close + 1;
+            }
+            else
+            {
+                literal.append(pattern.charAt(i++));
+            }
+        }
+        literals.add(literal.toString());
+        int[] parameterArray = new int[parameters.size()];
+        for(int j = 0; j < parameterArray.length; j++)
+        {
+            parameterArray[j] = parameters.get(j);
+        }
+        return new ResultText(literals.toArray(new String[literals.size()]), parameterArray);
+    }
+
+    private static boolean isNumber(String text, int start, int end)
+    {
+        for(int i = start; i < end; i++)
+        {
+            if(!Character.isDigit(text.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param values the parameters
+     * @return the text with the parameters filled in
+     */
+    String format(String[] values)
+    {
+        int valueLength = 0;
+        for(int parameter : parameters)
+        {
+            valueLength += String.valueOf(values[parameter]).length();
+        }
+        StringBuilder text = new StringBuilder(length + valueLength);
+        for(int i = 0; i < parameters.length; i++)
+        {
+            text.append(literals[i]).append(values[parameters[i]]);
+        }
+        return text.append(literals[parameters.length]).toString();
+    }
+
+    /**
+     * Compare the text of two sets of parameters, like format(values).compareTo(format(otherValues)), without building either text.
+     *
+     * @param values the parameters of one result
+     * @param otherValues the parameters of the other result
+     * @return a negative number, zero, or a positive number, as the first text is before, equal to, or after the second
+     */
+    int compare(String[] values, String[] otherValues)
+    {
+        for(int i = 0; i < parameters.length; i++)
+        {
+            String value = String.valueOf(values[parameters[i]]);
+            String otherValue = String.valueOf(otherValues[parameters[i]]);
+            if(value.equals(otherValue))
+            {
+                continue;
+            }
+            int common = Math.min(value.length(), otherValue.length());
+            for(int j = 0; j < common; j++)
+            {
+                if(value.charAt(j) != otherValue.charAt(j))
+                {
+                    return value.charAt(j) - otherValue.charAt(j);
+                }
+            }
+            //One value starts with the other, so the rest of the longer value is compared with the text after the shorter one.
+            Cursor cursor = new Cursor(values, 2 * i + 1, common);
+            Cursor otherCursor = new Cursor(otherValues, 2 * i + 1, common);
+            while(true)
+            {
+                int c = cursor.next();
+                int otherC = otherCursor.next();
+                if(c != otherC)
+                {
+                    return c - otherC;
+                }
+                if(c < 0)
+                {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    //Reads the characters of a formatted text.  Even segments are literals, odd segments are parameters.
+    private final class Cursor
+    {
+        private final String[] values;
+        private int segment;
+        private int offset;
+
+        Cursor(String[] values, int segment, int offset)
+        {
+            this.values = values;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        //@return the next character, or -1 at the end of the text
+        int next()
+        {
+            while(segment <= 2 * parameters.length)
+            {
+                String text = ((segment & 1) == 0) ? literals[segment / 2] : String.valueOf(values[parameters[segment / 2]]);
+                if(offset < text.length())
+                {
+                    return text.charAt(offset++);
+                }
+                segment++;
+                offset = 0;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the text starts with the parameter, like "{0}..."
+     */
+    boolean startsWith(int parameter)
+    {
+        return parameters.length > 0 && literals[0].length() == 0 && parameters[0] == parameter;
+    }
+
+    /**
+     * Pool shares the strings which are likely to be repeated in many results of one validation, like node names or schematron messages.
+     * Each stage of a validation has its own pool, which goes when the stage's results are finished, so nothing a client sends is kept.
+     * A pool is used by one thread.
+    */
+    static final class Pool
+    {
+        private final Map<String,String> strings = new HashMap<String,String>();
+
+        /**
+         * @param text the string, or null
+         * @return an equal string, shared with earlier calls on this pool
+         */
+        String canonical(String text)
+        {
+            if(text == null)
+            {
+                return null;
+            }
+            String canonicalText = strings.get(text);
+            if(canonicalText == null)
+            {
+                strings.put(text, text);
+                canonicalText = text;
+            }
+            return canonicalText;
+        }
+    }
+}
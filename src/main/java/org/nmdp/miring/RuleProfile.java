@@ -0,0 +1,221 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nmdp.miring.RuleSelection.Tier;
+
+/**
+ * A RuleProfile records what each rule cost during a validation.  Pass one to MiringValidationEngine.validate to fill it in.
+ *
+ * Tier 2 has an entry for each schematron rule context, and for each assert and report underneath it.
+ * Tier 1 has an entry for the schema validation as a whole, and for each missing node and missing attribute mapping.
+ * Every rule in the selection has an entry, even if it never fired.
+ *
+ * Profiling compiles its own traced copy of the schematron, and skips the sample result cache, so it is slower than a normal validation.
+ * The times are wall clock times, and include the cost of the tracing.  Compare them to each other, not to an unprofiled validation.
+ * A RuleProfile is thread safe, and can be filled in by several validations to add up their costs.
+*/
+public final class RuleProfile
+{
+    /**
+     * The kinds of profile entry.
+     */
+    public enum Kind
+    {
+        RULE("rule"), ASSERT("assert"), REPORT("report"), SCHEMA("schema"), MISSING_NODE("missing-node"), MISSING_ATTRIBUTE("missing-attribute");
+
+        private final String name;
+
+        Kind(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of this kind, as used in the JSON profile
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * The costs of a single rule.
+     */
+    public static final class Entry
+    {
+        private final Tier tier;
+        private final Kind kind;
+        private final String pattern;
+        private final String context;
+        private final String test;
+        private final String miringRuleId;
+        private long nodes;
+        private long evaluations;
+        private long fired;
+        private long nanos;
+
+        Entry(Tier tier, Kind kind, String pattern, String context, String test, String miringRuleId)
+        {
+            this.tier = tier;
+            this.kind = kind;
+            this.pattern = pattern;
+            this.context = context;
+            this.test = test;
+            this.miringRuleId = miringRuleId;
+        }
+
+        private Entry copy()
+        {
+            Entry copy = new Entry(tier, kind, pattern, context, test, miringRuleId);
+            copy.nodes = nodes;
+            copy.evaluations = evaluations;
+            copy.fired = fired;
+            copy.nanos = nanos;
+            return copy;
+        }
+
+        public Tier getTier()
+        {
+            return tier;
+        }
+
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * @return the schematron pattern id, or null for tier 1
+         */
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        /**
+         * @return the schematron rule context, like "hml:variant", or the tier 1 node name, like "variant@quality-score"
+         */
+        public String getContext()
+        {
+            return context;
+        }
+
+        /**
+         * @return the test of a schematron assert or report, or null for other entries
+         */
+        public String getTest()
+        {
+            return test;
+        }
+
+        /**
+         * @return the MIRING rule id, or null if the rule doesn't have one
+         */
+        public String getMiringRuleId()
+        {
+            return miringRuleId;
+        }
+
+        /**
+         * @return the number of nodes the rule applied to.  For tier 1 mappings, the number of elements with that node name.
+         */
+        public long getNodes()
+        {
+            return nodes;
+        }
+
+        /**
+         * @return the number of times the rule was evaluated
+         */
+        public long getEvaluations()
+        {
+            return evaluations;
+        }
+
+        /**
+         * @return the number of results the rule produced
+         */
+        public long getFired()
+        {
+            return fired;
+        }
+
+        /**
+         * @return the cumulative evaluation time, in nanoseconds.  A rule context's time is the time of its asserts and reports.
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+    }
+
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+    /**
+     * Add to the costs of a rule, creating its entry the first time.
+     */
+    synchronized void add(Tier tier, Kind kind, String pattern, String context, String test, String miringRuleId, long nodes, long evaluations, long fired, long nanos)
+    {
+        String key = tier + "\u0000" + kind + "\u0000" + pattern + "\u0000" + context + "\u0000" + test;
+        Entry entry = entries.get(key);
+        if(entry == null)
+        {
+            entry = new Entry(tier, kind, pattern, context, test, miringRuleId);
+            entries.put(key, entry);
+        }
+        entry.nodes += nodes;
+        entry.evaluations += evaluations;
+        entry.fired += fired;
+        entry.nanos += nanos;
+    }
+
+    /**
+     * @return a copy of the entries, the most expensive first
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        List<Entry> copies = new ArrayList<Entry>();
+        for(Entry entry : entries.values())
+        {
+            copies.add(entry.copy());
+        }
+        Collections.sort(copies, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry first, Entry second)
+            {
+                return Long.compare(second.nanos, first.nanos);
+            }
+        });
+        return copies;
+    }
+}
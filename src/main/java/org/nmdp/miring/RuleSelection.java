@@ -0,0 +1,309 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A RuleSelection says which parts of the MIRING validation to perform: which tiers, and which MIRING elements or rules.
+ *
+ * Elements are the MIRING element numbers, like "4".  Rules are MIRING rule ids, like "5.2.b".
+ * A rule id also selects every rule underneath it, so "4.2.3" selects "4.2.3.b" and "4.2.3.e".
+ * If no elements and no rules are given, every rule in the selected tiers is evaluated.
+ *
+ * A RuleSelection is immutable.  The tier 2 schematron rules are compiled once for each distinct selection.
+*/
+public final class RuleSelection
+{
+    /**
+     * The stages of a MIRING validation.
+    */
+    public enum Tier
+    {
+        HML("hml"), TIER1("tier1"), TIER2("tier2");
+
+        private final String name;
+
+        Tier(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the name of this tier, as used on the report and in requests
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @param name a tier name, like "tier1"
+         * @return the Tier with that name
+         * @throws IllegalArgumentException if there is no tier with that name
+         */
+        public static Tier fromName(String name)
+        {
+            for(Tier tier : values())
+            {
+                if(tier.name.equalsIgnoreCase(name.trim()))
+                {
+                    return tier;
+                }
+            }
+            throw new IllegalArgumentException("Unknown tier: " + name);
+        }
+    }
+
+    /**
+     * Every tier, and every rule.  This is what a validation does when nothing is selected.
+    */
+    public static final RuleSelection ALL = new RuleSelection(EnumSet.allOf(Tier.class), null, null);
+
+    private final Set<Tier> tiers;
+    private final SortedSet<String> elements;
+    private final SortedSet<String> rules;
+
+    /**
+     * Constructor for a RuleSelection.
+     *
+     * @param tiers the tiers to perform.  Null means every tier.
+     * @param elements the MIRING element numbers to evaluate.  Null or empty means no element filter.
+     * @param rules the MIRING rule ids to evaluate.  Null or empty means no rule filter.
+     */
+    public RuleSelection(Collection<Tier> tiers, Collection<String> elements, Collection<String> rules)
+    {
+        EnumSet<Tier> selectedTiers = (tiers == null) ? EnumSet.allOf(Tier.class) : EnumSet.noneOf(Tier.class);
+        if(tiers != null)
+        {
+            selectedTiers.addAll(tiers);
+        }
+        this.tiers = Collections.unmodifiableSet(selectedTiers);
+        this.elements = Collections.unmodifiableSortedSet((elements == null) ? new TreeSet<String>() : new TreeSet<String>(elements));
+        this.rules = Collections.unmodifiableSortedSet((rules == null) ? new TreeSet<String>() : new TreeSet<String>(rules));
+    }
+
+    /**
+     * Build a RuleSelection from comma separated lists, like the request parameters "tier1,tier2", "4,5" and "5.2.b".
+     *
+     * @param tiers a comma separated list of tier names.  Null or empty means every tier.
+     * @param elements a comma separated list of MIRING element numbers.  Null or empty means no element filter.
+     * @param rules a comma separated list of MIRING rule ids.  Null or empty means no rule filter.
+     * @return the RuleSelection
+     * @throws IllegalArgumentException if a tier, element or rule isn't recognized
+     */
+    public static RuleSelection parse(String tiers, String elements, String rules)
+    {
+        List<Tier> selectedTiers = new ArrayList<Tier>();
+        for(String tier : split(tiers))
+        {
+            selectedTiers.add(Tier.fromName(tier));
+        }
+        List<String> selectedElements = split(elements);
+        for(String element : selectedElements)
+        {
+            if(!element.matches("[1-8]"))
+            {
+                throw new IllegalArgumentException("Unknown MIRING element: " + element);
+            }
+        }
+        List<String> selectedRules = split(rules);
+        for(String rule : selectedRules)
+        {
+            if(!rule.matches("[1-8](\\.[0-9a-z]+)*"))
+            {
+                throw new IllegalArgumentException("Unknown MIRING rule id: " + rule);
+            }
+        }
+        return new RuleSelection(selectedTiers.isEmpty() ? null : selectedTiers, selectedElements, selectedRules);
+    }
+
+    private static List<String> split(String list)
+    {
+        List<String> values = new ArrayList<String>();
+        if(list != null)
+        {
+            for(String value : list.split(","))
+            {
+                if(value.trim().length() > 0)
+                {
+                    values.add(value.trim().toLowerCase());
+                }
+            }
+        }
+        return values;
+    }
+
+    public boolean includesTier(Tier tier)
+    {
+        return tiers.contains(tier);
+    }
+
+    /**
+     * @return true if every rule in the selected tiers is evaluated
+     */
+    public boolean includesAllRules()
+    {
+        return elements.isEmpty() && rules.isEmpty();
+    }
+
+    /**
+     * @param element a MIRING element number, like "4"
+     * @return true if any rule in this element is selected
+     */
+    public boolean includesElement(String element)
+    {
+        if(includesAllRules() || elements.contains(element))
+        {
+            return true;
+        }
+        for(String rule : rules)
+        {
+            if(rule.equals(element) || rule.startsWith(element + "."))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ruleId a MIRING rule id, like "4.2.3.b"
+     * @return true if this rule is selected, by its element or by its rule id
+     */
+    public boolean includesRule(String ruleId)
+    {
+        if(includesAllRules())
+        {
+            return true;
+        }
+        int elementEnd = ruleId.indexOf('.');
+        if(elements.contains(elementEnd == -1 ? ruleId : ruleId.substring(0, elementEnd)))
+        {
+            return true;
+        }
+        for(String rule : rules)
+        {
+            if(ruleId.equals(rule) || ruleId.startsWith(rule + "."))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param tier the tier to leave out
+     * @return a copy of this selection without the tier
+     */
+    public RuleSelection withoutTier(Tier tier)
+    {
+        EnumSet<Tier> remainingTiers = EnumSet.noneOf(Tier.class);
+        remainingTiers.addAll(tiers);
+        remainingTiers.remove(tier);
+        return new RuleSelection(remainingTiers, elements, rules);
+    }
+
+    public Set<Tier> getTiers()
+    {
+        return tiers;
+    }
+
+    public SortedSet<String> getElements()
+    {
+        return elements;
+    }
+
+    public SortedSet<String> getRules()
+    {
+        return rules;
+    }
+
+    /**
+     * Get the MIRING rule ids which this selection evaluates, from the rule templates of the selected tiers.
+     *
+     * @return a sorted list of MIRING rule ids
+     */
+    public List<String> getEvaluatedRuleIds()
+    {
+        return getEvaluatedRuleIds(null);
+    }
+
+    /**
+     * Get the MIRING rule ids which this selection evaluates, from the rule templates of a RuleSet.
+     *
+     * @param ruleSet the rule set of the validation, or null for the current rule set
+     * @return a sorted list of MIRING rule ids
+     */
+    List<String> getEvaluatedRuleIds(RuleSet ruleSet)
+    {
+        if(ruleSet == null)
+        {
+            ruleSet = RuleSet.getCurrent();
+        }
+        SortedSet<String> ruleIds = new TreeSet<String>();
+        if(includesTier(Tier.TIER1))
+        {
+            addRuleIds(ruleSet, SchemaValidator.MISSING_NODE_TEMPLATE, ruleIds);
+            addRuleIds(ruleSet, SchemaValidator.MISSING_ATTRIBUTE_TEMPLATE, ruleIds);
+        }
+        if(includesTier(Tier.TIER2))
+        {
+            addRuleIds(ruleSet, SchematronValidator.SCHEMATRON_RULE_TEMPLATE, ruleIds);
+        }
+        return new ArrayList<String>(ruleIds);
+    }
+
+    private void addRuleIds(RuleSet ruleSet, String templateResourceName, Set<String> ruleIds)
+    {
+        for(RuleTemplate rule : RuleTemplate.getRules(ruleSet, templateResourceName, "rule"))
+        {
+            String ruleId = rule.getAttribute("miring-rule-id");
+            if(ruleId != null && includesRule(ruleId))
+            {
+                ruleIds.add(ruleId);
+            }
+        }
+    }
+
+    /**
+     * @return a String which is the same for every equal selection of elements and rules.  Tiers are not part of the key.
+     */
+    String getRuleKey()
+    {
+        return "elements=" + elements + ";rules=" + rules;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "tiers=" + tiers + ";" + getRuleKey();
+    }
+}
@@ -0,0 +1,465 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.Templates;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One version of the files the rules are compiled from: the HML and tier 1 schemas, the schematron patterns and the rule templates.
+ *
+ * The bundled rule set is the resources in the war or jar.  Set the system property miring.rules.dir to a directory to load the
+ * rules from there instead.  The directory has the same layout as org/nmdp/miring in the resources, like schematron/MiringElement5.incl
+ * or ruletemplates/SchematronRuleTemplate.xml, and any file it doesn't have comes from the bundle.
+ *
+ * A rule set never changes once it is loaded.  The directory is copied when it is loaded, and everything compiled from a rule set is
+ * kept in the rule set, so a validation which starts with one rule set finishes with it.  RuleSetWatcher loads a new rule set when
+ * the directory changes, and makes it the current one once it has been compiled and checked.
+ *
+ * A validation holds the rule set it uses, see acquireCurrent.  The copy of a rule set which has been replaced is deleted once
+ * the last validation using it is done, and the current copy is deleted when the JVM exits.  Validations acquire and release
+ * a rule set without locking, so they don't wait for each other, or for a replaced copy being deleted.
+ *
+ * The version of a rule set is a digest of its files, so the same rules always have the same version.  Reports record the version
+ * that produced them.
+*/
+public final class RuleSet
+{
+    private static final Logger logger = LoggerFactory.getLogger(RuleSet.class);
+
+    static final String RULES_DIR_PROPERTY = "miring.rules.dir";
+    //Rule set resources are named like /org/nmdp/miring/schematron/MiringAll.sch.  A rules directory has the same layout below this.
+    static final String RESOURCE_ROOT = "/org/nmdp/miring/";
+    //Documents to check a new rule set with.  They are in the rules directory, but they aren't part of the rule set.
+    static final String FIXTURES_DIRECTORY = "fixtures";
+    private static final int VERSION_LENGTH = 12;
+
+    private static volatile RuleSet bundled;
+    private static volatile RuleSet current;
+    private static boolean deleteOnExit = false;
+
+    //The directory the rule set was loaded from, and the copy it was loaded into.  Both are null for the bundled rule set.
+    private final File sourceDirectory;
+    private final File directory;
+    private final String version;
+    //The validations using this rule set, plus one while it is the current rule set.  The copy is deleted when this goes to zero,
+    //and a rule set at zero can't be acquired again.
+    private final AtomicInteger users = new AtomicInteger();
+
+    //What has been compiled from this rule set.  A new rule set starts empty, so nothing compiled from another version is used.
+    //The parser factories of the schemas are kept with them, so they go when the rule set does.
+    final Map<String,XmlFactories.ValidatingParsers> schemas = new ConcurrentHashMap<String,XmlFactories.ValidatingParsers>();
+    final Map<String,List<RuleTemplate>> ruleTemplates = new ConcurrentHashMap<String,List<RuleTemplate>>();
+    final Map<String,List<Templates>> schematronSchemas = new ConcurrentHashMap<String,List<Templates>>();
+    final Map<String,List<SchematronProfiler>> profiledSchematronSchemas = new ConcurrentHashMap<String,List<SchematronProfiler>>();
+
+    private RuleSet(File sourceDirectory, File directory) throws Exception
+    {
+        this.sourceDirectory = sourceDirectory;
+        this.directory = directory;
+        String digest = Precompiler.digest(this, getSourceNames());
+        if(digest.startsWith(Precompiler.MISSING_DIGEST))
+        {
+            throw new FileNotFoundException("The rule set doesn't have " + digest.substring(Precompiler.MISSING_DIGEST.length()));
+        }
+        this.version = digest.substring(0, VERSION_LENGTH);
+    }
+
+    /**
+     * @return the rule set that new validations use.  Until a rules directory is loaded, this is the directory in miring.rules.dir,
+     * or the bundled rule set if that isn't set.
+     */
+    public static RuleSet getCurrent()
+    {
+        RuleSet ruleSet = current;
+        if(ruleSet == null)
+        {
+            synchronized(RuleSet.class)
+            {
+                if(current == null)
+                {
+                    RuleSet configured = loadConfigured();
+                    configured.users.incrementAndGet();
+                    current = configured;
+                }
+                ruleSet = current;
+            }
+        }
+        return ruleSet;
+    }
+
+    /**
+     * Get the current rule set for a validation, which must release it when it is done.  Its copy isn't deleted until then.
+     *
+     * @return the rule set that new validations use
+     */
+    static RuleSet acquireCurrent()
+    {
+        while(true)
+        {
+            RuleSet ruleSet = getCurrent();
+            int ruleSetUsers = ruleSet.users.get();
+            //A rule set at zero has been replaced, and its copy is being deleted, so read the new current rule set.
+            if(ruleSetUsers > 0 && ruleSet.users.compareAndSet(ruleSetUsers, ruleSetUsers + 1))
+            {
+                if(ruleSet == current)
+                {
+                    return ruleSet;
+                }
+                //It was replaced between reading it and counting this validation.
+                ruleSet.release();
+            }
+        }
+    }
+
+    /**
+     * Release a rule set from acquireCurrent.  If it has been replaced and this was its last validation, its copy is deleted.
+     */
+    void release()
+    {
+        if(users.decrementAndGet() == 0)
+        {
+            delete();
+        }
+    }
+
+    /**
+     * Make a rule set the one that new validations use.  Validations which have already started finish with the rule set they started with,
+     * and the copy of the rule set it replaces is deleted when they are done.
+     */
+    static void setCurrent(RuleSet ruleSet)
+    {
+        RuleSet previous;
+        synchronized(RuleSet.class)
+        {
+            //The new rule set is counted before it is published, so it can always be acquired once it is current.
+            if(ruleSet != null)
+            {
+                ruleSet.users.incrementAndGet();
+            }
+            previous = current;
+            current = ruleSet;
+        }
+        //The previous rule set's copy is deleted here if no validation is using it, outside the lock.
+        if(previous != null)
+        {
+            previous.release();
+        }
+    }
+
+    /**
+     * @return the rule set of the resources in the war or jar
+     */
+    static RuleSet getBundled()
+    {
+        RuleSet ruleSet = bundled;
+        if(ruleSet == null)
+        {
+            synchronized(RuleSet.class)
+            {
+                if(bundled == null)
+                {
+                    try
+                    {
+                        bundled = new RuleSet(null, null);
+                    }
+                    catch(Exception e)
+                    {
+                        //The build checks the bundled resources, so this only happens to a broken war or jar.
+                        throw new IllegalStateException("Unable to load the bundled rules", e);
+                    }
+                }
+                ruleSet = bundled;
+            }
+        }
+        return ruleSet;
+    }
+
+    /**
+     * @return the rules directory set by miring.rules.dir, or null if it isn't set
+     */
+    static File getConfiguredDirectory()
+    {
+        String rulesDirectory = System.getProperty(RULES_DIR_PROPERTY);
+        return (rulesDirectory == null || rulesDirectory.trim().length() == 0) ? null : new File(rulesDirectory.trim());
+    }
+
+    private static RuleSet loadConfigured()
+    {
+        File rulesDirectory = getConfiguredDirectory();
+        if(rulesDirectory != null)
+        {
+            try
+            {
+                RuleSet ruleSet = load(rulesDirectory);
+                logger.info("Loaded rule set " + ruleSet.getVersion() + " from " + rulesDirectory);
+                return ruleSet;
+            }
+            catch(Exception e)
+            {
+                logger.error("Unable to load the rules in " + rulesDirectory + ", using the bundled rules", e);
+            }
+        }
+        return getBundled();
+    }
+
+    /**
+     * Load a rule set from a rules directory.  The directory is copied, so it can change while the rule set is in use.
+     * Nothing is compiled until it is needed, see compile().
+     *
+     * @param sourceDirectory the rules directory
+     * @return the rule set
+     * @throws Exception if the directory can't be copied, or a rule file is missing
+     */
+    static RuleSet load(File sourceDirectory) throws Exception
+    {
+        if(!sourceDirectory.isDirectory())
+        {
+            throw new FileNotFoundException("The rules directory " + sourceDirectory + " doesn't exist");
+        }
+        deleteCurrentOnExit();
+        File directory = Files.createTempDirectory("miring-rules-").toFile();
+        try
+        {
+            copyRules(sourceDirectory, directory, true);
+            return new RuleSet(sourceDirectory, directory);
+        }
+        catch(Exception e)
+        {
+            delete(directory);
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the current rule set's copy when the JVM exits.  Replaced copies are already deleted, so only one hook is needed.
+     */
+    private static synchronized void deleteCurrentOnExit()
+    {
+        if(deleteOnExit)
+        {
+            return;
+        }
+        deleteOnExit = true;
+        Runtime.getRuntime().addShutdownHook(new Thread("miring-rules-cleanup")
+        {
+            @Override
+            public void run()
+            {
+                RuleSet ruleSet = current;
+                if(ruleSet != null)
+                {
+                    ruleSet.delete();
+                }
+            }
+        });
+    }
+
+    private static void copyRules(File from, File to, boolean top) throws IOException
+    {
+        File[] files = from.listFiles();
+        if(files == null)
+        {
+            throw new IOException("Unable to list " + from);
+        }
+        for(File file : files)
+        {
+            File copy = new File(to, file.getName());
+            if(file.isDirectory())
+            {
+                if(top && file.getName().equals(FIXTURES_DIRECTORY))
+                {
+                    continue;
+                }
+                copy.mkdir();
+                copyRules(file, copy, false);
+            }
+            else if(file.isFile())
+            {
+                Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Delete the copy of a rules directory which nothing will use, like one that didn't compile, or one that has been replaced.
+     */
+    void delete()
+    {
+        if(directory != null)
+        {
+            delete(directory);
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if(files != null)
+        {
+            for(File child : files)
+            {
+                delete(child);
+            }
+        }
+        if(!file.delete())
+        {
+            logger.debug("Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Compile everything a validation needs from this rule set: the schemas of every HML version, the rule templates,
+     * and the schematron for the whole checklist.  The schematron for a selection of rules is compiled when it is first used.
+     *
+     * @throws Exception if something can't be compiled, or a rule template has no rules
+     */
+    void compile() throws Exception
+    {
+        for(String hmlVersion : Preloader.HML_VERSIONS)
+        {
+            SchemaValidator.getValidatingParsers(this, MiringValidationEngine.getHmlSchema(hmlVersion));
+            SchemaValidator.getValidatingParsers(this, MiringValidationEngine.getMiringSchema(hmlVersion));
+        }
+        for(String[] template : Precompiler.RULE_TEMPLATES)
+        {
+            if(RuleTemplate.getRules(this, template[0], template[1]).isEmpty())
+            {
+                throw new IllegalStateException("The rule template " + template[0] + " has no " + template[1] + " rules");
+            }
+        }
+        SchematronValidator.getCompiledPatternGroups(this, MiringValidationEngine.SCHEMATRON_SCHEMA, RuleSelection.ALL);
+    }
+
+    /**
+     * Find a resource of this rule set, in the rules directory or else in the bundle.
+     *
+     * @param resourceName the name of the bundled resource, like /org/nmdp/miring/schematron/MiringAll.sch
+     * @return the URL of the resource, or null if there isn't one
+     */
+    URL getResource(String resourceName)
+    {
+        if(directory != null && resourceName.startsWith(RESOURCE_ROOT))
+        {
+            File file = new File(directory, resourceName.substring(RESOURCE_ROOT.length()));
+            if(file.isFile())
+            {
+                try
+                {
+                    return file.toURI().toURL();
+                }
+                catch(MalformedURLException e)
+                {
+                    logger.error("Unable to find " + file, e);
+                }
+            }
+        }
+        return RuleSet.class.getResource(resourceName);
+    }
+
+    /**
+     * @return the names of every resource the rules are compiled from, and any other file in the rules directory, in order
+     * @throws Exception if the schematron schema can't be read for its includes
+     */
+    List<String> getSourceNames() throws Exception
+    {
+        Set<String> sourceNames = new TreeSet<String>();
+        for(String hmlVersion : Preloader.HML_VERSIONS)
+        {
+            sourceNames.add(MiringValidationEngine.getHmlSchema(hmlVersion));
+            sourceNames.add(MiringValidationEngine.getMiringSchema(hmlVersion));
+        }
+        for(String schemaFileName : Precompiler.SCHEMATRON_SCHEMAS)
+        {
+            sourceNames.addAll(Precompiler.getSchematronSources(this, schemaFileName));
+        }
+        for(String[] template : Precompiler.RULE_TEMPLATES)
+        {
+            sourceNames.add(template[0]);
+        }
+        if(directory != null)
+        {
+            addFileNames(directory, RESOURCE_ROOT, sourceNames);
+        }
+        return new ArrayList<String>(sourceNames);
+    }
+
+    private static void addFileNames(File directory, String resourceDirectory, Set<String> resourceNames)
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        for(File file : files)
+        {
+            if(file.isDirectory())
+            {
+                addFileNames(file, resourceDirectory + file.getName() + "/", resourceNames);
+            }
+            else
+            {
+                resourceNames.add(resourceDirectory + file.getName());
+            }
+        }
+    }
+
+    /**
+     * @return the version of this rule set, a digest of its files
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return the directory this rule set was loaded from, or null if it is the bundled rule set
+     */
+    public File getSourceDirectory()
+    {
+        return sourceDirectory;
+    }
+
+    @Override
+    public String toString()
+    {
+        return version + ((sourceDirectory == null) ? " (bundled)" : " (" + sourceDirectory + ")");
+    }
+}
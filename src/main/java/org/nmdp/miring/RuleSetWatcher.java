@@ -0,0 +1,277 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RuleSetWatcher reloads the rules directory (see RuleSet) when its files change, so rules can be changed without a redeploy.
+ * It is started with the service: by MiringContextListener in a servlet container, and by EmbeddedServer.
+ *
+ * The directory is polled every miring.rules.pollSeconds.  Once a change has settled for a poll, the directory is loaded as a new
+ * RuleSet on the watcher's thread: it is compiled, and then checked by validating the fixtures.  If that all passes, it becomes the
+ * current rule set, and the next validation uses it.  Validations which have already started finish with the old rule set, and
+ * nothing waits for the new one to compile.  A rule set which fails is logged and dropped, and the current one stays.
+ *
+ * The fixtures are the documents in the fixtures directory of the rules directory, like fixtures/demogood.xml.  Each one must validate
+ * and produce a report.  fixtures/expected.properties can give the miring-compliant value a fixture's report must have, like
+ * demogood.xml=true.  Preloader's small document is always checked.
+*/
+final class RuleSetWatcher
+{
+    private static final Logger logger = LoggerFactory.getLogger(RuleSetWatcher.class);
+    static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("miring.rules.pollSeconds", 5));
+    //The expected miring-compliant value of each fixture, by file name.
+    static final String EXPECTED_FILE = "expected.properties";
+
+    private static ScheduledExecutorService poller = null;
+
+    private final File directory;
+    //The files in the directory at the last poll, and when it was last loaded.
+    private String lastListing = null;
+    private String loadedListing = null;
+
+    RuleSetWatcher(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Start watching the rules directory, if miring.rules.dir is set and it isn't being watched already.
+     */
+    static synchronized void start()
+    {
+        File directory = RuleSet.getConfiguredDirectory();
+        if(directory == null || poller != null)
+        {
+            return;
+        }
+        final RuleSetWatcher watcher = new RuleSetWatcher(directory);
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "miring-rules");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        poller.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watcher.poll();
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Watching " + directory + " for rule changes every " + POLL_MILLIS + " ms");
+    }
+
+    /**
+     * Stop watching the rules directory, when the service is stopped.
+     */
+    static synchronized void stop()
+    {
+        if(poller != null)
+        {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    /**
+     * Reload the directory if it has changed, and hasn't changed since the last poll.
+     * The first poll after the watcher starts loads it too, in case it changed while the first rule set was compiling.
+     */
+    void poll()
+    {
+        try
+        {
+            String listing = list(directory);
+            boolean settled = listing.equals(lastListing);
+            lastListing = listing;
+            if(!settled || listing.equals(loadedListing))
+            {
+                return;
+            }
+            loadedListing = listing;
+            reload();
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to check " + directory + " for rule changes", e);
+        }
+    }
+
+    /**
+     * Load the directory as a new rule set, compile and check it, and make it the current rule set if it passes.
+     *
+     * @return true if the current rule set was replaced.  False if the rules haven't changed, or the new rule set failed.
+     */
+    boolean reload()
+    {
+        RuleSet current = RuleSet.getCurrent();
+        RuleSet candidate;
+        try
+        {
+            candidate = RuleSet.load(directory);
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to load the rules in " + directory + ", keeping rule set " + current, e);
+            return false;
+        }
+        if(candidate.getVersion().equals(current.getVersion()))
+        {
+            candidate.delete();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            candidate.compile();
+            checkFixtures(candidate, new File(directory, RuleSet.FIXTURES_DIRECTORY));
+        }
+        catch(Exception e)
+        {
+            logger.error("Rule set " + candidate + " failed, keeping rule set " + current, e);
+            candidate.delete();
+            return false;
+        }
+        RuleSet.setCurrent(candidate);
+        logger.info("Rule set " + candidate + " replaced " + current + " after compiling and checking for " + (System.nanoTime() - start) / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * Validate the fixtures with a rule set.
+     *
+     * @param ruleSet the rule set to check
+     * @param fixturesDirectory the directory of fixtures, which doesn't have to exist
+     * @throws Exception if a fixture can't be validated, its report can't be written, or it isn't as compliant as expected
+     */
+    static void checkFixtures(RuleSet ruleSet, File fixturesDirectory) throws Exception
+    {
+        MiringValidationEngine engine = new MiringValidationEngine();
+        checkFixture(engine, ruleSet, "the preload document", HmlInput.fromString(Preloader.WARMUP_XML), null);
+
+        File[] files = fixturesDirectory.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        Properties expected = new Properties();
+        File expectedFile = new File(fixturesDirectory, EXPECTED_FILE);
+        if(expectedFile.isFile())
+        {
+            InputStream in = new FileInputStream(expectedFile);
+            try
+            {
+                expected.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        List<File> fixtures = new ArrayList<File>();
+        for(File file : files)
+        {
+            if(file.isFile() && !file.getName().equals(EXPECTED_FILE))
+            {
+                fixtures.add(file);
+            }
+        }
+        Collections.sort(fixtures);
+        for(File fixture : fixtures)
+        {
+            checkFixture(engine, ruleSet, fixture.getName(), HmlInput.fromPath(fixture.toPath()), expected.getProperty(fixture.getName()));
+        }
+        logger.debug("Rule set " + ruleSet + " passed " + fixtures.size() + " fixtures");
+    }
+
+    private static void checkFixture(MiringValidationEngine engine, RuleSet ruleSet, String name, HmlInput input, String expectedCompliance) throws Exception
+    {
+        ValidationOutcome outcome = engine.validate(input, RuleSelection.ALL, null, null, null, ruleSet);
+        if(outcome.toXml() == null)
+        {
+            throw new IllegalStateException("Unable to write the report of " + name);
+        }
+        String compliance = outcome.getMiringCompliance().getReportValue();
+        if(expectedCompliance != null && !expectedCompliance.trim().equals(compliance))
+        {
+            throw new IllegalStateException(name + " is miring-compliant " + compliance + ", but " + expectedCompliance.trim() + " is expected");
+        }
+    }
+
+    /**
+     * @return the path, size and modification time of every file in a directory, which changes when any file does
+     */
+    static String list(File directory)
+    {
+        List<String> entries = new ArrayList<String>();
+        addEntries(directory, "", entries);
+        Collections.sort(entries);
+        StringBuilder listing = new StringBuilder();
+        for(String entry : entries)
+        {
+            listing.append(entry).append('\n');
+        }
+        return listing.toString();
+    }
+
+    private static void addEntries(File directory, String path, List<String> entries)
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        for(File file : files)
+        {
+            if(file.isDirectory())
+            {
+                addEntries(file, path + file.getName() + "/", entries);
+            }
+            else
+            {
+                entries.add(path + file.getName() + "\t" + file.length() + "\t" + file.lastModified());
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+
+/**
+ * A single rule from one of the rule template files (MissingNodeTemplate.xml, MissingAttributeTemplate.xml, SchematronRuleTemplate.xml).
+ *
+ * The templates used to be kept as DOM Documents, and searched during every validation.  A DOM is not safe to read from
+ * several threads at once, so each template file is read once into a list of these immutable objects, for each RuleSet.
+*/
+public class RuleTemplate
+{
+    static Logger logger = LoggerFactory.getLogger(RuleTemplate.class);
+
+    private final Map<String,String> attributes;
+
+    RuleTemplate(Map<String,String> attributes)
+    {
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Get an attribute from the template's rule element.
+     *
+     * @param attributeName the name of the attribute
+     * @return the value of the attribute, or null if the rule doesn't have it.
+     */
+    public String getAttribute(String attributeName)
+    {
+        return attributes.get(attributeName);
+    }
+
+    /**
+     * @return all of the rule's attributes, unmodifiable.
+     */
+    Map<String,String> getAttributes()
+    {
+        return attributes;
+    }
+
+    /**
+     * Get the rules from a template resource of the current RuleSet.  Each resource is only read once.
+     *
+     * @param templateResourceName the name of the template resource, like "/org/nmdp/miring/ruletemplates/MissingNodeTemplate.xml"
+     * @param ruleElementName the name of the rule elements to read, like "rule" or "hml-rule"
+     * @return an unmodifiable list of the rules, in document order.
+     */
+    public static List<RuleTemplate> getRules(String templateResourceName, String ruleElementName)
+    {
+        return getRules(RuleSet.getCurrent(), templateResourceName, ruleElementName);
+    }
+
+    /**
+     * Get the rules from a template resource of a RuleSet.  Each resource is only read once for each rule set.
+     *
+     * @param ruleSet the rule set to read the template from
+     * @param templateResourceName the name of the template resource
+     * @param ruleElementName the name of the rule elements to read
+     * @return an unmodifiable list of the rules, in document order.
+     */
+    static List<RuleTemplate> getRules(RuleSet ruleSet, String templateResourceName, String ruleElementName)
+    {
+        String key = templateResourceName + "#" + ruleElementName;
+        List<RuleTemplate> rules = ruleSet.ruleTemplates.get(key);
+        if(rules == null)
+        {
+            rules = loadRules(ruleSet, templateResourceName, ruleElementName);
+            ruleSet.ruleTemplates.put(key, rules);
+        }
+        return rules;
+    }
+
+    private static List<RuleTemplate> loadRules(RuleSet ruleSet, String templateResourceName, String ruleElementName)
+    {
+        List<RuleTemplate> precompiledRules = Precompiler.loadRuleTemplate(ruleSet, templateResourceName, ruleElementName);
+        if(precompiledRules != null)
+        {
+            return precompiledRules;
+        }
+        return readRules(ruleSet, templateResourceName, ruleElementName);
+    }
+
+    /**
+     * Read the rules from the template resource itself, rather than the build's precompiled copy.
+     */
+    static List<RuleTemplate> readRules(RuleSet ruleSet, String templateResourceName, String ruleElementName)
+    {
+        List<RuleTemplate> rules = new ArrayList<RuleTemplate>();
+        try
+        {
+            Document template = Utilities.xmlToDocumentObject(Utilities.readXmlResource(ruleSet.getResource(templateResourceName)));
+            NodeList ruleNodes = template.getElementsByTagName(ruleElementName);
+            for(int i = 0; i < ruleNodes.getLength(); i++)
+            {
+                NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                Map<String,String> attributes = new HashMap<String,String>();
+                for(int j = 0; j < ruleAttributes.getLength(); j++)
+                {
+                    attributes.put(ruleAttributes.item(j).getNodeName(), ruleAttributes.item(j).getNodeValue());
+                }
+                rules.add(new RuleTemplate(attributes));
+            }
+        }
+        catch(Exception e)
+        {
+            logger.error("Unable to load rule template " + templateResourceName, e);
+        }
+        return Collections.unmodifiableList(rules);
+    }
+}
@@ -0,0 +1,462 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SampleResultCache remembers the validation results of each sample in recently validated HML,
+ * so that when a document is resubmitted, only the samples which changed are validated again.
+ *
+ * Each sample is fingerprinted along with everything outside the samples (the hml node, hmlid, properties, etc.)
+ * the rule selection and the RuleSet version.  A sample with a known fingerprint is blanked out of the document before validation,
+ * and its remembered results are moved to its new position (sample index and line numbers) and merged in.
+ * The first sample is always validated, because schema errors in the header are reported there.
+ * Documents that the samples can't be separated in (see HmlSampleIndex) are validated normally.
+ *
+ * The cache holds a fixed number of samples, and forgets the least recently used ones.  It is thread safe.
+*/
+public class SampleResultCache
+{
+    static Logger logger = LoggerFactory.getLogger(SampleResultCache.class);
+
+    /**
+     * The stages of a validation that produce results.  Each one is remembered separately, so they can be merged separately.
+    */
+    enum Stage
+    {
+        HML, TIER1, STREAMED_TIER2, TIER2
+    }
+
+    /**
+     * The remembered results of a single sample.
+    */
+    static final class CachedSample
+    {
+        final Sample sample;
+        final int index;
+        final int line;
+        final ValidationResult[][] stageResults;
+
+        CachedSample(Sample sample, int index, int line, ValidationResult[][] stageResults)
+        {
+            this.sample = sample;
+            this.index = index;
+            this.line = line;
+            this.stageResults = stageResults;
+        }
+    }
+
+    private final int maxSamples;
+    private final LinkedHashMap<String,CachedSample> samples;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor for a SampleResultCache.
+     *
+     * @param maxSamples the number of samples to remember
+     */
+    public SampleResultCache(final int maxSamples)
+    {
+        this.maxSamples = maxSamples;
+        this.samples = new LinkedHashMap<String,CachedSample>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,CachedSample> eldest)
+            {
+                return size() > maxSamples;
+            }
+        };
+    }
+
+    public int getMaxSamples()
+    {
+        return maxSamples;
+    }
+
+    /**
+     * @return the number of samples remembered
+     */
+    public synchronized int size()
+    {
+        return samples.size();
+    }
+
+    /**
+     * @return the number of samples whose results were reused
+     */
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of samples that had to be validated
+     */
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Forget every sample.
+     */
+    public synchronized void clear()
+    {
+        samples.clear();
+    }
+
+    /**
+     * Find the remembered samples.  The first sample is never reused.
+     */
+    private synchronized CachedSample[] lookup(String[] fingerprints)
+    {
+        CachedSample[] cachedSamples = new CachedSample[fingerprints.length];
+        for(int i = 0; i < fingerprints.length; i++)
+        {
+            cachedSamples[i] = (i == 0) ? null : samples.get(fingerprints[i]);
+            if(cachedSamples[i] == null)
+            {
+                misses++;
+            }
+            else
+            {
+                hits++;
+            }
+        }
+        return cachedSamples;
+    }
+
+    private synchronized void store(String[] fingerprints, CachedSample[] cachedSamples)
+    {
+        for(int i = 0; i < fingerprints.length; i++)
+        {
+            samples.put(fingerprints[i], cachedSamples[i]);
+        }
+    }
+
+    /**
+     * Plan the validation of a document, reusing the results of any samples that haven't changed.
+     *
+     * @param input the document
+     * @param selection the tiers and rules that will be evaluated
+     * @param ruleSet the rule set that will be used.  Results from another rule set are never reused.
+     * @return the Revalidation, or null if the samples of this document can't be validated separately
+     */
+    Revalidation newRevalidation(HmlInput input, RuleSelection selection, RuleSet ruleSet)
+    {
+        HmlSampleIndex index = HmlSampleIndex.scan(input);
+        if(index == null)
+        {
+            return null;
+        }
+        String[] fingerprints = index.getFingerprints(ruleSet.getVersion() + ";" + selection);
+        CachedSample[] cachedSamples = lookup(fingerprints);
+
+        boolean[] blanked = new boolean[cachedSamples.length];
+        int[] validatedSamples = new int[cachedSamples.length];
+        int validatedCount = 0;
+        for(int i = 0; i < cachedSamples.length; i++)
+        {
+            blanked[i] = (cachedSamples[i] != null);
+            if(!blanked[i])
+            {
+                validatedSamples[validatedCount++] = i + 1;
+            }
+        }
+        logger.debug("Reusing the results of " + (cachedSamples.length - validatedCount) + " of " + cachedSamples.length + " samples.");
+        HmlInput validationInput = (validatedCount == cachedSamples.length) ? input : index.newBlankedInput(blanked);
+        return new Revalidation(this, index, fingerprints, cachedSamples, Arrays.copyOf(validatedSamples, validatedCount), validationInput);
+    }
+
+    /**
+     * The validation of one document, with the remembered results of its unchanged samples.
+     *
+     * Validate getInput(), which leaves out the unchanged samples.  Pass the results of every stage through merge(),
+     * and the samples through mergeSamples(), to get the results for the whole document.  Then store() them for next time.
+    */
+    static final class Revalidation
+    {
+        private final SampleResultCache cache;
+        private final HmlSampleIndex index;
+        private final String[] fingerprints;
+        //The remembered samples, or null for the samples which are validated.
+        private final CachedSample[] cachedSamples;
+        //The document index (starting at 1) of each sample in getInput().
+        private final int[] validatedSamples;
+        private final HmlInput input;
+
+        private Revalidation(SampleResultCache cache, HmlSampleIndex index, String[] fingerprints, CachedSample[] cachedSamples, int[] validatedSamples, HmlInput input)
+        {
+            this.cache = cache;
+            this.index = index;
+            this.fingerprints = fingerprints;
+            this.cachedSamples = cachedSamples;
+            this.validatedSamples = validatedSamples;
+            this.input = input;
+        }
+
+        /**
+         * @return the number of samples in the whole document
+         */
+        int getSampleCount()
+        {
+            return cachedSamples.length;
+        }
+
+        /**
+         * @return the number of samples whose results are remembered, so they are left out of getInput()
+         */
+        int getReusedSampleCount()
+        {
+            return cachedSamples.length - validatedSamples.length;
+        }
+
+        /**
+         * @return the document to validate
+         */
+        HmlInput getInput()
+        {
+            return input;
+        }
+
+        /**
+         * Merge the remembered results of the samples that were left out, and move every result to its sample's index in the whole document.
+         * 
+         * Results stay in document order, like a validation of the whole document would give.
+         * Results that aren't about a single sample (the hml node, the hmlid, etc.) stay after the results of the sample before them.
+         *
+         * @param stage the stage that produced the results
+         * @param results the results of validating getInput()
+         * @return the results for the whole document
+         */
+        ValidationResult[] merge(Stage stage, ValidationResult[] results)
+        {
+            if(results == null || validatedSamples.length == cachedSamples.length)
+            {
+                return results;
+            }
+            List<PositionedResult> positionedResults = new ArrayList<PositionedResult>();
+            int position = 0;
+            for(ValidationResult result : results)
+            {
+                int sampleIndex = getSampleIndex(result);
+                if(sampleIndex > 0 && sampleIndex <= validatedSamples.length)
+                {
+                    position = validatedSamples[sampleIndex - 1];
+                    ValidationResult movedResult = (position == sampleIndex) ? result : copyResult(result, sampleIndex, position, 0);
+                    positionedResults.add(new PositionedResult(movedResult, position, false, positionedResults.size()));
+                }
+                else
+                {
+                    positionedResults.add(new PositionedResult(result, position, true, positionedResults.size()));
+                }
+            }
+            for(int i = 0; i < cachedSamples.length; i++)
+            {
+                CachedSample cachedSample = cachedSamples[i];
+                if(cachedSample != null && cachedSample.stageResults[stage.ordinal()] != null)
+                {
+                    for(ValidationResult result : cachedSample.stageResults[stage.ordinal()])
+                    {
+                        ValidationResult movedResult = copyResult(result, cachedSample.index, i + 1, index.getLine(i) - cachedSample.line);
+                        positionedResults.add(new PositionedResult(movedResult, i + 1, false, positionedResults.size()));
+                    }
+                }
+            }
+            Collections.sort(positionedResults, PositionedResult.DOCUMENT_ORDER);
+
+            ValidationResult[] mergedResults = new ValidationResult[positionedResults.size()];
+            for(int i = 0; i < mergedResults.length; i++)
+            {
+                mergedResults[i] = positionedResults.get(i).result;
+            }
+            return mergedResults;
+        }
+
+        /**
+         * Put the remembered samples back into the list of samples found by validating getInput().
+         *
+         * @param samples the samples found during validation
+         * @return the samples of the whole document
+         */
+        Sample[] mergeSamples(Sample[] samples)
+        {
+            if(samples == null || validatedSamples.length == cachedSamples.length || samples.length != validatedSamples.length)
+            {
+                return samples;
+            }
+            Sample[] mergedSamples = new Sample[cachedSamples.length];
+            int validatedSample = 0;
+            for(int i = 0; i < mergedSamples.length; i++)
+            {
+                mergedSamples[i] = (cachedSamples[i] != null) ? cachedSamples[i].sample : samples[validatedSample++];
+            }
+            return mergedSamples;
+        }
+
+        /**
+         * Remember the results of every sample, if validation finished without any fatal problems.
+         * Call this before the results are put in a ValidationOutcome, which assigns sample ids and combines results.
+         *
+         * @param stageResults the merged results of each Stage, or null for a stage which wasn't selected
+         * @param samples the merged samples
+         */
+        void store(ValidationResult[][] stageResults, Sample[] samples)
+        {
+            if(samples == null || samples.length != fingerprints.length)
+            {
+                return;
+            }
+            for(ValidationResult[] results : stageResults)
+            {
+                if(results != null && (Utilities.hasFatalErrors(results) || Utilities.hasHMLFatalErrors(results) || Utilities.hasRejects(results)))
+                {
+                    logger.debug("Not remembering sample results, validation found fatal problems.");
+                    return;
+                }
+            }
+
+            //Sort the results of each stage into their samples.
+            List<List<List<ValidationResult>>> sampleResults = new ArrayList<List<List<ValidationResult>>>();
+            for(int i = 0; i < fingerprints.length; i++)
+            {
+                List<List<ValidationResult>> stages = new ArrayList<List<ValidationResult>>();
+                for(int stage = 0; stage < stageResults.length; stage++)
+                {
+                    stages.add(new ArrayList<ValidationResult>());
+                }
+                sampleResults.add(stages);
+            }
+            for(int stage = 0; stage < stageResults.length; stage++)
+            {
+                for(ValidationResult result : (stageResults[stage] == null) ? new ValidationResult[0] : stageResults[stage])
+                {
+                    int sampleIndex = getSampleIndex(result);
+                    if(sampleIndex > 0 && sampleIndex <= fingerprints.length)
+                    {
+                        sampleResults.get(sampleIndex - 1).get(stage).add(copyResult(result, sampleIndex, sampleIndex, 0));
+                    }
+                }
+            }
+
+            CachedSample[] newSamples = new CachedSample[fingerprints.length];
+            for(int i = 0; i < fingerprints.length; i++)
+            {
+                ValidationResult[][] cachedResults = new ValidationResult[stageResults.length][];
+                for(int stage = 0; stage < stageResults.length; stage++)
+                {
+                    List<ValidationResult> results = sampleResults.get(i).get(stage);
+                    cachedResults[stage] = (stageResults[stage] == null) ? null : results.toArray(new ValidationResult[results.size()]);
+                }
+                newSamples[i] = new CachedSample(samples[i], i + 1, index.getLine(i), cachedResults);
+            }
+            cache.store(fingerprints, newSamples);
+        }
+    }
+
+    /**
+     * A result, and where it belongs in the document.
+    */
+    private static final class PositionedResult
+    {
+        static final Comparator<PositionedResult> DOCUMENT_ORDER = new Comparator<PositionedResult>()
+        {
+            @Override
+            public int compare(PositionedResult first, PositionedResult second)
+            {
+                if(first.sampleIndex != second.sampleIndex)
+                {
+                    return (first.sampleIndex < second.sampleIndex) ? -1 : 1;
+                }
+                if(first.afterSample != second.afterSample)
+                {
+                    return first.afterSample ? 1 : -1;
+                }
+                return (first.order < second.order) ? -1 : ((first.order == second.order) ? 0 : 1);
+            }
+        };
+
+        final ValidationResult result;
+        final int sampleIndex;
+        final boolean afterSample;
+        final int order;
+
+        PositionedResult(ValidationResult result, int sampleIndex, boolean afterSample, int order)
+        {
+            this.result = result;
+            this.sampleIndex = sampleIndex;
+            this.afterSample = afterSample;
+            this.order = order;
+        }
+    }
+
+    /**
+     * @return the index of the sample (starting at 1) that every xpath of the result is in, or 0 if the result isn't about a single sample.
+     */
+    static int getSampleIndex(ValidationResult result)
+    {
+        int sampleIndex = 0;
+        for(XPath xPath : result.xPaths)
+        {
+            int xPathSampleIndex = (xPath == null) ? 0 : xPath.getSampleIndex();
+            if(xPathSampleIndex == 0 || (sampleIndex != 0 && xPathSampleIndex != sampleIndex))
+            {
+                return 0;
+            }
+            sampleIndex = xPathSampleIndex;
+        }
+        return sampleIndex;
+    }
+
+    /**
+     * Copy a result, moving it from one sample position to another.
+     *
+     * @param result the result to copy
+     * @param fromIndex the sample index in the result's xpaths
+     * @param toIndex the new sample index
+     * @param lineOffset the number of lines the sample moved
+     * @return the copy
+     */
+    static ValidationResult copyResult(ValidationResult result, int fromIndex, int toIndex, int lineOffset)
+    {
+        ValidationResult copy = result.copy(lineOffset);
+        for(XPath xPath : result.xPaths)
+        {
+            copy.xPaths.add((xPath == null) ? null : xPath.moveSample(fromIndex, toIndex));
+        }
+        return copy;
+    }
+}
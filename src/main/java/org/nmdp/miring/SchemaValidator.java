@@ -24,14 +24,14 @@ package org.nmdp.miring;
 import java.io.*;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
 
-import javax.xml.XMLConstants;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import javax.xml.validation.*;
 
+import org.nmdp.miring.RuleSelection.Tier;
 import org.nmdp.miring.ValidationResult.Severity;
 
 import org.slf4j.Logger;
@@ -55,16 +55,97 @@ import org.xml.sax.helpers.DefaultHandler;
 public class SchemaValidator
 {
     static Logger logger = LoggerFactory.getLogger(SchemaValidator.class);
-    public static List<ValidationResult> validationErrors;
-    public static String hmlNamespace = null;
-    public static List<Sample> samples;
-    public static String schema;
     //missingNodeTemplates and missingAttributeTemplates are loaded from xml template files.
     //They define what information (rule id, and additional info, etc.) is included in error messages
     //Included info can be specified on a per-rule basis
-    public static Document missingNodeTemplates = null;
-    public static Document missingAttributeTemplates = null;
-    
+    static final String MISSING_NODE_TEMPLATE = "/org/nmdp/miring/ruletemplates/MissingNodeTemplate.xml";
+    static final String MISSING_ATTRIBUTE_TEMPLATE = "/org/nmdp/miring/ruletemplates/MissingAttributeTemplate.xml";
+    //The text of missing node and attribute results.  The parameters are the location, the rest of the parser's message,
+    //the two node or attribute names, and the solution-text of the rule template.
+    private static final ResultText MISSING_NODE_ERROR = ResultText.compile("{0}{1} There is a missing {2} node underneath the {3} node.");
+    private static final ResultText MISSING_NODE_SOLUTION = ResultText.compile("Please add one {2} node underneath the {3} node. If it exists, please make sure the placement is in accordance with the HML version chosen");
+    private static final ResultText MISSING_NODE_TEMPLATE_SOLUTION = ResultText.compile("Please add one {2} node underneath the {3} node. If it exists, please make sure the placement is in accordance with the HML version chosen {4}");
+    private static final ResultText MISSING_HML_NODE_SOLUTION = ResultText.compile("Please add one {2} node underneath the {3} node. If it exists, please make sure the placement is in accordance with your chosen HML version");
+    private static final ResultText MISSING_HML_NODE_TEMPLATE_SOLUTION = ResultText.compile("Please add one {2} node underneath the {3} node. If it exists, please make sure the placement is in accordance with your chosen HML version {4}");
+    private static final ResultText MISSING_ATTRIBUTE_ERROR = ResultText.compile("{0}{1} The node {2} is missing a {3} attribute.");
+    private static final ResultText MISSING_ATTRIBUTE_SOLUTION = ResultText.compile("Please add a {3} attribute to the {2} node.");
+    private static final ResultText MISSING_ATTRIBUTE_TEMPLATE_SOLUTION = ResultText.compile("Please add a {3} attribute to the {2} node. {4}");
+
+    //The state of a single validation.  Every validation uses a new SchemaValidator, so validations can run on several threads at once.
+    List<ValidationResult> validationErrors = new ArrayList<ValidationResult>();
+    //Tier 2 results which are found while streaming through the tier 1 validation, like consensus sequence checks.
+    //These are kept separate, so they are only reported if tier 2 validation happens.
+    List<ValidationResult> streamedTier2Results = new ArrayList<ValidationResult>();
+    List<Sample> samples = new ArrayList<Sample>();
+    String hmlNamespace = null;
+    String schema;
+    //The rule set the schema and rule templates come from.
+    final RuleSet ruleSet;
+    //Collects the cost of the tier 1 mappings, when this validation is profiled.
+    RuleProfile ruleProfile = null;
+    //Counts the samples passed and the results found, when the progress of this validation is watched.
+    ValidationProgress progress = null;
+    int progressStage;
+    //The limits the parse is counted against, shared with the other stages of the validation.
+    XmlLimits limits = null;
+    //Shares the messages and names which repeat in this validation's results.
+    final ResultText.Pool strings = new ResultText.Pool();
+
+    /**
+     * Constructor for a SchemaValidator object, which performs a single validation with the current RuleSet.
+     *
+     * @param schemaFileName the file name of the schema to compare against
+     */
+    public SchemaValidator(String schemaFileName)
+    {
+        this(schemaFileName, RuleSet.getCurrent());
+    }
+
+    /**
+     * Constructor for a SchemaValidator object, which performs a single validation with a RuleSet.
+     *
+     * @param schemaFileName the file name of the schema to compare against
+     * @param ruleSet the rule set the schema and rule templates come from
+     */
+    public SchemaValidator(String schemaFileName, RuleSet ruleSet)
+    {
+        this.schema = schemaFileName;
+        this.ruleSet = ruleSet;
+    }
+
+    /**
+     * Profile this validation.  The tier 1 schemas add the cost of the schema validation, and of each
+     * missing node and missing attribute mapping, to the profile.
+     *
+     * @param ruleProfile the profile to add to, or null to stop profiling
+     */
+    public void setRuleProfile(RuleProfile ruleProfile)
+    {
+        this.ruleProfile = ruleProfile;
+    }
+
+    /**
+     * Count this validation's samples and results on a ValidationProgress, as the parse goes.
+     *
+     * @param progress the progress to count on, or null to stop counting
+     * @param stage the stage of the progress that this validation is
+     */
+    void setProgress(ValidationProgress progress, int stage)
+    {
+        this.progress = progress;
+        this.progressStage = stage;
+    }
+
+    /**
+     * Count this validation's parse against the limits of a document.  If it goes past one, the parse stops.
+     *
+     * @param limits the limits of the document, or null to not check them
+     */
+    void setLimits(XmlLimits limits)
+    {
+        this.limits = limits;
+    }
+
     /**
      * Validate xml against a schema
      *
@@ -73,93 +154,80 @@ public class SchemaValidator
      * @return an array of ValidationError objects found during validation
      */
     public static ValidationResult[] validate(String xml, String schemaFileName) 
+    {
+        return validate(HmlInput.fromString(xml), schemaFileName);
+    }
+
+    /**
+     * Validate xml against a schema
+     *
+     * @param input the XML to validate
+     * @param schemaFileName the file name of the schema to compare against
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String schemaFileName) 
+    {
+        return new SchemaValidator(schemaFileName).validate(input, (HmlHeader)null);
+    }
+
+    /**
+     * Validate xml against this validator's schema.
+     *
+     * @param input the XML to validate
+     * @param header the header of the XML, if it has already been read.  Null if it hasn't.
+     * @return an array of ValidationError objects found during validation
+     */
+    public ValidationResult[] validate(HmlInput input, HmlHeader header) 
     {
         logger.debug("Starting a schema validation");
-        validationErrors = new ArrayList<ValidationResult>();
-        samples = new ArrayList<Sample>();
-        schema=schemaFileName;
 
         try 
         {
-            MiringValidationContentHandler.clearModel();
-            //Switch the two
-            if(schemaFileName.equals("/org/nmdp/miring/schema/MiringTier1.xsd"))
-            {
-                missingNodeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingNodeTemplate.xml"));
-                missingAttributeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingAttributeTemplate.xml"));
-                hmlNamespace = Utilities.getNamespaceName(xml);
-                URL schemaURL = SchemaValidator.class.getResource(schemaFileName);
-                logger.debug("Schema URL Resource Location = " + schemaURL);
-                File schemaFile = new File(schemaURL.toURI());
-                Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaFile);
-                
-                final SAXParserFactory factory = SAXParserFactory.newInstance();
-                factory.setNamespaceAware(true);
-                factory.setSchema(schema);
-                
-                final SAXParser parser = factory.newSAXParser();
-                final MiringValidationContentHandler handler = new MiringValidationContentHandler();
-                //parser.parse is what does the actual "validation."  It parses the sample xml referring to the schema.
-                //Errors are thrown by the handler, and we'll turn those into validation errors that are human readable.
-                parser.parse(new InputSource(new StringReader(xml)), handler);//??????
-                MiringValidationContentHandler.clearModel();//except here
-            }
-            else if(schemaFileName.equals("/org/nmdp/miring/schema/MiringTier1-1.0.xsd"))
-            {
-                missingNodeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingNodeTemplate.xml"));
-                missingAttributeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingAttributeTemplate.xml"));
-                hmlNamespace = Utilities.getNamespaceName(xml);
-                URL schemaURL = SchemaValidator.class.getResource(schemaFileName);
-                logger.debug("Schema URL Resource Location = " + schemaURL);
-                File schemaFile = new File(schemaURL.toURI());
-                Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaFile);
-                
-                final SAXParserFactory factory = SAXParserFactory.newInstance();
-                factory.setNamespaceAware(true);
-                factory.setSchema(schema);
-                
-                final SAXParser parser = factory.newSAXParser();
-                final MiringValidationContentHandler handler = new MiringValidationContentHandler();
-                //parser.parse is what does the actual "validation."  It parses the sample xml referring to the schema.
-                //Errors are thrown by the handler, and we'll turn those into validation errors that are human readable.
-                parser.parse(new InputSource(new StringReader(xml)), handler);//??????
-                MiringValidationContentHandler.clearModel();//except here
-
-            }
-            else if(schemaFileName.equals("/schema/miringreport.xsd"))
+            if(schema.equals("/schema/miringreport.xsd"))
             {
                 
             }
-
             else
             {
-            	missingNodeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingNodeTemplate.xml"));
-                missingAttributeTemplates = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/MissingAttributeTemplate.xml"));
-            	hmlNamespace = Utilities.getNamespaceName(xml);
-                URL schemaURL = SchemaValidator.class.getResource(schemaFileName);
-                logger.debug("Schema URL Resource Location = " + schemaURL);
-                File schemaFile = new File(schemaURL.toURI());
-                Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(schemaFile);
-
-                final SAXParserFactory factory = SAXParserFactory.newInstance();
-                factory.setNamespaceAware(true);
-                factory.setSchema(schema);
+                hmlNamespace = ((header == null) ? HmlHeader.read(input) : header).getHmlNamespace();
+                XmlFactories.ValidatingParsers validatingParsers = getValidatingParsers(ruleSet, schema);
                 
-                final SAXParser parser = factory.newSAXParser();
-                final HMLValidationContentHandler handler = new HMLValidationContentHandler();
-                //parser.parse is what does the actual "validation."  It parses the sample xml referring to the schema.
+                //The tier 1 schemas get MIRING handling, the hml schemas get HML handling.
+                final DefaultHandler handler = (schema.equals("/org/nmdp/miring/schema/MiringTier1.xsd") || schema.equals("/org/nmdp/miring/schema/MiringTier1-1.0.xsd"))
+                    ? new MiringValidationContentHandler()
+                    : new HMLValidationContentHandler();
+                //The parse is what does the actual "validation."  It parses the sample xml referring to the schema.
                 //Errors are thrown by the handler, and we'll turn those into validation errors that are human readable.
-                parser.parse(new InputSource(new StringReader(xml)), handler);//??????
-                
+                long parseStart = System.nanoTime();
+                XmlFactories.parse(input.newInputSource(), handler, validatingParsers, limits);
+                if(handler instanceof MiringValidationContentHandler)
+                {
+                    if(ruleProfile != null)
+                    {
+                        ((MiringValidationContentHandler)handler).addToProfile(ruleProfile, System.nanoTime() - parseStart);
+                    }
+                    ((MiringValidationContentHandler)handler).clearModel();
+                }
+                else
+                {
+                    ((HMLValidationContentHandler)handler).clearModel();
+                }
             }
-            
-            
-          
         }
         catch (Exception e)
         {
-            logger.error("Exception during schema validation.", e);
-            
+            if(Thread.currentThread().isInterrupted())
+            {
+                logger.debug("Schema validation cancelled.");
+            }
+            else if(limits != null && limits.getRejection() != null)
+            {
+                logger.debug("Schema validation stopped at a limit.");
+            }
+            else
+            {
+                logger.error("Exception during schema validation.", e);
+            }
         }
         
         if(validationErrors.size() > 0)
@@ -177,7 +245,81 @@ public class SchemaValidator
         }
     }
 
-    /** 
+    /**
+     * @return the samples found during validation.
+     */
+    public Sample[] getSamples()
+    {
+        return samples.toArray(new Sample[samples.size()]);
+    }
+
+    /**
+     * @return the tier 2 results found while streaming through a tier 1 validation.
+     */
+    public ValidationResult[] getStreamedTier2Results()
+    {
+        return streamedTier2Results.toArray(new ValidationResult[streamedTier2Results.size()]);
+    }
+
+    /**
+     * Get a compiled schema, compiling it the first time a rule set's schema is used.
+     * Compiling a schema is expensive, and Schema objects are thread safe, so each schema is only compiled once for each rule set.
+     *
+     * @param ruleSet the rule set to compile the schema from
+     * @param schemaFileName the file name of the schema resource
+     * @return the compiled Schema, with its validating parsers
+     * @throws Exception if the schema can't be found or compiled
+     */
+    static XmlFactories.ValidatingParsers getValidatingParsers(RuleSet ruleSet, String schemaFileName) throws Exception
+    {
+        XmlFactories.ValidatingParsers compiledSchema = ruleSet.schemas.get(schemaFileName);
+        if(compiledSchema == null)
+        {
+            URL schemaURL = ruleSet.getResource(schemaFileName);
+            logger.debug("Schema URL Resource Location = " + schemaURL);
+            if(schemaURL == null)
+            {
+                throw new FileNotFoundException("The schema " + schemaFileName + " doesn't exist");
+            }
+            compiledSchema = new XmlFactories.ValidatingParsers(XmlFactories.newSchema(schemaURL));
+            ruleSet.schemas.put(schemaFileName, compiledSchema);
+        }
+        return compiledSchema;
+    }
+
+    private void addValidationError(ValidationResult ve)
+    {
+        int count = validationErrors.size();
+        Utilities.addValidationError(validationErrors, ve);
+        if(progress != null && validationErrors.size() > count)
+        {
+            progress.resultFound(progressStage, ve.getSeverity());
+        }
+    }
+
+    /**
+     * Split a parser error like "[12,34] Invalid content..." into the parameters of a missing node or attribute result.
+     * The message and names repeat for every sample with the same problem, so they are shared.
+     *
+     * @param strings the pool of the validation's strings
+     * @param error the location and message of the parser error
+     * @param firstName the first node or attribute name of the result
+     * @param secondName the second node or attribute name of the result
+     * @return the parameters, with room for the solution-text of a rule template
+     */
+    static String[] resultParameters(ResultText.Pool strings, String error, String firstName, String secondName)
+    {
+        int locationEnd = error.indexOf(']') + 1;
+        return new String[] {
+            error.substring(0, locationEnd),
+            strings.canonical(error.substring(locationEnd)),
+            strings.canonical(firstName),
+            strings.canonical(secondName),
+            null
+        };
+    }
+
+    /**
      * MiringValidationContentHandler is a subclass of SchemaValidator, which is responsible for handling 
      * parse exceptions, and performing Miring Specific logic for determining Miring Results.
      * 
@@ -187,23 +329,35 @@ public class SchemaValidator
      * 
      * Parser exceptions are interpreted and translated into MIRING ValidationResults.
     */
-    private static class MiringValidationContentHandler extends DefaultHandler 
+    private class MiringValidationContentHandler extends DefaultHandler 
     {    
         //xmlRootNode represents the root node of the xml document, which is a
         //skeleton representation of the document, built recursively during the sax parse
         //This SimpleXmlModel is used to generate an xpath on the report
-        public static SimpleXmlModel xmlRootNode;
-        public static SimpleXmlModel xmlCurrentNode;
-        public static int nodeCount = 0;
+        SimpleXmlModel xmlRootNode;
+        SimpleXmlModel xmlCurrentNode;
+        int nodeCount = 0;
+        //Checks consensus-sequence-block sequences as they stream past.
+        ConsensusSequenceChecker sequenceChecker = new ConsensusSequenceChecker(ruleSet);
+        //When profiling, the number of elements with each name, and the lookups, matches and time of each mapping.
+        Map<String,long[]> elementCounts = new HashMap<String,long[]>();
+        Map<String,long[]> mappingCosts = new HashMap<String,long[]>();
 
         @Override
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException 
         {
+            Utilities.checkForCancellation();
             nodeCount++;
             //logger.debug("NODE COUNT: " + nodeCount + " NAME: " + localName + " ATTRIBUTES: " + Utilities.getAttributes(attributes));
             
             try
             {
+                sequenceChecker.startElement(uri, localName, attributes);
+                if(ruleProfile != null)
+                {
+                    addCount(elementCounts, localName);
+                }
+
                 if(localName.equals("sample"))
                 {
                     //Every time we start analyzing a sample, store it's ID, for reporting purposes
@@ -233,11 +387,26 @@ public class SchemaValidator
             }
         }
 
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException
+        {
+            sequenceChecker.characters(ch, start, length);
+        }
+
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException 
         {
             try
             {
+                for(ValidationResult ve : sequenceChecker.endElement(xmlCurrentNode))
+                {
+                    Utilities.addValidationError(streamedTier2Results, ve);
+                }
+                if(progress != null && localName.equals("sample"))
+                {
+                    progress.sampleProcessed(progressStage);
+                }
+
                 if(xmlCurrentNode.parentNode != null)
                 {
                     //If the parent node *IS* null, that means we're closing out the root HML element.  All done.  
@@ -286,7 +455,7 @@ public class SchemaValidator
          *
          * @param exception a SaxException containing schema validation information
          */
-        private static void handleParserException(SAXParseException exception)
+        private void handleParserException(SAXParseException exception)
         {
             ValidationResult ve = null;
             
@@ -380,7 +549,7 @@ public class SchemaValidator
             }
           
 
-            Utilities.addValidationError(validationErrors, ve);
+            addValidationError(ve);
         }
 
         /**
@@ -391,32 +560,31 @@ public class SchemaValidator
          * 
          * @return a ValidationResult object for this missing attribute
          */
-        private static ValidationResult handleMissingAttribute(String error, String missingAttributeName, String nodeName)
+        private ValidationResult handleMissingAttribute(String error, String missingAttributeName, String nodeName)
         {
-            
-            String errorMessage = error+" The node " + nodeName + " is missing a " + missingAttributeName + " attribute.";
-            String solutionText = "Please add a " + missingAttributeName + " attribute to the " + nodeName + " node.";
-            ValidationResult ve = new ValidationResult(errorMessage,Severity.FATAL);
+            long startTime = System.nanoTime();
+            String[] parameters = resultParameters(strings, error, nodeName, missingAttributeName);
+            ValidationResult ve = new ValidationResult(MISSING_ATTRIBUTE_ERROR, parameters, Severity.FATAL);
             
             //Specific logic for various MIRING errors
             try
             {
                 boolean matchFound = false;
-                NodeList ruleNodes = missingAttributeTemplates.getElementsByTagName("rule");
-                for(int i = 0; i < ruleNodes.getLength(); i++)
+                List<RuleTemplate> ruleNodes = RuleTemplate.getRules(ruleSet, MISSING_ATTRIBUTE_TEMPLATE, "rule");
+                for(int i = 0; i < ruleNodes.size(); i++)
                 {
-                    NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                    RuleTemplate rule = ruleNodes.get(i);
 
-                    String templateNodeName = Utilities.getAttribute(ruleAttributes, "node-name");
-                    String templateAttributeName = Utilities.getAttribute(ruleAttributes, "attribute-name");
+                    String templateNodeName = rule.getAttribute("node-name");
+                    String templateAttributeName = rule.getAttribute("attribute-name");
                     
                     if(missingAttributeName.equals(templateAttributeName)
                         && nodeName.equals(templateNodeName))
                     {
                         matchFound = true;
-                        String miringRule = Utilities.getAttribute(ruleAttributes, "miring-rule-id");
-                        String templateSeverity = Utilities.getAttribute(ruleAttributes, "severity");
-                        String templateSolution = Utilities.getAttribute(ruleAttributes, "solution-text");
+                        String miringRule = rule.getAttribute("miring-rule-id");
+                        String templateSeverity = rule.getAttribute("severity");
+                        String templateSolution = rule.getAttribute("solution-text");
                         
                         Severity severity = 
                             templateSeverity.equals("fatal")?Severity.FATAL:
@@ -425,8 +593,9 @@ public class SchemaValidator
                             templateSeverity.equals("info")?Severity.INFO:
                             Severity.FATAL;
                         
-                        ve =  new ValidationResult(errorMessage,severity);
-                        ve.setSolutionText(templateSolution==null ? solutionText : solutionText + " " + templateSolution);
+                        parameters[4] = templateSolution;
+                        ve = new ValidationResult(MISSING_ATTRIBUTE_ERROR, parameters, severity);
+                        ve.setSolutionText(templateSolution==null ? MISSING_ATTRIBUTE_SOLUTION : MISSING_ATTRIBUTE_TEMPLATE_SOLUTION, parameters);
                         ve.setMiringRule(miringRule);
                         
                         break;
@@ -442,7 +611,7 @@ public class SchemaValidator
                 logger.error("Exception during handleMissingAttribute" , e);
             }
             
-            String xPath = xmlCurrentNode.generateXpath();
+            XPath xPath = xmlCurrentNode.getXPath();
             //For some reason missing attribute exceptions are thrown BEFORE the parser hits the startElement method for the parent node.  
             //startElement is hit AFTER the attributes for the node are checked
             //So right now, the parent node isn't contained in the xmlCurrentNode structure.  We need to add the most recent parent to this xpath.
@@ -457,9 +626,9 @@ public class SchemaValidator
                 }
             }
             
-            xPath = xPath + "/" + nodeName + "[" + nodeIndex + "]";
-            ve.addXPath(xPath);
+            ve.addXPath(xPath.child(nodeName, nodeIndex));
             
+            profileMapping(nodeName + "@" + missingAttributeName, ve, startTime);
             return ve;
         }
 
@@ -470,8 +639,9 @@ public class SchemaValidator
          * 
          * @return a ValidationResult object for this missing node
          */
-        private static ValidationResult handleMissingNode(String error,String missingNodeName)
+        private ValidationResult handleMissingNode(String error,String missingNodeName)
         {
+            long startTime = System.nanoTime();
             String parentNodeName = "Unhandled ParentNodeName";
             parentNodeName = xmlCurrentNode.nodeName;
             if(parentNodeName.isEmpty())
@@ -479,28 +649,27 @@ public class SchemaValidator
                 logger.error("No parent node found for missingNodeName=" + missingNodeName);
             }
 
-            String errorMessage = error+" There is a missing " + missingNodeName + " node underneath the " + parentNodeName + " node.";
-            String solutionText = "Please add one " + missingNodeName + " node underneath the " + parentNodeName + " node. If it exists, please make sure the placement is in accordance with the HML version chosen";
-            ValidationResult ve = new ValidationResult(errorMessage,Severity.FATAL);
+            String[] parameters = resultParameters(strings, error, missingNodeName, parentNodeName);
+            ValidationResult ve = new ValidationResult(MISSING_NODE_ERROR, parameters, Severity.FATAL);
             
             //Specific logic for various MIRING errors
             try
             {
                 boolean matchFound = false;
-                NodeList ruleNodes = missingNodeTemplates.getElementsByTagName("rule");
-                for(int i = 0; i < ruleNodes.getLength(); i++)
+                List<RuleTemplate> ruleNodes = RuleTemplate.getRules(ruleSet, MISSING_NODE_TEMPLATE, "rule");
+                for(int i = 0; i < ruleNodes.size(); i++)
                 {
-                    NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                    RuleTemplate rule = ruleNodes.get(i);
                     
-                    String templateNodeName = Utilities.getAttribute(ruleAttributes, "node-name");
+                    String templateNodeName = rule.getAttribute("node-name");
                     if(missingNodeName.equals(templateNodeName))
                     {
                         matchFound = true;
                         
-                        String miringRule = Utilities.getAttribute(ruleAttributes, "miring-rule-id");
-                        String templateSolution = Utilities.getAttribute(ruleAttributes, "solution-text");
+                        String miringRule = rule.getAttribute("miring-rule-id");
+                        String templateSolution = rule.getAttribute("solution-text");
                         
-                        String templateSeverity = Utilities.getAttribute(ruleAttributes, "severity");
+                        String templateSeverity = rule.getAttribute("severity");
                         Severity severity = 
                             templateSeverity.equals("fatal")?Severity.FATAL:
                             templateSeverity.equals("miring")?Severity.MIRING:
@@ -508,8 +677,9 @@ public class SchemaValidator
                             templateSeverity.equals("info")?Severity.INFO:
                             Severity.FATAL;
                         
-                        ve =  new ValidationResult(errorMessage,severity);
-                        ve.setSolutionText(templateSolution==null ? solutionText : solutionText + " " + templateSolution);
+                        parameters[4] = templateSolution;
+                        ve = new ValidationResult(MISSING_NODE_ERROR, parameters, severity);
+                        ve.setSolutionText(templateSolution==null ? MISSING_NODE_SOLUTION : MISSING_NODE_TEMPLATE_SOLUTION, parameters);
                         ve.setMiringRule(miringRule);
                         
                         break;
@@ -525,12 +695,95 @@ public class SchemaValidator
                 logger.error("Exception during handleMissingNode.",e);
             }
             
-            String xPath = xmlCurrentNode.generateXpath();
-            ve.addXPath(xPath);
+            ve.addXPath(xmlCurrentNode.getXPath());
 
+            profileMapping(missingNodeName, ve, startTime);
             return ve;
         }
 
+        /**
+         * Count a lookup of a missing node or missing attribute mapping, if this validation is profiled.
+         *
+         * @param context the missing node name, or nodeName@attributeName for a missing attribute
+         * @param result the result of the lookup
+         * @param startTime the System.nanoTime() when the lookup started
+         */
+        private void profileMapping(String context, ValidationResult result, long startTime)
+        {
+            if(ruleProfile != null)
+            {
+                long[] costs = addCount(mappingCosts, context);
+                costs[1] += (result.getMiringRule() != null) ? 1 : 0;
+                costs[2] += System.nanoTime() - startTime;
+            }
+        }
+
+        private long[] addCount(Map<String,long[]> counts, String key)
+        {
+            long[] values = counts.get(key);
+            if(values == null)
+            {
+                values = new long[3];
+                counts.put(key, values);
+            }
+            values[0]++;
+            return values;
+        }
+
+        /**
+         * Add the cost of the schema validation, and of every mapping in the tier 1 rule templates, to a profile.
+         * The nodes of a mapping are the elements with its node name.
+         *
+         * @param profile the profile to add to
+         * @param parseNanos the time the schema validation took, including the mappings
+         */
+        private void addToProfile(RuleProfile profile, long parseNanos)
+        {
+            profile.add(Tier.TIER1, RuleProfile.Kind.SCHEMA, null, schema, null, null, nodeCount, 1, validationErrors.size(), parseNanos);
+            //Lookups which don't match a template are still reported, without a rule id.
+            Map<String,long[]> unmatchedMappings = new HashMap<String,long[]>(mappingCosts);
+            try
+            {
+                for(RuleTemplate rule : RuleTemplate.getRules(ruleSet, MISSING_NODE_TEMPLATE, "rule"))
+                {
+                    String nodeName = rule.getAttribute("node-name");
+                    unmatchedMappings.remove(nodeName);
+                    addMappingToProfile(profile, RuleProfile.Kind.MISSING_NODE, nodeName, nodeName, rule.getAttribute("miring-rule-id"));
+                }
+                for(RuleTemplate rule : RuleTemplate.getRules(ruleSet, MISSING_ATTRIBUTE_TEMPLATE, "rule"))
+                {
+                    String nodeName = rule.getAttribute("node-name");
+                    String context = nodeName + "@" + rule.getAttribute("attribute-name");
+                    unmatchedMappings.remove(context);
+                    addMappingToProfile(profile, RuleProfile.Kind.MISSING_ATTRIBUTE, nodeName, context, rule.getAttribute("miring-rule-id"));
+                }
+            }
+            catch(Exception e)
+            {
+                logger.error("Exception while profiling the tier 1 mappings", e);
+            }
+            for(String context : unmatchedMappings.keySet())
+            {
+                int attributeIndex = context.indexOf('@');
+                if(attributeIndex == -1)
+                {
+                    addMappingToProfile(profile, RuleProfile.Kind.MISSING_NODE, context, context, null);
+                }
+                else
+                {
+                    addMappingToProfile(profile, RuleProfile.Kind.MISSING_ATTRIBUTE, context.substring(0, attributeIndex), context, null);
+                }
+            }
+        }
+
+        private void addMappingToProfile(RuleProfile profile, RuleProfile.Kind kind, String nodeName, String context, String miringRuleId)
+        {
+            long[] elements = elementCounts.get(nodeName);
+            long[] costs = mappingCosts.get(context);
+            profile.add(Tier.TIER1, kind, null, context, null, miringRuleId, (elements == null) ? 0 : elements[0],
+                (costs == null) ? 0 : costs[0], (costs == null) ? 0 : costs[1], (costs == null) ? 0 : costs[2]);
+        }
+
         /**
          * Clean up the SimpleXmlModels 
          * 
@@ -538,7 +791,7 @@ public class SchemaValidator
          * garbage collector might not flag them for destruction when the SchemaValidator object is de-referenced.
          * Just want to make sure we don't have extra objects hanging around.
          */
-        private static void clearModel()
+        private void clearModel()
         {
             if(xmlRootNode != null)
             {
@@ -553,7 +806,7 @@ public class SchemaValidator
             }
             nodeCount = 0;
         }
-        private static int cvcOrNumberCheck(String exceptionName)
+        private int cvcOrNumberCheck(String exceptionName)
         {
             logger.debug("ExceptionName= "+exceptionName.substring(0,3));
             if(exceptionName.substring(0,3).equals("cvc")){
@@ -567,17 +820,18 @@ public class SchemaValidator
 
     }
     //Is there any methods I need to make it HML specfic or is this okay with pretty much just a vairable name change and deletions here and there
-    private static class HMLValidationContentHandler extends DefaultHandler
+    private class HMLValidationContentHandler extends DefaultHandler
       {
       	//xmlRootNode represents the root node of the xml document, which is a
         //skeleton representation of the document, built recursively during the sax parse
         //This SimpleXmlModel is used to generate an xpath on the report
-        public static SimpleXmlModel xmlRootNode;
-        public static SimpleXmlModel xmlCurrentNode;
-        public static int nodeCount = 0;
+        SimpleXmlModel xmlRootNode;
+        SimpleXmlModel xmlCurrentNode;
+        int nodeCount = 0;
         @Override
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException 
         {
+            Utilities.checkForCancellation();
             nodeCount++;
             //logger.debug("NODE COUNT: " + nodeCount + " NAME: " + localName + " ATTRIBUTES: " + Utilities.getAttributes(attributes));
             
@@ -617,6 +871,10 @@ public class SchemaValidator
         {
             try
             {
+                if(progress != null && localName.equals("sample"))
+                {
+                    progress.sampleProcessed(progressStage);
+                }
                 if(xmlCurrentNode.parentNode != null)
                 {
                     //If the parent node *IS* null, that means we're closing out the root HML element.  All done.  
@@ -665,7 +923,7 @@ public class SchemaValidator
          *
          * @param exception a SaxException containing schema validation information
          */
-        private static void handleParserException(SAXParseException exception, Severity severity)
+        private void handleParserException(SAXParseException exception, Severity severity)
         {
  
             ValidationResult ve = new ValidationResult(exception.getMessage(),severity);
@@ -750,7 +1008,7 @@ public class SchemaValidator
                 ve.setMiringRule("reject");
             }
            
-            Utilities.addValidationError(validationErrors, ve);
+            addValidationError(ve);
             
             
         }
@@ -763,30 +1021,29 @@ public class SchemaValidator
          * 
          * @return a ValidationResult object for this missing attribute
          */
-        private static ValidationResult handleMissingAttribute(String error,String missingAttributeName, String nodeName)
+        private ValidationResult handleMissingAttribute(String error,String missingAttributeName, String nodeName)
         {
-            String errorMessage = error+" The node " + nodeName + " is missing a " + missingAttributeName + " attribute.";
-            String solutionText = "Please add a " + missingAttributeName + " attribute to the " + nodeName + " node.";
-            ValidationResult ve = new ValidationResult(errorMessage,Severity.HMLFATAL);
+            String[] parameters = resultParameters(strings, error, nodeName, missingAttributeName);
+            ValidationResult ve = new ValidationResult(MISSING_ATTRIBUTE_ERROR, parameters, Severity.HMLFATAL);
             
             //Specific logic for various HML errors
             try
             {
                 boolean matchFound = false;
-                NodeList ruleNodes = missingAttributeTemplates.getElementsByTagName("hml-rule");
-                for(int i = 0; i < ruleNodes.getLength(); i++)
+                List<RuleTemplate> ruleNodes = RuleTemplate.getRules(ruleSet, MISSING_ATTRIBUTE_TEMPLATE, "hml-rule");
+                for(int i = 0; i < ruleNodes.size(); i++)
                 {
-                    NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                    RuleTemplate rule = ruleNodes.get(i);
 
-                    String templateNodeName = Utilities.getAttribute(ruleAttributes, "node-name");
-                    String templateAttributeName = Utilities.getAttribute(ruleAttributes, "attribute");
+                    String templateNodeName = rule.getAttribute("node-name");
+                    String templateAttributeName = rule.getAttribute("attribute");
                     
                     if(missingAttributeName.equals(templateAttributeName)
                         && nodeName.equals(templateNodeName))
                     {
                         matchFound = true;
-                        String templateSeverity = Utilities.getAttribute(ruleAttributes, "severity");
-                        String templateSolution = Utilities.getAttribute(ruleAttributes, "solution-text");
+                        String templateSeverity = rule.getAttribute("severity");
+                        String templateSolution = rule.getAttribute("solution-text");
                         
                         Severity severity = 
                             templateSeverity.equals("fatal")?Severity.HMLFATAL:
@@ -795,8 +1052,9 @@ public class SchemaValidator
                             templateSeverity.equals("info")?Severity.INFO:
                             Severity.FATAL;
                         
-                        ve =  new ValidationResult(errorMessage,severity);
-                        ve.setSolutionText(templateSolution==null ? solutionText : solutionText + " " + templateSolution);
+                        parameters[4] = templateSolution;
+                        ve = new ValidationResult(MISSING_ATTRIBUTE_ERROR, parameters, severity);
+                        ve.setSolutionText(templateSolution==null ? MISSING_ATTRIBUTE_SOLUTION : MISSING_ATTRIBUTE_TEMPLATE_SOLUTION, parameters);
                         ve.setMiringRule("HML");
                         
                         break;
@@ -812,7 +1070,7 @@ public class SchemaValidator
                 logger.error("Exception during handleMissingAttribute" , e);
             }
             
-            String xPath = xmlCurrentNode.generateXpath();
+            XPath xPath = xmlCurrentNode.getXPath();
             //For some reason missing attribute exceptions are thrown BEFORE the parser hits the startElement method for the parent node.  
             //startElement is hit AFTER the attributes for the node are checked
             //So right now, the parent node isn't contained in the xmlCurrentNode structure.  We need to add the most recent parent to this xpath.
@@ -827,8 +1085,7 @@ public class SchemaValidator
                 }
             }
             
-            xPath = xPath + "/" + nodeName + "[" + nodeIndex + "]";
-            ve.addXPath(xPath);
+            ve.addXPath(xPath.child(nodeName, nodeIndex));
             
             return ve;
         }
@@ -840,7 +1097,7 @@ public class SchemaValidator
          * 
          * @return a ValidationResult object for this missing node
          */
-        private static ValidationResult handleMissingNode(String error,String missingNodeName)
+        private ValidationResult handleMissingNode(String error,String missingNodeName)
         {
 
             String parentNodeName = "Unhandled ParentNodeName";
@@ -851,28 +1108,27 @@ public class SchemaValidator
                 logger.error("No parent node found for missingNodeName=" + missingNodeName);
             }
             
-            String errorMessage = error+" There is a missing " + missingNodeName + " node underneath the " + parentNodeName + " node.";
-            String solutionText = "Please add one " + missingNodeName + " node underneath the " + parentNodeName + " node. If it exists, please make sure the placement is in accordance with your chosen HML version";
-            ValidationResult ve = new ValidationResult(errorMessage,Severity.HMLFATAL);
+            String[] parameters = resultParameters(strings, error, missingNodeName, parentNodeName);
+            ValidationResult ve = new ValidationResult(MISSING_NODE_ERROR, parameters, Severity.HMLFATAL);
             boolean matchFound = false;
             //Specific logic for various HML errors
             try
             {
                 
-                NodeList ruleNodes = missingNodeTemplates.getElementsByTagName("hml-rule");
+                List<RuleTemplate> ruleNodes = RuleTemplate.getRules(ruleSet, MISSING_NODE_TEMPLATE, "hml-rule");
                 
-                for(int i = 0; i < ruleNodes.getLength(); i++)
+                for(int i = 0; i < ruleNodes.size(); i++)
                 {
-                    NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                    RuleTemplate rule = ruleNodes.get(i);
                     
-                    String templateNodeName = Utilities.getAttribute(ruleAttributes, "node-name");
+                    String templateNodeName = rule.getAttribute("node-name");
                     if(missingNodeName.equals(templateNodeName))
                     {
                         matchFound = true;
 
-                        String templateSolution = Utilities.getAttribute(ruleAttributes, "solution-text");
+                        String templateSolution = rule.getAttribute("solution-text");
                         
-                        String templateSeverity = Utilities.getAttribute(ruleAttributes, "severity");
+                        String templateSeverity = rule.getAttribute("severity");
     
                         Severity severity = 
                             templateSeverity.equals("fatal")?Severity.HMLFATAL:
@@ -881,8 +1137,9 @@ public class SchemaValidator
                             templateSeverity.equals("info")?Severity.INFO:
                             Severity.HMLFATAL;
                         
-                        ve =  new ValidationResult(errorMessage,severity);
-                        ve.setSolutionText(templateSolution==null ? solutionText : solutionText + " " + templateSolution);
+                        parameters[4] = templateSolution;
+                        ve = new ValidationResult(MISSING_NODE_ERROR, parameters, severity);
+                        ve.setSolutionText(templateSolution==null ? MISSING_HML_NODE_SOLUTION : MISSING_HML_NODE_TEMPLATE_SOLUTION, parameters);
                         ve.setMiringRule("HML");
                         
                         break;
@@ -901,8 +1158,7 @@ public class SchemaValidator
             {
                 ve.setMiringRule("Node");
             }
-            String xPath = xmlCurrentNode.generateXpath();
-            ve.addXPath(xPath);
+            ve.addXPath(xmlCurrentNode.getXPath());
 
             return ve;
         }
@@ -914,7 +1170,7 @@ public class SchemaValidator
          * garbage collector might not flag them for destruction when the SchemaValidator object is de-referenced.
          * Just want to make sure we don't have extra objects hanging around.
          */
-        private static void clearModel()
+        private void clearModel()
         {
             if(xmlRootNode != null)
             {
@@ -932,7 +1188,7 @@ public class SchemaValidator
           /*
            Checks for the cvc error messages. Takes it out if it starts with "cvc"
            */
-          private static int cvcOrNumberCheck(String exceptionName)
+          private int cvcOrNumberCheck(String exceptionName)
           {
               logger.debug("ExceptionName= "+exceptionName.substring(0,3));
               if(exceptionName.substring(0,3).equals("cvc")){
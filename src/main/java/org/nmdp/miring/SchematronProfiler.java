@@ -0,0 +1,429 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.jaxp.TemplatesImpl;
+import net.sf.saxon.jaxp.TransformerImpl;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.trace.LocationKind;
+
+import org.nmdp.miring.RuleSelection.Tier;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A SchematronProfiler is one compiled schematron pattern group, compiled with tracing so its rules can be profiled.
+ *
+ * The XSLT which the ISO skeleton generates from the schematron has an xsl:template for each rule, which starts with an
+ * svrl:fired-rule element, and an xsl:choose (for an assert) or xsl:if (for a report) wrapping each svrl:failed-assert and
+ * svrl:successful-report.  The stylesheet is written out one element to a line, so each of those instructions can be found
+ * by the line number Saxon passes to the TraceListener.
+*/
+final class SchematronProfiler
+{
+    private static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+    private static final String SVRL_NAMESPACE = "http://purl.oclc.org/dsdl/svrl";
+
+    //A schematron rule, which fires once for each node it matches.
+    private static final class ProfiledRule
+    {
+        final String pattern;
+        final String context;
+        final int index;
+
+        ProfiledRule(String pattern, String context, int index)
+        {
+            this.pattern = pattern;
+            this.context = context;
+            this.index = index;
+        }
+    }
+
+    //A schematron assert or report.
+    private static final class ProfiledTest
+    {
+        final ProfiledRule rule;
+        final RuleProfile.Kind kind;
+        final String test;
+        final int index;
+        String miringRuleId;
+
+        ProfiledTest(ProfiledRule rule, RuleProfile.Kind kind, String test, int index)
+        {
+            this.rule = rule;
+            this.kind = kind;
+            this.test = test;
+            this.index = index;
+        }
+    }
+
+    private final Templates templates;
+    //The rule set the stylesheet was generated from, for the MIRING rule ids of its tests.
+    private final RuleSet ruleSet;
+    private final List<ProfiledRule> rules = new ArrayList<ProfiledRule>();
+    private final List<ProfiledTest> tests = new ArrayList<ProfiledTest>();
+    //Indexed by line number in the generated stylesheet.
+    private ProfiledRule[] firedRuleLines = new ProfiledRule[0];
+    private ProfiledTest[] testLines = new ProfiledTest[0];
+    private ProfiledTest[] firedTestLines = new ProfiledTest[0];
+
+    private SchematronProfiler(RuleSet ruleSet, Node stylesheet, String systemId, TransformerFactoryImpl transformerFactory) throws Exception
+    {
+        this.ruleSet = ruleSet;
+        StringWriter stylesheetText = new StringWriter();
+        Transformer serializer = transformerFactory.newTransformer();
+        serializer.setOutputProperty(OutputKeys.INDENT, "yes");
+        serializer.transform(new DOMSource(stylesheet, systemId), new StreamResult(stylesheetText));
+
+        XmlFactories.parse(new InputSource(new StringReader(stylesheetText.toString())), new StylesheetHandler());
+
+        XsltCompiler compiler = new Processor(transformerFactory.getConfiguration()).newXsltCompiler();
+        compiler.setCompileWithTracing(true);
+        templates = new TemplatesImpl(compiler.compile(new StreamSource(new StringReader(stylesheetText.toString()), systemId)));
+    }
+
+    /**
+     * Compile a generated schematron stylesheet with tracing.
+     *
+     * @param ruleSet the rule set the stylesheet was generated from
+     * @param stylesheet the XSLT generated from a schematron schema
+     * @param systemId the URL of the schematron schema
+     * @param transformerFactory the factory the documents are built with
+     * @return the SchematronProfiler
+     * @throws Exception if the stylesheet can't be compiled
+     */
+    static SchematronProfiler compile(RuleSet ruleSet, Node stylesheet, String systemId, TransformerFactoryImpl transformerFactory) throws Exception
+    {
+        return new SchematronProfiler(ruleSet, stylesheet, systemId, transformerFactory);
+    }
+
+    /**
+     * Evaluate this pattern group against a document, and add the costs of its rules to a profile.
+     *
+     * @param document the document tree, built by the same transformer factory
+     * @param profile the profile to add to
+     * @return the SVRL report
+     * @throws Exception if the transformation fails
+     */
+    String validate(NodeInfo document, RuleProfile profile) throws Exception
+    {
+        Transformer transformer = templates.newTransformer();
+        ProfileListener listener = new ProfileListener(profile);
+        ((TransformerImpl)transformer).getUnderlyingController().addTraceListener(listener);
+        ByteArrayOutputStream svrlReport = new ByteArrayOutputStream();
+        try
+        {
+            transformer.transform(document, new StreamResult(svrlReport));
+        }
+        finally
+        {
+            listener.close();
+        }
+        return svrlReport.toString("UTF-8");
+    }
+
+    /**
+     * Finds the rules, asserts and reports in the generated stylesheet, and the lines they are on.
+     */
+    private final class StylesheetHandler extends DefaultHandler
+    {
+        private Locator locator;
+        private String templateMode;
+        private ProfiledRule templateRule;
+        private final Map<String,String> modePatterns = new HashMap<String,String>();
+        private boolean inActivePattern = false;
+        private StringBuilder patternId;
+        private String activePatternId;
+        //The xsl:choose and xsl:if elements which are open, by their lines.
+        private final Deque<Integer> openTestLines = new ArrayDeque<Integer>();
+        private ProfiledTest currentTest;
+        private StringBuilder testText;
+
+        @Override
+        public void setDocumentLocator(Locator locator)
+        {
+            this.locator = locator;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+        {
+            int line = locator.getLineNumber();
+            if(XSL_NAMESPACE.equals(uri))
+            {
+                if(localName.equals("template"))
+                {
+                    templateMode = attributes.getValue("mode");
+                    templateRule = null;
+                }
+                else if(localName.equals("attribute") && inActivePattern && "id".equals(attributes.getValue("name")))
+                {
+                    patternId = new StringBuilder();
+                }
+                else if(localName.equals("apply-templates") && !inActivePattern && templateMode == null && attributes.getValue("mode") != null)
+                {
+                    //The main template applies each pattern's mode after its svrl:active-pattern.
+                    modePatterns.put(attributes.getValue("mode"), activePatternId);
+                }
+                else if(localName.equals("choose") || localName.equals("if"))
+                {
+                    openTestLines.push(line);
+                }
+            }
+            else if(SVRL_NAMESPACE.equals(uri))
+            {
+                if(localName.equals("active-pattern"))
+                {
+                    inActivePattern = true;
+                    activePatternId = null;
+                }
+                else if(localName.equals("fired-rule"))
+                {
+                    templateRule = new ProfiledRule(modePatterns.get(templateMode), attributes.getValue("context"), rules.size());
+                    rules.add(templateRule);
+                    firedRuleLines = put(firedRuleLines, line, templateRule);
+                }
+                else if((localName.equals("failed-assert") || localName.equals("successful-report")) && templateRule != null && !openTestLines.isEmpty())
+                {
+                    RuleProfile.Kind kind = localName.equals("failed-assert") ? RuleProfile.Kind.ASSERT : RuleProfile.Kind.REPORT;
+                    currentTest = new ProfiledTest(templateRule, kind, attributes.getValue("test"), tests.size());
+                    tests.add(currentTest);
+                    testLines = put(testLines, openTestLines.peek(), currentTest);
+                    firedTestLines = put(firedTestLines, line, currentTest);
+                }
+                else if(localName.equals("text") && currentTest != null)
+                {
+                    testText = new StringBuilder();
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length)
+        {
+            if(patternId != null)
+            {
+                patternId.append(ch, start, length);
+            }
+            if(testText != null)
+            {
+                testText.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+        {
+            if(XSL_NAMESPACE.equals(uri))
+            {
+                if(localName.equals("template"))
+                {
+                    templateMode = null;
+                    templateRule = null;
+                }
+                else if(localName.equals("attribute") && patternId != null)
+                {
+                    activePatternId = patternId.toString().trim();
+                    patternId = null;
+                }
+                else if(localName.equals("choose") || localName.equals("if"))
+                {
+                    openTestLines.pop();
+                }
+            }
+            else if(SVRL_NAMESPACE.equals(uri))
+            {
+                if(localName.equals("active-pattern"))
+                {
+                    inActivePattern = false;
+                }
+                else if(localName.equals("text") && testText != null)
+                {
+                    currentTest.miringRuleId = SchematronValidator.getMiringRuleId(ruleSet, testText.toString());
+                    testText = null;
+                }
+                else if(localName.equals("failed-assert") || localName.equals("successful-report"))
+                {
+                    currentTest = null;
+                }
+            }
+        }
+    }
+
+    private static <T> T[] put(T[] lines, int line, T value)
+    {
+        T[] result = (line < lines.length) ? lines : Arrays.copyOf(lines, Math.max(line + 1, lines.length * 2));
+        result[line] = value;
+        return result;
+    }
+
+    private static <T> T get(T[] lines, int line)
+    {
+        return (line >= 0 && line < lines.length) ? lines[line] : null;
+    }
+
+    /**
+     * Counts the rules and tests of one transformation as Saxon traces them, and adds them to the profile when it closes.
+     * Saxon closes it at the end of the transformation, and validate closes it if the transformation fails.
+     * A transformation runs on a single thread, so this isn't synchronized.
+     */
+    private final class ProfileListener implements TraceListener
+    {
+        private final RuleProfile profile;
+        private final long[] ruleNodes = new long[rules.size()];
+        private final long[] testEvaluations = new long[tests.size()];
+        private final long[] testFired = new long[tests.size()];
+        private final long[] testNanos = new long[tests.size()];
+        //The start times of the tests being evaluated.
+        private long[] startTimes = new long[8];
+        private int depth = 0;
+        private boolean closed = false;
+
+        ProfileListener(RuleProfile profile)
+        {
+            this.profile = profile;
+        }
+
+        public void setOutputDestination(net.sf.saxon.lib.Logger stream)
+        {
+        }
+
+        public void open(Controller controller)
+        {
+        }
+
+        public void enter(InstructionInfo instruction, XPathContext context)
+        {
+            int constructType = instruction.getConstructType();
+            if(constructType == StandardNames.XSL_CHOOSE || constructType == StandardNames.XSL_IF)
+            {
+                ProfiledTest test = get(testLines, instruction.getLineNumber());
+                if(test != null)
+                {
+                    testEvaluations[test.index]++;
+                    if(depth == startTimes.length)
+                    {
+                        startTimes = Arrays.copyOf(startTimes, depth * 2);
+                    }
+                    startTimes[depth++] = System.nanoTime();
+                }
+            }
+            else if(constructType == LocationKind.LITERAL_RESULT_ELEMENT)
+            {
+                ProfiledRule rule = get(firedRuleLines, instruction.getLineNumber());
+                if(rule != null)
+                {
+                    ruleNodes[rule.index]++;
+                }
+                ProfiledTest test = get(firedTestLines, instruction.getLineNumber());
+                if(test != null)
+                {
+                    testFired[test.index]++;
+                }
+            }
+        }
+
+        public void leave(InstructionInfo instruction)
+        {
+            int constructType = instruction.getConstructType();
+            if(constructType == StandardNames.XSL_CHOOSE || constructType == StandardNames.XSL_IF)
+            {
+                ProfiledTest test = get(testLines, instruction.getLineNumber());
+                if(test != null && depth > 0)
+                {
+                    testNanos[test.index] += System.nanoTime() - startTimes[--depth];
+                }
+            }
+        }
+
+        public void startCurrentItem(Item item)
+        {
+        }
+
+        public void endCurrentItem(Item item)
+        {
+        }
+
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            long[] ruleEvaluations = new long[rules.size()];
+            long[] ruleFired = new long[rules.size()];
+            long[] ruleNanos = new long[rules.size()];
+            for(ProfiledTest test : tests)
+            {
+                int ruleIndex = test.rule.index;
+                ruleEvaluations[ruleIndex] += testEvaluations[test.index];
+                ruleFired[ruleIndex] += testFired[test.index];
+                ruleNanos[ruleIndex] += testNanos[test.index];
+            }
+            for(int i = 0; i < rules.size(); i++)
+            {
+                ProfiledRule rule = rules.get(i);
+                profile.add(Tier.TIER2, RuleProfile.Kind.RULE, rule.pattern, rule.context, null, null, ruleNodes[i], ruleEvaluations[i], ruleFired[i], ruleNanos[i]);
+                for(ProfiledTest test : tests)
+                {
+                    if(test.rule == rule)
+                    {
+                        profile.add(Tier.TIER2, test.kind, rule.pattern, rule.context, test.test, test.miringRuleId,
+                            ruleNodes[i], testEvaluations[test.index], testFired[test.index], testNanos[test.index]);
+                    }
+                }
+            }
+        }
+    }
+}
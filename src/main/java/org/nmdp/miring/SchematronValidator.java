@@ -23,15 +23,29 @@
 package org.nmdp.miring;
 
 import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.lang.reflect.Constructor;
+import java.io.FileNotFoundException;
 import java.net.URI;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.om.NodeInfo;
 
 import org.nmdp.miring.ValidationResult.Severity;
 
@@ -42,12 +56,16 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.xml.sax.XMLReader;
 
 /** 
- * SchematronValidator is a class used to validate an XML document against a set of schematron rules.  The schematron logic is handled, in this case, by Probatron.
+ * SchematronValidator is a class used to validate an XML document against a set of schematron rules.
  * 
- * Probatron is distributed as an executable jar, but it is rather inconvenient to write XML files to hard drive in order to use them.
- * I'm using reflection to call Probatron's methods in a few spots, rather than using their main method as a starting point.
+ * This used to be handled by Probatron, which recompiled the whole schematron schema for every validation.
+ * Now the schema is compiled the same way Probatron did it (include, abstract pattern expansion, and the ISO skeleton with
+ * Probatron's path notation), using the ISO stylesheets from the Probatron jar, but it is compiled by Saxon and the compiled 
+ * stylesheet is kept.  A schema is compiled once for each RuleSet and RuleSelection, and only the selected patterns and asserts are compiled.
+ * Each pattern (or group of patterns) is compiled separately, so the patterns can be evaluated in parallel against one document tree.
  * 
  * For reference, see Probatron's documentation:
  * http://www.probatron.org/probatron4j.html
@@ -60,10 +78,22 @@ public class SchematronValidator
 {
     static Logger logger = LoggerFactory.getLogger(SchematronValidator.class);
     
-    static ClassLoader loadedProbatronClasses;
+    static volatile ClassLoader loadedProbatronClasses;
     static String jarFileName = "/org/nmdp/miring/jar/probatron.jar";
     static String namespaceText = "{http://schemas.nmdp.org/spec/hml/1.0.1}";
-    public static Document schematronRuleTemplate = null;
+    static final String SCHEMATRON_RULE_TEMPLATE = "/org/nmdp/miring/ruletemplates/SchematronRuleTemplate.xml";
+    static final String SCHEMATRON_NAMESPACE = "http://purl.oclc.org/dsdl/schematron";
+    //The ISO schematron stylesheets inside the Probatron jar.
+    static final String ISO_STYLESHEET_PATH = "resource/stylesheet/";
+
+    //Sets how schematron patterns are grouped for evaluation.  See getPatternGroups.
+    static final String PATTERN_GROUPS_PROPERTY = "miring.schematron.patternGroups";
+
+    //The schematron stylesheets are XSLT 2.0, so always use Saxon, no matter what the default TransformerFactory is.
+    //Documents are built with this factory's Configuration, so the compiled stylesheets can share them.
+    private static final TransformerFactoryImpl transformerFactory = new TransformerFactoryImpl();
+    private static volatile Templates abstractExpandStylesheet;
+    private static volatile Templates svrlStylesheet;
 
     /**
      * Perform a schematron validation for an xml string against an array of schemaFileName strings.
@@ -74,96 +104,573 @@ public class SchematronValidator
      */
     public static ValidationResult[] validate(String xml, String[] schemaFileNames)
     {
-        ValidationResult[] results = new ValidationResult[0];
+        return validate(HmlInput.fromString(xml), schemaFileNames);
+    }
+
+    /**
+     * Perform a schematron validation for an xml document against an array of schemaFileName strings.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String[] schemaFileNames)
+    {
+        return validate(input, schemaFileNames, RuleSelection.ALL);
+    }
+
+    /**
+     * Perform a schematron validation for an xml document against the selected rules of an array of schemaFileName strings.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @param selection the MIRING elements and rules to evaluate.  Patterns and asserts which aren't selected are not compiled.
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String[] schemaFileNames, RuleSelection selection)
+    {
+        return validate(input, schemaFileNames, selection, null);
+    }
+
+    /**
+     * Perform a schematron validation for an xml document against the selected rules of an array of schemaFileName strings.
+     * 
+     * The document is parsed once into a read-only tree.  Each group of patterns is a separate compiled stylesheet, 
+     * and the groups are evaluated against that tree at the same time on the executor.  The SVRL reports are merged in schema order.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @param selection the MIRING elements and rules to evaluate.  Patterns and asserts which aren't selected are not compiled.
+     * @param executor the executor to evaluate pattern groups on, or null to evaluate them one after another on this thread
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String[] schemaFileNames, RuleSelection selection, Executor executor)
+    {
+        return validate(input, schemaFileNames, selection, executor, null);
+    }
+
+    /**
+     * Perform a schematron validation, and record the cost of each rule context, assert and report in a RuleProfile.
+     * The schema is compiled separately with tracing for this, so profiled validations don't slow down the others.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @param selection the MIRING elements and rules to evaluate
+     * @param executor the executor to evaluate pattern groups on, or null to evaluate them one after another on this thread
+     * @param profile the profile to add the rule costs to, or null to validate without profiling
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String[] schemaFileNames, RuleSelection selection, Executor executor, RuleProfile profile)
+    {
+        RuleSet ruleSet = RuleSet.acquireCurrent();
+        try
+        {
+            return validate(input, schemaFileNames, selection, executor, profile, ruleSet);
+        }
+        finally
+        {
+            ruleSet.release();
+        }
+    }
+
+    /**
+     * Perform a schematron validation against the schemas of a RuleSet.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @param selection the MIRING elements and rules to evaluate
+     * @param executor the executor to evaluate pattern groups on, or null to evaluate them one after another on this thread
+     * @param profile the profile to add the rule costs to, or null to validate without profiling
+     * @param ruleSet the rule set to compile the schemas from
+     * @return an array of ValidationError objects found during validation
+     */
+    public static ValidationResult[] validate(HmlInput input, String[] schemaFileNames, RuleSelection selection, Executor executor, RuleProfile profile, RuleSet ruleSet)
+    {
+        return validate(input, schemaFileNames, selection, executor, profile, ruleSet, null);
+    }
+
+    /**
+     * Perform a schematron validation against the schemas of a RuleSet, and count the parse of the document against its limits.
+     *
+     * @param input the xml to validate
+     * @param schemaFileNames an array of Strings containing the names of the schema file resources to validate against
+     * @param selection the MIRING elements and rules to evaluate
+     * @param executor the executor to evaluate pattern groups on, or null to evaluate them one after another on this thread
+     * @param profile the profile to add the rule costs to, or null to validate without profiling
+     * @param ruleSet the rule set to compile the schemas from
+     * @param limits the limits of the document, shared with the other stages, or null to not check them
+     * @return an array of ValidationError objects found during validation
+     */
+    static ValidationResult[] validate(HmlInput input, String[] schemaFileNames, RuleSelection selection, Executor executor, RuleProfile profile, RuleSet ruleSet,
+        XmlLimits limits)
+    {
+        //The results of each schema, in rule order.
+        ValidationResultSink results = new ValidationResultSink();
+        List<FutureTask<String>> patternGroupTasks = new ArrayList<FutureTask<String>>();
         
         try
         {
-            logger.debug("Opening jar file: " + jarFileName);
-            URL jarURL = SchematronValidator.class.getResource(jarFileName);
-            URI jarURI = jarURL.toURI();
-            loadedProbatronClasses = Utilities.loadJarElements(new File(jarURI));            
-            schematronRuleTemplate = Utilities.xmlToDocumentObject(Utilities.readXmlResource("/org/nmdp/miring/ruletemplates/SchematronRuleTemplate.xml"));
-            
+            NodeInfo document = null;
             for(int i = 0; i < schemaFileNames.length; i++)
             {
                 String schemaFileName = schemaFileNames[i];
                 
-                logger.debug("Starting a schematron validation with schema " + schemaFileName + " and xml length " + xml.length());
-
-                //Create an org.probatron.ValidationReport object
-                Object validationReportObject = doValidation(xml, schemaFileName);
+                logger.debug("Starting a schematron validation with schema " + schemaFileName);
+                List<Templates> patternGroups = (profile == null) ? getCompiledPatternGroups(ruleSet, schemaFileName, selection) : null;
+                List<SchematronProfiler> profiledGroups = (profile == null) ? null : getProfiledPatternGroups(ruleSet, schemaFileName, selection);
+                if(document == null)
+                {
+                    //Consensus sequences are checked while streaming (ConsensusSequenceChecker), so their text is filtered out of the document tree.
+                    SAXParser parser = XmlFactories.acquireSaxParser();
+                    try
+                    {
+                        XMLReader reader = (limits == null) ? parser.getXMLReader() : limits.newFilter(parser.getXMLReader());
+                        document = transformerFactory.getConfiguration().buildDocumentTree(SequenceTextFilter.newFilteredSource(input, reader)).getRootNode();
+                    }
+                    finally
+                    {
+                        XmlFactories.releaseSaxParser(parser);
+                    }
+                }
 
-                //Stream out the schematron report to a String
-                ByteArrayOutputStream myBaos = new ByteArrayOutputStream();
-                Utilities.callReflectedMethod(validationReportObject, "streamOut", myBaos, Class.forName("java.io.OutputStream"));
-                String resultString = myBaos.toString();
+                //Run each pattern group against the document, and write out its SVRL report to a String
+                patternGroupTasks.clear();
+                if(profile == null)
+                {
+                    for(Templates patternGroup : patternGroups)
+                    {
+                        patternGroupTasks.add(newPatternGroupTask(patternGroup, document));
+                    }
+                }
+                else
+                {
+                    for(SchematronProfiler profiledGroup : profiledGroups)
+                    {
+                        patternGroupTasks.add(newProfiledPatternGroupTask(profiledGroup, document, profile));
+                    }
+                }
+                if(executor != null)
+                {
+                    for(int j = 1; j < patternGroupTasks.size(); j++)
+                    {
+                        executor.execute(patternGroupTasks.get(j));
+                    }
+                }
+                //This thread runs every group the executor hasn't started yet.  run() does nothing if a group has already started.
+                for(FutureTask<String> patternGroupTask : patternGroupTasks)
+                {
+                    patternGroupTask.run();
+                }
 
-                //Create MIRING specific validation errors
-                ValidationResult[] currentResultErrors = translateSchematronReportToValidationResults(resultString);
-                logger.debug(currentResultErrors.length + " schema validation errors found");
+                //Create MIRING specific validation errors, in schema order
+                List<ValidationResult> currentResultErrors = new ArrayList<ValidationResult>();
+                ResultText.Pool strings = new ResultText.Pool();
+                for(FutureTask<String> patternGroupTask : patternGroupTasks)
+                {
+                    for(ValidationResult result : translateSchematronReportToValidationResults(ruleSet, getSvrlReport(patternGroupTask), strings))
+                    {
+                        Utilities.addValidationError(currentResultErrors, result);
+                    }
+                }
+                logger.debug(currentResultErrors.size() + " schema validation errors found");
 
                 //Add any errors to the tier2 results.
-                results = Utilities.combineArrays(results, currentResultErrors,null);
+                results.addAll(i, currentResultErrors.toArray(new ValidationResult[currentResultErrors.size()]));
             }
         }
         catch(Exception e )
         {
+            for(FutureTask<String> patternGroupTask : patternGroupTasks)
+            {
+                patternGroupTask.cancel(true);
+            }
+            if(Thread.currentThread().isInterrupted() || e instanceof InterruptedException)
+            {
+                logger.debug("Schematron validation cancelled.");
+                return results.toArray();
+            }
+            if(limits != null && limits.getRejection() != null)
+            {
+                logger.debug("Schematron validation stopped at a limit.");
+                return results.toArray();
+            }
             logger.error("Exception in SchematronValidation", e);
-            return Utilities.combineArrays(results, new ValidationResult[]{new ValidationResult("Failed Schematron Validation: " + e.toString(),Severity.FATAL)},null);
+            results.add(schemaFileNames.length, new ValidationResult("Failed Schematron Validation: " + e.toString(),Severity.FATAL));
+            return results.toArray();
         }
-        logger.debug(results.length + " validation errors detected in schematron validator.");
-        return results;
+        logger.debug(results.size() + " validation errors detected in schematron validator.");
+        return results.toArray();
+    }
+
+    private static FutureTask<String> newPatternGroupTask(final Templates patternGroup, final NodeInfo document)
+    {
+        return new FutureTask<String>(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                ByteArrayOutputStream myBaos = new ByteArrayOutputStream();
+                patternGroup.newTransformer().transform(document, new StreamResult(myBaos));
+                return myBaos.toString("UTF-8");
+            }
+        });
+    }
+
+    private static FutureTask<String> newProfiledPatternGroupTask(final SchematronProfiler patternGroup, final NodeInfo document, final RuleProfile profile)
+    {
+        return new FutureTask<String>(new Callable<String>()
+        {
+            public String call() throws Exception
+            {
+                return patternGroup.validate(document, profile);
+            }
+        });
+    }
+
+    private static String getSvrlReport(FutureTask<String> patternGroupTask) throws Exception
+    {
+        try
+        {
+            return patternGroupTask.get();
+        }
+        catch(ExecutionException e)
+        {
+            throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+        }
+    }
+
+    /**
+     * Get a compiled schematron schema, compiling it the first time a rule set's schema and selection is used.
+     * The schema is compiled as one stylesheet for each group of patterns.  See getPatternGroups.
+     *
+     * @param ruleSet the rule set to compile the schema from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to compile
+     * @return the compiled pattern groups, in schema order.  Each one writes an SVRL report.
+     * @throws Exception if the schema can't be compiled
+     */
+    static List<Templates> getCompiledPatternGroups(RuleSet ruleSet, String schemaFileName, RuleSelection selection) throws Exception
+    {
+        String patternGroups = System.getProperty(PATTERN_GROUPS_PROPERTY, "");
+        String key = schemaFileName + "#" + selection.getRuleKey() + "#" + patternGroups;
+        List<Templates> compiledSchema = ruleSet.schematronSchemas.get(key);
+        if(compiledSchema == null)
+        {
+            compiledSchema = compileSchema(ruleSet, schemaFileName, selection, patternGroups);
+            ruleSet.schematronSchemas.put(key, compiledSchema);
+        }
+        return compiledSchema;
     }
 
     /**
-     * Perform a schematron validation for an xml string against an single schematron schema.
-     * This method mimics Probatron's Session.doValidation.
+     * Get a schematron schema compiled with tracing, compiling it the first time a rule set's schema and selection is profiled.
+     *
+     * @param ruleSet the rule set to compile the schema from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to compile
+     * @return the profiled pattern groups, in schema order
+     * @throws Exception if the schema can't be compiled
+     */
+    static List<SchematronProfiler> getProfiledPatternGroups(RuleSet ruleSet, String schemaFileName, RuleSelection selection) throws Exception
+    {
+        String patternGroups = System.getProperty(PATTERN_GROUPS_PROPERTY, "");
+        String key = schemaFileName + "#" + selection.getRuleKey() + "#" + patternGroups;
+        List<SchematronProfiler> profiledSchema = ruleSet.profiledSchematronSchemas.get(key);
+        if(profiledSchema == null)
+        {
+            URL schemaFileURL = ruleSet.getResource(schemaFileName);
+            List<SchematronProfiler> profiledGroups = new ArrayList<SchematronProfiler>();
+            for(Node stylesheet : generatePatternGroupStylesheets(ruleSet, schemaFileName, selection, patternGroups))
+            {
+                profiledGroups.add(SchematronProfiler.compile(ruleSet, stylesheet, schemaFileURL.toString(), transformerFactory));
+            }
+            profiledSchema = Collections.unmodifiableList(profiledGroups);
+            ruleSet.profiledSchematronSchemas.put(key, profiledSchema);
+        }
+        return profiledSchema;
+    }
+
+    /**
+     * Compile a schematron schema.  This mimics Probatron's SchematronSchema.validateCandidate, without the validation.
+     * The build precompiles the schema for every rule, see Precompiler, and that is used when it is current.
      * 
-     * @param xml a String containing the xml to validate
-     * @param schemaLocation an String containing the name of the schema file resource to validate against
-     * @return an object which is an org.probatron.ValidationReport objects.
+     * @param ruleSet the rule set to compile the schema from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to compile
+     * @param patternGroups the pattern groups setting.  See getPatternGroups.
+     * @return the compiled pattern groups, in schema order.  Groups without any selected patterns are left out.
+     * @throws Exception if the schema can't be compiled
      */
-    private static Object doValidation(String xml, String schemaLocation) 
+    private static List<Templates> compileSchema(RuleSet ruleSet, String schemaFileName, RuleSelection selection, String patternGroups) throws Exception
     {
-        //We're using some reflection here, so object types are vague
-        //vr = org.probatron.ValidationReport
-        Object vr = null;
-        //theSchema = org.probatron.SchematronSchema
-        Object theSchema = null;
-        
-        try 
+        List<Templates> precompiledGroups = Precompiler.loadSchematron(ruleSet, schemaFileName, selection, patternGroups, transformerFactory);
+        if(precompiledGroups != null)
         {
-            URL schemaFileURL = SchematronValidator.class.getResource(schemaLocation);
-            InputStream xmlInputStream = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));            
-           
-            //A org.probatron.SchematronSchema object needs to have a Session object when it calls validateCandidate(), or else Null Pointers.
-            //So I create a session object here to please it.
-            Class sessionClass= loadedProbatronClasses.loadClass("org.probatron.Session");
-            Object currentSession = sessionClass.newInstance();
-            
-            //Create a SchematronSchema object, using constructor that takes a Session and a schema URL
-            Class schematronSchemaClass= loadedProbatronClasses.loadClass("org.probatron.SchematronSchema");
-            Constructor ctor = schematronSchemaClass.getDeclaredConstructor(sessionClass, URL.class);
-            theSchema = ctor.newInstance(currentSession, schemaFileURL);
-            
-            //Validate against a schematron schema, using probatron's validateCandidate method
-            vr = Utilities.callReflectedMethod(theSchema,"validateCandidate", xmlInputStream, Class.forName("java.io.InputStream"));
-        } 
-        catch(Exception e)
+            return precompiledGroups;
+        }
+        URL schemaFileURL = ruleSet.getResource(schemaFileName);
+        List<Templates> compiledGroups = new ArrayList<Templates>();
+        for(Node stylesheet : generatePatternGroupStylesheets(ruleSet, schemaFileName, selection, patternGroups))
+        {
+            compiledGroups.add(transformerFactory.newTemplates(new DOMSource(stylesheet, schemaFileURL.toString())));
+        }
+        return Collections.unmodifiableList(compiledGroups);
+    }
+
+    /**
+     * Generate the XSLT for each pattern group of a schematron schema.
+     * 
+     * @param ruleSet the rule set to read the schema and its patterns from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to compile
+     * @param patternGroups the pattern groups setting.  See getPatternGroups.
+     * @return the stylesheet of each pattern group, in schema order.  Groups without any selected patterns are left out.
+     * @throws Exception if the schema can't be read or transformed
+     */
+    static synchronized List<Node> generatePatternGroupStylesheets(RuleSet ruleSet, String schemaFileName, RuleSelection selection, String patternGroups) throws Exception
+    {
+        logger.debug("Compiling schematron schema " + schemaFileName + " of rule set " + ruleSet + " for " + selection + " with pattern groups [" + patternGroups + "]");
+        loadIsoStylesheets();
+
+        URL schemaFileURL = ruleSet.getResource(schemaFileName);
+        Document schema = includeSelectedPatterns(ruleSet, schemaFileName, selection);
+
+        List<String> patternKeys = new ArrayList<String>();
+        NodeList patterns = schema.getElementsByTagNameNS(SCHEMATRON_NAMESPACE, "pattern");
+        for(int i = 0; i < patterns.getLength(); i++)
+        {
+            patternKeys.add(getPatternKey((Element)patterns.item(i)));
+        }
+
+        List<Node> groupStylesheets = new ArrayList<Node>();
+        for(List<String> group : getPatternGroups(patternKeys, patternGroups))
+        {
+            //A copy of the schema, with only the patterns in this group.
+            Document groupSchema = (Document)schema.cloneNode(true);
+            NodeList groupPatterns = groupSchema.getElementsByTagNameNS(SCHEMATRON_NAMESPACE, "pattern");
+            for(int i = groupPatterns.getLength() - 1; i >= 0; i--)
+            {
+                Element pattern = (Element)groupPatterns.item(i);
+                if(!group.contains(getPatternKey(pattern)))
+                {
+                    pattern.getParentNode().removeChild(pattern);
+                }
+            }
+            groupStylesheets.add(generateStylesheet(groupSchema, schemaFileURL));
+        }
+        return groupStylesheets;
+    }
+
+    private static Node generateStylesheet(Document schema, URL schemaFileURL) throws Exception
+    {
+        //Expand abstract patterns
+        DOMResult expandedSchema = new DOMResult();
+        abstractExpandStylesheet.newTransformer().transform(new DOMSource(schema, schemaFileURL.toString()), expandedSchema);
+
+        //Transform the schema to XSLT.  Probatron's notation "4" gives locations like /{namespace}hml[1]/{namespace}sample[1]
+        DOMResult schemaStylesheet = new DOMResult();
+        Transformer svrlTransformer = svrlStylesheet.newTransformer();
+        svrlTransformer.setParameter("full-path-notation", "4");
+        svrlTransformer.transform(new DOMSource(expandedSchema.getNode(), schemaFileURL.toString()), schemaStylesheet);
+        return schemaStylesheet.getNode();
+    }
+
+    /**
+     * Split the patterns of a schema into groups, which are compiled and evaluated separately.
+     * 
+     * The groups are set by the system property miring.schematron.patternGroups, which looks like "1,2,3;4;5;6,7,8".
+     * Groups are separated by semicolons, and name MIRING elements (or pattern ids, for other patterns).
+     * A pattern that isn't in any configured group is a group of its own.  By default, every pattern is its own group.
+     *
+     * @param patternKeys the keys of the schema's patterns, in schema order
+     * @param patternGroups the configured groups
+     * @return the groups, ordered by their first pattern in the schema
+     */
+    static List<List<String>> getPatternGroups(List<String> patternKeys, String patternGroups)
+    {
+        List<List<String>> configuredGroups = new ArrayList<List<String>>();
+        for(String configuredGroup : patternGroups.split(";"))
+        {
+            List<String> group = new ArrayList<String>();
+            for(String patternKey : configuredGroup.split(","))
+            {
+                if(patternKey.trim().length() > 0)
+                {
+                    group.add(patternKey.trim());
+                }
+            }
+            configuredGroups.add(group);
+        }
+
+        List<List<String>> groups = new ArrayList<List<String>>();
+        List<String> groupedKeys = new ArrayList<String>();
+        for(String patternKey : patternKeys)
+        {
+            if(groupedKeys.contains(patternKey))
+            {
+                continue;
+            }
+            List<String> group = new ArrayList<String>();
+            group.add(patternKey);
+            for(List<String> configuredGroup : configuredGroups)
+            {
+                if(configuredGroup.contains(patternKey))
+                {
+                    for(String groupKey : patternKeys)
+                    {
+                        if(configuredGroup.contains(groupKey) && !group.contains(groupKey))
+                        {
+                            group.add(groupKey);
+                        }
+                    }
+                    break;
+                }
+            }
+            groupedKeys.addAll(group);
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * @return the MIRING element number of a pattern with an id like "Miring.Element.4", otherwise the pattern's id
+     */
+    private static String getPatternKey(Element pattern)
+    {
+        String patternId = pattern.getAttribute("id");
+        return patternId.startsWith("Miring.Element.") ? patternId.substring("Miring.Element.".length()) : patternId;
+    }
+
+    /**
+     * Read a schematron schema, replacing each include with the included pattern.
+     * Patterns for MIRING elements that aren't selected are left out, and so are asserts and reports for rules that aren't selected.
+     * The includes are resources of the rule set too, so a rules directory can change a pattern without changing the schema.
+     *
+     * @param ruleSet the rule set to read the schema and its patterns from
+     * @param schemaFileName the name of the schematron schema resource
+     * @param selection the MIRING elements and rules to include
+     * @return the schema Document
+     * @throws Exception if the schema or an included pattern can't be read
+     */
+    private static Document includeSelectedPatterns(RuleSet ruleSet, String schemaFileName, RuleSelection selection) throws Exception
+    {
+        DocumentBuilder builder = XmlFactories.acquireDocumentBuilder(true);
+        try
+        {
+            return includeSelectedPatterns(builder, ruleSet, schemaFileName, selection);
+        }
+        finally
+        {
+            XmlFactories.releaseDocumentBuilder(builder);
+        }
+    }
+
+    private static Document includeSelectedPatterns(DocumentBuilder builder, RuleSet ruleSet, String schemaFileName, RuleSelection selection) throws Exception
+    {
+        String schemaDirectory = schemaFileName.substring(0, schemaFileName.lastIndexOf('/') + 1);
+        Document schema = builder.parse(ruleSet.getResource(schemaFileName).toString());
+        //getElementsByTagNameNS is live, so this shrinks as includes are replaced.
+        NodeList includes = schema.getElementsByTagNameNS(SCHEMATRON_NAMESPACE, "include");
+        while(includes.getLength() > 0)
+        {
+            Element include = (Element)includes.item(0);
+            String patternName = schemaDirectory + include.getAttribute("href");
+            URL patternURL = ruleSet.getResource(patternName);
+            if(patternURL == null)
+            {
+                throw new FileNotFoundException("The schematron schema " + schemaFileName + " includes " + patternName + ", which doesn't exist");
+            }
+            Element pattern = builder.parse(patternURL.toString()).getDocumentElement();
+            if(isPatternSelected(pattern, selection))
+            {
+                removeUnselectedRules(ruleSet, pattern, selection);
+                include.getParentNode().replaceChild(schema.importNode(pattern, true), include);
+            }
+            else
+            {
+                include.getParentNode().removeChild(include);
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * @return true if the pattern is selected.  MIRING element patterns have ids like "Miring.Element.4", any other pattern is always selected.
+     */
+    private static boolean isPatternSelected(Element pattern, RuleSelection selection)
+    {
+        String patternId = pattern.getAttribute("id");
+        if(!patternId.startsWith("Miring.Element."))
         {
-            logger.error("Exception in doValidation: " + e);
+            return true;
         }
-        logger.debug ("Validation Report = " + vr);
-        return vr;
+        return selection.includesElement(getPatternKey(pattern));
     }
 
     /**
-     * Translate a org.probatron.ValidationReport into an array of ValidationResult objects
+     * Remove the asserts and reports for rules which aren't selected, and any schematron rule left without an assert or report.
+     * The MIRING rule id of an assert is found the same way as it is for a result, from its text and the rule template.
+     */
+    private static void removeUnselectedRules(RuleSet ruleSet, Element pattern, RuleSelection selection)
+    {
+        if(selection.includesAllRules())
+        {
+            return;
+        }
+        NodeList schematronRules = pattern.getElementsByTagNameNS(SCHEMATRON_NAMESPACE, "rule");
+        for(int i = schematronRules.getLength() - 1; i >= 0; i--)
+        {
+            Element schematronRule = (Element)schematronRules.item(i);
+            int remainingTests = 0;
+            for(Node child = schematronRule.getFirstChild(); child != null; )
+            {
+                Node next = child.getNextSibling();
+                if(child.getNodeType() == Node.ELEMENT_NODE && (child.getLocalName().equals("assert") || child.getLocalName().equals("report")))
+                {
+                    String miringRule = getMiringRuleId(ruleSet, child.getTextContent());
+                    if(miringRule != null && !selection.includesRule(miringRule))
+                    {
+                        schematronRule.removeChild(child);
+                    }
+                    else
+                    {
+                        remainingTests++;
+                    }
+                }
+                child = next;
+            }
+            if(remainingTests == 0)
+            {
+                schematronRule.getParentNode().removeChild(schematronRule);
+            }
+        }
+    }
+
+    /**
+     * @param ruleSet the rule set with the rule template
+     * @param assertText the text of a schematron assert or report
+     * @return the MIRING rule id from the rule template, or null if there's no template for this text
+     */
+    static String getMiringRuleId(RuleSet ruleSet, String assertText)
+    {
+        for(RuleTemplate rule : RuleTemplate.getRules(ruleSet, SCHEMATRON_RULE_TEMPLATE, "rule"))
+        {
+            if(assertText.contains(rule.getAttribute("error-text")))
+            {
+                return rule.getAttribute("miring-rule-id");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Translate an SVRL report into an array of ValidationResult objects
      *
-     * @param xml a String containing a probatron ValidationReport 
-     * @return an array of ValidationResult objects generated from the probatron ValidationReport report.
+     * @param ruleSet the rule set with the rule template
+     * @param xml a String containing an SVRL report
+     * @param strings the pool which shares the messages and element names of the validation's results
+     * @return an array of ValidationResult objects generated from the SVRL report.
      */
-    private static ValidationResult[] translateSchematronReportToValidationResults(String xml)
+    private static ValidationResult[] translateSchematronReportToValidationResults(RuleSet ruleSet, String xml, ResultText.Pool strings)
     {
         List<ValidationResult> validationErrors = new ArrayList<ValidationResult>();
 
@@ -233,7 +740,7 @@ public class SchematronValidator
                         }
                     }
 
-                    ValidationResult validationError = generateValidationError(errorText, locationText);
+                    ValidationResult validationError = generateValidationError(ruleSet, errorText, locationText, strings);
                     Utilities.addValidationError(validationErrors, validationError);
                 }
             }
@@ -257,15 +764,62 @@ public class SchematronValidator
         }
     }
 
+    /**
+     * Load the probatron classes from the probatron jar, and compile the ISO stylesheets inside it, if that hasn't been done yet.
+     * The stylesheets are shared by every schema compilation.
+     *
+     * @throws Exception if the jar can't be found, or the stylesheets can't be compiled
+     */
+    private static synchronized void loadIsoStylesheets() throws Exception
+    {
+        if(loadedProbatronClasses == null)
+        {
+            logger.debug("Opening jar file: " + jarFileName);
+            URL jarURL = SchematronValidator.class.getResource(jarFileName);
+            URI jarURI = jarURL.toURI();
+            loadedProbatronClasses = Utilities.loadJarElements(new File(jarURI));
+        }
+        if(svrlStylesheet == null)
+        {
+            abstractExpandStylesheet = transformerFactory.newTemplates(getIsoStylesheet("iso_abstract_expand.xsl"));
+            //iso_svrl_for_xslt2.xsl imports the skeleton, relative to its own URL in the jar.
+            svrlStylesheet = transformerFactory.newTemplates(getIsoStylesheet("iso_svrl_for_xslt2.xsl"));
+        }
+    }
+
+    private static StreamSource getIsoStylesheet(String stylesheetName) throws Exception
+    {
+        URL stylesheetURL = loadedProbatronClasses.getResource(ISO_STYLESHEET_PATH + stylesheetName);
+        return new StreamSource(stylesheetURL.openStream(), stylesheetURL.toString());
+    }
+
     /**
      * Generate a single ValidationError object
      * Lots of Miring logic happens here.
+     * 
+     * This is also used for tier 2 rules which are checked while streaming, such as ConsensusSequenceChecker.
      *
-     * @param errorMessage an error message generated by probatron
+     * @param ruleSet the rule set with the rule template
+     * @param errorMessage an error message from the schematron report
      * @param locationText an Xpath containing the location of the error in the HML document
+     * @param strings the pool which shares the messages and element names of the validation's results
      * @return a ValidationError object describing the miring validation problem
      */
-    private static ValidationResult generateValidationError(String errorMessage, String locationText)
+    static ValidationResult generateValidationError(RuleSet ruleSet, String errorMessage, String locationText, ResultText.Pool strings)
+    {
+        //The same message is reported for every sample with the problem, so they share one string.
+        return generateValidationError(ruleSet, strings.canonical(errorMessage), XPath.parse(locationText, namespaceText, strings));
+    }
+
+    /**
+     * Generate a single ValidationError object, at a location which is already an XPath.
+     *
+     * @param ruleSet the rule set with the rule template
+     * @param errorMessage an error message from the schematron report
+     * @param location the location of the error in the HML document, or null
+     * @return a ValidationError object describing the miring validation problem
+     */
+    static ValidationResult generateValidationError(RuleSet ruleSet, String errorMessage, XPath location)
     {
         ValidationResult ve = new ValidationResult(errorMessage,Severity.MIRING);
         
@@ -273,20 +827,20 @@ public class SchematronValidator
         try
         {
             boolean matchFound = false;
-            NodeList ruleNodes = schematronRuleTemplate.getElementsByTagName("rule");
-            for(int i = 0; i < ruleNodes.getLength(); i++)
+            List<RuleTemplate> ruleNodes = RuleTemplate.getRules(ruleSet, SCHEMATRON_RULE_TEMPLATE, "rule");
+            for(int i = 0; i < ruleNodes.size(); i++)
             {
-                NamedNodeMap ruleAttributes = ruleNodes.item(i).getAttributes();
+                RuleTemplate rule = ruleNodes.get(i);
 
-                String templateErrorMessage = Utilities.getAttribute(ruleAttributes, "error-text");
+                String templateErrorMessage = rule.getAttribute("error-text");
                 
                 if(errorMessage.contains(templateErrorMessage))
                 {
                     matchFound = true;
                     
-                    String miringRule = Utilities.getAttribute(ruleAttributes, "miring-rule-id");
-                    String templateSeverity = Utilities.getAttribute(ruleAttributes, "severity");
-                    String templateSolution = Utilities.getAttribute(ruleAttributes, "solution-text");
+                    String miringRule = rule.getAttribute("miring-rule-id");
+                    String templateSeverity = rule.getAttribute("severity");
+                    String templateSolution = rule.getAttribute("solution-text");
                     
                     Severity severity = 
                         templateSeverity.equals("fatal")?Severity.FATAL:
@@ -299,9 +853,9 @@ public class SchematronValidator
                     ve.setSolutionText(templateSolution);
                     ve.setMiringRule(miringRule);
                     
-                    if(locationText != null)
+                    if(location != null)
                     {
-                        ve.addXPath(stripNamespace(locationText));
+                        ve.addXPath(location);
                     }
                     
                     break;
@@ -320,9 +874,4 @@ public class SchematronValidator
 
         return ve;
     }
-
-    private static String stripNamespace(String locationText)
-    {
-        return locationText.replace(namespaceText, "");
-    }
 }
@@ -0,0 +1,181 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter which drops the text of sequence nodes underneath consensus-sequence-block nodes.
+ *
+ * Those sequences are validated while streaming by ConsensusSequenceChecker, so no other stage needs the text.
+ * Put this filter in front of anything that builds a document tree, and the (potentially huge) sequences will not be kept in that tree.
+*/
+public class SequenceTextFilter extends XMLFilterImpl
+{
+    static Logger logger = LoggerFactory.getLogger(SequenceTextFilter.class);
+
+    private int depth = 0;
+    private int blockDepth = -1;
+    private int sequenceDepth = -1;
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException
+    {
+        //The schematron stage reads its document through this filter, so this is where it notices it has been cancelled.
+        Utilities.checkForCancellation();
+        depth++;
+        if(ConsensusSequenceChecker.HML_NAMESPACE.equals(uri))
+        {
+            if(localName.equals("consensus-sequence-block"))
+            {
+                blockDepth = depth;
+            }
+            else if(localName.equals("sequence") && blockDepth != -1 && depth == blockDepth + 1)
+            {
+                sequenceDepth = depth;
+            }
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException
+    {
+        if(depth == sequenceDepth)
+        {
+            sequenceDepth = -1;
+        }
+        else if(depth == blockDepth)
+        {
+            blockDepth = -1;
+        }
+        depth--;
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException
+    {
+        if(sequenceDepth == -1)
+        {
+            super.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException
+    {
+        if(sequenceDepth == -1)
+        {
+            super.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    /**
+     * Serialize an xml document without its consensus sequence text.
+     *
+     * If the document can't be parsed, the unfiltered text is returned and the next stage can report the problem.
+     *
+     * @param xml a String containing the xml text
+     * @return the UTF-8 bytes of the filtered document
+     */
+    public static byte[] filterSequenceText(String xml)
+    {
+        byte[] filteredXml = filter(HmlInput.fromString(xml));
+        return (filteredXml == null) ? xml.getBytes(StandardCharsets.UTF_8) : filteredXml;
+    }
+
+    /**
+     * Serialize an xml document without its consensus sequence text.
+     *
+     * If the document can't be parsed, a stream of the unfiltered document is returned and the next stage can report the problem.
+     *
+     * @param input the xml document
+     * @return a stream of the filtered document
+     */
+    public static InputStream filterSequenceText(HmlInput input)
+    {
+        byte[] filteredXml = filter(input);
+        return (filteredXml == null) ? input.newInputStream() : new ByteArrayInputStream(filteredXml);
+    }
+
+    /**
+     * Get a Source for an xml document, which leaves out its consensus sequence text.
+     * Nothing is serialized, the filter sits between the parser and whatever reads the Source.
+     *
+     * @param input the xml document
+     * @param reader a namespace aware XMLReader, which parses the document.  It is in use until the Source has been read.
+     * @return a SAXSource which reads the filtered document
+     */
+    static SAXSource newFilteredSource(HmlInput input, XMLReader reader)
+    {
+        SequenceTextFilter filter = new SequenceTextFilter();
+        filter.setParent(reader);
+        return new SAXSource(filter, input.newInputSource());
+    }
+
+    private static byte[] filter(HmlInput input)
+    {
+        SAXParser parser = null;
+        Transformer transformer = null;
+        try
+        {
+            parser = XmlFactories.acquireSaxParser();
+            transformer = XmlFactories.acquireTransformer();
+            ByteArrayOutputStream filteredXml = new ByteArrayOutputStream();
+            transformer.transform(newFilteredSource(input, parser.getXMLReader()), new StreamResult(filteredXml));
+            return filteredXml.toByteArray();
+        }
+        catch(Exception e)
+        {
+            logger.debug("Could not filter sequence text, using the original xml: " + e);
+            return null;
+        }
+        finally
+        {
+            if(parser != null)
+            {
+                XmlFactories.releaseSaxParser(parser);
+            }
+            if(transformer != null)
+            {
+                XmlFactories.releaseTransformer(transformer);
+            }
+        }
+    }
+}
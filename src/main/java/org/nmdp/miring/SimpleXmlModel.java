@@ -39,6 +39,8 @@ public class SimpleXmlModel
     public int nodeIndex;
     public List<SimpleXmlModel> childrenNodes = new ArrayList<SimpleXmlModel>();
     public SimpleXmlModel parentNode;
+    //The xpath of this node, made the first time it's needed.  Children build theirs on top of it.
+    private XPath xPath;
     Logger logger = LoggerFactory.getLogger(SimpleXmlModel.class);
     
     public SimpleXmlModel(String nodeName, int nodeIndex)
@@ -103,20 +105,25 @@ public class SimpleXmlModel
      * @return an xPath specifying the location of this element
      */
     public String generateXpath()
+    {
+        XPath currentXPath = getXPath();
+        return (currentXPath == null) ? null : currentXPath.toString();
+    }
+
+    /**
+     * Get the XPath of this element.  It shares the steps of its parent's XPath, which is only made once.
+     *
+     * @return the XPath of this element
+     */
+    XPath getXPath()
     {
         try
         {
-            //Recursively build an xPath for the current node.
-            String currentXPath = "/" + nodeName + "[" + nodeIndex + "]";
-            
-            if(parentNode == null)
-            {
-                return currentXPath;
-            }
-            else
+            if(xPath == null)
             {
-                return parentNode.generateXpath() + currentXPath;
+                xPath = (parentNode == null) ? XPath.root(nodeName, nodeIndex) : parentNode.getXPath().child(nodeName, nodeIndex);
             }
+            return xPath;
         }
         catch(Exception e)
         {
@@ -139,6 +146,7 @@ public class SimpleXmlModel
             nodeName = null;
             nodeIndex = 0;
             parentNode = null;
+            xPath = null;
             
             if(childrenNodes != null)
             {
@@ -0,0 +1,333 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SlowRequestCapture saves validation requests that were slow, or allocated a lot of memory, to a spool directory,
+ * so they can be replayed later with MiringCaptureReplay.
+ *
+ * Each capture is two files with the same name: the payload (name.xml, or name.xml.gz when compressed)
+ * and its description (name.json), which has the validator version, the rule selection, the engine configuration,
+ * the time and allocation of each stage, and the JSON report.
+ * A request which was sent as bytes (a file or an upload) is saved as those bytes, in the document's own encoding, and replayed as bytes.
+ * A request which was sent as text is saved as UTF-8, and replayed as text.  The description's raw-bytes says which.
+ *
+ * It is configured with system properties:
+ * miring.capture.dir         the spool directory.  Nothing is captured unless this is set.
+ * miring.capture.latencyMs   capture requests that take at least this long (default 10000, 0 captures every request)
+ * miring.capture.allocatedMb capture requests whose stages allocate at least this much (default 0, which turns this off)
+ * miring.capture.compress    gzip the payload (default true)
+ * miring.capture.redact      replace sample ids with numbers in the payload and report (default false)
+ * miring.capture.maxFiles    stop capturing when the spool holds this many captures (default 100)
+*/
+final class SlowRequestCapture
+{
+    private static final Logger logger = LoggerFactory.getLogger(SlowRequestCapture.class);
+    //The id attribute of a sample element, with or without a namespace prefix.
+    private static final Pattern SAMPLE_ID = Pattern.compile("(<(?:[\\w.-]+:)?sample(?=[\\s/>])[^>]*?\\sid\\s*=\\s*)(\"[^\"]*\"|'[^']*')");
+    private static final AtomicInteger captureCount = new AtomicInteger();
+
+    private final File directory;
+    private final long latencyNanos;
+    private final long allocatedBytes;
+    private final boolean compress;
+    private final boolean redact;
+    private final int maxFiles;
+    private final int stageThreads;
+    private final int sampleCacheSize;
+
+    SlowRequestCapture(File directory, long latencyMillis, long allocatedMegabytes, boolean compress, boolean redact, int maxFiles, int stageThreads, int sampleCacheSize)
+    {
+        this.directory = directory;
+        this.latencyNanos = latencyMillis * 1000000L;
+        this.allocatedBytes = allocatedMegabytes * 1024L * 1024L;
+        this.compress = compress;
+        this.redact = redact;
+        this.maxFiles = maxFiles;
+        this.stageThreads = stageThreads;
+        this.sampleCacheSize = sampleCacheSize;
+    }
+
+    /**
+     * @param stageThreads the number of stage threads of the engine whose requests are captured
+     * @param sampleCacheSize the sample cache size of that engine, 0 if it has none
+     * @return a SlowRequestCapture configured by the miring.capture system properties, or null if miring.capture.dir isn't set
+     */
+    static SlowRequestCapture fromSystemProperties(int stageThreads, int sampleCacheSize)
+    {
+        String directory = System.getProperty("miring.capture.dir");
+        if(directory == null || directory.length() == 0)
+        {
+            return null;
+        }
+        logger.info("Capturing slow requests to " + directory);
+        return new SlowRequestCapture(new File(directory), Long.getLong("miring.capture.latencyMs", 10000), Long.getLong("miring.capture.allocatedMb", 0),
+            Boolean.parseBoolean(System.getProperty("miring.capture.compress", "true")), Boolean.getBoolean("miring.capture.redact"),
+            Integer.getInteger("miring.capture.maxFiles", 100), stageThreads, sampleCacheSize);
+    }
+
+    /**
+     * Capture a request, if it was over either threshold.  Failures are logged, and never affect the request.
+     *
+     * @param xml the payload of the request
+     * @param tiers the tiers parameter of the request, or null
+     * @param elements the elements parameter of the request, or null
+     * @param rules the rules parameter of the request, or null
+     * @param outcome the outcome of the validation
+     * @param timings the stage timings of the validation
+     * @return the description file of the capture, or null if the request wasn't captured
+     */
+    File captureIfSlow(String xml, String tiers, String elements, String rules, ValidationOutcome outcome, StageTimings timings)
+    {
+        return captureIfSlow(HmlInput.fromString(xml), tiers, elements, rules, outcome, timings);
+    }
+
+    /**
+     * Capture a request, if it was over either threshold.  The payload is only read into a String if it is captured.
+     *
+     * @param input the payload of the request
+     * @param tiers the tiers parameter of the request, or null
+     * @param elements the elements parameter of the request, or null
+     * @param rules the rules parameter of the request, or null
+     * @param outcome the outcome of the validation
+     * @param timings the stage timings of the validation
+     * @return the description file of the capture, or null if the request wasn't captured
+     */
+    File captureIfSlow(HmlInput input, String tiers, String elements, String rules, ValidationOutcome outcome, StageTimings timings)
+    {
+        StageTimings.Stage total = timings.getStage("total");
+        long allocated = timings.getAllocatedBytes();
+        boolean slow = total != null && total.getNanos() >= latencyNanos;
+        boolean large = allocatedBytes > 0 && allocated >= allocatedBytes;
+        if(!slow && !large)
+        {
+            return null;
+        }
+        try
+        {
+            String[] existing = directory.list();
+            if(existing != null && countCaptures(existing) >= maxFiles)
+            {
+                logger.warn("Not capturing a slow request, the capture directory is full: " + directory);
+                return null;
+            }
+            if(!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new IOException("Unable to create " + directory);
+            }
+
+            String name = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "-" + captureCount.incrementAndGet();
+            Map<String,String> sampleIds = new HashMap<String,String>();
+            ByteBuffer bytes = input.getBytes();
+            ByteBuffer payload;
+            if(bytes == null)
+            {
+                String xml = input.getXml();
+                payload = StandardCharsets.UTF_8.encode(redact ? redactSampleIds(xml, sampleIds) : xml);
+            }
+            else if(redact)
+            {
+                //Redacted in the document's own encoding, so the replay parses the same bytes apart from the ids.
+                Charset encoding = input.getEncoding();
+                payload = encoding.encode(redactSampleIds(encoding.decode(bytes).toString(), sampleIds));
+            }
+            else
+            {
+                payload = bytes;
+            }
+            long payloadBytes = payload.remaining();
+            String payloadName = name + (compress ? ".xml.gz" : ".xml");
+            try(OutputStream payloadStream = new FileOutputStream(new File(directory, payloadName));
+                WritableByteChannel payloadChannel = Channels.newChannel(compress ? new GZIPOutputStream(payloadStream) : payloadStream))
+            {
+                while(payload.hasRemaining())
+                {
+                    payloadChannel.write(payload);
+                }
+            }
+
+            JSONObject description = new JSONObject();
+            description.put("validator-version", MiringValidator.getValidatorVersion());
+            description.put("java-version", System.getProperty("java.version"));
+            description.put("captured", new SimpleDateFormat(ReportGenerator.DATE_FORMAT).format(new Date()));
+            description.put("reason", slow ? "latency" : "memory");
+            description.put("payload", payloadName);
+            description.put("payload-bytes", payloadBytes);
+            description.put("raw-bytes", bytes != null);
+            description.put("compressed", compress);
+            description.put("redacted", redact);
+            description.put("tiers", (tiers == null) ? JSONObject.NULL : tiers);
+            description.put("elements", (elements == null) ? JSONObject.NULL : elements);
+            description.put("rules", (rules == null) ? JSONObject.NULL : rules);
+            description.put("stage-threads", stageThreads);
+            description.put("sample-cache-size", sampleCacheSize);
+            description.put("time-ms", (total == null) ? 0 : total.getNanos() / 1000000.0);
+            description.put("allocated-bytes", allocated);
+            description.put("stages", toJson(timings));
+            description.put("report", redactReport(toJson(outcome), sampleIds));
+
+            try(Writer descriptionWriter = new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".json")), StandardCharsets.UTF_8))
+            {
+                descriptionWriter.write(description.toString(2));
+            }
+            logger.info("Captured a " + (slow ? "slow" : "large") + " request as " + name);
+            return new File(directory, name + ".json");
+        }
+        catch(IOException | JSONException e)
+        {
+            logger.error("Unable to capture a slow request", e);
+            return null;
+        }
+    }
+
+    private static int countCaptures(String[] fileNames)
+    {
+        int captures = 0;
+        for(String fileName : fileNames)
+        {
+            captures += (fileName.startsWith("capture-") && fileName.endsWith(".json")) ? 1 : 0;
+        }
+        return captures;
+    }
+
+    /**
+     * Replace the id of every sample with a number, in the order they are first seen.
+     * The number is padded with zeros to the length of the id, so the line and column numbers in the results don't change.
+     * Repeated ids get the same replacement, so samples that shared an id still do.
+     *
+     * @param xml the payload
+     * @param sampleIds the replacement of each id, which is filled in
+     * @return the payload without its sample ids
+     */
+    static String redactSampleIds(String xml, Map<String,String> sampleIds)
+    {
+        Matcher matcher = SAMPLE_ID.matcher(xml);
+        StringBuffer redacted = new StringBuffer(xml.length());
+        while(matcher.find())
+        {
+            String quotedId = matcher.group(2);
+            String id = quotedId.substring(1, quotedId.length() - 1);
+            String replacement = sampleIds.get(id);
+            if(replacement == null)
+            {
+                replacement = String.valueOf(sampleIds.size() + 1);
+                while(replacement.length() < id.length())
+                {
+                    replacement = "0" + replacement;
+                }
+                sampleIds.put(id, replacement);
+            }
+            matcher.appendReplacement(redacted, Matcher.quoteReplacement(matcher.group(1) + quotedId.charAt(0) + replacement + quotedId.charAt(0)));
+        }
+        matcher.appendTail(redacted);
+        return redacted.toString();
+    }
+
+    /**
+     * @return the JSON report of an outcome, without its timestamp, so reports from different runs can be compared
+     */
+    static JSONObject toJson(ValidationOutcome outcome) throws IOException, JSONException
+    {
+        StringWriter report = new StringWriter();
+        JsonReportWriter.write(outcome, report);
+        JSONObject json = new JSONObject(report.toString());
+        json.remove("timestamp");
+        return json;
+    }
+
+    static JSONArray toJson(StageTimings timings) throws JSONException
+    {
+        JSONArray stages = new JSONArray();
+        for(StageTimings.Stage stage : timings.getStages())
+        {
+            stages.put(new JSONObject().put("name", stage.getName()).put("time-ms", stage.getNanos() / 1000000.0).put("allocated-bytes", stage.getAllocatedBytes()));
+        }
+        return stages;
+    }
+
+    /**
+     * Replace the sample ids on a JSON report, the same way they were replaced in the payload.
+     */
+    private static JSONObject redactReport(JSONObject report, Map<String,String> sampleIds) throws JSONException
+    {
+        if(sampleIds.isEmpty())
+        {
+            return report;
+        }
+        JSONObject samples = report.optJSONObject("samples");
+        JSONArray sampleList = (samples == null) ? null : samples.optJSONArray("sample");
+        for(int i = 0; sampleList != null && i < sampleList.length(); i++)
+        {
+            redactKey(sampleList.getJSONObject(i), "id", sampleIds);
+        }
+        for(String key : JSONObject.getNames(report))
+        {
+            JSONArray results = report.optJSONArray(key);
+            for(int i = 0; results != null && i < results.length(); i++)
+            {
+                JSONObject result = results.optJSONObject(i);
+                if(result != null)
+                {
+                    redactKey(result, "sample-id", sampleIds);
+                }
+            }
+        }
+        return report;
+    }
+
+    private static void redactKey(JSONObject json, String key, Map<String,String> sampleIds) throws JSONException
+    {
+        String replacement = sampleIds.get(json.optString(key, null));
+        if(replacement != null)
+        {
+            json.put(key, replacement);
+        }
+    }
+}
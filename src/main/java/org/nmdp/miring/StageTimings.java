@@ -0,0 +1,153 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * StageTimings records how long each stage of a validation took, and how much memory it allocated.
+ * Pass one to MiringValidationEngine.validate to fill it in.
+ *
+ * The stages are "header", "hml", "tier1" and "tier2", in the order they finished, then "total" for the whole validation.
+ * Stages that run at the same time overlap, so they can add up to more than the total.
+ * Allocated bytes are counted on the thread that ran the stage, so tier 2 pattern groups that run on other threads
+ * aren't counted.  They are -1 if the JVM can't measure allocation.
+ * A StageTimings is thread safe.
+*/
+public final class StageTimings
+{
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The time and allocation of one stage.
+     */
+    public static final class Stage
+    {
+        private final String name;
+        private final long nanos;
+        private final long allocatedBytes;
+
+        Stage(String name, long nanos, long allocatedBytes)
+        {
+            this.name = name;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the wall clock time of the stage
+         */
+        public long getNanos()
+        {
+            return nanos;
+        }
+
+        /**
+         * @return the bytes allocated by the stage's thread, or -1 if the JVM can't measure it
+         */
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    /**
+     * @return the bytes the current thread has allocated so far, or -1 if the JVM can't measure it
+     */
+    static long currentThreadAllocatedBytes()
+    {
+        if(threadBean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Record a stage which ran on the current thread.
+     *
+     * @param name the name of the stage
+     * @param startNanos the System.nanoTime() when the stage started
+     * @param startAllocatedBytes currentThreadAllocatedBytes() when the stage started
+     */
+    void record(String name, long startNanos, long startAllocatedBytes)
+    {
+        long allocatedBytes = currentThreadAllocatedBytes();
+        Stage stage = new Stage(name, System.nanoTime() - startNanos, (allocatedBytes < 0 || startAllocatedBytes < 0) ? -1 : allocatedBytes - startAllocatedBytes);
+        synchronized(this)
+        {
+            stages.add(stage);
+        }
+    }
+
+    /**
+     * @return the stages recorded so far
+     */
+    public synchronized List<Stage> getStages()
+    {
+        return new ArrayList<Stage>(stages);
+    }
+
+    /**
+     * @param name the name of a stage
+     * @return the stage, or null if it wasn't recorded
+     */
+    public synchronized Stage getStage(String name)
+    {
+        for(Stage stage : stages)
+        {
+            if(stage.getName().equals(name))
+            {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytes allocated by all of the stages except the total, or -1 if the JVM can't measure it
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        long allocatedBytes = 0;
+        for(Stage stage : stages)
+        {
+            if(stage.getAllocatedBytes() < 0)
+            {
+                return -1;
+            }
+            allocatedBytes += stage.getName().equals("total") ? 0 : stage.getAllocatedBytes();
+        }
+        return allocatedBytes;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class lets the web client upload a large HML document in chunks, and resume a failed upload.  See UploadSession.
+ *
+ * POST /uploads with the form parameters size and chunk-size starts an upload.  The JSON reply has its id and number of chunks.
+ * If there are too many uploads already, the reply is 503 (Service Unavailable) with a Retry-After header.
+ * PUT /uploads/{id}/chunks/{n} sends chunk n (from 0) as application/octet-stream.  If the header X-Chunk-SHA256 is set,
+ * the chunk is checked against it.  GET /uploads/{id} lists the chunks which have been received, so an upload can resume.
+ * POST /uploads/{id}/complete, with the same optional form parameters as ValidateMiring (tiers, elements, rules, format),
+ * validates the uploaded file and returns the report, which is negotiated like ValidateMiring's, or streamed after progress events
+ * for text/event-stream.  DELETE /uploads/{id} abandons an upload.
+ * Once every chunk has arrived, POST /uploads/{id}/samples/{n} validates sample n (from 1) on its own, without completing the upload.
+*/
+@Path("/uploads")
+public class UploadService
+{
+    Logger logger = LoggerFactory.getLogger(UploadService.class);
+    static final MediaType COMPACT_XML = MediaType.valueOf("application/vnd.miring.compact+xml");
+    static final MediaType EVENT_STREAM = MediaType.valueOf("text/event-stream");
+    private static final List<Variant> REPORT_VARIANTS = Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE, COMPACT_XML, EVENT_STREAM).add().build();
+    private static final List<Variant> SAMPLE_VARIANTS = Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE, COMPACT_XML).add().build();
+
+    @POST
+    @Produces("application/json")
+    public Response create(@FormParam("size") long size, @FormParam("chunk-size") @DefaultValue("1048576") int chunkSize, @Context UriInfo uriInfo) throws JSONException
+    {
+        try
+        {
+            UploadSession session = UploadSession.create(size, chunkSize);
+            return Response.created(uriInfo.getAbsolutePathBuilder().path(session.getId()).build()).entity(describe(session).toString()).build();
+        }
+        catch(IllegalArgumentException e)
+        {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        catch(IllegalStateException e)
+        {
+            return Response.fromResponse(error(Response.Status.SERVICE_UNAVAILABLE, e.getMessage()))
+                .header("Retry-After", 60).build();
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to start an upload", e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, "Unable to start an upload.");
+        }
+    }
+
+    @GET
+    @Path("{id}")
+    @Produces("application/json")
+    public Response status(@PathParam("id") String id) throws JSONException
+    {
+        UploadSession session = UploadSession.get(id);
+        if(session == null)
+        {
+            return noSession(id);
+        }
+        return Response.ok(describe(session).put("received", session.getReceivedChunks()).toString()).build();
+    }
+
+    @PUT
+    @Path("{id}/chunks/{chunk}")
+    @Consumes("application/octet-stream")
+    @Produces("application/json")
+    public Response putChunk(@PathParam("id") String id, @PathParam("chunk") int chunk, @HeaderParam("X-Chunk-SHA256") String sha256, byte[] bytes) throws JSONException
+    {
+        UploadSession session = UploadSession.get(id);
+        if(session == null)
+        {
+            return noSession(id);
+        }
+        try
+        {
+            session.writeChunk(chunk, bytes, sha256);
+            return Response.ok(new JSONObject().put("chunk", chunk).put("missing", session.getMissingChunks().size()).toString()).build();
+        }
+        catch(IllegalArgumentException e)
+        {
+            return error(Response.Status.BAD_REQUEST, e.getMessage());
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to write chunk " + chunk + " of upload " + id, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, "Unable to write chunk " + chunk + ".");
+        }
+    }
+
+    @DELETE
+    @Path("{id}")
+    public Response delete(@PathParam("id") String id) throws JSONException
+    {
+        UploadSession session = UploadSession.get(id);
+        if(session == null)
+        {
+            return noSession(id);
+        }
+        session.delete();
+        return Response.noContent().build();
+    }
+
+    /**
+     * Validate a completed upload.  The spool file is validated where it is, and deleted afterwards.
+     * Clients that accept text/event-stream get the progress of the validation, then the report, as server-sent events.
+     */
+    @POST
+    @Path("{id}/complete")
+    public Response complete(@PathParam("id") String id, @FormParam("tiers") String tiers, @FormParam("elements") String elements, @FormParam("rules") String rules,
+        @FormParam("format") String format, @Context Request request) throws JSONException
+    {
+        final UploadSession session = UploadSession.get(id);
+        if(session == null)
+        {
+            return noSession(id);
+        }
+        Variant variant = request.selectVariant(REPORT_VARIANTS);
+        MediaType mediaType = (variant == null) ? MediaType.APPLICATION_XML_TYPE : variant.getMediaType();
+        final ValidationOutcome outcome;
+        boolean streaming = false;
+        try
+        {
+            if(!session.complete())
+            {
+                return Response.status(Response.Status.CONFLICT).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(new JSONObject().put("error", "The upload is missing chunks.").put("missing", session.getMissingChunks()).toString()).build();
+            }
+            HmlInput input = HmlInput.fromPath(session.getSpoolFile().toPath());
+            if(mediaType.equals(EVENT_STREAM))
+            {
+                //The stream deletes the upload when its validation is over.
+                streaming = true;
+                return Response.ok(new ProgressEventStream(new MiringValidatorService(), input, tiers, elements, rules, format, new Runnable()
+                {
+                    public void run()
+                    {
+                        session.delete();
+                    }
+                }), EVENT_STREAM).build();
+            }
+            outcome = new MiringValidatorService().validate(input, tiers, elements, rules, null, null);
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to read upload " + id, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, "Unable to read the upload.");
+        }
+        finally
+        {
+            if(!streaming && session.getMissingChunks().isEmpty())
+            {
+                session.delete();
+            }
+        }
+
+        return reportResponse(outcome, mediaType, format);
+    }
+
+    /**
+     * Validate one sample of an upload which has every chunk, without completing it.  An editor can upload a document once,
+     * then validate its samples one at a time.  The report only has the results of the sample.
+     */
+    @POST
+    @Path("{id}/samples/{sample}")
+    public Response validateSample(@PathParam("id") String id, @PathParam("sample") int sample, @FormParam("tiers") String tiers, @FormParam("elements") String elements,
+        @FormParam("rules") String rules, @FormParam("format") String format, @Context Request request) throws JSONException
+    {
+        UploadSession session = UploadSession.get(id);
+        if(session == null)
+        {
+            return noSession(id);
+        }
+        Variant variant = request.selectVariant(SAMPLE_VARIANTS);
+        MediaType mediaType = (variant == null) ? MediaType.APPLICATION_XML_TYPE : variant.getMediaType();
+        HmlSampleIndex index;
+        try
+        {
+            index = session.getSampleIndex();
+        }
+        catch(IllegalStateException e)
+        {
+            return Response.status(Response.Status.CONFLICT).type(MediaType.APPLICATION_JSON_TYPE)
+                .entity(new JSONObject().put("error", "The upload is missing chunks.").put("missing", session.getMissingChunks()).toString()).build();
+        }
+        catch(IOException e)
+        {
+            logger.error("Unable to read upload " + id, e);
+            return error(Response.Status.INTERNAL_SERVER_ERROR, "Unable to read the upload.");
+        }
+        return reportResponse(new MiringValidatorService().validateSample(index, sample, tiers, elements, rules), mediaType, format);
+    }
+
+    private static Response reportResponse(final ValidationOutcome outcome, MediaType mediaType, String format)
+    {
+        if(mediaType.equals(MediaType.APPLICATION_JSON_TYPE))
+        {
+            return Response.ok(new StreamingOutput()
+            {
+                @Override
+                public void write(OutputStream output) throws IOException
+                {
+                    JsonReportWriter.write(outcome, new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                }
+            }, mediaType).build();
+        }
+        boolean compact = mediaType.equals(COMPACT_XML) || ReportGenerator.COMPACT_FORMAT.equals(format);
+        return Response.ok(compact ? outcome.toCompactXml() : outcome.toXml(), compact ? COMPACT_XML : MediaType.APPLICATION_XML_TYPE).build();
+    }
+
+    private static JSONObject describe(UploadSession session) throws JSONException
+    {
+        return new JSONObject().put("id", session.getId()).put("size", session.getSize())
+            .put("chunk-size", session.getChunkSize()).put("chunks", session.getChunkCount());
+    }
+
+    private static Response noSession(String id) throws JSONException
+    {
+        return error(Response.Status.NOT_FOUND, "There is no upload " + id + ", or it has expired.");
+    }
+
+    private static Response error(Response.Status status, String message) throws JSONException
+    {
+        return Response.status(status).type(MediaType.APPLICATION_JSON_TYPE).entity(new JSONObject().put("error", message).toString()).build();
+    }
+}
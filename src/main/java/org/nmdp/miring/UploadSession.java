@@ -0,0 +1,406 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UploadSession is a large HML document which is being uploaded in numbered chunks, so a failed upload can resume
+ * instead of starting again.  See UploadService.
+ *
+ * The size of the document and its chunks are given when the session is created.  Chunks can arrive in any order, and
+ * more than one at a time.  Each one is written straight to its place in a spool file, so the document is never held in memory,
+ * and the completed file is validated with HmlInput.fromPath.  A chunk can be sent again, it just replaces the first copy.
+ *
+ * Sessions which aren't completed are deleted after miring.upload.ttlMinutes (60).  The spool files go in
+ * miring.upload.dir, or the temporary directory.  Documents are limited to miring.upload.maxBytes (1 GB).
+ * There can be at most miring.upload.maxSessions (100) sessions at once, and their documents can add up to at most
+ * miring.upload.maxSpoolBytes (4 GB), counting completed ones until they are deleted.  The spool file is only open
+ * while a chunk is being written, so a session which is waiting for its chunks doesn't hold a file descriptor.
+ *
+ * A completed session stays in the session table, where get() doesn't find it, until it is deleted.  Its validation deletes it,
+ * and if that never happens (the client went away before its report was written) it expires like any other session,
+ * so its spool file and its bytes are always given back.
+*/
+final class UploadSession
+{
+    private static final Logger logger = LoggerFactory.getLogger(UploadSession.class);
+    static final long MAX_BYTES = Math.min(Long.getLong("miring.upload.maxBytes", 1L << 30), Integer.MAX_VALUE);
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(Long.getLong("miring.upload.ttlMinutes", 60));
+    static final int MIN_CHUNK_SIZE = 1024;
+    static final int MAX_CHUNK_SIZE = 64 << 20;
+    static final int MAX_SESSIONS = Integer.getInteger("miring.upload.maxSessions", 100);
+    static final long MAX_SPOOL_BYTES = Long.getLong("miring.upload.maxSpoolBytes", 4L << 30);
+    private static final File SPOOL_DIRECTORY = new File(System.getProperty("miring.upload.dir", new File(System.getProperty("java.io.tmpdir"), "miring-uploads").getPath()));
+    private static final Map<String,UploadSession> sessions = new ConcurrentHashMap<String,UploadSession>();
+    //The sizes of the documents of the sessions which haven't been deleted yet.  Guarded by sessions.
+    private static long spoolBytes;
+
+    private final String id;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final File spoolFile;
+    private final BitSet receivedChunks;
+    //Chunk writes hold the read lock, so several can run at once, and complete() takes the write lock to wait for them.
+    private final ReadWriteLock chunkLock = new ReentrantReadWriteLock();
+    private volatile long lastUsed;
+    private boolean closed;
+    private boolean deleted;
+    //The samples of the received document, found the first time one of them is validated.
+    private HmlSampleIndex sampleIndex;
+
+    private UploadSession(String id, long size, int chunkSize, File spoolFile) throws IOException
+    {
+        this.id = id;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int)((size + chunkSize - 1) / chunkSize);
+        this.spoolFile = spoolFile;
+        this.receivedChunks = new BitSet(chunkCount);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Start an upload.
+     *
+     * @param size the size of the document in bytes
+     * @param chunkSize the size of every chunk but the last one
+     * @return the new session
+     * @throws IllegalArgumentException if the sizes aren't allowed
+     * @throws IllegalStateException if there are already too many sessions, or too many bytes being uploaded
+     * @throws IOException if the spool file can't be created
+     */
+    static UploadSession create(long size, int chunkSize) throws IOException
+    {
+        if(size <= 0 || size > MAX_BYTES)
+        {
+            throw new IllegalArgumentException("The size must be between 1 and " + MAX_BYTES + " bytes.");
+        }
+        if(chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE)
+        {
+            throw new IllegalArgumentException("The chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + " bytes.");
+        }
+        expireSessions();
+        if(!SPOOL_DIRECTORY.isDirectory() && !SPOOL_DIRECTORY.mkdirs())
+        {
+            throw new IOException("Unable to create " + SPOOL_DIRECTORY);
+        }
+        String id = UUID.randomUUID().toString();
+        UploadSession session = new UploadSession(id, size, chunkSize, new File(SPOOL_DIRECTORY, "upload-" + id + ".xml"));
+        synchronized(sessions)
+        {
+            if(sessions.size() >= MAX_SESSIONS)
+            {
+                throw new IllegalStateException("There are already " + MAX_SESSIONS + " uploads, try again later.");
+            }
+            if(spoolBytes + size > MAX_SPOOL_BYTES)
+            {
+                throw new IllegalStateException("There isn't room for another " + size + " bytes of uploads, try again later.");
+            }
+            spoolBytes += size;
+            sessions.put(id, session);
+        }
+        try
+        {
+            if(!session.spoolFile.createNewFile())
+            {
+                throw new IOException("The spool file " + session.spoolFile + " already exists.");
+            }
+        }
+        catch(IOException e)
+        {
+            session.delete();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * @return the session, or null if there isn't one with the id, or it has expired, or it has been completed
+     */
+    static UploadSession get(String id)
+    {
+        UploadSession session = (id == null) ? null : sessions.get(id);
+        if(session != null && session.isExpired(System.currentTimeMillis()))
+        {
+            session.delete();
+            return null;
+        }
+        return (session == null || session.isClosed()) ? null : session;
+    }
+
+    private synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    private static void expireSessions()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<UploadSession> iterator = sessions.values().iterator();
+        while(iterator.hasNext())
+        {
+            UploadSession session = iterator.next();
+            if(session.isExpired(now))
+            {
+                logger.info("Deleting the expired upload " + session.id);
+                session.delete();
+            }
+        }
+    }
+
+    private boolean isExpired(long now)
+    {
+        return now - lastUsed > TTL_MILLIS;
+    }
+
+    String getId()
+    {
+        return id;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    File getSpoolFile()
+    {
+        return spoolFile;
+    }
+
+    /**
+     * @return the numbers of the chunks which have been received
+     */
+    synchronized List<Integer> getReceivedChunks()
+    {
+        List<Integer> chunks = new ArrayList<Integer>(receivedChunks.cardinality());
+        for(int chunk = receivedChunks.nextSetBit(0); chunk >= 0; chunk = receivedChunks.nextSetBit(chunk + 1))
+        {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * @return the numbers of the chunks which haven't been received yet
+     */
+    synchronized List<Integer> getMissingChunks()
+    {
+        List<Integer> chunks = new ArrayList<Integer>(chunkCount - receivedChunks.cardinality());
+        for(int chunk = receivedChunks.nextClearBit(0); chunk < chunkCount; chunk = receivedChunks.nextClearBit(chunk + 1))
+        {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Write a chunk to its place in the spool file.
+     *
+     * @param chunk the number of the chunk, starting at 0
+     * @param bytes the chunk
+     * @param sha256 the SHA-256 of the chunk, in hex, or null to not check it
+     * @throws IllegalArgumentException if the chunk number or length is wrong, or the checksum doesn't match
+     * @throws IOException if the chunk can't be written
+     */
+    void writeChunk(int chunk, byte[] bytes, String sha256) throws IOException
+    {
+        if(chunk < 0 || chunk >= chunkCount)
+        {
+            throw new IllegalArgumentException("There is no chunk " + chunk + ", the chunks are numbered 0 to " + (chunkCount - 1) + ".");
+        }
+        long position = (long)chunk * chunkSize;
+        long expectedLength = Math.min(chunkSize, size - position);
+        if(bytes.length != expectedLength)
+        {
+            throw new IllegalArgumentException("Chunk " + chunk + " should be " + expectedLength + " bytes, not " + bytes.length + ".");
+        }
+        if(sha256 != null && !sha256.equalsIgnoreCase(sha256(bytes)))
+        {
+            throw new IllegalArgumentException("The checksum of chunk " + chunk + " doesn't match.");
+        }
+        lastUsed = System.currentTimeMillis();
+        chunkLock.readLock().lock();
+        try
+        {
+            synchronized(this)
+            {
+                if(closed)
+                {
+                    throw new IOException("The upload " + id + " is finished.");
+                }
+            }
+            //Each write opens its own channel, and positioned writes don't move it, so chunks can be written at the same time.
+            FileChannel channel = FileChannel.open(spoolFile.toPath(), StandardOpenOption.WRITE);
+            try
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while(buffer.hasRemaining())
+                {
+                    channel.write(buffer, position + buffer.position());
+                }
+            }
+            finally
+            {
+                channel.close();
+            }
+            synchronized(this)
+            {
+                receivedChunks.set(chunk);
+                sampleIndex = null;
+            }
+        }
+        finally
+        {
+            chunkLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index the samples of the document, so they can be validated one at a time before the upload is completed.
+     * The index is kept until a chunk is written again.
+     *
+     * @return the index, or null if the document can't be indexed
+     * @throws IllegalStateException if some chunks haven't been received
+     * @throws IOException if the spool file can't be read
+     */
+    synchronized HmlSampleIndex getSampleIndex() throws IOException
+    {
+        if(receivedChunks.cardinality() != chunkCount)
+        {
+            throw new IllegalStateException("The upload " + id + " is missing chunks.");
+        }
+        if(sampleIndex == null)
+        {
+            lastUsed = System.currentTimeMillis();
+            sampleIndex = HmlSampleIndex.scan(HmlInput.fromPath(spoolFile.toPath()));
+        }
+        return sampleIndex;
+    }
+
+    /**
+     * Finish the upload, so the spool file can be validated.  This waits for the chunks which are being written,
+     * and no chunk can be written after it.
+     *
+     * @return true if every chunk has been received.  If not, the session stays open.
+     */
+    boolean complete()
+    {
+        chunkLock.writeLock().lock();
+        try
+        {
+            synchronized(this)
+            {
+                if(receivedChunks.cardinality() != chunkCount)
+                {
+                    return false;
+                }
+                if(!closed)
+                {
+                    closed = true;
+                    lastUsed = System.currentTimeMillis();
+                }
+                return true;
+            }
+        }
+        finally
+        {
+            chunkLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Abandon the upload, and delete its spool file.  A completed upload is deleted once it has been validated.
+     */
+    void delete()
+    {
+        synchronized(this)
+        {
+            closed = true;
+            if(deleted)
+            {
+                return;
+            }
+            deleted = true;
+        }
+        synchronized(sessions)
+        {
+            sessions.remove(id);
+            spoolBytes -= size;
+        }
+        if(spoolFile.exists() && !spoolFile.delete())
+        {
+            logger.warn("Unable to delete the spool file " + spoolFile);
+        }
+    }
+
+    static String sha256(byte[] bytes)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte b : digest)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            //Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
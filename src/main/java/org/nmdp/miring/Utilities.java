@@ -24,7 +24,7 @@ package org.nmdp.miring;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
@@ -37,11 +37,8 @@ import java.util.List;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -56,6 +53,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 
 /** 
  * This class provides various utilities used during MIRING validation.  
@@ -198,9 +196,7 @@ public class Utilities
     {
         try
         {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new InputSource(new StringReader(xml)));
+            Document document = XmlFactories.parseDocument(new InputSource(new StringReader(xml)), false);
             return document;
         }
         catch(Exception e)
@@ -222,9 +218,10 @@ public class Utilities
     {
         //
         String xmlString = null;
+        Transformer transformer = null;
         try
         {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer = XmlFactories.acquireTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
 
@@ -237,6 +234,13 @@ public class Utilities
         {
             logger.error("Error generating XML String",e);
         }
+        finally
+        {
+            if(transformer != null)
+            {
+                XmlFactories.releaseTransformer(transformer);
+            }
+        }
         return xmlString;
     }
     
@@ -327,6 +331,7 @@ public class Utilities
 
     /**
      * Concatenate and sort two arrays of Validation Error objects.  
+     * The validator puts results in the same order with a ValidationResultSink, which doesn't copy and sort for every combination.
      *
      * @param firstErrorArray An Array of ValidationError objects
      * @param secondErrorArray An Array of ValidationError objects
@@ -400,11 +405,21 @@ public class Utilities
      * @return a String containing the read XML
      */
     public static String readXmlResource(String xmlResourceName)
+    {
+        return readXmlResource(SchematronValidator.class.getResource(xmlResourceName));
+    }
+
+    /**
+     * Read an xml file, like a resource of a RuleSet.  Returns a String containing the XML.
+     *
+     * @param xmlResource the URL of the XML resource
+     * @return a String containing the read XML, or null if it can't be read
+     */
+    static String readXmlResource(URL xmlResource)
     {
         try
         {
-            File schemaFileURL = new File(SchematronValidator.class.getResource(xmlResourceName).getFile());
-            BufferedReader xmlReader = new BufferedReader(new FileReader(schemaFileURL));
+            BufferedReader xmlReader = new BufferedReader(new InputStreamReader(xmlResource.openStream()));
             
             StringBuilder xmlBuffer = new StringBuilder();
             String line = xmlReader.readLine();
@@ -427,6 +442,20 @@ public class Utilities
         }
     }
 
+    /**
+     * Stop a SAX parse if this thread has been interrupted.  This is how a cancelled validation stage stops early.
+     * Call it from a ContentHandler, the parser stops with the exception.
+     *
+     * @throws SAXException if the current thread has been interrupted
+     */
+    public static void checkForCancellation() throws SAXException
+    {
+        if(Thread.currentThread().isInterrupted())
+        {
+            throw new SAXException("Validation stage cancelled.");
+        }
+    }
+
     /**
      * Convert an Attributes object into a String, for descriptive use in ValidationError objects.  The String will look like this:
      * {name1:value1}, {name2:value2}, ... {nameX:valueX}
@@ -0,0 +1,391 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nmdp.miring.ValidationResult.Severity;
+
+/**
+ * The outcome of a MIRING validation: everything that goes on the results report, as objects.
+ *
+ * An outcome is immutable once it is built.  Its lists are unmodifiable, and its results are read-only, so their setters
+ * throw UnsupportedOperationException.  Embedded callers can read the results directly,
+ * and toXml() generates the MIRING Results Report only when it's needed.
+*/
+public final class ValidationOutcome
+{
+    /**
+     * The compliance values used on the results report.
+    */
+    public enum Compliance
+    {
+        TRUE("true"), FALSE("false"), REJECT("reject"), WARNINGS("warnings");
+
+        private final String reportValue;
+
+        Compliance(String reportValue)
+        {
+            this.reportValue = reportValue;
+        }
+
+        /**
+         * @return the text used for this value on the results report
+         */
+        public String getReportValue()
+        {
+            return reportValue;
+        }
+    }
+
+    /**
+     * The compliance of a single sample.
+    */
+    public static final class SampleStatus
+    {
+        private final String id;
+        private final String centerCode;
+        private final boolean miringCompliant;
+        private final boolean hmlCompliant;
+
+        SampleStatus(String id, String centerCode, boolean miringCompliant, boolean hmlCompliant)
+        {
+            this.id = id;
+            this.centerCode = centerCode;
+            this.miringCompliant = miringCompliant;
+            this.hmlCompliant = hmlCompliant;
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        public String getCenterCode()
+        {
+            return centerCode;
+        }
+
+        public boolean isMiringCompliant()
+        {
+            return miringCompliant;
+        }
+
+        public boolean isHmlCompliant()
+        {
+            return hmlCompliant;
+        }
+    }
+
+    private final Compliance hmlCompliance;
+    private final Compliance miringCompliance;
+    private final String hmlIdRoot;
+    private final String hmlIdExtension;
+    private final Map<String,String> properties;
+    private final List<SampleStatus> samples;
+    private final List<ValidationResult> results;
+    //The results of each severity, in the same order.  The reports are written a severity at a time.
+    private final Map<Severity,List<ValidationResult>> resultsBySeverity;
+    private final RuleSelection evaluatedRules;
+    private final RuleSet ruleSet;
+
+    /**
+     * Build an outcome from the results of a validation.  Sample IDs are assigned to the results, and similar results are combined.
+     *
+     * @param validationResults an array of ValidationResult objects
+     * @param root the root attribute on the HMLID node of the source XML
+     * @param extension the extension attribute on the HMLID node of the source XML
+     * @param properties the property values from the root of the source XML
+     * @param sampleIDs the samples found in the source XML
+     * @param hmlstart the index of the first hml schema result in validationResults.  Only those are used for sample hml compliance.
+     */
+    ValidationOutcome(ValidationResult[] validationResults, String root, String extension, Map<String,String> properties, Sample[] sampleIDs, int hmlstart)
+    {
+        this(validationResults, root, extension, properties, sampleIDs, hmlstart, null);
+    }
+
+    /**
+     * Build an outcome from the results of a validation, which evaluated a selection of tiers and rules.
+     *
+     * @param validationResults an array of ValidationResult objects
+     * @param root the root attribute on the HMLID node of the source XML
+     * @param extension the extension attribute on the HMLID node of the source XML
+     * @param properties the property values from the root of the source XML
+     * @param sampleIDs the samples found in the source XML
+     * @param hmlstart the index of the first hml schema result in validationResults.  Only those are used for sample hml compliance.
+     * @param evaluatedRules the tiers and rules which were evaluated, or null if that isn't known.
+     */
+    ValidationOutcome(ValidationResult[] validationResults, String root, String extension, Map<String,String> properties, Sample[] sampleIDs, int hmlstart, RuleSelection evaluatedRules)
+    {
+        this(validationResults, null, root, extension, properties, sampleIDs, hmlstart, evaluatedRules);
+    }
+
+    /**
+     * Build an outcome from the results a validation collected in a sink.  The results of each severity are read from the sink's buckets,
+     * instead of scanning every result for them.
+     *
+     * @param sink the results, which are in report order
+     * @param root the root attribute on the HMLID node of the source XML
+     * @param extension the extension attribute on the HMLID node of the source XML
+     * @param properties the property values from the root of the source XML
+     * @param sampleIDs the samples found in the source XML
+     * @param hmlstart the index of the first hml schema result in the results.  Only those are used for sample hml compliance.
+     * @param evaluatedRules the tiers and rules which were evaluated, or null if that isn't known.
+     */
+    ValidationOutcome(ValidationResultSink sink, String root, String extension, Map<String,String> properties, Sample[] sampleIDs, int hmlstart, RuleSelection evaluatedRules)
+    {
+        this(sink.toArray(), sink, root, extension, properties, sampleIDs, hmlstart, evaluatedRules);
+    }
+
+    private ValidationOutcome(ValidationResult[] validationResults, ValidationResultSink sink, String root, String extension, Map<String,String> properties,
+        Sample[] sampleIDs, int hmlstart, RuleSelection evaluatedRules)
+    {
+        this.evaluatedRules = evaluatedRules;
+        this.ruleSet = null;
+        validationResults = ReportGenerator.assignSampleIDs(validationResults, sampleIDs);
+        validationResults = ReportGenerator.combineSimilarResults(validationResults);
+        if(validationResults != null)
+        {
+            for(ValidationResult result : validationResults)
+            {
+                result.makeReadOnly();
+            }
+        }
+
+        this.hmlCompliance = computeHmlCompliance(validationResults);
+        this.miringCompliance = computeMiringCompliance(validationResults);
+        this.hmlIdRoot = root;
+        this.hmlIdExtension = extension;
+        this.properties = (properties == null)
+            ? Collections.<String,String>emptyMap()
+            : Collections.unmodifiableMap(new HashMap<String,String>(properties));
+
+        List<SampleStatus> sampleStatuses = new ArrayList<SampleStatus>();
+        if(sampleIDs != null)
+        {
+            for(Sample sample : sampleIDs)
+            {
+                sampleStatuses.add(new SampleStatus(sample.id, sample.centerCode,
+                    !ReportGenerator.doesSampleHaveMiringErrors(sample.id, validationResults),
+                    !ReportGenerator.doesSampleHaveHMLErrors(sample.id, validationResults, hmlstart)));
+            }
+        }
+        this.samples = Collections.unmodifiableList(sampleStatuses);
+        this.results = (validationResults == null)
+            ? Collections.<ValidationResult>emptyList()
+            : Collections.unmodifiableList(Arrays.asList(validationResults.clone()));
+
+        if(sink != null)
+        {
+            //The combined results are dropped from the sink, so its buckets hold the same results in the same order.
+            sink.retainAll(validationResults);
+            this.resultsBySeverity = sink.toSeverityLists();
+            return;
+        }
+        Map<Severity,List<ValidationResult>> severityResults = new EnumMap<Severity,List<ValidationResult>>(Severity.class);
+        for(ValidationResult result : results)
+        {
+            List<ValidationResult> resultsOfSeverity = severityResults.get(result.getSeverity());
+            if(resultsOfSeverity == null)
+            {
+                resultsOfSeverity = new ArrayList<ValidationResult>();
+                severityResults.put(result.getSeverity(), resultsOfSeverity);
+            }
+            resultsOfSeverity.add(result);
+        }
+        for(Map.Entry<Severity,List<ValidationResult>> entry : severityResults.entrySet())
+        {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        this.resultsBySeverity = severityResults;
+    }
+
+    private ValidationOutcome(ValidationOutcome outcome, RuleSet ruleSet)
+    {
+        this.hmlCompliance = outcome.hmlCompliance;
+        this.miringCompliance = outcome.miringCompliance;
+        this.hmlIdRoot = outcome.hmlIdRoot;
+        this.hmlIdExtension = outcome.hmlIdExtension;
+        this.properties = outcome.properties;
+        this.samples = outcome.samples;
+        this.results = outcome.results;
+        this.resultsBySeverity = outcome.resultsBySeverity;
+        this.evaluatedRules = outcome.evaluatedRules;
+        this.ruleSet = ruleSet;
+    }
+
+    /**
+     * @param ruleSet the rule set the validation used
+     * @return a copy of this outcome, which records the rule set
+     */
+    ValidationOutcome withRuleSet(RuleSet ruleSet)
+    {
+        return new ValidationOutcome(this, ruleSet);
+    }
+
+    private static Compliance computeHmlCompliance(ValidationResult[] validationResults)
+    {
+        return (validationResults == null) ? Compliance.FALSE
+            : (validationResults.length == 0) ? Compliance.TRUE
+            : (Utilities.hasRejects(validationResults)) ? Compliance.REJECT
+            : (Utilities.isHMLCompliant(validationResults)) ? Compliance.TRUE
+            : Compliance.FALSE;
+    }
+
+    private static Compliance computeMiringCompliance(ValidationResult[] validationResults)
+    {
+        return (validationResults == null) ? Compliance.FALSE
+            : (validationResults.length == 0) ? Compliance.TRUE
+            : (Utilities.hasRejects(validationResults)) ? Compliance.REJECT
+            : (Utilities.hasHMLFatalErrors(validationResults)) ? Compliance.FALSE
+            : (Utilities.isMiringCompliant(validationResults)) ? Compliance.TRUE
+            : (Utilities.hasMiringErrors(validationResults)) ? Compliance.FALSE
+            : (Utilities.hasWarnings(validationResults)) ? Compliance.WARNINGS
+            : Compliance.FALSE;
+    }
+
+    public Compliance getHmlCompliance()
+    {
+        return hmlCompliance;
+    }
+
+    public Compliance getMiringCompliance()
+    {
+        return miringCompliance;
+    }
+
+    /**
+     * @return true if the document was rejected before MIRING validation could finish
+     */
+    public boolean isRejected()
+    {
+        return hmlCompliance == Compliance.REJECT || miringCompliance == Compliance.REJECT;
+    }
+
+    public boolean isHmlCompliant()
+    {
+        return hmlCompliance == Compliance.TRUE;
+    }
+
+    /**
+     * @return true if the document is MIRING compliant.  Documents with only warnings are compliant.
+     */
+    public boolean isMiringCompliant()
+    {
+        return miringCompliance == Compliance.TRUE || miringCompliance == Compliance.WARNINGS;
+    }
+
+    public String getHmlIdRoot()
+    {
+        return hmlIdRoot;
+    }
+
+    public String getHmlIdExtension()
+    {
+        return hmlIdExtension;
+    }
+
+    /**
+     * @return an unmodifiable map of the property nodes underneath the root HML node.  Empty if there are none.
+     */
+    public Map<String,String> getProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * @return an unmodifiable list of the samples, in document order.
+     */
+    public List<SampleStatus> getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * @return an unmodifiable list of the validation results, which are read-only.  Similar results have already been combined.
+     */
+    public List<ValidationResult> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * @param severity a severity
+     * @return an unmodifiable list of the validation results of that severity, in the same order as getResults().  Empty if there are none.
+     */
+    public List<ValidationResult> getResults(Severity severity)
+    {
+        List<ValidationResult> severityResults = resultsBySeverity.get(severity);
+        return (severityResults == null) ? Collections.<ValidationResult>emptyList() : severityResults;
+    }
+
+    /**
+     * @return the tiers and rules which were evaluated.  Null if the validation stopped before anything was evaluated.
+     */
+    public RuleSelection getEvaluatedRules()
+    {
+        return evaluatedRules;
+    }
+
+    /**
+     * @return the rule set the validation used.  Null if the outcome wasn't made by a MiringValidationEngine.
+     */
+    public RuleSet getRuleSet()
+    {
+        return ruleSet;
+    }
+
+    /**
+     * @return the version of the rule set the validation used, or null if it isn't known
+     */
+    public String getRuleSetVersion()
+    {
+        return (ruleSet == null) ? null : ruleSet.getVersion();
+    }
+
+    /**
+     * Generate the MIRING Results Report for this outcome.
+     *
+     * @return a String containing MIRING Results Report
+     */
+    public String toXml()
+    {
+        return ReportGenerator.generateReport(this);
+    }
+
+    /**
+     * Generate the compact MIRING Results Report for this outcome, which lists each rule's description and solution once.
+     *
+     * @return a String containing the compact MIRING Results Report
+     */
+    public String toCompactXml()
+    {
+        return ReportGenerator.generateCompactReport(this);
+    }
+}
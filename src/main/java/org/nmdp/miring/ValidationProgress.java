@@ -0,0 +1,172 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.nmdp.miring.ValidationResult.Severity;
+
+/**
+ * ValidationProgress shows how far along a validation is, while it runs.  Pass one to MiringValidationEngine.validate,
+ * and read it from another thread, like the progress events of MiringValidatorService.
+ *
+ * The stages are "header", "hml", "tier1" and "tier2", like StageTimings.  Each one is waiting, running, finished,
+ * or skipped if it was not selected or was cancelled.  The schema stages count the samples they have passed, and the results
+ * they have found, as they go.  When a stage finishes its counts are replaced with the results it returned,
+ * including the remembered results of unchanged samples.  Tier 2 results are only counted when tier 2 finishes.
+ * The counts are of the results found so far, before they are combined on the report.
+ *
+ * The stages only update counters, so they pay for a few atomic increments rather than a callback for each node.
+ * A ValidationProgress is thread safe.
+*/
+public final class ValidationProgress
+{
+    public enum State
+    {
+        WAITING, RUNNING, FINISHED, SKIPPED
+    }
+
+    static final String[] STAGES = {"header", "hml", "tier1", "tier2"};
+    static final int HEADER = 0;
+    static final int HML = 1;
+    static final int TIER1 = 2;
+    static final int TIER2 = 3;
+    private static final State[] STATES = State.values();
+    private static final int SEVERITIES = Severity.values().length;
+
+    private final AtomicIntegerArray states = new AtomicIntegerArray(STAGES.length);
+    private final AtomicIntegerArray samplesProcessed = new AtomicIntegerArray(STAGES.length);
+    //The results of each stage, by severity.
+    private final AtomicLongArray resultCounts = new AtomicLongArray(STAGES.length * SEVERITIES);
+    private volatile int sampleCount = -1;
+    //Samples whose results are remembered from an earlier validation, so no stage passes them.
+    private volatile int reusedSamples = 0;
+
+    static int getStage(String name)
+    {
+        for(int stage = 0; stage < STAGES.length; stage++)
+        {
+            if(STAGES[stage].equals(name))
+            {
+                return stage;
+            }
+        }
+        throw new IllegalArgumentException("There is no stage " + name);
+    }
+
+    void stageStarted(int stage)
+    {
+        states.compareAndSet(stage, State.WAITING.ordinal(), State.RUNNING.ordinal());
+    }
+
+    void stageFinished(int stage)
+    {
+        states.set(stage, State.FINISHED.ordinal());
+    }
+
+    /**
+     * The validation is over.  Stages that never started were skipped.
+     */
+    void finish()
+    {
+        for(int stage = 0; stage < STAGES.length; stage++)
+        {
+            states.compareAndSet(stage, State.WAITING.ordinal(), State.SKIPPED.ordinal());
+        }
+    }
+
+    void setSampleCount(int sampleCount, int reusedSamples)
+    {
+        this.reusedSamples = reusedSamples;
+        this.sampleCount = sampleCount;
+    }
+
+    void sampleProcessed(int stage)
+    {
+        samplesProcessed.incrementAndGet(stage);
+    }
+
+    void resultFound(int stage, Severity severity)
+    {
+        resultCounts.incrementAndGet(stage * SEVERITIES + severity.ordinal());
+    }
+
+    /**
+     * Replace the running counts of a stage with the results it returned.
+     */
+    void setResults(int stage, ValidationResult[] results)
+    {
+        long[] counts = new long[SEVERITIES];
+        if(results != null)
+        {
+            for(ValidationResult result : results)
+            {
+                counts[result.getSeverity().ordinal()]++;
+            }
+        }
+        for(int severity = 0; severity < SEVERITIES; severity++)
+        {
+            resultCounts.set(stage * SEVERITIES + severity, counts[severity]);
+        }
+    }
+
+    /**
+     * @param stage the name of a stage
+     * @return the state of the stage
+     */
+    public State getState(String stage)
+    {
+        return STATES[states.get(getStage(stage))];
+    }
+
+    /**
+     * @return the number of samples in the document, or -1 if it isn't known yet, or can't be found without parsing
+     */
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of samples that the furthest along schema stage has passed
+     */
+    public int getSamplesProcessed()
+    {
+        return reusedSamples + Math.max(samplesProcessed.get(HML), samplesProcessed.get(TIER1));
+    }
+
+    /**
+     * @param severity a severity
+     * @return the number of results with the severity found so far
+     */
+    public long getResultCount(Severity severity)
+    {
+        long count = 0;
+        for(int stage = 0; stage < STAGES.length; stage++)
+        {
+            count += resultCounts.get(stage * SEVERITIES + severity.ordinal());
+        }
+        return count;
+    }
+}
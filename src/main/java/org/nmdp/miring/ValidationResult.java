@@ -22,20 +22,81 @@
 */
 package org.nmdp.miring;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** 
  * A simple class for storing a Validation Result.  They are sorted by MIRING Rule ID.
+ *
+ * The error and solution text are either plain strings, or a shared ResultText and its parameters.
+ * The text of a templated result is put together when it is read.
+ *
+ * A result is read-only once it is part of a ValidationOutcome, and its setters throw UnsupportedOperationException.
 */
 public class ValidationResult implements Comparable<ValidationResult>
 {
+    //A line number at the start of a schema validation result, like "[39,46] Invalid content..."
+    private static final Pattern LINE_PATTERN = Pattern.compile("^\\[(\\d+),");
+
     String errorText;
     String solutionText;
+    ResultText errorTemplate;
+    String[] errorParameters;
+    ResultText solutionTemplate;
+    String[] solutionParameters;
     String miringRule;
     String sampleID;
-    List<String> xPaths;
+    List<XPath> xPaths;
     Severity severity;
+    private boolean readOnly;
+
+    /**
+     * TextKey looks up results by their MIRING rule and error text, without putting the text together.
+     * The key of a result with a template holds the template and its parameters, and the key of any other result holds its text.
+    */
+    static final class TextKey
+    {
+        private final String miringRule;
+        private final ResultText template;
+        private final String[] parameters;
+        private final String text;
+        private final int hash;
+
+        private TextKey(ValidationResult result)
+        {
+            this.miringRule = result.miringRule;
+            this.template = result.errorTemplate;
+            this.parameters = (template == null) ? null : result.errorParameters;
+            this.text = (template == null) ? result.errorText : null;
+            int textHash = (template == null) ? String.valueOf(text).hashCode() : 31 * System.identityHashCode(template) + Arrays.hashCode(parameters);
+            this.hash = 31 * String.valueOf(miringRule).hashCode() + textHash;
+        }
+
+        @Override
+        public boolean equals(Object otherObject)
+        {
+            if(!(otherObject instanceof TextKey))
+            {
+                return false;
+            }
+            TextKey otherKey = (TextKey) otherObject;
+            return hash == otherKey.hash
+                && String.valueOf(miringRule).equals(String.valueOf(otherKey.miringRule))
+                && template == otherKey.template
+                && Arrays.equals(parameters, otherKey.parameters)
+                && String.valueOf(text).equals(String.valueOf(otherKey.text));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
 
     public enum Severity
     {
@@ -57,20 +118,34 @@ public class ValidationResult implements Comparable<ValidationResult>
         this.errorText = errorText;
         this.severity = severity;
         this.solutionText = "";
-        this.xPaths = new ArrayList<String>();
+        this.xPaths = new ArrayList<XPath>();
         this.miringRule = "";
     }
+
+    /**
+     * Constructor for a ValidationResult whose error text is a shared template.
+     *
+     * @param errorTemplate the template of the error text.
+     * @param errorParameters the parameters of the template.
+     * @param severity the severity of a ValidationResult
+     */
+    ValidationResult(ResultText errorTemplate, String[] errorParameters, Severity severity)
+    {
+        this(null, severity);
+        this.errorTemplate = errorTemplate;
+        this.errorParameters = errorParameters;
+    }
     
     @Override
     public boolean equals(Object otherObject) 
     {
         ValidationResult otherError = (ValidationResult) otherObject;
         if(
-            this.errorText.equals(otherError.errorText)
-            && this.severity == otherError.severity
-            && this.solutionText.equals(otherError.solutionText)
-            && this.xPaths.equals(otherError.xPaths)
+            this.severity == otherError.severity
             && this.miringRule.equals(otherError.miringRule)
+            && this.xPaths.equals(otherError.xPaths)
+            && hasSameErrorText(otherError)
+            && hasSameSolutionText(otherError)
         )
         {
             return true;
@@ -92,7 +167,7 @@ public class ValidationResult implements Comparable<ValidationResult>
         
         if(miringRuleIDCompare == 0)
         {
-            return this.getErrorText().compareTo(((ValidationResult)(o)).getErrorText());
+            return compareErrorText(o);
         }
         else
         {
@@ -102,12 +177,56 @@ public class ValidationResult implements Comparable<ValidationResult>
 
     public String getErrorText()
     {
-        return errorText;
+        return (errorTemplate == null) ? errorText : errorTemplate.format(errorParameters);
     }
 
     public String getSolutionText()
     {
-        return solutionText;
+        return (solutionTemplate == null) ? solutionText : solutionTemplate.format(solutionParameters);
+    }
+
+    /**
+     * @return the order of the error text of this result and the other result.  Results with the same template are compared by their parameters.
+     */
+    int compareErrorText(ValidationResult otherResult)
+    {
+        if(errorTemplate != null && errorTemplate == otherResult.errorTemplate)
+        {
+            return errorTemplate.compare(errorParameters, otherResult.errorParameters);
+        }
+        return getErrorText().compareTo(otherResult.getErrorText());
+    }
+
+    /**
+     * @return a key for the rule and error text of this result.  Templated results are keyed by their template and parameters.
+     */
+    TextKey getTextKey()
+    {
+        return new TextKey(this);
+    }
+
+    /**
+     * @return true if the other result has the same error text.  Results with the same template and parameters are equal without building their text.
+     */
+    boolean hasSameErrorText(ValidationResult otherResult)
+    {
+        if(errorTemplate != null && errorTemplate == otherResult.errorTemplate && Arrays.equals(errorParameters, otherResult.errorParameters))
+        {
+            return true;
+        }
+        return getErrorText().equals(otherResult.getErrorText());
+    }
+
+    /**
+     * @return true if the other result has the same solution text.
+     */
+    boolean hasSameSolutionText(ValidationResult otherResult)
+    {
+        if(solutionTemplate != null && solutionTemplate == otherResult.solutionTemplate && Arrays.equals(solutionParameters, otherResult.solutionParameters))
+        {
+            return true;
+        }
+        return getSolutionText().equals(otherResult.getSolutionText());
     }
     
     public String getMiringRule()
@@ -117,7 +236,18 @@ public class ValidationResult implements Comparable<ValidationResult>
 
     public void setSolutionText(String solutionText)
     {
+        checkWritable();
         this.solutionText = solutionText;
+        this.solutionTemplate = null;
+        this.solutionParameters = null;
+    }
+
+    void setSolutionText(ResultText solutionTemplate, String[] solutionParameters)
+    {
+        checkWritable();
+        this.solutionText = null;
+        this.solutionTemplate = solutionTemplate;
+        this.solutionParameters = solutionParameters;
     }
 
     public Severity getSeverity()
@@ -127,26 +257,55 @@ public class ValidationResult implements Comparable<ValidationResult>
     
     public void setSeverity(Severity severity)
     {
+        checkWritable();
         this.severity = severity;
     }
     
+    /**
+     * @return the xpaths of the result.  The strings are put together as they are read.
+     */
     public List<String> getXPaths()
     {
-        return xPaths;
+        return new AbstractList<String>()
+        {
+            @Override
+            public String get(int index)
+            {
+                XPath xPath = xPaths.get(index);
+                return (xPath == null) ? null : xPath.toString();
+            }
+
+            @Override
+            public int size()
+            {
+                return xPaths.size();
+            }
+        };
     }
 
     public void addXPath(String xPath)
     {
+        checkWritable();
+        this.xPaths.add(XPath.parse(xPath, null));
+    }
+
+    void addXPath(XPath xPath)
+    {
+        checkWritable();
         this.xPaths.add(xPath);
     }
 
     public void setErrorText(String errorText)
     {
+        checkWritable();
         this.errorText = errorText;
+        this.errorTemplate = null;
+        this.errorParameters = null;
     }
 
     public void setMiringRule(String miringRule)
     {
+        checkWritable();
         this.miringRule = miringRule;
     }
     
@@ -157,7 +316,64 @@ public class ValidationResult implements Comparable<ValidationResult>
     
     public void setSampleID(String sampleID)
     {
+        checkWritable();
         this.sampleID = sampleID;
     }
 
+    /**
+     * Stop this result from being changed.  A ValidationOutcome does this to its results once it has combined them.
+     */
+    void makeReadOnly()
+    {
+        readOnly = true;
+    }
+
+    private void checkWritable()
+    {
+        if(readOnly)
+        {
+            throw new UnsupportedOperationException("The result belongs to a ValidationOutcome, which can't be changed.");
+        }
+    }
+
+    /**
+     * Copy this result, without its sample ID, moving the line number at the start of its error text.
+     * The xPaths are not copied.
+     *
+     * @param lineOffset the number of lines to move the error by
+     * @return the copy
+     */
+    ValidationResult copy(int lineOffset)
+    {
+        ValidationResult copy = new ValidationResult(errorText, severity);
+        copy.errorTemplate = errorTemplate;
+        copy.errorParameters = errorParameters;
+        copy.solutionText = solutionText;
+        copy.solutionTemplate = solutionTemplate;
+        copy.solutionParameters = solutionParameters;
+        copy.miringRule = miringRule;
+        if(lineOffset != 0)
+        {
+            if(errorTemplate == null)
+            {
+                copy.errorText = moveLine(errorText, lineOffset);
+            }
+            else if(errorTemplate.startsWith(0))
+            {
+                copy.errorParameters = errorParameters.clone();
+                copy.errorParameters[0] = moveLine(errorParameters[0], lineOffset);
+            }
+        }
+        return copy;
+    }
+
+    private static String moveLine(String text, int lineOffset)
+    {
+        Matcher lineMatcher = (text == null) ? null : LINE_PATTERN.matcher(text);
+        if(lineMatcher != null && lineMatcher.find())
+        {
+            return "[" + (Integer.parseInt(lineMatcher.group(1)) + lineOffset) + "," + text.substring(lineMatcher.end());
+        }
+        return text;
+    }
 }
@@ -0,0 +1,253 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.nmdp.miring.ValidationResult.Severity;
+
+/**
+ * ValidationResultSink collects the results of a validation as its stages produce them, and reads them back in report order.
+ *
+ * Results used to be concatenated into a new array, and the whole array sorted again, every time two stages were combined.
+ * A sink files each result under its MIRING rule and severity when it is added, and each of those buckets is kept in order
+ * (by error text) as results arrive.  Results with the same template are ordered by their parameters, without putting their text together.
+ * Reading the results merges the severities of each rule, and reading the results of one severity only reads its buckets.
+ *
+ * The order is the same as concatenating the sources in order, and sorting with ValidationResult.compareTo:
+ * results that compare equal keep the order of their sources, and then the order they were added in.
+ * Sources are numbered by the caller, like the stages of a validation.  A sink is thread safe.
+*/
+final class ValidationResultSink
+{
+    private static final class Entry
+    {
+        final ValidationResult result;
+        final int source;
+        final int sequence;
+
+        Entry(ValidationResult result, int source, int sequence)
+        {
+            this.result = result;
+            this.source = source;
+            this.sequence = sequence;
+        }
+    }
+
+    //The order of the results of a single rule.  No two entries are equal, since each has its own sequence number.
+    private static final Comparator<Entry> RULE_ORDER = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry first, Entry second)
+        {
+            int textCompare = first.result.compareErrorText(second.result);
+            if(textCompare != 0)
+            {
+                return textCompare;
+            }
+            return (first.source != second.source) ? Integer.compare(first.source, second.source) : Integer.compare(first.sequence, second.sequence);
+        }
+    };
+
+    //The results of each rule, and then each severity, in order.
+    private final TreeMap<String,Map<Severity,TreeSet<Entry>>> resultsByRule = new TreeMap<String,Map<Severity,TreeSet<Entry>>>();
+    private int size;
+    private int sequence;
+
+    /**
+     * Add a result.
+     *
+     * @param source the number of the stage or schema the result came from
+     * @param result the result
+     */
+    synchronized void add(int source, ValidationResult result)
+    {
+        Map<Severity,TreeSet<Entry>> ruleResults = resultsByRule.get(result.getMiringRule());
+        if(ruleResults == null)
+        {
+            ruleResults = new EnumMap<Severity,TreeSet<Entry>>(Severity.class);
+            resultsByRule.put(result.getMiringRule(), ruleResults);
+        }
+        TreeSet<Entry> bucket = ruleResults.get(result.getSeverity());
+        if(bucket == null)
+        {
+            bucket = new TreeSet<Entry>(RULE_ORDER);
+            ruleResults.put(result.getSeverity(), bucket);
+        }
+        bucket.add(new Entry(result, source, sequence++));
+        size++;
+    }
+
+    /**
+     * Add the results of a source, in order.
+     *
+     * @param source the number of the stage or schema the results came from
+     * @param results the results, or null if there are none
+     */
+    synchronized void addAll(int source, ValidationResult[] results)
+    {
+        if(results != null)
+        {
+            for(ValidationResult result : results)
+            {
+                add(source, result);
+            }
+        }
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return every result, in report order
+     */
+    synchronized ValidationResult[] toArray()
+    {
+        ValidationResult[] results = new ValidationResult[size];
+        int i = 0;
+        List<Iterator<Entry>> buckets = new ArrayList<Iterator<Entry>>();
+        List<Entry> heads = new ArrayList<Entry>();
+        for(Map<Severity,TreeSet<Entry>> ruleResults : resultsByRule.values())
+        {
+            if(ruleResults.size() == 1)
+            {
+                for(Entry entry : ruleResults.values().iterator().next())
+                {
+                    results[i++] = entry.result;
+                }
+                continue;
+            }
+            //Merge the severities of the rule.  There are only a few of them, so the smallest head is found by looking at each.
+            buckets.clear();
+            heads.clear();
+            for(TreeSet<Entry> bucket : ruleResults.values())
+            {
+                Iterator<Entry> entries = bucket.iterator();
+                if(entries.hasNext())
+                {
+                    buckets.add(entries);
+                    heads.add(entries.next());
+                }
+            }
+            while(!heads.isEmpty())
+            {
+                int smallest = 0;
+                for(int j = 1; j < heads.size(); j++)
+                {
+                    if(RULE_ORDER.compare(heads.get(j), heads.get(smallest)) < 0)
+                    {
+                        smallest = j;
+                    }
+                }
+                results[i++] = heads.get(smallest).result;
+                if(buckets.get(smallest).hasNext())
+                {
+                    heads.set(smallest, buckets.get(smallest).next());
+                }
+                else
+                {
+                    buckets.remove(smallest);
+                    heads.remove(smallest);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Remove the results that aren't in a list, like the ones combined into a similar result.
+     *
+     * @param kept the results to keep
+     */
+    synchronized void retainAll(ValidationResult[] kept)
+    {
+        if(kept.length == size)
+        {
+            return;
+        }
+        Map<ValidationResult,Boolean> keptResults = new IdentityHashMap<ValidationResult,Boolean>();
+        for(ValidationResult result : kept)
+        {
+            keptResults.put(result, Boolean.TRUE);
+        }
+        for(Map<Severity,TreeSet<Entry>> ruleResults : resultsByRule.values())
+        {
+            for(TreeSet<Entry> bucket : ruleResults.values())
+            {
+                Iterator<Entry> entries = bucket.iterator();
+                while(entries.hasNext())
+                {
+                    if(!keptResults.containsKey(entries.next().result))
+                    {
+                        entries.remove();
+                        size--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the results of each severity, in report order.  Each severity is read from its own buckets.
+     */
+    synchronized Map<Severity,List<ValidationResult>> toSeverityLists()
+    {
+        Map<Severity,List<ValidationResult>> severityResults = new EnumMap<Severity,List<ValidationResult>>(Severity.class);
+        for(Map<Severity,TreeSet<Entry>> ruleResults : resultsByRule.values())
+        {
+            for(Map.Entry<Severity,TreeSet<Entry>> bucket : ruleResults.entrySet())
+            {
+                if(bucket.getValue().isEmpty())
+                {
+                    continue;
+                }
+                List<ValidationResult> resultsOfSeverity = severityResults.get(bucket.getKey());
+                if(resultsOfSeverity == null)
+                {
+                    resultsOfSeverity = new ArrayList<ValidationResult>();
+                    severityResults.put(bucket.getKey(), resultsOfSeverity);
+                }
+                for(Entry entry : bucket.getValue())
+                {
+                    resultsOfSeverity.add(entry.result);
+                }
+            }
+        }
+        for(Map.Entry<Severity,List<ValidationResult>> entry : severityResults.entrySet())
+        {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return severityResults;
+    }
+}
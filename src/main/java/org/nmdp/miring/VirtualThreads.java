@@ -0,0 +1,151 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * VirtualThreads makes executors for work that mostly waits: a request reading its body and writing its report,
+ * or a batch document waiting for its validation stages.  On Java 21 and later these run on virtual threads, so a lot
+ * of slow uploads or a large batch don't need a platform thread each.
+ *
+ * The validator is built for Java 8, so virtual threads are found by reflection.  On an older JVM, or when the system
+ * property miring.virtualThreads is false, the executors are fixed pools of platform threads instead.
+ *
+ * The parsing and rules stay on the engine's bounded stage executor.  A virtual thread waits for its stages rather than
+ * running them itself (see MiringValidationEngine), so the CPU heavy work can't starve the virtual threads' carriers.
+*/
+final class VirtualThreads
+{
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+    static final String VIRTUAL_THREADS_PROPERTY = "miring.virtualThreads";
+
+    //Thread.ofVirtual(), Thread.Builder.name(String, long), Thread.Builder.factory(), Executors.newThreadPerTaskExecutor(ThreadFactory)
+    //and Thread.isVirtual().  All null if virtual threads aren't available.
+    private static final Method ofVirtual;
+    private static final Method builderName;
+    private static final Method builderFactory;
+    private static final Method newThreadPerTaskExecutor;
+    private static final Method isVirtual;
+
+    static
+    {
+        Method[] methods = new Method[5];
+        if(!"false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY)))
+        {
+            try
+            {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                methods[0] = Thread.class.getMethod("ofVirtual");
+                methods[1] = builderClass.getMethod("name", String.class, long.class);
+                methods[2] = builderClass.getMethod("factory");
+                methods[3] = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                methods[4] = Thread.class.getMethod("isVirtual");
+            }
+            catch(Exception e)
+            {
+                logger.debug("Virtual threads are not available on Java " + System.getProperty("java.version"));
+                methods = new Method[5];
+            }
+        }
+        ofVirtual = methods[0];
+        builderName = methods[1];
+        builderFactory = methods[2];
+        newThreadPerTaskExecutor = methods[3];
+        isVirtual = methods[4];
+    }
+
+    private VirtualThreads()
+    {
+    }
+
+    /**
+     * @return true if executors from newExecutor use virtual threads.
+     */
+    static boolean isAvailable()
+    {
+        return newThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * @return true if the thread is a virtual thread.
+     */
+    static boolean isVirtual(Thread thread)
+    {
+        if(isVirtual == null)
+        {
+            return false;
+        }
+        try
+        {
+            return (Boolean)isVirtual.invoke(thread);
+        }
+        catch(Exception e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor which runs each task on a new virtual thread, or on a fixed pool of daemon platform threads
+     * if virtual threads aren't available.
+     *
+     * @param name the name of the threads, which are numbered
+     * @param platformThreads the number of platform threads, if virtual threads aren't available
+     * @return a new ExecutorService
+     */
+    static ExecutorService newExecutor(final String name, int platformThreads)
+    {
+        if(isAvailable())
+        {
+            try
+            {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name + "-", 1L);
+                return (ExecutorService)newThreadPerTaskExecutor.invoke(null, (ThreadFactory)builderFactory.invoke(builder));
+            }
+            catch(Exception e)
+            {
+                //Virtual threads are a preview feature on Java 19 and 20.
+                logger.warn("Unable to start virtual threads, using " + platformThreads + " platform threads for " + name, e);
+            }
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(platformThreads, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
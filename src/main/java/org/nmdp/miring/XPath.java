@@ -0,0 +1,373 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+/**
+ * XPath is the location of a ValidationResult, like /hml[1]/sample[3]/typing[1].
+ *
+ * A path is stored as its last step (an element name and index) and the path of its parent, so the paths of
+ * sibling and child elements share their common steps.  Element names come from the parser, or from a ResultText.Pool, so they are shared too.
+ * The sample index is worked out once when the path is built, and the string is only put together when it is written.
+ *
+ * Paths compare like their strings, so they sort in the same order.  A location which isn't a simple
+ * /name[index] path, like one with a predicate or an attribute, is kept as its literal string.
+*/
+final class XPath implements Comparable<XPath>
+{
+    private static final String SAMPLE = "sample";
+
+    private final XPath parent;
+    private final String name;
+    private final int index;
+    private final int depth;
+    private final int sampleIndex;
+    private final String literal;
+
+    private XPath(XPath parent, String name, int index)
+    {
+        this.parent = parent;
+        this.name = name;
+        this.index = index;
+        this.depth = (parent == null) ? 1 : parent.depth + 1;
+        this.sampleIndex = (parent != null && parent.sampleIndex != 0) ? parent.sampleIndex : (SAMPLE.equals(name) ? index : 0);
+        this.literal = null;
+    }
+
+    private XPath(String literal)
+    {
+        this.parent = null;
+        this.name = null;
+        this.index = 0;
+        this.depth = 0;
+        this.sampleIndex = getSampleIndex(literal);
+        this.literal = literal;
+    }
+
+    /**
+     * @return the path of a root element, like /hml[1]
+     */
+    static XPath root(String name, int index)
+    {
+        return new XPath(null, name, index);
+    }
+
+    /**
+     * @return the path of a child element of this one
+     */
+    XPath child(String name, int index)
+    {
+        return (literal == null) ? new XPath(this, name, index) : parse(literal + "/" + name + "[" + index + "]", null);
+    }
+
+    /**
+     * Read a path like /{namespace}hml[1]/{namespace}sample[3], as found in a schematron report.
+     *
+     * @param text the path
+     * @param namespace the namespace to remove from the element names, like {http://schemas.nmdp.org/spec/hml/1.0.1}, or null
+     * @return the path, or null if the text is null
+     */
+    static XPath parse(String text, String namespace)
+    {
+        return parse(text, namespace, null);
+    }
+
+    /**
+     * Read a path like /{namespace}hml[1]/{namespace}sample[3], as found in a schematron report, and share its element names.
+     *
+     * @param text the path
+     * @param namespace the namespace to remove from the element names, like {http://schemas.nmdp.org/spec/hml/1.0.1}, or null
+     * @param strings the pool to share the element names with other paths, or null
+     * @return the path, or null if the text is null
+     */
+    static XPath parse(String text, String namespace, ResultText.Pool strings)
+    {
+        if(text == null)
+        {
+            return null;
+        }
+        XPath path = null;
+        int position = 0;
+        while(position < text.length())
+        {
+            if(text.charAt(position) != '/')
+            {
+                return literal(text, namespace);
+            }
+            int nameStart = position + 1;
+            if(namespace != null && text.startsWith(namespace, nameStart))
+            {
+                nameStart += namespace.length();
+            }
+            int open = text.indexOf('[', nameStart);
+            int close = (open == -1) ? -1 : text.indexOf(']', open);
+            if(close == -1 || !isName(text, nameStart, open) || !isNumber(text, open + 1, close))
+            {
+                return literal(text, namespace);
+            }
+            String name = text.substring(nameStart, open);
+            if(strings != null)
+            {
+                name = strings.canonical(name);
+            }
+            int index = Integer.parseInt(text.substring(open + 1, close));
+            path = (path == null) ? root(name, index) : path.child(name, index);
+            position = close + 1;
+        }
+        return (path == null) ? literal(text, namespace) : path;
+    }
+
+    private static XPath literal(String text, String namespace)
+    {
+        return new XPath((namespace == null) ? text : text.replace(namespace, ""));
+    }
+
+    private static boolean isName(String text, int start, int end)
+    {
+        if(start == end)
+        {
+            return false;
+        }
+        for(int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if(c == '/' || c == '[' || c == ']' || c == '{' || c == '}' || c == '@' || c == '(' || c == '*')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String text, int start, int end)
+    {
+        //Longer numbers are kept as a literal, rather than overflowing, and so are leading zeros, which wouldn't be written back.
+        if(start == end || end - start > 9 || (text.charAt(start) == '0' && end - start > 1))
+        {
+            return false;
+        }
+        for(int i = start; i < end; i++)
+        {
+            if(!Character.isDigit(text.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index (starting at 1) of the first sample element in the path, or 0 if it isn't in a sample.
+     */
+    int getSampleIndex()
+    {
+        return sampleIndex;
+    }
+
+    /**
+     * @return the sample index in an xpath like /hml[1]/sample[3]/typing[1], found the same way as Utilities.getSampleID.  0 if there isn't one.
+     */
+    private static int getSampleIndex(String xPath)
+    {
+        int sampleLocation = (xPath == null) ? -1 : xPath.indexOf("/sample[");
+        if(sampleLocation == -1)
+        {
+            return 0;
+        }
+        int sampleIndex = 0;
+        for(int i = sampleLocation + 8; i < xPath.length(); i++)
+        {
+            char c = xPath.charAt(i);
+            if(c == ']')
+            {
+                return sampleIndex;
+            }
+            if(c < '0' || c > '9')
+            {
+                return 0;
+            }
+            sampleIndex = sampleIndex * 10 + (c - '0');
+        }
+        return 0;
+    }
+
+    /**
+     * Get the ID of the sample the path is in, like Utilities.getSampleID.
+     *
+     * @param samples the samples of the document
+     * @return the sample ID, or null if the path isn't in one of the samples
+     */
+    String getSampleID(Sample[] samples)
+    {
+        if(sampleIndex > samples.length)
+        {
+            return null;
+        }
+        if(literal != null)
+        {
+            return Utilities.getSampleID(literal, samples);
+        }
+        return (sampleIndex == 0) ? null : samples[sampleIndex - 1].id;
+    }
+
+    /**
+     * @param fromIndex the sample index to move from
+     * @param toIndex the sample index to move to
+     * @return the same path in another sample, or this path if it isn't in sample fromIndex
+     */
+    XPath moveSample(int fromIndex, int toIndex)
+    {
+        if(fromIndex == toIndex || sampleIndex != fromIndex || sampleIndex == 0)
+        {
+            return this;
+        }
+        if(literal != null)
+        {
+            String fromSample = "/sample[" + fromIndex + "]";
+            int sampleLocation = literal.indexOf("/sample[");
+            return new XPath(literal.substring(0, sampleLocation) + "/sample[" + toIndex + "]" + literal.substring(sampleLocation + fromSample.length()));
+        }
+        if(parent == null || parent.sampleIndex == 0)
+        {
+            //This is the sample element.
+            return new XPath(parent, name, toIndex);
+        }
+        return new XPath(parent.moveSample(fromIndex, toIndex), name, index);
+    }
+
+    @Override
+    public String toString()
+    {
+        if(literal != null)
+        {
+            return literal;
+        }
+        StringBuilder text = new StringBuilder(depth * 24);
+        appendTo(text);
+        return text.toString();
+    }
+
+    private void appendTo(StringBuilder text)
+    {
+        if(parent != null)
+        {
+            parent.appendTo(text);
+        }
+        text.append('/').append(name).append('[').append(index).append(']');
+    }
+
+    @Override
+    public boolean equals(Object otherObject)
+    {
+        if(this == otherObject)
+        {
+            return true;
+        }
+        if(!(otherObject instanceof XPath))
+        {
+            return false;
+        }
+        XPath otherPath = (XPath) otherObject;
+        if(literal != null || otherPath.literal != null)
+        {
+            return toString().equals(otherPath.toString());
+        }
+        return compareTo(otherPath) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        //The same as the hash of the string, so literal and structured paths can be equal.
+        return toString().hashCode();
+    }
+
+    /**
+     * Compare paths in the order of their strings, without building them.
+     * Only the first step that differs is compared; the steps above it are shared, or equal.
+     */
+    @Override
+    public int compareTo(XPath otherPath)
+    {
+        if(this == otherPath)
+        {
+            return 0;
+        }
+        if(literal != null || otherPath.literal != null)
+        {
+            return toString().compareTo(otherPath.toString());
+        }
+        XPath first = this;
+        XPath second = otherPath;
+        while(first.depth > second.depth)
+        {
+            first = first.parent;
+        }
+        while(second.depth > first.depth)
+        {
+            second = second.parent;
+        }
+        //Walk up to the root, remembering the highest steps that differ.
+        XPath firstDifference = null;
+        XPath secondDifference = null;
+        while(first != second)
+        {
+            if(first.index != second.index || !first.name.equals(second.name))
+            {
+                firstDifference = first;
+                secondDifference = second;
+            }
+            first = first.parent;
+            second = second.parent;
+        }
+        if(firstDifference == null)
+        {
+            //One path starts with the other.
+            return Integer.compare(depth, otherPath.depth);
+        }
+        return compareSteps(firstDifference, secondDifference);
+    }
+
+    /**
+     * Compare two steps like /name[index] as strings.  A step can't start with another one, because it ends at its only ']'.
+     */
+    private static int compareSteps(XPath first, XPath second)
+    {
+        if(!first.name.equals(second.name))
+        {
+            int length = Math.min(first.name.length(), second.name.length());
+            for(int i = 0; i < length; i++)
+            {
+                char firstChar = first.name.charAt(i);
+                char secondChar = second.name.charAt(i);
+                if(firstChar != secondChar)
+                {
+                    return firstChar - secondChar;
+                }
+            }
+            //One name starts with the other, so one of them is followed by '['.
+            return (first.name.length() < second.name.length()) ? '[' - second.name.charAt(length) : first.name.charAt(length) - '[';
+        }
+        //The ']' counts, "[1]" sorts after "[12]".
+        return (first.index + "]").compareTo(second.index + "]");
+    }
+}
@@ -0,0 +1,411 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.IOException;
+import java.net.URL;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * XmlFactories holds the XML factories of the validator, and reuses parsers, document builders and transformers.
+ *
+ * Looking up a JAXP factory goes through the service loader, and a new parser configures itself from scratch,
+ * which costs more than parsing a small document.  So each factory is looked up and configured once, and each thread
+ * keeps one of each parser, builder and transformer, which is reset when it is released.
+ *
+ * Acquire a parser, builder or transformer, use it, and release it in a finally block.  An object acquired while
+ * the thread's own one is still in use (a parse inside a parse) is a new one, so nested uses never share state.
+ * The parse methods do all of that for you.
+ * The factories themselves aren't thread safe, so they are only used while holding their lock.
+ *
+ * Every parser and builder has the entity expansion limit of XmlLimits, so no parse can be made to expand an entity bomb.
+ *
+ * Validating parsers belong to a compiled schema, so their factory and idle parsers are kept in a ValidatingParsers
+ * next to the schema in its RuleSet.  Nothing here holds on to a schema after its rule set has gone.
+*/
+final class XmlFactories
+{
+    private static final Logger logger = LoggerFactory.getLogger(XmlFactories.class);
+    private static final SAXParserFactory saxParserFactory = newSaxParserFactory(null);
+    private static final DocumentBuilderFactory documentBuilderFactory = newDocumentBuilderFactory(false);
+    private static final DocumentBuilderFactory namespaceAwareBuilderFactory = newDocumentBuilderFactory(true);
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    private static final SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+    private static final String ENTITY_EXPANSION_LIMIT_PROPERTY = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+
+    private static final ThreadLocal<SAXParser> idleSaxParser = new ThreadLocal<SAXParser>();
+    private static final ThreadLocal<DocumentBuilder> idleDocumentBuilder = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<DocumentBuilder> idleNamespaceAwareBuilder = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<Transformer> idleTransformer = new ThreadLocal<Transformer>();
+
+    private XmlFactories()
+    {
+    }
+
+    private static SAXParserFactory newSaxParserFactory(Schema schema)
+    {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setSchema(schema);
+        return factory;
+    }
+
+    private static DocumentBuilderFactory newDocumentBuilderFactory(boolean namespaceAware)
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        try
+        {
+            factory.setAttribute(ENTITY_EXPANSION_LIMIT_PROPERTY, Integer.toString(XmlLimits.MAX_ENTITY_EXPANSIONS));
+        }
+        catch(IllegalArgumentException e)
+        {
+            logger.debug("The document builders don't have an entity expansion limit: " + e.toString());
+        }
+        return factory;
+    }
+
+    /**
+     * A SAXParserFactory can't carry parser properties, so each new parser is given the entity expansion limit.
+     * It is kept when the parser is reset, so it is only set once.
+     */
+    private static SAXParser newSaxParser(SAXParserFactory factory) throws ParserConfigurationException, SAXException
+    {
+        SAXParser parser;
+        synchronized(factory)
+        {
+            parser = factory.newSAXParser();
+        }
+        try
+        {
+            parser.setProperty(ENTITY_EXPANSION_LIMIT_PROPERTY, Integer.toString(XmlLimits.MAX_ENTITY_EXPANSIONS));
+        }
+        catch(SAXException e)
+        {
+            logger.debug("The xml parser doesn't have an entity expansion limit: " + e.toString());
+        }
+        return parser;
+    }
+
+    /**
+     * @return a namespace aware SAXParser.  Release it when you are done.
+     * @throws ParserConfigurationException if a parser can't be created
+     * @throws SAXException if a parser can't be created
+     */
+    static SAXParser acquireSaxParser() throws ParserConfigurationException, SAXException
+    {
+        SAXParser parser = idleSaxParser.get();
+        if(parser != null)
+        {
+            idleSaxParser.remove();
+            return parser;
+        }
+        return newSaxParser(saxParserFactory);
+    }
+
+    /**
+     * Reset a SAXParser, and keep it for the next parse on this thread.
+     *
+     * @param parser a parser from acquireSaxParser
+     */
+    static void releaseSaxParser(SAXParser parser)
+    {
+        try
+        {
+            parser.reset();
+        }
+        catch(UnsupportedOperationException e)
+        {
+            //A parser that can't be reset can't be reused.
+            return;
+        }
+        idleSaxParser.set(parser);
+    }
+
+    /**
+     * @param namespaceAware true for a namespace aware builder
+     * @return a DocumentBuilder.  Release it when you are done.
+     * @throws ParserConfigurationException if a builder can't be created
+     */
+    static DocumentBuilder acquireDocumentBuilder(boolean namespaceAware) throws ParserConfigurationException
+    {
+        ThreadLocal<DocumentBuilder> idleBuilder = namespaceAware ? idleNamespaceAwareBuilder : idleDocumentBuilder;
+        DocumentBuilder builder = idleBuilder.get();
+        if(builder != null)
+        {
+            idleBuilder.remove();
+            return builder;
+        }
+        DocumentBuilderFactory factory = namespaceAware ? namespaceAwareBuilderFactory : documentBuilderFactory;
+        synchronized(factory)
+        {
+            return factory.newDocumentBuilder();
+        }
+    }
+
+    /**
+     * Reset a DocumentBuilder, and keep it for the next use on this thread.
+     *
+     * @param builder a builder from acquireDocumentBuilder
+     */
+    static void releaseDocumentBuilder(DocumentBuilder builder)
+    {
+        try
+        {
+            builder.reset();
+        }
+        catch(UnsupportedOperationException e)
+        {
+            return;
+        }
+        (builder.isNamespaceAware() ? idleNamespaceAwareBuilder : idleDocumentBuilder).set(builder);
+    }
+
+    /**
+     * @return an identity Transformer, from the default TransformerFactory.  Release it when you are done.
+     * @throws TransformerConfigurationException if a transformer can't be created
+     */
+    static Transformer acquireTransformer() throws TransformerConfigurationException
+    {
+        Transformer transformer = idleTransformer.get();
+        if(transformer != null)
+        {
+            idleTransformer.remove();
+            return transformer;
+        }
+        synchronized(transformerFactory)
+        {
+            return transformerFactory.newTransformer();
+        }
+    }
+
+    /**
+     * Reset a Transformer, which clears its output properties and parameters, and keep it for the next use on this thread.
+     *
+     * @param transformer a transformer from acquireTransformer
+     */
+    static void releaseTransformer(Transformer transformer)
+    {
+        try
+        {
+            transformer.reset();
+        }
+        catch(UnsupportedOperationException e)
+        {
+            return;
+        }
+        idleTransformer.set(transformer);
+    }
+
+    /**
+     * Parse xml with a namespace aware SAX parser.
+     *
+     * @param source the xml
+     * @param handler the handler for the parse events
+     * @throws ParserConfigurationException if a parser can't be created
+     * @throws SAXException if the handler or the parser throws it
+     * @throws IOException if the xml can't be read
+     */
+    static void parse(InputSource source, DefaultHandler handler) throws ParserConfigurationException, SAXException, IOException
+    {
+        SAXParser parser = acquireSaxParser();
+        try
+        {
+            parser.parse(source, handler);
+        }
+        finally
+        {
+            releaseSaxParser(parser);
+        }
+    }
+
+    /**
+     * Parse xml with a namespace aware SAX parser, which validates it against a schema.
+     * Validation problems are reported to the handler's error methods.
+     *
+     * @param source the xml
+     * @param handler the handler for the parse events and validation errors
+     * @param parsers the validating parsers of the schema to validate against
+     * @param limits the limits to count the parse against, or null
+     * @throws ParserConfigurationException if a parser can't be created
+     * @throws SAXException if the handler or the parser throws it
+     * @throws IOException if the xml can't be read
+     */
+    static void parse(InputSource source, DefaultHandler handler, ValidatingParsers parsers, XmlLimits limits) throws ParserConfigurationException, SAXException, IOException
+    {
+        SAXParser parser = parsers.acquire();
+        try
+        {
+            if(limits == null)
+            {
+                parser.parse(source, handler);
+            }
+            else
+            {
+                //What SAXParser.parse does with a DefaultHandler, with the filter in between.
+                XMLFilterImpl filter = limits.newFilter(parser.getXMLReader());
+                filter.setContentHandler(handler);
+                filter.setErrorHandler(handler);
+                filter.setDTDHandler(handler);
+                filter.setEntityResolver(handler);
+                filter.parse(source);
+            }
+        }
+        finally
+        {
+            parsers.release(parser);
+        }
+    }
+
+    /**
+     * Parse xml into a DOM Document.
+     *
+     * @param source the xml
+     * @param namespaceAware true to parse it with namespaces
+     * @return the Document
+     * @throws ParserConfigurationException if a builder can't be created
+     * @throws SAXException if the xml can't be parsed
+     * @throws IOException if the xml can't be read
+     */
+    static Document parseDocument(InputSource source, boolean namespaceAware) throws ParserConfigurationException, SAXException, IOException
+    {
+        DocumentBuilder builder = acquireDocumentBuilder(namespaceAware);
+        try
+        {
+            return builder.parse(source);
+        }
+        finally
+        {
+            releaseDocumentBuilder(builder);
+        }
+    }
+
+    /**
+     * @return a new, empty DOM Document
+     * @throws ParserConfigurationException if a builder can't be created
+     */
+    static Document newDocument() throws ParserConfigurationException
+    {
+        DocumentBuilder builder = acquireDocumentBuilder(false);
+        try
+        {
+            return builder.newDocument();
+        }
+        finally
+        {
+            releaseDocumentBuilder(builder);
+        }
+    }
+
+    /**
+     * A compiled schema, with the factory of the parsers which validate against it, and each thread's idle parser.
+     * It belongs to the RuleSet the schema was compiled from.  Once the rule set has gone, each thread's idle parser is dropped
+     * with the ThreadLocal, the next time the thread's thread locals are cleaned up.
+    */
+    static final class ValidatingParsers
+    {
+        private final Schema schema;
+        private final SAXParserFactory factory;
+        private final ThreadLocal<SAXParser> idleParser = new ThreadLocal<SAXParser>();
+
+        ValidatingParsers(Schema schema)
+        {
+            this.schema = schema;
+            this.factory = newSaxParserFactory(schema);
+        }
+
+        Schema getSchema()
+        {
+            return schema;
+        }
+
+        /**
+         * @return a namespace aware SAXParser which validates against the schema.  Release it when you are done.
+         * @throws ParserConfigurationException if a parser can't be created
+         * @throws SAXException if a parser can't be created
+         */
+        SAXParser acquire() throws ParserConfigurationException, SAXException
+        {
+            SAXParser parser = idleParser.get();
+            if(parser != null)
+            {
+                idleParser.remove();
+                return parser;
+            }
+            return newSaxParser(factory);
+        }
+
+        /**
+         * Reset a parser from acquire, and keep it for the next parse on this thread.
+         *
+         * @param parser the parser
+         */
+        void release(SAXParser parser)
+        {
+            try
+            {
+                parser.reset();
+            }
+            catch(UnsupportedOperationException e)
+            {
+                return;
+            }
+            idleParser.set(parser);
+        }
+    }
+
+    /**
+     * Compile an XML schema.
+     *
+     * @param schemaURL the location of the schema
+     * @return the compiled Schema, which is thread safe
+     * @throws SAXException if the schema can't be compiled
+     */
+    static Schema newSchema(URL schemaURL) throws SAXException
+    {
+        synchronized(schemaFactory)
+        {
+            return schemaFactory.newSchema(schemaURL);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import org.nmdp.miring.ValidationResult.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * XmlLimits rejects documents which are too big for the validator, before a stage has built much of a tree of them.
+ *
+ * The SimpleXmlModel, the DOMs and the schematron's tree all grow with the document, so a hostile or broken document
+ * (very deep nesting, millions of elements, one enormous text node, or entities which expand to gigabytes) would use up the
+ * server before a stage could reject it.  Each validation has one XmlLimits, and each stage's parse goes through one of its filters,
+ * which keeps nothing but counters, so the limits cost no extra pass over the document.  The first filter to find a limit rejects
+ * the document and stops its stage, and the other stages stop at their next element.  Entities are limited by the parsers
+ * themselves, XmlFactories gives every parser the limit, and an expansion past it rejects the document in the same way.
+ *
+ * The limits are system properties:  miring.limits.maxBytes (the document's size), miring.limits.maxDepth (element nesting),
+ * miring.limits.maxElements, miring.limits.maxAttributes (on one element), miring.limits.maxTextLength (chars in one text node)
+ * and miring.limits.maxEntityExpansions.  The defaults are well above any real HML document.
+ *
+ * The document is rejected with a single fatal result whose rule is "reject", like the hml schema's rejections, so the report's
+ * compliance is reject.  A document which isn't well formed passes, and the stages report the parse error like they always have.
+*/
+final class XmlLimits
+{
+    private static final Logger logger = LoggerFactory.getLogger(XmlLimits.class);
+
+    static final long MAX_BYTES = Long.getLong("miring.limits.maxBytes", 1L << 30);
+    static final int MAX_DEPTH = Integer.getInteger("miring.limits.maxDepth", 64);
+    static final long MAX_ELEMENTS = Long.getLong("miring.limits.maxElements", 10000000);
+    static final int MAX_ATTRIBUTES = Integer.getInteger("miring.limits.maxAttributes", 64);
+    static final long MAX_TEXT_LENGTH = Long.getLong("miring.limits.maxTextLength", 1L << 24);
+    static final int MAX_ENTITY_EXPANSIONS = Integer.getInteger("miring.limits.maxEntityExpansions", 1000);
+
+    //The JDK's parser starts the message of each of its processing limits with one of these codes.
+    private static final String JDK_LIMIT_CODE = "JAXP0001";
+    private static final String SOLUTION_TEXT = "Please check that the document is HML.  If it is, ask the validator's administrator to raise %s.";
+
+    //The first limit a stage found, shared by the stages of one validation.
+    private volatile ValidationResult rejection;
+
+    /**
+     * Check the size of a document, which is known before it is parsed.
+     *
+     * @param input the xml document
+     * @return a reject result if the document is over miring.limits.maxBytes, or null if it isn't
+     */
+    static ValidationResult checkLength(HmlInput input)
+    {
+        long length = input.length();
+        if(length > MAX_BYTES)
+        {
+            return newRejection("The document is " + length + " long, over the limit of " + MAX_BYTES + ".", "miring.limits.maxBytes");
+        }
+        return null;
+    }
+
+    /**
+     * @return the reject result for the first limit one of the stages found, or null if none of them has found one yet
+     */
+    ValidationResult getRejection()
+    {
+        return rejection;
+    }
+
+    /**
+     * Get a filter for one stage's parse.  Put it between the parser and the stage's handler.
+     *
+     * @param parent the XMLReader which parses the document, or null to set it later
+     * @return a new filter, which counts the parse against these limits
+     */
+    XMLFilterImpl newFilter(XMLReader parent)
+    {
+        LimitsFilter filter = new LimitsFilter();
+        if(parent != null)
+        {
+            filter.setParent(parent);
+        }
+        return filter;
+    }
+
+    private synchronized void reject(String errorText, String property)
+    {
+        if(rejection == null)
+        {
+            logger.debug("Rejecting a document: " + errorText);
+            rejection = newRejection(errorText, property);
+        }
+    }
+
+    private static ValidationResult newRejection(String errorText, String property)
+    {
+        ValidationResult rejection = new ValidationResult(errorText, Severity.FATAL);
+        rejection.setSolutionText(String.format(SOLUTION_TEXT, property));
+        rejection.setMiringRule("reject");
+        return rejection;
+    }
+
+    /**
+     * Thrown to stop a stage's parse, once the document has been rejected.
+    */
+    private static class LimitExceededException extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private class LimitsFilter extends XMLFilterImpl
+    {
+        private Locator locator;
+        private int depth = 0;
+        private long elements = 0;
+        //The length of the text node being read, which the parser can report in several pieces.
+        private long textLength = 0;
+
+        @Override
+        public void setDocumentLocator(Locator locator)
+        {
+            this.locator = locator;
+            super.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+        {
+            if(rejection != null)
+            {
+                throw new LimitExceededException("Another stage rejected the document.");
+            }
+            textLength = 0;
+            if(++depth > MAX_DEPTH)
+            {
+                throw exceeded("The elements are nested deeper than the limit of " + MAX_DEPTH, "miring.limits.maxDepth");
+            }
+            if(++elements > MAX_ELEMENTS)
+            {
+                throw exceeded("The document has more elements than the limit of " + MAX_ELEMENTS, "miring.limits.maxElements");
+            }
+            if(attributes.getLength() > MAX_ATTRIBUTES)
+            {
+                throw exceeded("The " + qName + " element has " + attributes.getLength() + " attributes, over the limit of " + MAX_ATTRIBUTES,
+                    "miring.limits.maxAttributes");
+            }
+            super.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException
+        {
+            textLength = 0;
+            depth--;
+            super.endElement(uri, localName, qName);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException
+        {
+            textLength += length;
+            if(textLength > MAX_TEXT_LENGTH)
+            {
+                throw exceeded("A text node is longer than the limit of " + MAX_TEXT_LENGTH + " characters", "miring.limits.maxTextLength");
+            }
+            super.characters(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException
+        {
+            textLength += length;
+            if(textLength > MAX_TEXT_LENGTH)
+            {
+                throw exceeded("A text node is longer than the limit of " + MAX_TEXT_LENGTH + " characters", "miring.limits.maxTextLength");
+            }
+            super.ignorableWhitespace(ch, start, length);
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException
+        {
+            String message = e.getMessage();
+            if(message != null && message.contains(JDK_LIMIT_CODE))
+            {
+                reject("The document goes past a limit of the xml parser (at line " + e.getLineNumber() + "): " + message,
+                    "miring.limits.maxEntityExpansions");
+            }
+            super.fatalError(e);
+        }
+
+        private LimitExceededException exceeded(String problem, String property)
+        {
+            String where = (locator == null) ? "" : " (at line " + locator.getLineNumber() + ")";
+            reject(problem + where + ".", property);
+            return new LimitExceededException(problem + where + ".");
+        }
+    }
+}
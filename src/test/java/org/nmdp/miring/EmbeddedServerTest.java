@@ -0,0 +1,289 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class EmbeddedServerTest
+{
+    static HttpServer server;
+    static String baseUrl;
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        baseUrl = "http://127.0.0.1:" + port + "/validator/";
+        server = EmbeddedServer.start("127.0.0.1", port, "/validator/", 2);
+    }
+
+    @AfterClass
+    public static void stopServer()
+    {
+        EmbeddedServer.stop(server);
+    }
+
+    static String read(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while((count = in.read(buffer)) != -1)
+        {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testReady() throws Exception
+    {
+        Preloader.preload();
+        assertTrue(Preloader.isReady());
+
+        HttpURLConnection connection = (HttpURLConnection)new URL(baseUrl + "ready").openConnection();
+        assertEquals(200, connection.getResponseCode());
+        JSONObject ready = new JSONObject(read(connection.getInputStream()));
+        assertTrue(ready.getBoolean("ready"));
+        assertTrue(ready.getLong("preload-ms") >= 0);
+        assertTrue(ready.getLong("startup-ms") >= ready.getLong("preload-ms"));
+        assertEquals(MiringValidator.getValidatorVersion(), ready.getString("version"));
+    }
+
+    @Test
+    public void testValidate() throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(baseUrl + "ValidateMiring").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream out = connection.getOutputStream();
+        out.write(("xml=" + URLEncoder.encode(Preloader.WARMUP_XML, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("*", connection.getHeaderField("Access-Control-Allow-Origin"));
+        assertTrue(read(connection.getInputStream()).contains("miring-report"));
+    }
+
+    static HttpURLConnection request(String method, String path, String contentType, byte[] body) throws Exception
+    {
+        return request(method, path, contentType, body, null);
+    }
+
+    static HttpURLConnection request(String method, String path, String contentType, byte[] body, String sha256) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if(sha256 != null)
+        {
+            connection.setRequestProperty("X-Chunk-SHA256", sha256);
+        }
+        if(body != null)
+        {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+        }
+        return connection;
+    }
+
+    @Test
+    public void testChunkedUpload() throws Exception
+    {
+        byte[] hml = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml").getBytes(StandardCharsets.UTF_8);
+        int chunkSize = 1024;
+        HttpURLConnection connection = request("POST", "uploads", "application/x-www-form-urlencoded",
+            ("size=" + hml.length + "&chunk-size=" + chunkSize).getBytes(StandardCharsets.UTF_8));
+        assertEquals(201, connection.getResponseCode());
+        JSONObject upload = new JSONObject(read(connection.getInputStream()));
+        String id = upload.getString("id");
+        int chunks = upload.getInt("chunks");
+        assertEquals((hml.length + chunkSize - 1) / chunkSize, chunks);
+        assertTrue(chunks > 2);
+
+        // Send the chunks backwards, skipping the first, to show that order does not matter.
+        for(int chunk = chunks - 1; chunk > 0; chunk--)
+        {
+            byte[] bytes = Arrays.copyOfRange(hml, chunk * chunkSize, Math.min(hml.length, (chunk + 1) * chunkSize));
+            connection = request("PUT", "uploads/" + id + "/chunks/" + chunk, "application/octet-stream", bytes);
+            assertEquals(200, connection.getResponseCode());
+        }
+        connection = request("POST", "uploads/" + id + "/complete", "application/x-www-form-urlencoded", new byte[0]);
+        assertEquals(409, connection.getResponseCode());
+        assertEquals("[0]", new JSONObject(read(connection.getErrorStream())).getJSONArray("missing").toString());
+
+        connection = request("GET", "uploads/" + id, null, null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(chunks - 1, new JSONObject(read(connection.getInputStream())).getJSONArray("received").length());
+
+        byte[] first = Arrays.copyOfRange(hml, 0, chunkSize);
+        connection = request("PUT", "uploads/" + id + "/chunks/0", "application/octet-stream", first, UploadSession.sha256(new byte[] { 1 }));
+        assertEquals(400, connection.getResponseCode());
+        connection = request("PUT", "uploads/" + id + "/chunks/0", "application/octet-stream", first, UploadSession.sha256(first));
+        assertEquals(200, connection.getResponseCode());
+
+        connection = request("POST", "uploads/" + id + "/complete", "application/x-www-form-urlencoded", new byte[0]);
+        assertEquals(200, connection.getResponseCode());
+        String report = read(connection.getInputStream());
+        String expected = new MiringValidatorService().validateMiring(new String(hml, StandardCharsets.UTF_8), null, null, null, null);
+        assertEquals(expected.replaceAll("timestamp=\"[^\"]*\"", ""), report.replaceAll("timestamp=\"[^\"]*\"", ""));
+
+        assertEquals(404, request("GET", "uploads/" + id, null, null).getResponseCode());
+    }
+
+    @Test
+    public void testCancelledStreamDeletesUpload() throws Exception
+    {
+        byte[] hml = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml").getBytes(StandardCharsets.UTF_8);
+        final UploadSession session = UploadSession.create(hml.length, hml.length);
+        session.writeChunk(0, hml, null);
+        assertTrue(session.complete());
+        // A completed upload can't take more chunks, and isn't found any more.
+        try
+        {
+            session.writeChunk(0, hml, null);
+            fail("A chunk was written after the upload was completed.");
+        }
+        catch(IOException e)
+        {
+            // Expected.
+        }
+        assertNull(UploadSession.get(session.getId()));
+
+        // The client goes away while the validation is still queued, so it never runs, but the upload is still deleted.
+        ProgressEventStream stream = new ProgressEventStream(new MiringValidatorService(), HmlInput.fromPath(session.getSpoolFile().toPath()),
+            null, null, null, null, new Runnable()
+            {
+                public void run()
+                {
+                    session.delete();
+                }
+            });
+        FutureTask<ValidationOutcome> validation = stream.newValidation(new ValidationProgress());
+        assertTrue(session.getSpoolFile().exists());
+        assertTrue(validation.cancel(true));
+        assertFalse(session.getSpoolFile().exists());
+    }
+
+    @Test
+    public void testUploadSpoolLimit() throws Exception
+    {
+        // Fill the spool with the largest uploads allowed, then one more has to wait.
+        List<UploadSession> sessions = new ArrayList<UploadSession>();
+        try
+        {
+            for(long reserved = 0; reserved + UploadSession.MAX_BYTES <= UploadSession.MAX_SPOOL_BYTES; reserved += UploadSession.MAX_BYTES)
+            {
+                sessions.add(UploadSession.create(UploadSession.MAX_BYTES, UploadSession.MAX_CHUNK_SIZE));
+            }
+            HttpURLConnection connection = request("POST", "uploads", "application/x-www-form-urlencoded",
+                ("size=" + UploadSession.MAX_BYTES).getBytes(StandardCharsets.UTF_8));
+            assertEquals(503, connection.getResponseCode());
+            assertNotNull(connection.getHeaderField("Retry-After"));
+
+            sessions.remove(0).delete();
+            connection = request("POST", "uploads", "application/x-www-form-urlencoded",
+                ("size=" + UploadSession.MAX_BYTES).getBytes(StandardCharsets.UTF_8));
+            assertEquals(201, connection.getResponseCode());
+            sessions.add(UploadSession.get(new JSONObject(read(connection.getInputStream())).getString("id")));
+        }
+        finally
+        {
+            for(UploadSession session : sessions)
+            {
+                session.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testProgressEvents() throws Exception
+    {
+        String xml = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        HttpURLConnection connection = request("POST", "ValidateMiring/events", "application/x-www-form-urlencoded",
+            ("xml=" + URLEncoder.encode(xml, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(connection.getContentType().startsWith("text/event-stream"));
+
+        //Split the stream into events, and put the data lines of each one back together.
+        List<String> events = new ArrayList<String>();
+        List<String> data = new ArrayList<String>();
+        for(String block : read(connection.getInputStream()).split("\n\n"))
+        {
+            StringBuilder eventData = new StringBuilder();
+            String event = null;
+            for(String line : block.split("\n"))
+            {
+                if(line.startsWith("event: "))
+                {
+                    event = line.substring("event: ".length());
+                }
+                else if(line.startsWith("data: "))
+                {
+                    eventData.append(eventData.length() > 0 ? "\n" : "").append(line.substring("data: ".length()));
+                }
+            }
+            if(event != null)
+            {
+                events.add(event);
+                data.add(eventData.toString());
+            }
+        }
+        assertTrue(events.size() >= 2);
+        assertEquals("report", events.get(events.size() - 1));
+        assertTrue(data.get(data.size() - 1).contains("miring-report"));
+        JSONObject progress = new JSONObject(data.get(data.size() - 2));
+        assertEquals("progress", events.get(events.size() - 2));
+        assertEquals("finished", progress.getJSONObject("stages").getString("tier1"));
+        assertEquals(1, progress.getJSONObject("samples").getInt("total"));
+        assertEquals(1, progress.getJSONObject("samples").getInt("processed"));
+        assertTrue(progress.getJSONObject("results").getInt("miring") > 0);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MiringCaptureReplay validates the requests that SlowRequestCapture saved, and compares their timings and reports.
+ *
+ * It isn't one of the unit tests.  Run it with the replay profile, which runs it instead of them:
+ *   mvn -P replay test -Dreplay.dir=/var/spool/miring
+ *
+ * Each capture is validated with the rule selection and engine configuration it was captured with, a few times,
+ * and the median time is compared to the captured time.  The report is compared to the captured report.
+ * A new sample cache is made for every run, so no run reuses the results of another.
+ *
+ * To compare two builds, replay with one of them, keep its replay.json, and replay with the other, 
+ * setting replay.baseline to the first replay.json.
+ *
+ * The settings are system properties:
+ *   replay.dir       the capture directory.  Default target/captures.
+ *   replay.warmup    runs of each capture before timing it.  Default 2.
+ *   replay.repeat    timed runs of each capture.  Default 5.
+ *   replay.baseline  a replay.json from an earlier replay, to compare with.  Default none.
+ *   replay.output    the directory for replay.json.  Default target/replay.
+*/
+public class MiringCaptureReplay
+{
+    static Logger logger = LoggerFactory.getLogger(MiringCaptureReplay.class);
+
+    /**
+     * The settings of a replay.
+     */
+    public static class Settings
+    {
+        String directory = "target/captures";
+        int warmup = 2;
+        int repeat = 5;
+        String baseline = "";
+        String output = "target/replay";
+
+        public static Settings fromSystemProperties()
+        {
+            Settings settings = new Settings();
+            settings.directory = System.getProperty("replay.dir", settings.directory);
+            settings.warmup = Integer.getInteger("replay.warmup", settings.warmup);
+            settings.repeat = Math.max(1, Integer.getInteger("replay.repeat", settings.repeat));
+            settings.baseline = System.getProperty("replay.baseline", settings.baseline).trim();
+            settings.output = System.getProperty("replay.output", settings.output);
+            return settings;
+        }
+    }
+
+    @Test
+    public void runReplay() throws Exception
+    {
+        Settings settings = Settings.fromSystemProperties();
+        JSONObject replay = run(settings);
+        File output = new File(settings.output);
+        output.mkdirs();
+        Writer json = new OutputStreamWriter(new FileOutputStream(new File(output, "replay.json")), StandardCharsets.UTF_8);
+        try
+        {
+            json.write(replay.toString(2));
+        }
+        finally
+        {
+            json.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new MiringCaptureReplay().runReplay();
+    }
+
+    /**
+     * Replay every capture in a directory.
+     *
+     * @param settings the settings of the replay
+     * @return the timings and report comparisons of every capture, as JSON
+     * @throws Exception if a capture can't be read
+     */
+    public static JSONObject run(Settings settings) throws Exception
+    {
+        Map<String,JSONObject> baseline = readBaseline(settings.baseline);
+        Map<Integer,ExecutorService> stageExecutors = new HashMap<Integer,ExecutorService>();
+        JSONArray captures = new JSONArray();
+        String[] names = new File(settings.directory).list();
+        if(names == null)
+        {
+            throw new IllegalArgumentException("There is no capture directory " + settings.directory);
+        }
+        Arrays.sort(names);
+        for(String name : names)
+        {
+            if(name.startsWith("capture-") && name.endsWith(".json"))
+            {
+                captures.put(replay(new File(settings.directory, name), settings, stageExecutors, baseline));
+            }
+        }
+        for(ExecutorService stageExecutor : stageExecutors.values())
+        {
+            stageExecutor.shutdown();
+        }
+        return new JSONObject().put("validator-version", MiringValidator.getValidatorVersion()).put("java-version", System.getProperty("java.version"))
+            .put("baseline", settings.baseline).put("captures", captures);
+    }
+
+    static JSONObject replay(File descriptionFile, Settings settings, Map<Integer,ExecutorService> stageExecutors, Map<String,JSONObject> baseline) throws Exception
+    {
+        JSONObject description = new JSONObject(readText(descriptionFile, false));
+        String name = descriptionFile.getName().substring(0, descriptionFile.getName().length() - ".json".length());
+        //A payload of raw bytes is in the document's own encoding, and is parsed as bytes like the request was.
+        byte[] payload = readBytes(new File(descriptionFile.getParentFile(), description.getString("payload")), description.optBoolean("compressed"));
+        boolean rawBytes = description.optBoolean("raw-bytes");
+        String xml = rawBytes ? null : new String(payload, StandardCharsets.UTF_8);
+        RuleSelection selection = RuleSelection.parse(optString(description, "tiers"), optString(description, "elements"), optString(description, "rules"));
+
+        int stageThreads = description.optInt("stage-threads", 0);
+        ExecutorService stageExecutor = null;
+        if(stageThreads > 0)
+        {
+            stageExecutor = stageExecutors.get(stageThreads);
+            if(stageExecutor == null)
+            {
+                stageExecutor = MiringValidationEngine.newStageExecutor(stageThreads);
+                stageExecutors.put(stageThreads, stageExecutor);
+            }
+        }
+        int sampleCacheSize = description.optInt("sample-cache-size", 0);
+
+        List<StageTimings> runs = new ArrayList<StageTimings>();
+        ValidationOutcome outcome = null;
+        for(int i = 0; i < settings.warmup + settings.repeat; i++)
+        {
+            MiringValidationEngine engine = new MiringValidationEngine(stageExecutor, (sampleCacheSize > 0) ? new SampleResultCache(sampleCacheSize) : null);
+            StageTimings timings = new StageTimings();
+            outcome = engine.validate(rawBytes ? HmlInput.fromBuffer(ByteBuffer.wrap(payload)) : HmlInput.fromString(xml), selection, null, timings);
+            if(i >= settings.warmup)
+            {
+                runs.add(timings);
+            }
+        }
+        //The median run, by total time.
+        Collections.sort(runs, new Comparator<StageTimings>()
+        {
+            @Override
+            public int compare(StageTimings first, StageTimings second)
+            {
+                return Long.compare(first.getStage("total").getNanos(), second.getStage("total").getNanos());
+            }
+        });
+        StageTimings median = runs.get(runs.size() / 2);
+        double timeMs = median.getStage("total").getNanos() / 1000000.0;
+        double capturedTimeMs = description.optDouble("time-ms", 0);
+        JSONObject report = SlowRequestCapture.toJson(outcome);
+
+        JSONObject result = new JSONObject();
+        result.put("capture", name);
+        result.put("captured-version", description.optString("validator-version"));
+        result.put("captured-time-ms", capturedTimeMs);
+        result.put("time-ms", timeMs);
+        result.put("min-time-ms", runs.get(0).getStage("total").getNanos() / 1000000.0);
+        result.put("allocated-bytes", median.getAllocatedBytes());
+        result.put("stages", SlowRequestCapture.toJson(median));
+        boolean matchesCapture = sameJson(description.optJSONObject("report"), report);
+        result.put("report-matches-capture", matchesCapture);
+        String summary = name + ": captured " + capturedTimeMs + " ms, replayed " + timeMs + " ms, report " + (matchesCapture ? "unchanged" : "CHANGED");
+
+        JSONObject baselineResult = baseline.get(name);
+        if(baselineResult != null)
+        {
+            boolean matchesBaseline = sameJson(baselineResult.optJSONObject("report"), report);
+            double baselineTimeMs = baselineResult.getDouble("time-ms");
+            result.put("baseline-version", baselineResult.optString("replayed-version"));
+            result.put("baseline-time-ms", baselineTimeMs);
+            result.put("time-ratio", (baselineTimeMs > 0) ? timeMs / baselineTimeMs : 0);
+            result.put("report-matches-baseline", matchesBaseline);
+            summary += ", baseline " + baselineTimeMs + " ms, report " + (matchesBaseline ? "unchanged" : "CHANGED") + " from the baseline";
+        }
+        result.put("replayed-version", MiringValidator.getValidatorVersion());
+        result.put("report", report);
+        logger.info(summary);
+        return result;
+    }
+
+    private static Map<String,JSONObject> readBaseline(String baselineFile) throws Exception
+    {
+        Map<String,JSONObject> baseline = new HashMap<String,JSONObject>();
+        if(baselineFile.length() > 0)
+        {
+            JSONArray captures = new JSONObject(readText(new File(baselineFile), false)).getJSONArray("captures");
+            for(int i = 0; i < captures.length(); i++)
+            {
+                JSONObject capture = captures.getJSONObject(i);
+                //The baseline's replayed version is the one to compare with.
+                baseline.put(capture.getString("capture"), capture);
+            }
+        }
+        return baseline;
+    }
+
+    private static String optString(JSONObject json, String key)
+    {
+        return json.isNull(key) ? null : json.optString(key);
+    }
+
+    private static String readText(File file, boolean compressed) throws Exception
+    {
+        return new String(readBytes(file, compressed), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(File file, boolean compressed) throws Exception
+    {
+        InputStream stream = new FileInputStream(file);
+        try
+        {
+            InputStream textStream = compressed ? new GZIPInputStream(stream) : stream;
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for(int read = textStream.read(buffer); read != -1; read = textStream.read(buffer))
+            {
+                text.write(buffer, 0, read);
+            }
+            return text.toByteArray();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    /**
+     * Compare two JSON values, ignoring the order of object keys.  Numbers are compared by value.
+     */
+    static boolean sameJson(Object first, Object second) throws Exception
+    {
+        if(first instanceof JSONObject && second instanceof JSONObject)
+        {
+            JSONObject firstObject = (JSONObject)first;
+            JSONObject secondObject = (JSONObject)second;
+            if(!firstObject.keySet().equals(secondObject.keySet()))
+            {
+                return false;
+            }
+            for(Object key : firstObject.keySet())
+            {
+                if(!sameJson(firstObject.get((String)key), secondObject.get((String)key)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if(first instanceof JSONArray && second instanceof JSONArray)
+        {
+            JSONArray firstArray = (JSONArray)first;
+            JSONArray secondArray = (JSONArray)second;
+            if(firstArray.length() != secondArray.length())
+            {
+                return false;
+            }
+            for(int i = 0; i < firstArray.length(); i++)
+            {
+                if(!sameJson(firstArray.get(i), secondArray.get(i)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if(first instanceof Number && second instanceof Number)
+        {
+            return ((Number)first).doubleValue() == ((Number)second).doubleValue();
+        }
+        return (first == null) ? second == null : first.equals(second);
+    }
+}
@@ -0,0 +1,698 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.ClassNamesResourceConfig;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * MiringLoadHarness drives the ValidateMiring service with synthetic HML, and reports its latency and throughput.
+ *
+ * It isn't one of the unit tests.  Run it with the loadtest profile, which runs it instead of them:
+ *   mvn -P loadtest test -Dloadtest.concurrency=16 -Dloadtest.duration=60
+ *
+ * By default the service is started in this JVM, on a local port, in the JDK's http server.
+ * Set loadtest.url to measure a deployed service instead, like http://localhost:8080/MiringValidator/validator/ValidateMiring.
+ * GC pauses are only those of this JVM, so they are only reported for the embedded service.
+ *
+ * The settings are system properties:
+ *   loadtest.url          the service to test.  Empty means the embedded service.
+ *   loadtest.serverThreads the request threads of the embedded service.  Default 2 per processor.
+ *   loadtest.concurrency  the number of clients, each sending its next request when the last one returns.  Default 8.
+ *   loadtest.rate         requests per second, sent on schedule whether or not the service keeps up.
+ *                         Latency is measured from the scheduled time.  When set, loadtest.concurrency is ignored.
+ *   loadtest.duration     seconds to measure.  Default 30.
+ *   loadtest.warmup       seconds to run before measuring.  Default 10.
+ *   loadtest.mix          the synthetic documents, as a comma separated list of samples:errorFraction:weight.
+ *                         "20:0.25:2" is a document of 20 samples, a quarter of them with MIRING errors, sent twice as often as weight 1.
+ *                         Default "1:0:4,1:1:4,20:0.25:2".
+ *   loadtest.distinct     if true, every request is a different document, so the service can't reuse results.  Default true.
+ *   loadtest.seed         the seed for choosing documents.  Default 1.
+ *   loadtest.output       the directory for report.json and report.html.  Default target/loadtest.
+*/
+public class MiringLoadHarness
+{
+    static Logger logger = LoggerFactory.getLogger(MiringLoadHarness.class);
+
+    /**
+     * The settings of a load test run.
+     */
+    public static class Settings
+    {
+        String url = "";
+        int serverThreads = 2 * Runtime.getRuntime().availableProcessors();
+        int concurrency = 8;
+        double rate = 0;
+        int durationSeconds = 30;
+        int warmupSeconds = 10;
+        String mix = "1:0:4,1:1:4,20:0.25:2";
+        boolean distinct = true;
+        long seed = 1;
+        String output = "target/loadtest";
+
+        public static Settings fromSystemProperties()
+        {
+            Settings settings = new Settings();
+            settings.url = System.getProperty("loadtest.url", settings.url).trim();
+            settings.serverThreads = Integer.getInteger("loadtest.serverThreads", settings.serverThreads);
+            settings.concurrency = Integer.getInteger("loadtest.concurrency", settings.concurrency);
+            settings.rate = Double.parseDouble(System.getProperty("loadtest.rate", String.valueOf(settings.rate)));
+            settings.durationSeconds = Integer.getInteger("loadtest.duration", settings.durationSeconds);
+            settings.warmupSeconds = Integer.getInteger("loadtest.warmup", settings.warmupSeconds);
+            settings.mix = System.getProperty("loadtest.mix", settings.mix);
+            settings.distinct = Boolean.parseBoolean(System.getProperty("loadtest.distinct", String.valueOf(settings.distinct)));
+            settings.seed = Long.getLong("loadtest.seed", settings.seed);
+            settings.output = System.getProperty("loadtest.output", settings.output);
+            return settings;
+        }
+    }
+
+    /**
+     * One kind of synthetic document in the mix.
+     */
+    static class Payload
+    {
+        final int samples;
+        final double errorFraction;
+        final int weight;
+        //The document is split where a request number can be inserted, so that every request can be different.
+        final String beforeMarker;
+        final String afterMarker;
+
+        Payload(int samples, double errorFraction, int weight, String xml)
+        {
+            this.samples = samples;
+            this.errorFraction = errorFraction;
+            this.weight = weight;
+            int marker = xml.indexOf("<hmlid");
+            this.beforeMarker = xml.substring(0, marker);
+            this.afterMarker = xml.substring(marker);
+        }
+
+        String getXml(long requestNumber, boolean distinct)
+        {
+            return distinct ? beforeMarker + "<!-- loadtest request " + requestNumber + " -->" + afterMarker : beforeMarker + afterMarker;
+        }
+
+        JSONObject toJson()
+        {
+            return new JSONObject().put("samples", samples).put("error-fraction", errorFraction).put("weight", weight)
+                .put("bytes", beforeMarker.length() + afterMarker.length());
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, recorded by all of the clients.
+     */
+    static class LatencyRecorder
+    {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+
+        synchronized void record(long latency)
+        {
+            if(count == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        synchronized long[] getSorted()
+        {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /**
+         * @param sorted sorted values
+         * @param percentile between 0 and 100
+         * @return the nearest rank percentile, or 0 if there are no values
+         */
+        static long percentile(long[] sorted, double percentile)
+        {
+            if(sorted.length == 0)
+            {
+                return 0;
+            }
+            int rank = (int)Math.ceil(percentile * sorted.length / 100.0);
+            return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+        }
+    }
+
+    /**
+     * Records the stop the world pauses of this JVM's garbage collectors while it is listening.
+     */
+    static class GcPauseMonitor implements NotificationListener
+    {
+        private final LatencyRecorder pauses = new LatencyRecorder();
+        private volatile boolean listening = false;
+
+        void start()
+        {
+            for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                if(collector instanceof NotificationEmitter)
+                {
+                    ((NotificationEmitter)collector).addNotificationListener(this, null, null);
+                }
+            }
+            listening = true;
+        }
+
+        void stop()
+        {
+            listening = false;
+            for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                if(collector instanceof NotificationEmitter)
+                {
+                    try
+                    {
+                        ((NotificationEmitter)collector).removeNotificationListener(this);
+                    }
+                    catch(Exception e)
+                    {
+                        logger.error("Unable to stop listening to " + collector.getName() + ": " + e);
+                    }
+                }
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback)
+        {
+            if(!listening || !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+            {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+            //Concurrent collectors also report their whole cycles, which mostly run alongside the application.  Those aren't pauses.
+            if(info.getGcName().endsWith("Cycles") || info.getGcName().contains("Concurrent"))
+            {
+                return;
+            }
+            pauses.record(TimeUnit.MILLISECONDS.toNanos(info.getGcInfo().getDuration()));
+        }
+
+        JSONObject toJson()
+        {
+            long[] sorted = pauses.getSorted();
+            long total = 0;
+            for(long pause : sorted)
+            {
+                total += pause;
+            }
+            return new JSONObject().put("pauses", sorted.length).put("total-ms", toMillis(total))
+                .put("p99-ms", toMillis(LatencyRecorder.percentile(sorted, 99)))
+                .put("max-ms", toMillis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        }
+    }
+
+    /**
+     * The requests of a run which started after the warmup.
+     */
+    static class Measurements
+    {
+        final LatencyRecorder latencies = new LatencyRecorder();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong noncompliant = new AtomicLong();
+        volatile boolean measuring = false;
+
+        void record(long latency, int status, String body)
+        {
+            requests.incrementAndGet();
+            if(status != 200)
+            {
+                errors.incrementAndGet();
+                return;
+            }
+            latencies.record(latency);
+            if(body.indexOf("<miring-compliant>false</miring-compliant>") != -1)
+            {
+                noncompliant.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Run the load test with the settings from the system properties, and write its reports.
+     */
+    @Test
+    public void runLoadTest() throws Exception
+    {
+        Settings settings = Settings.fromSystemProperties();
+        JSONObject report = run(settings);
+        writeReports(report, new File(settings.output));
+        logger.info("Load test report: " + report.toString());
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new MiringLoadHarness().runLoadTest();
+    }
+
+    /**
+     * Run a load test.
+     *
+     * @param settings the settings of the run
+     * @return the report of the run, as JSON
+     * @throws Exception if the embedded service can't be started
+     */
+    public static JSONObject run(final Settings settings) throws Exception
+    {
+        final List<Payload> payloads = buildPayloads(settings.mix);
+        HttpServer server = null;
+        ExecutorService serverExecutor = null;
+        String serviceUrl = settings.url;
+        if(serviceUrl.length() == 0)
+        {
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            serviceUrl = "http://127.0.0.1:" + port + "/validator/ValidateMiring";
+            server = HttpServerFactory.create("http://127.0.0.1:" + port + "/validator/", new ClassNamesResourceConfig(MiringValidatorService.class));
+            //The JDK http server handles one request at a time, unless it is given threads.
+            serverExecutor = Executors.newFixedThreadPool(settings.serverThreads);
+            server.setExecutor(serverExecutor);
+            server.start();
+        }
+        //HttpURLConnection only keeps a few connections alive to each server.
+        if(System.getProperty("http.maxConnections") == null)
+        {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(settings.concurrency, 64)));
+        }
+
+        GcPauseMonitor gcMonitor = new GcPauseMonitor();
+        Measurements measurements = new Measurements();
+        long measuredNanos;
+        try
+        {
+            if(settings.rate > 0)
+            {
+                measuredNanos = runFixedRate(settings, serviceUrl, payloads, measurements, gcMonitor);
+            }
+            else
+            {
+                measuredNanos = runFixedConcurrency(settings, serviceUrl, payloads, measurements, gcMonitor);
+            }
+        }
+        finally
+        {
+            gcMonitor.stop();
+            if(server != null)
+            {
+                server.stop(0);
+                serverExecutor.shutdown();
+            }
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("url", serviceUrl);
+        report.put("embedded", server != null);
+        report.put("java-version", System.getProperty("java.version"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("mode", settings.rate > 0 ? "rate" : "concurrency");
+        if(settings.rate > 0)
+        {
+            report.put("rate", settings.rate);
+        }
+        else
+        {
+            report.put("concurrency", settings.concurrency);
+        }
+        report.put("duration-seconds", toSeconds(measuredNanos));
+        report.put("warmup-seconds", settings.warmupSeconds);
+        report.put("distinct", settings.distinct);
+        JSONArray mix = new JSONArray();
+        for(Payload payload : payloads)
+        {
+            mix.put(payload.toJson());
+        }
+        report.put("mix", mix);
+
+        long requests = measurements.requests.get();
+        long errors = measurements.errors.get();
+        report.put("requests", requests);
+        report.put("errors", errors);
+        report.put("error-rate", requests == 0 ? 0 : (double)errors / requests);
+        report.put("noncompliant-reports", measurements.noncompliant.get());
+        report.put("throughput", measuredNanos == 0 ? 0 : requests / toSeconds(measuredNanos));
+
+        long[] latencies = measurements.latencies.getSorted();
+        long total = 0;
+        for(long latency : latencies)
+        {
+            total += latency;
+        }
+        JSONObject latency = new JSONObject();
+        latency.put("min-ms", toMillis(latencies.length == 0 ? 0 : latencies[0]));
+        latency.put("mean-ms", toMillis(latencies.length == 0 ? 0 : total / latencies.length));
+        latency.put("p50-ms", toMillis(LatencyRecorder.percentile(latencies, 50)));
+        latency.put("p95-ms", toMillis(LatencyRecorder.percentile(latencies, 95)));
+        latency.put("p99-ms", toMillis(LatencyRecorder.percentile(latencies, 99)));
+        latency.put("p999-ms", toMillis(LatencyRecorder.percentile(latencies, 99.9)));
+        latency.put("max-ms", toMillis(latencies.length == 0 ? 0 : latencies[latencies.length - 1]));
+        report.put("latency", latency);
+        if(server != null)
+        {
+            report.put("gc", gcMonitor.toJson());
+        }
+        return report;
+    }
+
+    /**
+     * Each client sends its next request as soon as its last one returns.
+     */
+    private static long runFixedConcurrency(final Settings settings, final String serviceUrl, final List<Payload> payloads,
+        final Measurements measurements, GcPauseMonitor gcMonitor) throws InterruptedException
+    {
+        final long stopTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(settings.warmupSeconds + settings.durationSeconds);
+        final AtomicLong requestNumber = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(settings.concurrency);
+        for(int i = 0; i < settings.concurrency; i++)
+        {
+            final Random random = new Random(settings.seed + i);
+            clients.execute(new Runnable()
+            {
+                public void run()
+                {
+                    while(System.nanoTime() < stopTime)
+                    {
+                        long start = System.nanoTime();
+                        sendRequest(serviceUrl, choosePayload(payloads, random).getXml(requestNumber.incrementAndGet(), settings.distinct), start, measurements);
+                    }
+                }
+            });
+        }
+        return measure(settings, measurements, gcMonitor, clients);
+    }
+
+    /**
+     * Requests are sent on a fixed schedule.  A slow response doesn't hold back the next request, and a request that
+     * starts late because of the client is charged from when it should have started.
+     */
+    private static long runFixedRate(final Settings settings, final String serviceUrl, final List<Payload> payloads,
+        final Measurements measurements, GcPauseMonitor gcMonitor) throws InterruptedException
+    {
+        final long startTime = System.nanoTime();
+        final long stopTime = startTime + TimeUnit.SECONDS.toNanos(settings.warmupSeconds + settings.durationSeconds);
+        final long interval = (long)(TimeUnit.SECONDS.toNanos(1) / settings.rate);
+        final ExecutorService requests = Executors.newCachedThreadPool();
+        ExecutorService scheduler = Executors.newSingleThreadExecutor();
+        scheduler.execute(new Runnable()
+        {
+            public void run()
+            {
+                Random random = new Random(settings.seed);
+                for(long requestNumber = 0; ; requestNumber++)
+                {
+                    final long scheduledTime = startTime + requestNumber * interval;
+                    if(scheduledTime >= stopTime)
+                    {
+                        return;
+                    }
+                    long wait = scheduledTime - System.nanoTime();
+                    if(wait > 0)
+                    {
+                        try
+                        {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    final String xml = choosePayload(payloads, random).getXml(requestNumber, settings.distinct);
+                    requests.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            sendRequest(serviceUrl, xml, scheduledTime, measurements);
+                        }
+                    });
+                }
+            }
+        });
+        long measuredNanos = measure(settings, measurements, gcMonitor, scheduler);
+        requests.shutdown();
+        requests.awaitTermination(settings.durationSeconds + 60, TimeUnit.SECONDS);
+        return measuredNanos;
+    }
+
+    /**
+     * Wait for the warmup, then measure until the clients are done.
+     *
+     * @return the length of the measurement, in nanoseconds
+     */
+    private static long measure(Settings settings, Measurements measurements, GcPauseMonitor gcMonitor, ExecutorService clients) throws InterruptedException
+    {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(settings.warmupSeconds));
+        gcMonitor.start();
+        measurements.measuring = true;
+        long measureStart = System.nanoTime();
+        clients.shutdown();
+        clients.awaitTermination(settings.durationSeconds + 60, TimeUnit.SECONDS);
+        return System.nanoTime() - measureStart;
+    }
+
+    private static Payload choosePayload(List<Payload> payloads, Random random)
+    {
+        int totalWeight = 0;
+        for(Payload payload : payloads)
+        {
+            totalWeight += payload.weight;
+        }
+        int choice = random.nextInt(totalWeight);
+        for(Payload payload : payloads)
+        {
+            choice -= payload.weight;
+            if(choice < 0)
+            {
+                return payload;
+            }
+        }
+        return payloads.get(payloads.size() - 1);
+    }
+
+    private static void sendRequest(String serviceUrl, String xml, long startTime, Measurements measurements)
+    {
+        //Requests which started during the warmup aren't counted, even if they finish after it.
+        boolean measured = measurements.measuring;
+        int status = -1;
+        String body = "";
+        try
+        {
+            HttpURLConnection connection = (HttpURLConnection)new URL(serviceUrl).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            OutputStream output = connection.getOutputStream();
+            output.write(("xml=" + URLEncoder.encode(xml, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+            output.close();
+
+            status = connection.getResponseCode();
+            InputStream input = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if(input != null)
+            {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while((read = input.read(buffer)) != -1)
+                {
+                    response.write(buffer, 0, read);
+                }
+                input.close();
+                body = new String(response.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+        catch(Exception e)
+        {
+            logger.debug("Request failed: " + e);
+        }
+        if(measured)
+        {
+            measurements.record(System.nanoTime() - startTime, status, body);
+        }
+    }
+
+    /**
+     * Build the synthetic documents from the demo HML.  Error samples come from demobad.xml, the others from demogood.xml.
+     *
+     * @param mix a comma separated list of samples:errorFraction:weight
+     * @return a Payload for each entry of the mix
+     */
+    static List<Payload> buildPayloads(String mix)
+    {
+        String goodXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+        String badXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        int goodStart = goodXML.indexOf("  <sample");
+        int goodEnd = goodXML.indexOf("</sample>") + "</sample>\n".length();
+        String goodSample = goodXML.substring(goodStart, goodEnd);
+        String badSample = badXML.substring(badXML.indexOf("  <sample"), badXML.indexOf("</sample>") + "</sample>\n".length());
+        String header = goodXML.substring(0, goodStart);
+        String trailer = goodXML.substring(goodEnd);
+
+        List<Payload> payloads = new ArrayList<Payload>();
+        for(String entry : mix.split(","))
+        {
+            String[] fields = entry.trim().split(":");
+            if(fields.length != 3)
+            {
+                throw new IllegalArgumentException("A loadtest.mix entry should be samples:errorFraction:weight, not " + entry);
+            }
+            int samples = Integer.parseInt(fields[0].trim());
+            double errorFraction = Double.parseDouble(fields[1].trim());
+            int weight = Integer.parseInt(fields[2].trim());
+            int errorSamples = (int)Math.round(samples * errorFraction);
+
+            StringBuilder xml = new StringBuilder(header);
+            for(int i = 0; i < samples; i++)
+            {
+                //The error samples are spread evenly through the document.  Each sample has its own ids.
+                boolean error = errorSamples > 0 && (i * errorSamples) / samples != ((i + 1) * errorSamples) / samples;
+                xml.append((error ? badSample : goodSample).replace("ref1", "ref" + i).replace("123456789", String.valueOf(100000000 + i)));
+            }
+            xml.append(trailer);
+            payloads.add(new Payload(samples, errorFraction, weight, xml.toString()));
+        }
+        return payloads;
+    }
+
+    /**
+     * Write report.json and report.html into a directory.
+     */
+    static void writeReports(JSONObject report, File directory) throws Exception
+    {
+        directory.mkdirs();
+        Writer json = new OutputStreamWriter(new FileOutputStream(new File(directory, "report.json")), StandardCharsets.UTF_8);
+        try
+        {
+            json.write(report.toString(2));
+        }
+        finally
+        {
+            json.close();
+        }
+        Writer html = new OutputStreamWriter(new FileOutputStream(new File(directory, "report.html")), StandardCharsets.UTF_8);
+        try
+        {
+            html.write(toHtml(report));
+        }
+        finally
+        {
+            html.close();
+        }
+    }
+
+    static String toHtml(JSONObject report)
+    {
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>MIRING Validator load test</title>\n");
+        html.append("<style>body{font-family:sans-serif} table{border-collapse:collapse;margin-bottom:1em} td,th{border:1px solid #999;padding:4px 8px;text-align:left}</style>\n");
+        html.append("</head><body>\n<h1>MIRING Validator load test</h1>\n");
+        appendTable(html, "Run", report, new String[]{"url", "embedded", "java-version", "processors", "mode", "concurrency", "rate", "duration-seconds", "warmup-seconds", "distinct"});
+        appendTable(html, "Results", report, new String[]{"requests", "errors", "error-rate", "noncompliant-reports", "throughput"});
+        appendTable(html, "Latency", report.getJSONObject("latency"), new String[]{"min-ms", "mean-ms", "p50-ms", "p95-ms", "p99-ms", "p999-ms", "max-ms"});
+        if(report.has("gc"))
+        {
+            appendTable(html, "GC pauses", report.getJSONObject("gc"), new String[]{"pauses", "total-ms", "p99-ms", "max-ms"});
+        }
+        html.append("<h2>Mix</h2>\n<table><tr><th>samples</th><th>error-fraction</th><th>weight</th><th>bytes</th></tr>\n");
+        JSONArray mix = report.getJSONArray("mix");
+        for(int i = 0; i < mix.length(); i++)
+        {
+            JSONObject payload = mix.getJSONObject(i);
+            html.append("<tr><td>").append(payload.get("samples")).append("</td><td>").append(payload.get("error-fraction"))
+                .append("</td><td>").append(payload.get("weight")).append("</td><td>").append(payload.get("bytes")).append("</td></tr>\n");
+        }
+        html.append("</table>\n</body></html>\n");
+        return html.toString();
+    }
+
+    private static void appendTable(StringBuilder html, String title, JSONObject values, String[] keys)
+    {
+        html.append("<h2>").append(title).append("</h2>\n<table>\n");
+        for(String key : keys)
+        {
+            if(values.has(key))
+            {
+                html.append("<tr><th>").append(key).append("</th><td>").append(escape(String.valueOf(values.get(key)))).append("</td></tr>\n");
+            }
+        }
+        html.append("</table>\n");
+    }
+
+    private static String escape(String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static double toMillis(long nanos)
+    {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static double toSeconds(long nanos)
+    {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.junit.Test;
+
+public class MiringLoadHarnessTest
+{
+    Logger logger = LoggerFactory.getLogger(MiringLoadHarnessTest.class);
+
+    @Test
+    public void testPercentiles()
+    {
+        logger.debug("starting testPercentiles");
+
+        long[] sorted = new long[1000];
+        for(int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = i + 1;
+        }
+        assertEquals(500, MiringLoadHarness.LatencyRecorder.percentile(sorted, 50));
+        assertEquals(990, MiringLoadHarness.LatencyRecorder.percentile(sorted, 99));
+        assertEquals(999, MiringLoadHarness.LatencyRecorder.percentile(sorted, 99.9));
+        assertEquals(1000, MiringLoadHarness.LatencyRecorder.percentile(sorted, 100));
+        assertEquals(0, MiringLoadHarness.LatencyRecorder.percentile(new long[0], 99));
+    }
+
+    @Test
+    public void testShortRun() throws Exception
+    {
+        logger.debug("starting testShortRun");
+
+        List<MiringLoadHarness.Payload> payloads = MiringLoadHarness.buildPayloads("4:0.5:1");
+        String xml = payloads.get(0).getXml(1, true);
+        assertEquals(4, xml.split("<sample ").length - 1);
+        assertFalse(xml.equals(payloads.get(0).getXml(2, true)));
+
+        MiringLoadHarness.Settings settings = new MiringLoadHarness.Settings();
+        settings.concurrency = 2;
+        settings.durationSeconds = 1;
+        settings.warmupSeconds = 0;
+        settings.mix = "1:0:1,2:0.5:1";
+        JSONObject report = MiringLoadHarness.run(settings);
+        assertTrue(report.getLong("requests") > 0);
+        assertEquals(0, report.getLong("errors"));
+        assertTrue(report.getLong("noncompliant-reports") > 0);
+        assertTrue(report.getJSONObject("latency").getDouble("p99-ms") >= report.getJSONObject("latency").getDouble("p50-ms"));
+        assertTrue(report.has("gc"));
+        assertTrue(MiringLoadHarness.toHtml(report).contains("p999-ms"));
+    }
+}
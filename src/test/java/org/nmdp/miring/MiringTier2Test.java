@@ -26,6 +26,11 @@ import static org.junit.Assert.*;
 import org.nmdp.miring.MiringValidator;
 import org.nmdp.miring.Utilities;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.junit.Test;
@@ -189,6 +194,12 @@ public class MiringTier2Test
         xml = Utilities.readXmlResource("/org/nmdp/miring/hml/Element4.CSB.bad.sequencelength.xml");
         results = new MiringValidator(xml).validate();
         assertTrue(Utilities.containsErrorNode(results, "For every consensus-sequence-block node, the child sequence node must have a length of (end - start)."));
+        assertFalse(Utilities.containsErrorNode(results, "A sequence node underneath a consensus-sequence-block contains characters that are not IUPAC nucleotide codes."));
+
+        xml = Utilities.readXmlResource("/org/nmdp/miring/hml/Element4.CSB.bad.alphabet.xml");
+        results = new MiringValidator(xml).validate();
+        assertFalse(Utilities.containsErrorNode(results, "For every consensus-sequence-block node, the child sequence node must have a length of (end - start)."));
+        assertTrue(Utilities.containsErrorNode(results, "A sequence node underneath a consensus-sequence-block contains characters that are not IUPAC nucleotide codes."));
 
         //4.2.4.b
         xml = Utilities.readXmlResource("/org/nmdp/miring/hml/Element4.phasinggroup.xml");
@@ -239,5 +250,49 @@ public class MiringTier2Test
         xml = Utilities.readXmlResource("/org/nmdp/miring/hml/Element5.variant.bad.ids.3.xml");
         results = new MiringValidator(xml).validate();
         assertTrue(Utilities.containsErrorNode(results, "The variant nodes under a single consensus-sequence-block must have id attributes that are integers ranging from 0:n-1, where n is the number of variants"));
+
+        //Ids 0, 1, one, 0, 1.  Comparing neighbours only finds "one", but the last two variants repeat ids, and leave gaps.
+        xml = Utilities.readXmlResource("/org/nmdp/miring/hml/Element5.variant.bad.ids.4.xml");
+        results = new MiringValidator(xml).validate();
+        String blockXPath = "/hml[1]/sample[1]/typing[1]/consensus-sequence[1]/consensus-sequence-block[1]";
+        assertFalse(results.contains(blockXPath + "/variant[1]</xpath>"));
+        assertFalse(results.contains(blockXPath + "/variant[2]</xpath>"));
+        assertTrue(results.contains(blockXPath + "/variant[3]</xpath>"));
+        assertTrue(results.contains(blockXPath + "/variant[4]</xpath>"));
+        assertTrue(results.contains(blockXPath + "/variant[5]</xpath>"));
+    }
+
+    @Test
+    public void testPatternGroups()
+    {
+        logger.debug("starting testPatternGroups");
+
+        String[] schemaFileNames = new String[] {"/org/nmdp/miring/schematron/MiringAll.sch"};
+        HmlInput input = HmlInput.fromString(Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml"));
+        ValidationResult[] defaultResults = SchematronValidator.validate(input, schemaFileNames, RuleSelection.ALL);
+        assertTrue(defaultResults.length > 0);
+
+        //Grouped patterns, evaluated in parallel, give the same results in the same order.
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            System.setProperty(SchematronValidator.PATTERN_GROUPS_PROPERTY, "1,2,3;4;5;6,7,8");
+            ValidationResult[] groupedResults = SchematronValidator.validate(input, schemaFileNames, RuleSelection.ALL, executor);
+            assertEquals(defaultResults.length, groupedResults.length);
+            for(int i = 0; i < defaultResults.length; i++)
+            {
+                assertEquals(defaultResults[i].getErrorText(), groupedResults[i].getErrorText());
+                assertEquals(defaultResults[i].getXPaths(), groupedResults[i].getXPaths());
+            }
+        }
+        finally
+        {
+            System.clearProperty(SchematronValidator.PATTERN_GROUPS_PROPERTY);
+            executor.shutdown();
+        }
+
+        //Patterns that aren't in a configured group get their own group, in schema order.
+        List<List<String>> groups = SchematronValidator.getPatternGroups(Arrays.asList("1", "2", "3", "4", "5"), "4,1;3");
+        assertEquals(Arrays.asList(Arrays.asList("1", "4"), Arrays.asList("2"), Arrays.asList("3"), Arrays.asList("5")), groups);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,542 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.nmdp.miring.ValidationResult.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.junit.Test;
+
+public class MiringValidationEngineTest
+{
+    Logger logger = LoggerFactory.getLogger(MiringValidationEngineTest.class);
+
+    private static boolean hasResult(ValidationOutcome outcome, String errorText)
+    {
+        for(ValidationResult result : outcome.getResults())
+        {
+            if(result.getErrorText().contains(errorText))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testValidationOutcome()
+    {
+        logger.debug("starting testValidationOutcome");
+
+        MiringValidationEngine engine = new MiringValidationEngine();
+        ValidationOutcome goodOutcome = engine.validate(Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml"));
+        ValidationOutcome badOutcome = engine.validate(Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml"));
+
+        assertFalse(hasResult(goodOutcome, "There is a missing hmlid node underneath the hml node."));
+        assertTrue(hasResult(badOutcome, "There is a missing hmlid node underneath the hml node."));
+        assertFalse(badOutcome.isMiringCompliant());
+        assertTrue(badOutcome.getSamples().size() > 0);
+
+        //Serializing the outcome doesn't change it.
+        String report = goodOutcome.toXml();
+        assertEquals(Utilities.getHMLIDRoot(report), goodOutcome.getHmlIdRoot());
+        assertEquals(goodOutcome.getMiringCompliance().getReportValue(), Utilities.xmlToRootElement(report).getElementsByTagName("miring-compliant").item(0).getTextContent());
+        int propertyCount = goodOutcome.getProperties().size();
+        goodOutcome.toXml();
+        assertEquals(propertyCount, goodOutcome.getProperties().size());
+
+        //The results can't be changed through the outcome.
+        ValidationResult result = badOutcome.getResults().get(0);
+        String miringRule = result.getMiringRule();
+        try
+        {
+            result.setMiringRule("1.1.a");
+            fail("A result of an outcome was changed.");
+        }
+        catch(UnsupportedOperationException e)
+        {
+            assertEquals(miringRule, result.getMiringRule());
+        }
+
+        ValidationOutcome emptyOutcome = engine.validate("");
+        assertTrue(hasResult(emptyOutcome, "XML is null or length 0."));
+        assertFalse(emptyOutcome.isHmlCompliant());
+    }
+
+    @Test
+    public void testFileTooLargeToMap() throws Exception
+    {
+        logger.debug("starting testFileTooLargeToMap");
+
+        //A sparse file just past the limit, so no disk space is used.
+        File hugeFile = File.createTempFile("miring-huge", ".xml");
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile(hugeFile, "rw");
+            try
+            {
+                file.setLength(Integer.MAX_VALUE + 1L);
+            }
+            finally
+            {
+                file.close();
+            }
+            try
+            {
+                new MiringValidationEngine().validate(hugeFile.toPath());
+                fail("A file of 2 GB was mapped.");
+            }
+            catch(IOException e)
+            {
+                assertTrue(e.getMessage().contains(String.valueOf(Integer.MAX_VALUE)));
+            }
+        }
+        finally
+        {
+            hugeFile.delete();
+        }
+    }
+
+    @Test
+    public void testRuleSelection()
+    {
+        logger.debug("starting testRuleSelection");
+
+        MiringValidationEngine engine = new MiringValidationEngine();
+
+        //HML only.  The missing hmlid is a tier 1 rule, so it isn't reported.
+        ValidationOutcome hmlOutcome = engine.validate(Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml"), RuleSelection.parse("hml", null, null));
+        assertFalse(hasResult(hmlOutcome, "There is a missing hmlid node underneath the hml node."));
+        assertEquals(1, hmlOutcome.getEvaluatedRules().getTiers().size());
+        assertTrue(hmlOutcome.getEvaluatedRules().getEvaluatedRuleIds().isEmpty());
+
+        //4.2.3.b is only evaluated when element 4 or the rule is selected.
+        String badStartEnd = Utilities.readXmlResource("/org/nmdp/miring/hml/Element4.CSB.bad.startend.xml");
+        String startEndError = "On a consensus-sequence-block node, end attribute should be greater than or equal to the start attribute.";
+        assertTrue(hasResult(engine.validate(badStartEnd, RuleSelection.parse(null, "4", null)), startEndError));
+        assertTrue(hasResult(engine.validate(badStartEnd, RuleSelection.parse(null, null, "4.2.3")), startEndError));
+
+        ValidationOutcome element5Outcome = engine.validate(badStartEnd, RuleSelection.parse(null, "5", null));
+        assertFalse(hasResult(element5Outcome, startEndError));
+        assertTrue(element5Outcome.getEvaluatedRules().getEvaluatedRuleIds().contains("5.2.b"));
+        assertFalse(element5Outcome.getEvaluatedRules().getEvaluatedRuleIds().contains("4.2.3.b"));
+
+        //The report says what was evaluated.
+        String report = element5Outcome.toXml();
+        assertEquals(3, Utilities.xmlToRootElement(report).getElementsByTagName("tier").getLength());
+        assertTrue(report.contains("<miring-rule-id>5.2.b</miring-rule-id>"));
+
+        try
+        {
+            RuleSelection.parse("tier4", null, null);
+            fail("tier4 is not a tier");
+        }
+        catch(IllegalArgumentException e)
+        {
+            //expected
+        }
+    }
+
+    @Test
+    public void testConcurrentStages()
+    {
+        logger.debug("starting testConcurrentStages");
+
+        MiringValidationEngine sequentialEngine = new MiringValidationEngine();
+        ExecutorService stageExecutor = MiringValidationEngine.newStageExecutor(3);
+        try
+        {
+            MiringValidationEngine concurrentEngine = new MiringValidationEngine(stageExecutor);
+            //Good documents, and documents that stop at each gate.
+            //invalid.prolog.xml.txt skips the hml schema, so that tier 1 stops it.
+            String[] resources = {"demogood.xml", "demobad.xml", "Element1.no.hmlid.xml", "HMLWithCustomNamespace.xml", "invalid.prolog.xml.txt"};
+            for(String resource : resources)
+            {
+                String xml = Utilities.readXmlResource("/org/nmdp/miring/hml/" + resource);
+                RuleSelection selection = resource.endsWith(".txt") ? RuleSelection.parse("tier1,tier2", null, null) : RuleSelection.ALL;
+                ValidationOutcome sequentialOutcome = sequentialEngine.validate(xml, selection);
+                ValidationOutcome concurrentOutcome = concurrentEngine.validate(xml, selection);
+
+                assertEquals(resource, sequentialOutcome.getMiringCompliance(), concurrentOutcome.getMiringCompliance());
+                assertEquals(resource, sequentialOutcome.getHmlCompliance(), concurrentOutcome.getHmlCompliance());
+                assertEquals(resource, String.valueOf(sequentialOutcome.getEvaluatedRules()), String.valueOf(concurrentOutcome.getEvaluatedRules()));
+                assertEquals(resource, sequentialOutcome.getResults().size(), concurrentOutcome.getResults().size());
+                for(int i = 0; i < sequentialOutcome.getResults().size(); i++)
+                {
+                    assertEquals(resource, sequentialOutcome.getResults().get(i).getErrorText(), concurrentOutcome.getResults().get(i).getErrorText());
+                }
+            }
+
+            //The gates still stop the later tiers.
+            String truncatedXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+            truncatedXML = truncatedXML.substring(0, truncatedXML.length() / 2);
+            ValidationOutcome truncatedOutcome = concurrentEngine.validate(truncatedXML);
+            assertEquals(ValidationOutcome.Compliance.REJECT, truncatedOutcome.getHmlCompliance());
+            assertFalse(truncatedOutcome.getEvaluatedRules().includesTier(RuleSelection.Tier.TIER1));
+            ValidationOutcome prologOutcome = concurrentEngine.validate(Utilities.readXmlResource("/org/nmdp/miring/hml/invalid.prolog.xml.txt"), RuleSelection.parse("tier1,tier2", null, null));
+            assertFalse(prologOutcome.getEvaluatedRules().includesTier(RuleSelection.Tier.TIER2));
+        }
+        finally
+        {
+            stageExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testValidateBatch() throws Exception
+    {
+        logger.debug("starting testValidateBatch");
+
+        //Virtual threads are there from Java 21.  Older JVMs fall back to platform threads.
+        String javaVersion = System.getProperty("java.specification.version");
+        boolean java21 = !javaVersion.startsWith("1.") && Integer.parseInt(javaVersion) >= 21;
+        assertEquals(java21, VirtualThreads.isAvailable());
+
+        MiringValidationEngine sequentialEngine = new MiringValidationEngine();
+        ExecutorService stageExecutor = MiringValidationEngine.newStageExecutor(3);
+        ExecutorService documentExecutor = VirtualThreads.newExecutor("test-document", 2);
+        try
+        {
+            Future<Boolean> virtual = documentExecutor.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return VirtualThreads.isVirtual(Thread.currentThread());
+                }
+            });
+            assertEquals(java21, virtual.get());
+
+            MiringValidationEngine concurrentEngine = new MiringValidationEngine(stageExecutor);
+            String[] resources = {"demogood.xml", "demobad.xml", "Element1.no.hmlid.xml", "HMLWithCustomNamespace.xml"};
+            List<HmlInput> inputs = new ArrayList<HmlInput>();
+            for(String resource : resources)
+            {
+                inputs.add(HmlInput.fromString(Utilities.readXmlResource("/org/nmdp/miring/hml/" + resource)));
+            }
+            inputs.add(HmlInput.fromString(null));
+
+            List<ValidationOutcome> outcomes = concurrentEngine.validateBatch(inputs, RuleSelection.ALL, documentExecutor);
+            assertEquals(inputs.size(), outcomes.size());
+            for(int i = 0; i < resources.length; i++)
+            {
+                assertSameOutcome(resources[i], sequentialEngine.validate(inputs.get(i), RuleSelection.ALL), outcomes.get(i));
+            }
+            assertTrue(hasResult(outcomes.get(resources.length), "XML is null or length 0."));
+
+            //Without a document executor the batch is validated on this thread.
+            assertSameOutcome("sequential batch", outcomes.get(1), sequentialEngine.validateBatch(inputs.subList(1, 2), RuleSelection.ALL, null).get(0));
+        }
+        finally
+        {
+            documentExecutor.shutdown();
+            stageExecutor.shutdown();
+        }
+    }
+
+    private static String buildSamples(String header, List<String> samples, String trailer)
+    {
+        StringBuilder xml = new StringBuilder(header);
+        for(String sample : samples)
+        {
+            xml.append(sample);
+        }
+        return xml.append(trailer).toString();
+    }
+
+    private static void assertSameOutcome(String message, ValidationOutcome expected, ValidationOutcome actual)
+    {
+        assertEquals(message, expected.getMiringCompliance(), actual.getMiringCompliance());
+        assertEquals(message, expected.getHmlCompliance(), actual.getHmlCompliance());
+        assertEquals(message, expected.getSamples().size(), actual.getSamples().size());
+        assertEquals(message, expected.getResults().size(), actual.getResults().size());
+        for(int i = 0; i < expected.getResults().size(); i++)
+        {
+            ValidationResult expectedResult = expected.getResults().get(i);
+            ValidationResult actualResult = actual.getResults().get(i);
+            assertEquals(message, expectedResult.getErrorText(), actualResult.getErrorText());
+            assertEquals(message, expectedResult.getSampleID(), actualResult.getSampleID());
+            assertEquals(message, expectedResult.getXPaths(), actualResult.getXPaths());
+        }
+    }
+
+    @Test
+    public void testSampleResultCache()
+    {
+        logger.debug("starting testSampleResultCache");
+
+        //A document of good and bad samples, with their own reference sequences and sample ids.
+        String goodXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+        String badXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        String goodSample = goodXML.substring(goodXML.indexOf("  <sample"), goodXML.indexOf("</sample>") + "</sample>\n".length());
+        int badStart = badXML.indexOf("  <sample");
+        int badEnd = badXML.indexOf("</sample>") + "</sample>\n".length();
+        String badSample = badXML.substring(badStart, badEnd);
+        String header = badXML.substring(0, badStart);
+        String trailer = badXML.substring(badEnd);
+        List<String> samples = new ArrayList<String>();
+        for(int i = 0; i < 4; i++)
+        {
+            samples.add(((i % 2 == 0) ? badSample : goodSample).replace("ref1", "ref" + i).replace("123456789", "12345678" + i));
+        }
+
+        SampleResultCache cache = new SampleResultCache(100);
+        MiringValidationEngine engine = new MiringValidationEngine();
+        MiringValidationEngine cachedEngine = new MiringValidationEngine(null, cache);
+
+        String xml = buildSamples(header, samples, trailer);
+        assertSameOutcome("first validation", engine.validate(xml), cachedEngine.validate(xml));
+        assertEquals(0, cache.getHitCount());
+        assertTrue(cache.size() > 0);
+
+        //Fix one sample, which also moves the lines of the samples after it.
+        samples.set(2, "\n\n" + goodSample.replace("ref1", "refX").replace("123456789", "999"));
+        xml = buildSamples(header, samples, trailer);
+        assertSameOutcome("edited sample", engine.validate(xml), cachedEngine.validate(xml));
+        assertTrue(cache.getHitCount() > 0);
+
+        //Remove a sample, so that the samples after it change index.
+        samples.remove(1);
+        xml = buildSamples(header, samples, trailer);
+        long hits = cache.getHitCount();
+        assertSameOutcome("removed sample", engine.validate(xml), cachedEngine.validate(xml));
+        assertTrue(cache.getHitCount() > hits);
+
+        //A different header changes the context of every sample, so nothing is reused.
+        hits = cache.getHitCount();
+        xml = buildSamples(header.replace("project-name=\"LAB\"", "project-name=\"LAB2\""), samples, trailer);
+        assertSameOutcome("edited header", engine.validate(xml), cachedEngine.validate(xml));
+        assertEquals(hits, cache.getHitCount());
+    }
+
+    @Test
+    public void testRuleProfile()
+    {
+        logger.debug("starting testRuleProfile");
+
+        SampleResultCache cache = new SampleResultCache(100);
+        MiringValidationEngine engine = new MiringValidationEngine(null, cache);
+        String badXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        ValidationOutcome outcome = engine.validate(badXML);
+
+        //Profiling doesn't change the results, and validates every sample instead of reusing them.
+        RuleProfile profile = new RuleProfile();
+        long hits = cache.getHitCount();
+        assertSameOutcome("profiled validation", outcome, engine.validate(HmlInput.fromString(badXML), RuleSelection.ALL, profile));
+        assertEquals(hits, cache.getHitCount());
+
+        boolean schemaFound = false;
+        boolean missingAttributeFired = false;
+        boolean tier2AssertFired = false;
+        long previousNanos = Long.MAX_VALUE;
+        for(RuleProfile.Entry entry : profile.getEntries())
+        {
+            logger.debug(entry.getTier().getName() + " " + entry.getKind().getName() + " " + entry.getContext() + " " + entry.getTest()
+                + " nodes=" + entry.getNodes() + " evaluations=" + entry.getEvaluations() + " fired=" + entry.getFired() + " nanos=" + entry.getNanos());
+            assertTrue(entry.getNanos() <= previousNanos);
+            previousNanos = entry.getNanos();
+            assertTrue(entry.getFired() <= entry.getEvaluations() || entry.getKind() == RuleProfile.Kind.SCHEMA);
+            schemaFound |= entry.getKind() == RuleProfile.Kind.SCHEMA && entry.getNodes() > 0;
+            missingAttributeFired |= entry.getKind() == RuleProfile.Kind.MISSING_ATTRIBUTE && entry.getFired() > 0 && entry.getMiringRuleId() != null;
+            tier2AssertFired |= entry.getTier() == RuleSelection.Tier.TIER2 && entry.getKind() == RuleProfile.Kind.ASSERT
+                && entry.getEvaluations() > 0 && entry.getFired() > 0 && entry.getMiringRuleId() != null;
+        }
+        assertTrue(schemaFound);
+        assertTrue(missingAttributeFired);
+        assertTrue(tier2AssertFired);
+    }
+
+    private static List<String> describeSampleResults(ValidationOutcome outcome, int sampleIndex)
+    {
+        List<String> descriptions = new ArrayList<String>();
+        for(ValidationResult result : outcome.getResults())
+        {
+            StringBuilder xPaths = new StringBuilder();
+            for(String xPath : result.getXPaths())
+            {
+                if(xPath.contains("/sample[" + sampleIndex + "]"))
+                {
+                    xPaths.append(' ').append(xPath);
+                }
+            }
+            if(xPaths.length() > 0)
+            {
+                descriptions.add(result.getSeverity() + " " + result.getMiringRule() + " " + result.getSampleID() + " " + result.getErrorText() + xPaths);
+            }
+        }
+        Collections.sort(descriptions);
+        return descriptions;
+    }
+
+    @Test
+    public void testValidateSample()
+    {
+        logger.debug("starting testValidateSample");
+
+        String goodXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+        String badXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        String goodSample = goodXML.substring(goodXML.indexOf("  <sample"), goodXML.indexOf("</sample>") + "</sample>\n".length());
+        int badStart = badXML.indexOf("  <sample");
+        int badEnd = badXML.indexOf("</sample>") + "</sample>\n".length();
+        String badSample = badXML.substring(badStart, badEnd);
+        String header = badXML.substring(0, badStart);
+        List<String> samples = new ArrayList<String>();
+        for(int i = 0; i < 3; i++)
+        {
+            samples.add(((i % 2 == 0) ? goodSample : badSample).replace("ref1", "ref" + i).replace("123456789", "12345678" + i));
+        }
+        String xml = buildSamples(header, samples, badXML.substring(badEnd));
+
+        MiringValidationEngine engine = new MiringValidationEngine();
+        ValidationOutcome outcome = engine.validate(xml);
+        List<String> expected = describeSampleResults(outcome, 2);
+        assertFalse(expected.isEmpty());
+
+        //A sample of a whole document.
+        ValidationOutcome sampleOutcome = engine.validateSample(HmlInput.fromString(xml), 2, RuleSelection.ALL);
+        assertEquals(expected, describeSampleResults(sampleOutcome, 2));
+        assertEquals(expected.size(), sampleOutcome.getResults().size());
+        assertEquals(1, sampleOutcome.getSamples().size());
+        assertEquals("123456781", sampleOutcome.getSamples().get(0).getId());
+        assertFalse(sampleOutcome.getSamples().get(0).isMiringCompliant());
+
+        //The header and a sample, from an editor.  The sample's line moves the lines in the results.
+        int sampleStart = xml.indexOf(samples.get(1));
+        int sampleLine = xml.substring(0, sampleStart).split("\n", -1).length;
+        assertEquals(expected, describeSampleResults(engine.validateSample(header, samples.get(1), 2, sampleLine, RuleSelection.ALL), 2));
+
+        //Results about the header, like the hmlid, are left out.
+        for(int i = 1; i <= samples.size(); i++)
+        {
+            sampleOutcome = engine.validateSample(HmlInput.fromString(xml), i, RuleSelection.ALL);
+            assertEquals(describeSampleResults(outcome, i), describeSampleResults(sampleOutcome, i));
+            assertEquals(describeSampleResults(sampleOutcome, i).size(), sampleOutcome.getResults().size());
+        }
+        assertFalse(engine.validateSample(HmlInput.fromString(xml), 4, RuleSelection.ALL).getResults(Severity.FATAL).isEmpty());
+    }
+
+    @Test
+    public void testValidationProgress()
+    {
+        logger.debug("starting testValidationProgress");
+
+        String badXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        int badStart = badXML.indexOf("  <sample");
+        int badEnd = badXML.indexOf("</sample>") + "</sample>\n".length();
+        String badSample = badXML.substring(badStart, badEnd);
+        List<String> samples = new ArrayList<String>();
+        for(int i = 0; i < 3; i++)
+        {
+            samples.add(badSample.replace("ref1", "ref" + i).replace("123456789", "12345678" + i));
+        }
+        String xml = buildSamples(badXML.substring(0, badStart), samples, badXML.substring(badEnd));
+
+        SampleResultCache cache = new SampleResultCache(100);
+        MiringValidationEngine engine = new MiringValidationEngine(null, cache);
+        ValidationOutcome outcome = new MiringValidationEngine().validate(xml);
+        //The second validation reuses every sample, which still counts them as processed.
+        for(int validation = 0; validation < 2; validation++)
+        {
+            ValidationProgress progress = new ValidationProgress();
+            assertEquals(ValidationProgress.State.WAITING, progress.getState("tier2"));
+            assertSameOutcome("validation " + validation, outcome, engine.validate(HmlInput.fromString(xml), RuleSelection.ALL, null, null, progress));
+            for(String stage : ValidationProgress.STAGES)
+            {
+                assertEquals(stage, ValidationProgress.State.FINISHED, progress.getState(stage));
+            }
+            assertEquals(3, progress.getSampleCount());
+            assertEquals(3, progress.getSamplesProcessed());
+            assertEquals(!outcome.getResults(Severity.MIRING).isEmpty(), progress.getResultCount(Severity.MIRING) > 0);
+            assertEquals(0, progress.getResultCount(Severity.FATAL));
+        }
+        assertTrue(cache.getHitCount() > 0);
+
+        //Stages that aren't selected are skipped.
+        ValidationProgress progress = new ValidationProgress();
+        engine.validate(HmlInput.fromString(xml), RuleSelection.parse("hml", null, null), null, null, progress);
+        assertEquals(ValidationProgress.State.FINISHED, progress.getState("hml"));
+        assertEquals(ValidationProgress.State.SKIPPED, progress.getState("tier1"));
+        assertEquals(ValidationProgress.State.SKIPPED, progress.getState("tier2"));
+    }
+
+        @Test
+    public void testConcurrentValidation() throws Exception
+    {
+        logger.debug("starting testConcurrentValidation");
+
+        final MiringValidationEngine engine = new MiringValidationEngine();
+        final String demoGoodXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+        final String demoBadXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<ValidationOutcome>> goodOutcomes = new ArrayList<Future<ValidationOutcome>>();
+            List<Future<ValidationOutcome>> badOutcomes = new ArrayList<Future<ValidationOutcome>>();
+            for(int i = 0; i < 4; i++)
+            {
+                goodOutcomes.add(executor.submit(new Callable<ValidationOutcome>()
+                {
+                    public ValidationOutcome call()
+                    {
+                        return engine.validate(demoGoodXML);
+                    }
+                }));
+                badOutcomes.add(executor.submit(new Callable<ValidationOutcome>()
+                {
+                    public ValidationOutcome call()
+                    {
+                        return engine.validate(demoBadXML);
+                    }
+                }));
+            }
+
+            for(Future<ValidationOutcome> outcome : goodOutcomes)
+            {
+                assertFalse(hasResult(outcome.get(), "There is a missing hmlid node underneath the hml node."));
+                assertFalse(hasResult(outcome.get(), "The node variant is missing a quality-score attribute."));
+            }
+            for(Future<ValidationOutcome> outcome : badOutcomes)
+            {
+                assertTrue(hasResult(outcome.get(), "There is a missing hmlid node underneath the hml node."));
+                assertTrue(hasResult(outcome.get(), "The node variant is missing a quality-score attribute."));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
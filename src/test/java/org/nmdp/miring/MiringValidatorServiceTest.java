@@ -0,0 +1,173 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.ClassNamesResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+
+public class MiringValidatorServiceTest
+{
+    static Logger logger = LoggerFactory.getLogger(MiringValidatorServiceTest.class);
+    static HttpServer server;
+    static String serviceUrl;
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        serviceUrl = "http://127.0.0.1:" + port + "/validator/ValidateMiring";
+        server = HttpServerFactory.create("http://127.0.0.1:" + port + "/validator/", new ClassNamesResourceConfig(MiringValidatorService.class));
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer()
+    {
+        server.stop(0);
+    }
+
+    /**
+     * POST the xml to the service, and return the content type and the response body.
+     */
+    static String[] post(String xml, String accept) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(serviceUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        if(accept != null)
+        {
+            connection.setRequestProperty("Accept", accept);
+        }
+        OutputStream output = connection.getOutputStream();
+        output.write(("xml=" + URLEncoder.encode(xml, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+        output.close();
+
+        assertEquals(200, connection.getResponseCode());
+        InputStream input = connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = input.read(buffer)) != -1)
+        {
+            body.write(buffer, 0, read);
+        }
+        input.close();
+        return new String[]{connection.getContentType(), new String(body.toByteArray(), StandardCharsets.UTF_8)};
+    }
+
+    @Test
+    public void testContentNegotiation() throws Exception
+    {
+        logger.debug("starting testContentNegotiation");
+        String demoBadXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+
+        //XML stays the default.
+        String[] anyResponse = post(demoBadXML, "*/*");
+        assertTrue(anyResponse[0].startsWith("application/xml"));
+        assertTrue(Utilities.containsErrorNode(anyResponse[1], "There is a missing hmlid node underneath the hml node."));
+
+        String[] xmlResponse = post(demoBadXML, "application/xml");
+        assertTrue(xmlResponse[0].startsWith("application/xml"));
+
+        String[] compactResponse = post(demoBadXML, "application/vnd.miring.compact+xml");
+        assertTrue(compactResponse[0].startsWith("application/vnd.miring.compact+xml"));
+        assertEquals("compact", Utilities.xmlToRootElement(compactResponse[1]).getAttribute("format"));
+        assertTrue(Utilities.containsErrorNode(ReportGenerator.expandCompactReport(compactResponse[1]), "There is a missing hmlid node underneath the hml node."));
+
+        String[] jsonResponse = post(demoBadXML, "application/json");
+        assertTrue(jsonResponse[0].startsWith("application/json"));
+        JSONObject report = new JSONObject(jsonResponse[1]);
+        assertEquals("false", report.getString("miring-compliant"));
+        assertTrue(report.getJSONObject("samples").getInt("sample-count") > 0);
+
+        boolean foundHmlidError = false;
+        JSONArray miringErrors = report.getJSONArray("miring-validation-errors");
+        for(int i = 0; i < miringErrors.length(); i++)
+        {
+            JSONObject result = miringErrors.getJSONObject(i);
+            if(result.getString("description").contains("There is a missing hmlid node underneath the hml node."))
+            {
+                foundHmlidError = true;
+                assertEquals("miring", result.getString("severity"));
+                assertEquals("1.1.a", result.getString("miring-rule-id"));
+                assertTrue(result.getJSONArray("xpath").length() > 0);
+            }
+        }
+        assertTrue(foundHmlidError);
+    }
+
+    @Test
+    public void testBatch() throws Exception
+    {
+        logger.debug("starting testBatch");
+        String demoBadXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        String demoGoodXML = Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml");
+
+        HttpURLConnection connection = (HttpURLConnection)new URL(serviceUrl + "/batch").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        OutputStream output = connection.getOutputStream();
+        output.write(("xml=" + URLEncoder.encode(demoBadXML, "UTF-8") + "&xml=" + URLEncoder.encode(demoGoodXML, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+        output.close();
+
+        assertEquals(200, connection.getResponseCode());
+        InputStream input = connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = input.read(buffer)) != -1)
+        {
+            body.write(buffer, 0, read);
+        }
+        input.close();
+
+        JSONArray reports = new JSONArray(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, reports.length());
+        assertEquals("false", reports.getJSONObject(0).getString("miring-compliant"));
+        assertEquals(new JSONObject(post(demoGoodXML, "application/json")[1]).getString("miring-compliant"), reports.getJSONObject(1).getString("miring-compliant"));
+    }
+}
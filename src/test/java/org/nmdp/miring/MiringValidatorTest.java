@@ -23,6 +23,14 @@
 package org.nmdp.miring;
 
 import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import org.nmdp.miring.MiringValidator;
 import org.nmdp.miring.Utilities;
 
@@ -55,4 +63,34 @@ public class MiringValidatorTest
         assertFalse(Utilities.containsErrorNode(goodValidatorResults, "The node variant is missing a quality-score attribute."));
         assertTrue(Utilities.containsErrorNode(badValidatorResults, "The node variant is missing a quality-score attribute."));
     }
+
+    @Test
+    public void testMiringValidatorInputs() throws Exception
+    {
+        logger.debug("starting testMiringValidatorInputs");
+
+        Path demoBadPath = Paths.get(MiringValidatorTest.class.getResource("/org/nmdp/miring/hml/demobad.xml").toURI());
+        String stringResults = new MiringValidator(Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml")).validate();
+        String pathResults = new MiringValidator(demoBadPath).validate();
+        String bufferResults = new MiringValidator(ByteBuffer.wrap(Files.readAllBytes(demoBadPath))).validate();
+        InputStream demoBadStream = new FileInputStream(demoBadPath.toFile());
+        String streamResults = new MiringValidator(demoBadStream).validate();
+        demoBadStream.close();
+
+        for(String results : new String[]{stringResults, pathResults, bufferResults, streamResults})
+        {
+            assertTrue(Utilities.containsErrorNode(results, "There is a missing hmlid node underneath the hml node."));
+            assertTrue(Utilities.containsErrorNode(results, "The node variant is missing a quality-score attribute."));
+        }
+
+        //The same file can be validated more than once.
+        MiringValidator pathValidator = new MiringValidator(demoBadPath);
+        pathValidator.validate();
+        assertTrue(Utilities.containsErrorNode(pathValidator.validate(), "There is a missing hmlid node underneath the hml node."));
+
+        Path demoGoodPath = Paths.get(MiringValidatorTest.class.getResource("/org/nmdp/miring/hml/demogood.xml").toURI());
+        String goodResults = new MiringValidator(demoGoodPath).validate();
+        assertFalse(Utilities.containsErrorNode(goodResults, "There is a missing hmlid node underneath the hml node."));
+        assertEquals(Utilities.getHMLIDRoot(Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml")), Utilities.getHMLIDRoot(goodResults));
+    }
 }
@@ -0,0 +1,80 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.transform.Templates;
+
+import net.sf.saxon.TransformerFactoryImpl;
+
+import org.junit.Test;
+
+public class PrecompilerTest
+{
+    @Test
+    public void testPrecompile() throws Exception
+    {
+        File directory = new File("target/test-precompiled");
+        Precompiler.precompile(directory);
+
+        File indexFile = new File(directory, Precompiler.SCHEMATRON_DIRECTORY + "MiringAll.properties");
+        URL indexURL = indexFile.toURI().toURL();
+        List<Templates> precompiled = Precompiler.loadSchematron(indexURL, MiringValidationEngine.SCHEMATRON_SCHEMA, RuleSelection.ALL, "", new TransformerFactoryImpl());
+        assertNotNull(precompiled);
+        assertEquals(SchematronValidator.getCompiledPatternGroups(RuleSet.getBundled(), MiringValidationEngine.SCHEMATRON_SCHEMA, RuleSelection.ALL).size(), precompiled.size());
+
+        //Only every rule, with the default pattern groups, is precompiled.
+        assertNull(Precompiler.loadSchematron(indexURL, MiringValidationEngine.SCHEMATRON_SCHEMA, RuleSelection.parse(null, "1,2", null), "", new TransformerFactoryImpl()));
+        assertNull(Precompiler.loadSchematron(indexURL, MiringValidationEngine.SCHEMATRON_SCHEMA, RuleSelection.ALL, "1,2,3", new TransformerFactoryImpl()));
+
+        Properties index = new Properties();
+        InputStream in = new FileInputStream(indexFile);
+        index.load(in);
+        in.close();
+        assertTrue(Precompiler.isCurrent(index));
+        String digest = index.getProperty("digest");
+        index.setProperty("digest", (digest.charAt(0) == '0' ? "1" : "0") + digest.substring(1));
+        assertFalse(Precompiler.isCurrent(index));
+
+        for(String[] template : Precompiler.RULE_TEMPLATES)
+        {
+            File templateFile = new File(directory, Precompiler.RULE_TEMPLATE_DIRECTORY + Precompiler.getRuleTemplateFileName(template[0], template[1]));
+            List<RuleTemplate> precompiledRules = Precompiler.loadRuleTemplate(templateFile.toURI().toURL(), template[0]);
+            List<RuleTemplate> rules = RuleTemplate.readRules(RuleSet.getBundled(), template[0], template[1]);
+            assertNotNull(precompiledRules);
+            assertEquals(rules.size(), precompiledRules.size());
+            for(int i = 0; i < rules.size(); i++)
+            {
+                assertEquals(rules.get(i).getAttributes(), precompiledRules.get(i).getAttributes());
+            }
+        }
+    }
+}
@@ -24,8 +24,12 @@ package org.nmdp.miring;
 
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
 import java.util.HashMap;
 
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Validator;
+
 import org.nmdp.miring.ReportGenerator;
 import org.nmdp.miring.Utilities;
 import org.nmdp.miring.ValidationResult;
@@ -106,6 +110,48 @@ public class ReportGeneratorTest
         }
     }
     
+    @Test
+    public void testCompactReport() throws Exception
+    {
+        logger.debug("starting testCompactReport");
+        MiringValidationEngine engine = new MiringValidationEngine();
+        Validator compactValidator = XmlFactories.newSchema(ReportGenerator.class.getResource("/org/nmdp/miring/schema/miringreport-compact.xsd")).newValidator();
+        String[] documents = {"demobad.xml", "demogood.xml", "Element2.referencesequence.missing.attributes.xml", "Element4.CSB.bad.attributes.xml"};
+        for(String document : documents)
+        {
+            ValidationOutcome outcome = engine.validate(Utilities.readXmlResource("/org/nmdp/miring/hml/" + document));
+            String classicReport = outcome.toXml();
+            String compactReport = outcome.toCompactXml();
+            compactValidator.validate(new StreamSource(new StringReader(compactReport)));
+
+            //Expanding the compact report gives the classic report.  They may have been written a second apart.
+            String expandedReport = ReportGenerator.expandCompactReport(compactReport);
+            assertEquals(document, withoutTimestamp(classicReport), withoutTimestamp(expandedReport));
+        }
+
+        //The same problem in every sample is described once.
+        ValidationResult[] results = new ValidationResult[200];
+        for(int i = 0; i < results.length; i++)
+        {
+            results[i] = new ValidationResult("The consensus-sequence-block is missing a sequence.", Severity.MIRING);
+            results[i].setMiringRule("4.2.3.a");
+            results[i].setSolutionText("Please add a sequence element to each consensus-sequence-block, containing the consensus sequence.");
+            results[i].addXPath("/hml[1]/sample[" + (i + 1) + "]/typing[1]/consensus-sequence[1]/consensus-sequence-block[1]");
+        }
+        ValidationOutcome outcome = new ValidationOutcome(results, "testRoot", "1.2.3.4", null, null, results.length);
+        String classicReport = outcome.toXml();
+        String compactReport = outcome.toCompactXml();
+        assertEquals(1, Utilities.xmlToRootElement(compactReport).getElementsByTagName("rule").getLength());
+        assertEquals(results.length, Utilities.xmlToRootElement(compactReport).getElementsByTagName("result").getLength());
+        assertTrue(compactReport.length() * 2 < classicReport.length());
+        assertEquals(withoutTimestamp(classicReport), withoutTimestamp(ReportGenerator.expandCompactReport(compactReport)));
+    }
+
+    private static String withoutTimestamp(String report)
+    {
+        return report.replaceFirst("timestamp=\"[^\"]*\"", "");
+    }
+
     /*@Test
      * TODO: Make a test for getting properties fromt he HML File.
     public void testGetPropertiesFromRootHml()
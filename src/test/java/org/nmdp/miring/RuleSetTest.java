@@ -0,0 +1,245 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RuleSetTest
+{
+    private static final String NOT_OID_SOLUTION = "Please format the hmlid node's root attribute like an OID:  11.234.55555.65";
+    private static final String CHANGED_SOLUTION = "Please use an OID for the hmlid root, like 2.16.840.1.113883";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("miring-rules-test").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        RuleSet.setCurrent(RuleSet.getBundled());
+        delete(directory);
+    }
+
+    @Test
+    public void testBundledRuleSet() throws Exception
+    {
+        RuleSet bundled = RuleSet.getBundled();
+        assertSame(bundled, RuleSet.getBundled());
+        assertEquals(12, bundled.getVersion().length());
+
+        ValidationOutcome outcome = validateNotOid();
+        assertEquals(bundled.getVersion(), outcome.getRuleSetVersion());
+        assertEquals(bundled.getVersion(), Utilities.xmlToRootElement(outcome.toXml()).getAttribute("rule-set"));
+        assertTrue(outcome.toXml().contains(NOT_OID_SOLUTION));
+    }
+
+    @Test
+    public void testReloadChangedRules() throws Exception
+    {
+        String template = readResource("ruletemplates/SchematronRuleTemplate.xml");
+        assertTrue(template.contains(NOT_OID_SOLUTION));
+        write("ruletemplates/SchematronRuleTemplate.xml", template.replace(NOT_OID_SOLUTION, CHANGED_SOLUTION));
+
+        RuleSetWatcher watcher = new RuleSetWatcher(directory);
+        assertTrue(watcher.reload());
+        assertFalse(RuleSet.getCurrent().getVersion().equals(RuleSet.getBundled().getVersion()));
+
+        ValidationOutcome outcome = validateNotOid();
+        assertEquals(RuleSet.getCurrent().getVersion(), outcome.getRuleSetVersion());
+        assertTrue(outcome.toXml().contains(CHANGED_SOLUTION));
+        assertFalse(outcome.toXml().contains(NOT_OID_SOLUTION));
+
+        //Nothing changed, so there's nothing to reload.
+        assertFalse(watcher.reload());
+    }
+
+    @Test
+    public void testReplacedCopyIsDeleted() throws Exception
+    {
+        String templateName = RuleSet.RESOURCE_ROOT + "ruletemplates/SchematronRuleTemplate.xml";
+        String template = readResource("ruletemplates/SchematronRuleTemplate.xml");
+        write("ruletemplates/SchematronRuleTemplate.xml", template.replace(NOT_OID_SOLUTION, CHANGED_SOLUTION));
+        assertTrue(new RuleSetWatcher(directory).reload());
+
+        //A validation holds on to the rule set's copy until it is done, even after the rule set is replaced.
+        RuleSet loaded = RuleSet.acquireCurrent();
+        File copy = new File(loaded.getResource(templateName).toURI());
+        assertTrue(copy.isFile());
+        RuleSet.setCurrent(RuleSet.getBundled());
+        assertTrue(copy.isFile());
+        loaded.release();
+        assertFalse(copy.exists());
+    }
+
+    @Test
+    public void testReplacedWhileAcquiring() throws Exception
+    {
+        final String templateName = RuleSet.RESOURCE_ROOT + "ruletemplates/SchematronRuleTemplate.xml";
+        String template = readResource("ruletemplates/SchematronRuleTemplate.xml");
+        write("ruletemplates/SchematronRuleTemplate.xml", template.replace(NOT_OID_SOLUTION, CHANGED_SOLUTION));
+        RuleSet[] ruleSets = new RuleSet[20];
+        File[] copies = new File[ruleSets.length];
+        for(int i = 0; i < ruleSets.length; i++)
+        {
+            ruleSets[i] = RuleSet.load(directory);
+            copies[i] = new File(ruleSets[i].getResource(templateName).toURI());
+        }
+
+        //Validations keep acquiring the current rule set while it is replaced, and the copy they hold is never deleted under them.
+        final RuleSet bundled = RuleSet.getBundled();
+        final URL bundledTemplate = bundled.getResource(templateName);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger missingCopies = new AtomicInteger();
+        Thread[] validations = new Thread[4];
+        for(int i = 0; i < validations.length; i++)
+        {
+            validations[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while(!done.get())
+                    {
+                        RuleSet ruleSet = RuleSet.acquireCurrent();
+                        try
+                        {
+                            //A rule set whose copy is gone reads the bundled file instead.
+                            if(ruleSet != bundled && ruleSet.getResource(templateName).equals(bundledTemplate))
+                            {
+                                missingCopies.incrementAndGet();
+                            }
+                        }
+                        finally
+                        {
+                            ruleSet.release();
+                        }
+                    }
+                }
+            };
+            validations[i].start();
+        }
+        for(RuleSet ruleSet : ruleSets)
+        {
+            RuleSet.setCurrent(ruleSet);
+            Thread.sleep(5);
+        }
+        RuleSet.setCurrent(RuleSet.getBundled());
+        done.set(true);
+        for(Thread validation : validations)
+        {
+            validation.join();
+        }
+
+        assertEquals(0, missingCopies.get());
+        for(File copy : copies)
+        {
+            assertFalse(copy.exists());
+        }
+    }
+
+    @Test
+    public void testBrokenRulesAreRejected() throws Exception
+    {
+        write("schema/hml-1.0.1.xsd", "<xs:schema this is not a schema");
+        assertFalse(new RuleSetWatcher(directory).reload());
+        assertSame(RuleSet.getBundled(), RuleSet.getCurrent());
+    }
+
+    @Test
+    public void testFixtureExpectations() throws Exception
+    {
+        String template = readResource("ruletemplates/SchematronRuleTemplate.xml");
+        write("ruletemplates/SchematronRuleTemplate.xml", template.replace(NOT_OID_SOLUTION, CHANGED_SOLUTION));
+        copyFixture("Element1.hmlid.not.OID.xml");
+        write("fixtures/" + RuleSetWatcher.EXPECTED_FILE, "Element1.hmlid.not.OID.xml=not-a-compliance-value\n");
+        assertFalse(new RuleSetWatcher(directory).reload());
+        assertSame(RuleSet.getBundled(), RuleSet.getCurrent());
+
+        String compliance = validateNotOid().getMiringCompliance().getReportValue();
+        write("fixtures/" + RuleSetWatcher.EXPECTED_FILE, "Element1.hmlid.not.OID.xml=" + compliance + "\n");
+        assertTrue(new RuleSetWatcher(directory).reload());
+    }
+
+    private ValidationOutcome validateNotOid() throws Exception
+    {
+        HmlInput input = HmlInput.fromString(Utilities.readXmlResource("/org/nmdp/miring/hml/Element1.hmlid.not.OID.xml"));
+        return new MiringValidationEngine().validate(input, RuleSelection.ALL, null, null, null);
+    }
+
+    private String readResource(String name) throws Exception
+    {
+        return Utilities.readXmlResource(RuleSet.RESOURCE_ROOT + name);
+    }
+
+    private void copyFixture(String name) throws Exception
+    {
+        File target = new File(directory, RuleSet.FIXTURES_DIRECTORY + "/" + name);
+        target.getParentFile().mkdirs();
+        InputStream in = RuleSetTest.class.getResourceAsStream("/org/nmdp/miring/hml/" + name);
+        try
+        {
+            Files.copy(in, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void write(String name, String text) throws Exception
+    {
+        File target = new File(directory, name);
+        target.getParentFile().mkdirs();
+        Files.write(target.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if(files != null)
+        {
+            for(File child : files)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.junit.Test;
+
+public class SlowRequestCaptureTest
+{
+    Logger logger = LoggerFactory.getLogger(SlowRequestCaptureTest.class);
+
+    @Test
+    public void testRedactSampleIds()
+    {
+        logger.debug("starting testRedactSampleIds");
+
+        Map<String,String> sampleIds = new HashMap<String,String>();
+        String xml = "<hml><sample id=\"1234\" center-code=\"1\"/><hml:sample center-code='1' id='5678'></hml:sample><sample-x id=\"9\"/><sample id=\"1234\"/></hml>";
+        assertEquals("<hml><sample id=\"0001\" center-code=\"1\"/><hml:sample center-code='1' id='0002'></hml:sample><sample-x id=\"9\"/><sample id=\"0001\"/></hml>",
+            SlowRequestCapture.redactSampleIds(xml, sampleIds));
+        assertEquals("0002", sampleIds.get("5678"));
+    }
+
+    @Test
+    public void testCaptureAndReplay() throws Exception
+    {
+        logger.debug("starting testCaptureAndReplay");
+
+        File directory = new File("target/test-captures");
+        if(directory.isDirectory())
+        {
+            for(File file : directory.listFiles())
+            {
+                file.delete();
+            }
+        }
+        MiringValidationEngine engine = new MiringValidationEngine();
+        String xml = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml");
+        StageTimings timings = new StageTimings();
+        ValidationOutcome outcome = engine.validate(HmlInput.fromString(xml), RuleSelection.parse("tier1,tier2", null, null), null, timings);
+        assertNotNull(timings.getStage("tier1"));
+        assertNotNull(timings.getStage("total"));
+
+        //Nothing is over the thresholds.
+        SlowRequestCapture slowOnly = new SlowRequestCapture(directory, 60000, 0, true, true, 10, 0, 0);
+        assertNull(slowOnly.captureIfSlow(xml, "tier1,tier2", null, null, outcome, timings));
+
+        //Every request is over the latency threshold.  The sample ids are redacted from the payload and the report.
+        SlowRequestCapture everything = new SlowRequestCapture(directory, 0, 0, true, true, 1, 0, 0);
+        File descriptionFile = everything.captureIfSlow(xml, "tier1,tier2", null, null, outcome, timings);
+        assertNotNull(descriptionFile);
+        JSONObject description = new JSONObject(new String(java.nio.file.Files.readAllBytes(descriptionFile.toPath()), "UTF-8"));
+        assertEquals(MiringValidator.getValidatorVersion(), description.getString("validator-version"));
+        assertFalse(description.getString("validator-version").contains("${"));
+        assertTrue(description.getString("payload").endsWith(".xml.gz"));
+        assertTrue(description.getJSONArray("stages").length() >= 3);
+        assertFalse(description.getJSONObject("report").toString().contains("123456789"));
+        //The spool holds one capture.
+        assertNull(everything.captureIfSlow(xml, "tier1,tier2", null, null, outcome, timings));
+
+        MiringCaptureReplay.Settings settings = new MiringCaptureReplay.Settings();
+        settings.directory = directory.getPath();
+        settings.warmup = 0;
+        settings.repeat = 1;
+        JSONArray captures = MiringCaptureReplay.run(settings).getJSONArray("captures");
+        assertEquals(1, captures.length());
+        assertTrue(captures.getJSONObject(0).getBoolean("report-matches-capture"));
+        assertTrue(captures.getJSONObject(0).getDouble("time-ms") > 0);
+    }
+
+    @Test
+    public void testCaptureBytesInTheirEncoding() throws Exception
+    {
+        logger.debug("starting testCaptureBytesInTheirEncoding");
+
+        File directory = new File("target/test-captures-bytes");
+        if(directory.isDirectory())
+        {
+            for(File file : directory.listFiles())
+            {
+                file.delete();
+            }
+        }
+        String xml = Utilities.readXmlResource("/org/nmdp/miring/hml/demobad.xml")
+            .replace("encoding=\"utf-8\"?>", "encoding=\"ISO-8859-1\"?>\n<!-- Z\u00fcrich -->");
+        byte[] bytes = xml.getBytes(StandardCharsets.ISO_8859_1);
+        StageTimings timings = new StageTimings();
+        ValidationOutcome outcome = new MiringValidationEngine().validate(HmlInput.fromBuffer(ByteBuffer.wrap(bytes)), RuleSelection.parse("tier1,tier2", null, null), null, timings);
+        assertEquals(StandardCharsets.ISO_8859_1, HmlInput.fromBuffer(ByteBuffer.wrap(bytes)).getEncoding());
+        assertEquals(xml, HmlInput.fromBuffer(ByteBuffer.wrap(bytes)).asString());
+
+        //The bytes are saved as they were sent.
+        SlowRequestCapture raw = new SlowRequestCapture(directory, 0, 0, false, false, 10, 0, 0);
+        File descriptionFile = raw.captureIfSlow(HmlInput.fromBuffer(ByteBuffer.wrap(bytes)), "tier1,tier2", null, null, outcome, timings);
+        JSONObject description = new JSONObject(new String(Files.readAllBytes(descriptionFile.toPath()), StandardCharsets.UTF_8));
+        assertTrue(description.getBoolean("raw-bytes"));
+        assertTrue(Arrays.equals(bytes, Files.readAllBytes(new File(directory, description.getString("payload")).toPath())));
+
+        //Redacted, they are still in their own encoding.
+        SlowRequestCapture redacted = new SlowRequestCapture(directory, 0, 0, false, true, 10, 0, 0);
+        descriptionFile = redacted.captureIfSlow(HmlInput.fromBuffer(ByteBuffer.wrap(bytes)), "tier1,tier2", null, null, outcome, timings);
+        description = new JSONObject(new String(Files.readAllBytes(descriptionFile.toPath()), StandardCharsets.UTF_8));
+        String payload = new String(Files.readAllBytes(new File(directory, description.getString("payload")).toPath()), StandardCharsets.ISO_8859_1);
+        assertTrue(payload.contains("Z\u00fcrich"));
+        assertFalse(payload.contains("123456789"));
+
+        MiringCaptureReplay.Settings settings = new MiringCaptureReplay.Settings();
+        settings.directory = directory.getPath();
+        settings.warmup = 0;
+        settings.repeat = 1;
+        JSONArray captures = MiringCaptureReplay.run(settings).getJSONArray("captures");
+        assertEquals(2, captures.length());
+        for(int i = 0; i < captures.length(); i++)
+        {
+            assertTrue(captures.getJSONObject(i).getBoolean("report-matches-capture"));
+        }
+    }
+}
@@ -25,19 +25,33 @@ package org.nmdp.miring;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
 
 import org.nmdp.miring.SchematronValidator;
 import org.nmdp.miring.Utilities;
+import org.nmdp.miring.ValidationResult.Severity;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.junit.Test;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
 
 public class UtilsTest
 {
@@ -177,4 +191,150 @@ public class UtilsTest
         assertNotNull(demoGoodXML);
         assertTrue(demoGoodXML.length() > 50);
     }
+
+    @Test
+    public void testXmlFactories() throws Exception
+    {
+        logger.debug("starting testXmlFactories");
+
+        //A released parser is reused by the next parse on the same thread.
+        SAXParser parser = XmlFactories.acquireSaxParser();
+        XmlFactories.releaseSaxParser(parser);
+        assertSame(parser, XmlFactories.acquireSaxParser());
+
+        //A parse inside a parse gets its own parser.
+        final SAXParser outerParser = parser;
+        final int[] innerElements = {0};
+        XmlFactories.releaseSaxParser(outerParser);
+        XmlFactories.parse(new InputSource(new StringReader("<a><b/></a>")), new DefaultHandler()
+        {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException
+            {
+                try
+                {
+                    XmlFactories.parse(new InputSource(new StringReader("<c><d/><e/></c>")), new DefaultHandler()
+                    {
+                        @Override
+                        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                        {
+                            innerElements[0]++;
+                        }
+                    });
+                }
+                catch(Exception e)
+                {
+                    throw new SAXException(e);
+                }
+            }
+        });
+        assertEquals(6, innerElements[0]);
+
+        //Builders keep their namespace awareness, and a reset transformer has no output properties left over.
+        assertEquals("b", XmlFactories.parseDocument(new InputSource(new StringReader("<x:a xmlns:x=\"urn:x\"><b/></x:a>")), true).getDocumentElement().getFirstChild().getLocalName());
+        assertNull(XmlFactories.parseDocument(new InputSource(new StringReader("<x:a xmlns:x=\"urn:x\"><b/></x:a>")), false).getDocumentElement().getLocalName());
+        assertTrue(Utilities.getStringFromDoc(Utilities.xmlToDocumentObject("<a><b/></a>")).matches("(?s).*\\n\\s+<b/>.*"));
+        Transformer transformer = XmlFactories.acquireTransformer();
+        assertNotEquals("yes", transformer.getOutputProperty(OutputKeys.INDENT));
+        XmlFactories.releaseTransformer(transformer);
+    }
+
+    @Test
+    public void testValidationResultSink()
+    {
+        logger.debug("starting testValidationResultSink");
+        //Three sources with plenty of results that sort the same, which must stay in the order combineArrays leaves them.
+        Random random = new Random(42);
+        String[] rules = {"", "1.1.a", "2.1.b", "4.2.3.b", "5.2.b", "reject"};
+        Severity[] severities = Severity.values();
+        ValidationResult[][] sources = new ValidationResult[3][];
+        ValidationResultSink sink = new ValidationResultSink();
+        for(int source = 0; source < sources.length; source++)
+        {
+            sources[source] = new ValidationResult[50];
+            for(int i = 0; i < sources[source].length; i++)
+            {
+                ValidationResult result = new ValidationResult("Error " + random.nextInt(4), severities[random.nextInt(severities.length)]);
+                result.setMiringRule(rules[random.nextInt(rules.length)]);
+                sources[source][i] = result;
+            }
+            sink.addAll(source, sources[source]);
+        }
+        sink.addAll(3, null);
+
+        ValidationResult[] expected = Utilities.combineArrays(sources[0], sources[1], sources[2]);
+        ValidationResult[] actual = sink.toArray();
+        assertEquals(expected.length, sink.size());
+        assertEquals(expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++)
+        {
+            assertSame(expected[i], actual[i]);
+        }
+
+        //Each severity is in the same order, and results which aren't kept are dropped from every severity.
+        ValidationResult[] kept = new ValidationResult[expected.length / 2];
+        for(int i = 0; i < kept.length; i++)
+        {
+            kept[i] = expected[2 * i];
+        }
+        sink.retainAll(kept);
+        assertEquals(kept.length, sink.size());
+        Map<Severity,List<ValidationResult>> severityResults = sink.toSeverityLists();
+        for(Severity severity : severities)
+        {
+            List<ValidationResult> expectedResults = new ArrayList<ValidationResult>();
+            for(ValidationResult result : kept)
+            {
+                if(result.getSeverity() == severity)
+                {
+                    expectedResults.add(result);
+                }
+            }
+            List<ValidationResult> actualResults = severityResults.get(severity);
+            assertEquals(expectedResults, (actualResults == null) ? new ArrayList<ValidationResult>() : actualResults);
+        }
+        assertArrayEquals(kept, sink.toArray());
+    }
+
+    @Test
+    public void testXPath()
+    {
+        logger.debug("starting testXPath");
+        String namespace = "{http://schemas.nmdp.org/spec/hml/1.0.1}";
+        XPath typing = XPath.parse("/" + namespace + "hml[1]/" + namespace + "sample[12]/" + namespace + "typing[1]", namespace);
+        assertEquals("/hml[1]/sample[12]/typing[1]", typing.toString());
+        assertEquals(12, typing.getSampleIndex());
+        assertEquals("/hml[1]/sample[3]/typing[1]/allele-assignment[2]", typing.moveSample(12, 3).child("allele-assignment", 2).toString());
+        assertSame(typing, typing.moveSample(11, 3));
+        assertEquals(0, XPath.root("hml", 1).child("hmlid", 1).getSampleIndex());
+
+        //Locations that aren't simple steps are kept as they are, with the namespace removed.
+        assertEquals("/hml[1]/sample[2]/@id", XPath.parse("/" + namespace + "hml[1]/" + namespace + "sample[2]/@id", namespace).toString());
+        assertEquals(2, XPath.parse("/hml[1]/sample[2]/@id", null).getSampleIndex());
+        assertEquals("/hml[01]", XPath.parse("/hml[01]", null).toString());
+        assertTrue(XPath.parse("/hml[1]/sample[2]", null).equals(XPath.root("hml", 1).child("sample", 2)));
+
+        //Paths sort the same as their strings.
+        Random random = new Random(7);
+        String[] names = {"sample", "sample-x", "samples", "typing", "a", "b"};
+        List<XPath> xPaths = new ArrayList<XPath>();
+        for(int i = 0; i < 300; i++)
+        {
+            XPath xPath = XPath.root("hml", 1);
+            int depth = random.nextInt(4);
+            for(int j = 0; j < depth; j++)
+            {
+                xPath = xPath.child(names[random.nextInt(names.length)], 1 + random.nextInt(12));
+            }
+            xPaths.add((i % 10 == 0) ? XPath.parse(xPath.toString() + "/@id", null) : xPath);
+        }
+        for(XPath first : xPaths)
+        {
+            for(XPath second : xPaths)
+            {
+                assertEquals(Integer.signum(first.toString().compareTo(second.toString())), Integer.signum(first.compareTo(second)));
+                assertEquals(first.toString().equals(second.toString()), first.equals(second));
+            }
+        }
+    }
 }
@@ -71,4 +71,76 @@ public class ValidationErrorTest
         assertFalse(thirdError.compareTo(firstError) < 0);
     }
 
+    @Test
+    public void testTemplatedValidationResults()
+    {
+        logger.debug("starting testTemplatedValidationResults");
+        
+        ResultText errorTemplate = ResultText.compile("{0}{1} There is a missing {2} node underneath the {3} node.");
+        ResultText solutionTemplate = ResultText.compile("Please add one {2} node. {4} Don't use '{' or {x}.");
+        
+        String[] parameters = SchemaValidator.resultParameters(new ResultText.Pool(), "[39,46] Invalid content.", "hmlid", "hml");
+        parameters[4] = "It's required.";
+        ValidationResult templatedError = new ValidationResult(errorTemplate, parameters, Severity.FATAL);
+        templatedError.setSolutionText(solutionTemplate, parameters);
+        
+        assertEquals("[39,46] Invalid content. There is a missing hmlid node underneath the hml node.", templatedError.getErrorText());
+        assertEquals("Please add one hmlid node. It's required. Don't use '{' or {x}.", templatedError.getSolutionText());
+        
+        //A templated result equals a result with the same text.
+        ValidationResult plainError = new ValidationResult(templatedError.getErrorText(), Severity.FATAL);
+        plainError.setSolutionText(templatedError.getSolutionText());
+        assertTrue(templatedError.equals(plainError));
+        assertTrue(plainError.equals(templatedError));
+        
+        //Copies move the line number in the location, and share the rest of the text.
+        ValidationResult movedError = templatedError.copy(10);
+        assertEquals("[49,46] Invalid content. There is a missing hmlid node underneath the hml node.", movedError.getErrorText());
+        assertEquals(templatedError.getSolutionText(), movedError.getSolutionText());
+        assertSame(parameters[1], movedError.errorParameters[1]);
+        assertFalse(templatedError.equals(movedError));
+        assertTrue(templatedError.equals(templatedError.copy(0)));
+        assertEquals("[49,46] Plain error", new ValidationResult("[39,46] Plain error", Severity.FATAL).copy(10).getErrorText());
+        
+        //Setting the text replaces the template.
+        movedError.setErrorText("Another error");
+        assertEquals("Another error", movedError.getErrorText());
+        
+        ResultText.Pool strings = new ResultText.Pool();
+        assertSame(strings.canonical(new String("hmlid")), strings.canonical(new String("hmlid")));
+        assertNotSame(strings.canonical(new String("hml")), new ResultText.Pool().canonical(new String("hml")));
+    }
+
+    @Test
+    public void testTemplatedResultOrder()
+    {
+        logger.debug("starting testTemplatedResultOrder");
+        
+        ResultText template = ResultText.compile("The {0} node{1} is missing.");
+        String[][] parameters = {
+            {"hml", ""}, {"hmlid", ""}, {"hml", "s"}, {"hm", "l"}, {"sample", " "}, {"hml", "!"}, {null, ""}, {"sample", ""}
+        };
+        
+        //Results with the same template sort like their text.
+        for(String[] first : parameters)
+        {
+            for(String[] second : parameters)
+            {
+                ValidationResult firstResult = new ValidationResult(template, first, Severity.FATAL);
+                ValidationResult secondResult = new ValidationResult(template, second, Severity.FATAL);
+                int textCompare = template.format(first).compareTo(template.format(second));
+                assertEquals(Integer.signum(textCompare), Integer.signum(firstResult.compareTo(secondResult)));
+                assertEquals(textCompare == 0, firstResult.getTextKey().equals(secondResult.getTextKey()));
+            }
+        }
+        
+        //Plain results are keyed by their text, and the rule is part of the key.
+        ValidationResult plainResult = new ValidationResult("The hml node is missing.", Severity.FATAL);
+        assertEquals(plainResult.getTextKey(), new ValidationResult("The hml node is missing.", Severity.MIRING).getTextKey());
+        assertEquals(plainResult.getTextKey().hashCode(), new ValidationResult("The hml node is missing.", Severity.MIRING).getTextKey().hashCode());
+        ValidationResult ruleResult = new ValidationResult("The hml node is missing.", Severity.FATAL);
+        ruleResult.setMiringRule("1.1");
+        assertFalse(plainResult.getTextKey().equals(ruleResult.getTextKey()));
+        assertTrue(plainResult.compareTo(new ValidationResult(template, new String[] {"hmlid", ""}, Severity.FATAL)) < 0);
+    }
 }
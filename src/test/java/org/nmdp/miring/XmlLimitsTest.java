@@ -0,0 +1,135 @@
+/*
+
+    MiringValidator  Semantic Validator for MIRING compliant HML
+    Copyright (c) 2015 National Marrow Donor Program (NMDP)
+
+    This library is free software; you can redistribute it and/or modify it
+    under the terms of the GNU Lesser General Public License as published
+    by the Free Software Foundation; either version 3 of the License, or (at
+    your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT
+    ANY WARRANTY; with out even the implied warranty of MERCHANTABILITY or
+    FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public
+    License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this library;  if not, write to the Free Software Foundation,
+    Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA.
+
+    > http://www.gnu.org/licenses/lgpl.html
+
+*/
+package org.nmdp.miring;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.nmdp.miring.ValidationResult.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+public class XmlLimitsTest
+{
+    Logger logger = LoggerFactory.getLogger(XmlLimitsTest.class);
+
+    private static final String HML_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<hml xmlns=\"http://schemas.nmdp.org/spec/hml/1.0.1\" version=\"1.0.1\">\n";
+    private static final String HML_END = "</hml>\n";
+
+    private static ValidationOutcome assertRejected(String xml, String errorText)
+    {
+        ValidationOutcome outcome = new MiringValidationEngine().validate(xml);
+        assertEquals(1, outcome.getResults().size());
+        ValidationResult rejection = outcome.getResults().get(0);
+        assertEquals(Severity.FATAL, rejection.getSeverity());
+        assertEquals("reject", rejection.getMiringRule());
+        assertTrue(rejection.getErrorText(), rejection.getErrorText().contains(errorText));
+        assertTrue(outcome.isRejected());
+        return outcome;
+    }
+
+    private static void assertNotRejected(String xml)
+    {
+        for(ValidationResult result : new MiringValidationEngine().validate(xml).getResults())
+        {
+            assertFalse(result.getErrorText(), result.getErrorText().contains("limit"));
+        }
+    }
+
+    private static String repeat(String text, int times)
+    {
+        StringBuilder repeated = new StringBuilder();
+        for(int i = 0; i < times; i++)
+        {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+
+    @Test
+    public void testWithinLimits()
+    {
+        logger.debug("starting testWithinLimits");
+
+        assertFalse(new MiringValidationEngine().validate(Utilities.readXmlResource("/org/nmdp/miring/hml/demogood.xml")).isRejected());
+        assertNull(XmlLimits.checkLength(HmlInput.fromString(HML_START + HML_END)));
+        //Not well formed isn't a limit, the stages report it.
+        assertNotRejected(HML_START + "<sample>");
+    }
+
+    @Test
+    public void testDepth()
+    {
+        logger.debug("starting testDepth");
+
+        int depth = XmlLimits.MAX_DEPTH;
+        assertNotRejected(HML_START + repeat("<a>", depth - 1) + repeat("</a>", depth - 1) + HML_END);
+
+        ValidationOutcome outcome = assertRejected(HML_START + repeat("<a>", depth) + repeat("</a>", depth) + HML_END, "nested deeper than the limit of " + depth);
+        String report = outcome.toXml();
+        Element root = Utilities.xmlToRootElement(report);
+        assertEquals("reject", root.getElementsByTagName("miring-compliant").item(0).getTextContent());
+        assertTrue(report.contains("miring-rule-id=\"reject\""));
+        assertTrue(report.contains("miring.limits.maxDepth"));
+    }
+
+    @Test
+    public void testAttributesAndText()
+    {
+        logger.debug("starting testAttributesAndText");
+
+        StringBuilder attributes = new StringBuilder("<sample");
+        for(int i = 0; i <= XmlLimits.MAX_ATTRIBUTES; i++)
+        {
+            attributes.append(" a").append(i).append("=\"x\"");
+        }
+        assertRejected(HML_START + attributes + "/>" + HML_END, "over the limit of " + XmlLimits.MAX_ATTRIBUTES);
+
+        //The parser gives a long text node in pieces, which are counted together.
+        char[] text = new char[(int)XmlLimits.MAX_TEXT_LENGTH + 1];
+        Arrays.fill(text, 'A');
+        assertRejected(HML_START + "<sequence>" + new String(text) + "</sequence>" + HML_END, "text node is longer than the limit");
+    }
+
+    @Test
+    public void testEntityExpansion()
+    {
+        logger.debug("starting testEntityExpansion");
+
+        StringBuilder doctype = new StringBuilder("<?xml version=\"1.0\"?>\n<!DOCTYPE hml [\n<!ENTITY e0 \"lol\">\n");
+        for(int i = 1; i < 10; i++)
+        {
+            doctype.append("<!ENTITY e").append(i).append(" \"").append(repeat("&e" + (i - 1) + ";", 10)).append("\">\n");
+        }
+        doctype.append("]>\n");
+        long start = System.currentTimeMillis();
+        assertRejected(doctype + "<hml version=\"1.0.1\">&e9;</hml>", "limit");
+        assertRejected(doctype + "<hml version=\"1.0.1\" note=\"&e9;\"></hml>", "limit");
+        //A billion expansions, stopped after a thousand.
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+}